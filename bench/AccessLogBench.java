@@ -0,0 +1,156 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Access logging cost, in two parts. Logger alone: several threads log the
+ * same request back to back, through the System.out.printf call workers
+ * used to make (into a PrintStream on /dev/null, so only the formatting and
+ * the stream lock are measured) and through AccessLog writing to a file,
+ * with each overflow policy. Reported are calls per second across the
+ * threads and how many records reached the file or were dropped. Server:
+ * a fresh server per setting (access log off, to a file, to stdout) is
+ * driven by LoadGenerator with the same mix, offered rate and connections,
+ * so the difference in achieved throughput and latency is what logging
+ * costs a request. Run it on the machine being measured.
+ *
+ * Usage: java -cp bin AccessLogBench [seconds] [threads] [rate] [connections] [port]
+ */
+public class AccessLogBench {
+    private static volatile boolean stop;
+    
+    private interface Logger {
+        void log(HTTPRequest request, HTTPResponse response);
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 50_000;
+        int connections = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 18080;
+        
+        HTTPRequest request = HTTPRequest.parse(new ByteArrayInputStream(
+            "GET /api/echo?message=bench HTTP/1.1\r\nHost: localhost\r\nUser-Agent: bench\r\n\r\n"
+                .getBytes(StandardCharsets.ISO_8859_1)));
+        HTTPResponse response = HTTPResponse.json(ByteBuffer.wrap("{\"message\":\"bench\"}".getBytes(StandardCharsets.UTF_8)));
+        
+        System.out.printf("logger alone, %d threads, %d s per case%n", threads, seconds);
+        System.out.printf("%-20s %14s %14s %14s%n", "case", "calls/s", "written", "dropped");
+        try (PrintStream devNull = new PrintStream(new FileOutputStream("/dev/null"), true)) {
+            Logger printf = (req, resp) -> devNull.printf("[%s] %s %s → %d%n",
+                "127.0.0.1", req.getMethod(), req.getPath(), resp.getStatusCode());
+            calls(printf, request, response, threads, Math.max(1, seconds / 2));
+            long count = calls(printf, request, response, threads, seconds);
+            System.out.printf("%-20s %,14d %,14d %14s%n", "printf (old)", count / seconds, count, "-");
+        }
+        for (AccessLog.Overflow overflow : AccessLog.Overflow.values()) {
+            Path directory = Files.createTempDirectory("accesslog-bench");
+            try {
+                AccessLog log = new AccessLog(directory.resolve("access.log"), AccessLog.Format.COMMON, overflow,
+                    ServerConfig.DEFAULT_ACCESS_LOG_BUFFER, 0, 1);
+                Logger ring = (req, resp) -> log.log("127.0.0.1", req, resp, 1000);
+                calls(ring, request, response, threads, Math.max(1, seconds / 2));
+                long writtenBefore = log.getWritten();
+                long droppedBefore = log.getDropped();
+                long count = calls(ring, request, response, threads, seconds);
+                // Closing writes out what is still queued
+                log.close();
+                System.out.printf("%-20s %,14d %,14d %,14d%n", "ring " + overflow.name().toLowerCase(Locale.ROOT),
+                    count / seconds, log.getWritten() - writtenBefore, log.getDropped() - droppedBefore);
+            } finally {
+                deleteTree(directory);
+            }
+        }
+        
+        System.out.println();
+        System.out.printf("server, %d connections, offered %,d req/s, %d s per setting%n", connections, rate, seconds);
+        System.out.printf("%-20s %12s %10s %10s%n", "access log", "req/s", "p50 ms", "p99 ms");
+        Path directory = Files.createTempDirectory("accesslog-bench");
+        try {
+            Map<String, String> settings = new LinkedHashMap<>();
+            settings.put("off", "off");
+            settings.put("file", directory.resolve("access.log").toString());
+            settings.put("stdout", "-");
+            for (Map.Entry<String, String> setting : settings.entrySet()) {
+                Process server = startServer(setting.getValue(), port);
+                try {
+                    awaitPort(port);
+                    LoadGenerator.run(port, rate, Math.max(1, seconds / 2), connections, "echo:1", true);
+                    LoadGenerator generator = LoadGenerator.run(port, rate, seconds, connections, "echo:1", true);
+                    System.out.printf("%-20s %,12.0f %10.3f %10.3f%n", setting.getKey(), generator.throughput(),
+                        generator.serviceLatency(0.5) / 1e6, generator.serviceLatency(0.99) / 1e6);
+                } finally {
+                    server.destroy();
+                    server.waitFor(10, TimeUnit.SECONDS);
+                }
+            }
+        } finally {
+            deleteTree(directory);
+        }
+    }
+    
+    /**
+     * @return calls made across all threads
+     */
+    private static long calls(Logger logger, HTTPRequest request, HTTPResponse response, int threads, int seconds)
+            throws InterruptedException {
+        LongAdder calls = new LongAdder();
+        stop = false;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                long count = 0;
+                while (!stop) {
+                    logger.log(request, response);
+                    count++;
+                }
+                calls.add(count);
+            });
+            workers[t].start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        stop = true;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return calls.sum();
+    }
+    
+    private static void deleteTree(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+    
+    private static Process startServer(String accessLog, int port) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = Arrays.asList(java,
+            "-Dserver.accessLog=" + accessLog,
+            "-cp", System.getProperty("java.class.path"),
+            "HTTPServer", String.valueOf(port));
+        return new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+    }
+    
+    private static void awaitPort(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+}
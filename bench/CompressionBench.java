@@ -0,0 +1,108 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * What content encoding costs and saves per response. The bodies are the
+ * files in public/ and a JSON user list of the given length, as GET
+ * /api/users returns it. For each body, encoding and zlib level the table
+ * shows the bytes saved against identity and the CPU time ContentEncoder
+ * spends compressing one response. The static variant cache is then timed
+ * on index.html: a hit against a miss, which compresses the file again as
+ * every request did before variants were cached. Each case runs a warmup
+ * round so the JIT settles, then a measured round on this thread. Run from
+ * the project directory.
+ *
+ * Usage: java -cp bin CompressionBench [seconds] [users]
+ */
+public class CompressionBench {
+    private static final int[] LEVELS = { 1, 6, 9 };
+    
+    private static volatile long sink;
+    
+    private interface Case {
+        /**
+         * @return bytes produced
+         */
+        long run();
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        
+        Map<String, ByteBuffer> bodies = new LinkedHashMap<>();
+        for (String name : new String[] { "index.html", "script.js", "style.css" }) {
+            bodies.put(name, ByteBuffer.wrap(Files.readAllBytes(Paths.get("public", name))));
+        }
+        UserStore store = new UserStore();
+        for (int i = 0; i < users; i++) {
+            store.create("User " + i, "user" + i + "@example.com");
+        }
+        bodies.put("users.json", store.snapshot().toJson());
+        
+        System.out.printf("%-12s %-8s %6s %10s %10s %8s %12s %10s%n",
+            "body", "encoding", "level", "bytes in", "bytes out", "saved", "ns/response", "MB/s in");
+        for (Map.Entry<String, ByteBuffer> body : bodies.entrySet()) {
+            ByteBuffer input = body.getValue();
+            for (String encoding : new String[] { ContentEncoder.GZIP, ContentEncoder.DEFLATE }) {
+                for (int level : LEVELS) {
+                    ContentEncoder encoder = new ContentEncoder(level, 0, 0);
+                    double[] result = run(seconds, () -> encoder.compress(input, encoding).length);
+                    int in = input.remaining();
+                    long out = encoder.compress(input, encoding).length;
+                    System.out.printf("%-12s %-8s %6d %,10d %,10d %7.1f%% %,12.0f %,10.0f%n",
+                        body.getKey(), encoding, level, in, out, 100.0 * (in - out) / in,
+                        result[0], in * 1e9 / result[0] / (1024 * 1024));
+                }
+            }
+        }
+        
+        StaticFileCache files = new StaticFileCache(ServerConfig.DEFAULT_STATIC_CACHE_BYTES,
+            ServerConfig.DEFAULT_STATIC_CACHE_MAX_FILE);
+        StaticFileCache.Entry index = files.get(Paths.get("public", "index.html"));
+        ContentEncoder cached = new ContentEncoder(ServerConfig.DEFAULT_COMPRESSION_LEVEL,
+            ServerConfig.DEFAULT_COMPRESSION_MIN_SIZE, ServerConfig.DEFAULT_COMPRESSION_CACHE_BYTES);
+        // No room for any variant, so every lookup compresses again
+        ContentEncoder uncached = new ContentEncoder(ServerConfig.DEFAULT_COMPRESSION_LEVEL,
+            ServerConfig.DEFAULT_COMPRESSION_MIN_SIZE, 0);
+        
+        System.out.println();
+        System.out.printf("%-24s %12s %10s%n", "static variant", "ns/response", "bytes/op");
+        printVariant("index.html cache hit", seconds, () -> cached.encode(index, ContentEncoder.GZIP).remaining());
+        printVariant("index.html cache miss", seconds, () -> uncached.encode(index, ContentEncoder.GZIP).remaining());
+    }
+    
+    private static void printVariant(String name, int seconds, Case benchmark) {
+        double[] result = run(seconds, benchmark);
+        System.out.printf("%-24s %,12.0f %,10.0f%n", name, result[0], result[1]);
+    }
+    
+    private static double[] run(int seconds, Case benchmark) {
+        measure(benchmark, seconds * 1_000_000_000L / 2);
+        return measure(benchmark, seconds * 1_000_000_000L);
+    }
+    
+    /**
+     * @return nanoseconds and bytes allocated per operation
+     */
+    private static double[] measure(Case benchmark, long nanos) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long ops = 0;
+        long produced = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long started = System.nanoTime();
+        long elapsed;
+        do {
+            produced += benchmark.run();
+            ops++;
+            elapsed = System.nanoTime() - started;
+        } while (elapsed < nanos);
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        sink += produced;
+        return new double[] { (double) elapsed / ops, (double) allocated / ops };
+    }
+}
@@ -0,0 +1,114 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Throughput and allocation of JsonWriter against the String.format
+ * serialization it replaced, for the /api/status document and a page of
+ * users. Each case runs a warmup round so the JIT settles, then a measured
+ * round on this thread; allocation comes from the thread's allocated-bytes
+ * counter, so it includes every temporary the serializer creates. Both
+ * sides end with the UTF-8 bytes a response body needs.
+ *
+ * Usage: java -cp bin JsonBench [seconds] [users]
+ */
+public class JsonBench {
+    private static volatile int sink;
+    
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int userCount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        
+        String[] names = new String[userCount];
+        String[] emails = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            names[i] = "User " + i;
+            emails[i] = "user" + i + "@example.com";
+        }
+        
+        System.out.printf("%-20s %14s %14s%n", "case", "ops/s", "bytes/op");
+        run("status format", seconds, () -> formatStatus().getBytes(StandardCharsets.UTF_8));
+        run("status writer", seconds, () -> writeStatus().toByteBuffer());
+        run("users format", seconds, () -> formatUsers(names, emails).getBytes(StandardCharsets.UTF_8));
+        run("users writer", seconds, () -> writeUsers(names, emails).toByteBuffer());
+    }
+    
+    private static void run(String name, int seconds, Supplier<Object> serializer) {
+        measure(serializer, seconds * 1_000_000_000L / 2);
+        long[] result = measure(serializer, seconds * 1_000_000_000L);
+        System.out.printf("%-20s %,14d %,14d%n", name, result[0], result[1]);
+    }
+    
+    /**
+     * @return operations per second and bytes allocated per operation
+     */
+    private static long[] measure(Supplier<Object> serializer, long nanos) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long ops = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long started = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 1000; i++) {
+                Object body = serializer.get();
+                sink += body instanceof ByteBuffer ? ((ByteBuffer) body).remaining() : ((byte[]) body).length;
+            }
+            ops += 1000;
+            elapsed = System.nanoTime() - started;
+        } while (elapsed < nanos);
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        return new long[] { ops * 1_000_000_000L / elapsed, allocated / ops };
+    }
+    
+    // The String.format path as it was in RequestHandler and UserStore
+    private static String formatStatus() {
+        return String.format(
+            "{\"status\":\"running\",\"uptime\":%d,\"processors\":%d,\"memory\":{\"total\":%d,\"free\":%d}%s}",
+            123456789L, 8, 268435456L, 134217728L,
+            String.format(",\"compression\":{\"bytesIn\":%d,\"bytesOut\":%d,\"cpuMillis\":%d,\"cacheHits\":%d}",
+                1048576L, 262144L, 42L, 17L));
+    }
+    
+    private static JsonWriter writeStatus() {
+        return new JsonWriter()
+            .beginObject()
+            .name("status").value("running")
+            .name("uptime").value(123456789L)
+            .name("processors").value(8)
+            .name("memory").beginObject()
+                .name("total").value(268435456L)
+                .name("free").value(134217728L)
+            .endObject()
+            .name("compression").beginObject()
+                .name("bytesIn").value(1048576L)
+                .name("bytesOut").value(262144L)
+                .name("cpuMillis").value(42L)
+                .name("cacheHits").value(17L)
+            .endObject()
+            .endObject();
+    }
+    
+    private static String formatUsers(String[] names, String[] emails) {
+        StringBuilder builder = new StringBuilder(2 + names.length * 64).append('[');
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) builder.append(',');
+            builder.append(String.format("{\"id\":%d,\"name\":\"%s\",\"email\":\"%s\"}", i + 1, names[i], emails[i]));
+        }
+        return builder.append(']').toString();
+    }
+    
+    private static JsonWriter writeUsers(String[] names, String[] emails) {
+        JsonWriter out = new JsonWriter(2 + names.length * 64).beginArray();
+        for (int i = 0; i < names.length; i++) {
+            out.beginObject()
+                .name("id").value(i + 1)
+                .name("name").value(names[i])
+                .name("email").value(emails[i])
+                .endObject();
+        }
+        return out.endArray();
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of persistent connections against one request per socket
+ * A fresh server is started as a child process, then LoadGenerator drives
+ * it twice with the same mix, connection count and offered rate: once on
+ * keep-alive connections (reconnecting only at the server's per-connection
+ * request limit) and once sending Connection: close on every request, so
+ * each one pays for a TCP handshake, an accept and a teardown. Offer a rate
+ * above what the server can do, so achieved throughput is its capacity in
+ * each mode. Run it on the machine being measured with the client pinned
+ * away from the server cores (e.g. taskset).
+ *
+ * Usage: java -cp bin KeepAliveBench [rate] [seconds] [connections] [mix] [engine] [port]
+ */
+public class KeepAliveBench {
+
+    public static void main(String[] args) throws Exception {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        String mix = args.length > 3 ? args[3] : "echo:1";
+        String engine = args.length > 4 ? args[4] : "blocking";
+        int port = args.length > 5 ? Integer.parseInt(args[5]) : 18080;
+        
+        Process server = startServer(engine, port);
+        try {
+            awaitPort(port);
+            // Warm the server up on both paths before measuring either
+            LoadGenerator.run(port, rate, Math.max(1, seconds / 2), connections, mix, true);
+            LoadGenerator.run(port, rate, Math.max(1, seconds / 2), connections, mix, false);
+            
+            System.out.println("== keep-alive");
+            LoadGenerator keepAlive = LoadGenerator.run(port, rate, seconds, connections, mix, true);
+            keepAlive.print(rate);
+            System.out.println("== connection: close");
+            LoadGenerator close = LoadGenerator.run(port, rate, seconds, connections, mix, false);
+            close.print(rate);
+            
+            System.out.println();
+            System.out.printf("%-18s %12s %12s %12s %12s%n", "mode", "req/s", "connects", "p50 ms", "p99 ms");
+            printRow("keep-alive", keepAlive);
+            printRow("connection: close", close);
+            System.out.printf("keep-alive gain: %.2fx%n", keepAlive.throughput() / close.throughput());
+        } finally {
+            server.destroy();
+            server.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+    
+    private static void printRow(String mode, LoadGenerator generator) {
+        System.out.printf("%-18s %,12.0f %,12d %12.3f %12.3f%n", mode, generator.throughput(), generator.connects(),
+            generator.serviceLatency(0.5) / 1e6, generator.serviceLatency(0.99) / 1e6);
+    }
+    
+    private static Process startServer(String engine, int port) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = Arrays.asList(java,
+            "-Dserver.engine=" + engine,
+            "-Dserver.accessLog=off",
+            "-cp", System.getProperty("java.class.path"),
+            "HTTPServer", String.valueOf(port));
+        return new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+    }
+    
+    private static void awaitPort(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-request cost of the admission limiters: ClientLimiter with both its
+ * in-flight cap and token bucket enabled, for one client and for a
+ * thousand, and ConcurrencyLimiter's uncontended permit. Limits are set
+ * high enough that every call is admitted, so each op is the full
+ * acquire/release pair a served request pays. Each case runs a warmup
+ * round, then a measured round on the given number of threads.
+ *
+ * Usage: java -cp bin LimiterBench [seconds] [threads]
+ */
+public class LimiterBench {
+    private static volatile int sink;
+    
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        
+        String[] addresses = new String[1000];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = "10.0." + (i >> 8) + "." + (i & 0xff);
+        }
+        
+        System.out.printf("%-24s %14s %10s%n", "case (" + threads + " threads)", "ops/s", "ns/op");
+        ClientLimiter oneClient = new ClientLimiter(1_000_000, 1e12, 1_000_000);
+        run("client limiter, 1 ip", seconds, threads, i -> {
+            if (oneClient.tryAcquire(addresses[0])) {
+                oneClient.release(addresses[0]);
+            }
+        });
+        ClientLimiter manyClients = new ClientLimiter(1_000_000, 1e12, 1_000_000);
+        run("client limiter, 1000 ips", seconds, threads, i -> {
+            String address = addresses[i % addresses.length];
+            if (manyClients.tryAcquire(address)) {
+                manyClients.release(address);
+            }
+        });
+        ConcurrencyLimiter concurrency = new ConcurrencyLimiter(1_000_000, 100);
+        run("concurrency limiter", seconds, threads, i -> {
+            if (concurrency.acquire()) {
+                concurrency.release();
+            }
+        });
+        run("baseline (no limiter)", seconds, threads, i -> sink = i);
+    }
+    
+    private interface Op {
+        void run(int i);
+    }
+    
+    private static void run(String name, int seconds, int threads, Op op) throws InterruptedException {
+        measure(op, threads, seconds * 1_000_000_000L / 2);
+        long ops = measure(op, threads, seconds * 1_000_000_000L);
+        double perSecond = ops * 1e9 / (seconds * 1_000_000_000L);
+        System.out.printf("%-24s %,14.0f %10.1f%n", name, perSecond, threads * 1e9 / perSecond);
+    }
+    
+    /**
+     * @return ops completed across all threads
+     */
+    private static long measure(Op op, int threads, long nanos) throws InterruptedException {
+        LongAdder total = new LongAdder();
+        long deadline = System.nanoTime() + nanos;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                long ops = 0;
+                int i = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int batch = 0; batch < 1000; batch++) {
+                        op.run(i++);
+                    }
+                    ops += 1000;
+                }
+                total.add(ops);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return total.sum();
+    }
+}
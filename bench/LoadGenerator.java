@@ -0,0 +1,422 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for a running server
+ * Requests are scheduled at a fixed arrival rate, whatever the server is
+ * doing: request n is due at start + n / rate. A connection that is free
+ * claims the next due request, waits for its time and sends it on a
+ * keep-alive socket. Latency is measured from the time the request was
+ * due, not from when it was sent, so a stalled server is charged for the
+ * requests that queued up behind the stall instead of hiding them (the
+ * coordinated omission a closed-loop client like ab suffers from). The
+ * latency from the actual send is reported next to it for comparison.
+ *
+ * The mix is a list of kind:weight pairs, picked in a fixed shuffled order
+ * so two runs send the same sequence:
+ *   static  GET of each file in public/ in turn
+ *   users   GET /api/users
+ *   create  POST /api/users with a new user
+ *   echo    GET /api/echo
+ *   status  GET /api/status
+ * The first fifth of the run warms up and is not recorded. With an output
+ * file the results are also written there as JSON, to diff between builds.
+ *
+ * Usage: java -cp bin LoadGenerator [rate] [seconds] [connections] [mix] [port] [output.json]
+ */
+public class LoadGenerator {
+    private static final String DEFAULT_MIX = "static:40,users:25,create:5,echo:30";
+    private static final String[] KINDS = { "static", "users", "create", "echo", "status" };
+    // A request that starts this long after it was due counts as sent late
+    private static final long LATE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+    
+    private final int port;
+    private final long interval;
+    private final long start;
+    private final long measureFrom;
+    private final long end;
+    private final int[] sequence;
+    private final String[] staticPaths;
+    // Empty on keep-alive connections; otherwise every request asks for a close
+    private final String connection;
+    private final AtomicLong nextTicket = new AtomicLong();
+    private double measuredSeconds;
+    
+    private final Metrics.Histogram corrected = new Metrics.Histogram();
+    private final Metrics.Histogram service = new Metrics.Histogram();
+    private final Metrics.Histogram[] byKind = new Metrics.Histogram[KINDS.length];
+    private final LongAdder[] completedByKind = new LongAdder[KINDS.length];
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    
+    private LoadGenerator(int port, int rate, int seconds, int[] sequence, String[] staticPaths, boolean keepAlive) {
+        this.port = port;
+        this.connection = keepAlive ? "" : "Connection: close\r\n";
+        this.interval = 1_000_000_000L / rate;
+        this.start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        this.measureFrom = start + TimeUnit.SECONDS.toNanos(seconds) / 5;
+        this.end = start + TimeUnit.SECONDS.toNanos(seconds);
+        this.sequence = sequence;
+        this.staticPaths = staticPaths;
+        for (int i = 0; i < KINDS.length; i++) {
+            byKind[i] = new Metrics.Histogram();
+            completedByKind[i] = new LongAdder();
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int rate = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        String mix = args.length > 3 ? args[3] : DEFAULT_MIX;
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 8080;
+        String output = args.length > 5 ? args[5] : null;
+        
+        LoadGenerator generator = run(port, rate, seconds, connections, mix, true);
+        generator.print(rate);
+        if (output != null) {
+            ByteBuffer json = generator.toJson(rate, seconds, connections, mix).toByteBuffer();
+            try (FileChannel file = FileChannel.open(Paths.get(output),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (json.hasRemaining()) {
+                    file.write(json);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Runs the schedule to the end
+     * @param keepAlive false to send every request with Connection: close,
+     *                  paying for a new connection each time
+     */
+    static LoadGenerator run(int port, int rate, int seconds, int connections, String mix, boolean keepAlive)
+            throws IOException, InterruptedException {
+        LoadGenerator generator = new LoadGenerator(port, rate, seconds, sequence(mix), staticPaths(), keepAlive);
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(generator::runConnection, "load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        // An overloaded server is still sending the backlog after the schedule ends
+        generator.measuredSeconds = (Math.max(System.nanoTime(), generator.end) - generator.measureFrom) / 1e9;
+        return generator;
+    }
+    
+    /**
+     * Completed requests per second over the measured part of the run
+     */
+    double throughput() {
+        return completed.sum() / measuredSeconds;
+    }
+    
+    long connects() {
+        return connects.sum();
+    }
+    
+    /**
+     * Service latency (from the actual send) at the given fraction, in nanoseconds
+     */
+    long serviceLatency(double fraction) {
+        return percentile(service, fraction);
+    }
+    
+    /**
+     * Kind index per slot of one round of the mix, shuffled with a fixed seed
+     */
+    private static int[] sequence(String mix) {
+        List<Integer> slots = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split(":");
+            int kind = Arrays.asList(KINDS).indexOf(pair[0]);
+            if (kind < 0) {
+                throw new IllegalArgumentException("Unknown request kind: " + pair[0]);
+            }
+            int weight = pair.length > 1 ? Integer.parseInt(pair[1]) : 1;
+            for (int i = 0; i < weight; i++) {
+                slots.add(kind);
+            }
+        }
+        if (slots.isEmpty()) {
+            throw new IllegalArgumentException("Empty request mix");
+        }
+        Collections.shuffle(slots, new Random(42));
+        return slots.stream().mapToInt(Integer::intValue).toArray();
+    }
+    
+    private static String[] staticPaths() throws IOException {
+        List<String> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get("public"))) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file)) {
+                    paths.add("/" + file.getFileName());
+                }
+            }
+        } catch (NoSuchFileException e) {
+            paths.add("/index.html");
+        }
+        Collections.sort(paths);
+        return paths.toArray(new String[0]);
+    }
+    
+    /**
+     * One keep-alive connection: claims due requests until the run ends,
+     * reconnecting whenever the server closes the socket
+     */
+    private void runConnection() {
+        byte[] buffer = new byte[16384];
+        Socket socket = null;
+        InputStream in = null;
+        OutputStream out = null;
+        while (true) {
+            long ticket = nextTicket.getAndIncrement();
+            long due = start + ticket * interval;
+            if (due - end >= 0) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            while (wait > 0) {
+                LockSupport.parkNanos(wait);
+                wait = due - System.nanoTime();
+            }
+            
+            int kind = sequence[(int) (ticket % sequence.length)];
+            boolean recorded = due - measureFrom >= 0;
+            try {
+                if (socket == null) {
+                    socket = new Socket("localhost", port);
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(30_000);
+                    in = new BufferedInputStream(socket.getInputStream(), buffer.length);
+                    out = socket.getOutputStream();
+                    connects.increment();
+                }
+                long sent = System.nanoTime();
+                out.write(request(kind, ticket));
+                int[] result = readResponse(in, buffer);
+                long done = System.nanoTime();
+                if (result[2] != 0) {
+                    socket.close();
+                    socket = null;
+                }
+                if (!recorded) {
+                    continue;
+                }
+                if (result[0] < 200 || result[0] >= 400) {
+                    errors.increment();
+                    continue;
+                }
+                corrected.record(done - due);
+                service.record(done - sent);
+                byKind[kind].record(done - due);
+                completedByKind[kind].increment();
+                completed.increment();
+                bytesReceived.add(result[1]);
+                if (sent - due > LATE_NANOS) {
+                    late.increment();
+                }
+            } catch (IOException e) {
+                if (recorded) {
+                    errors.increment();
+                }
+                closeQuietly(socket);
+                socket = null;
+            }
+        }
+        closeQuietly(socket);
+    }
+    
+    private byte[] request(int kind, long ticket) {
+        String request;
+        switch (KINDS[kind]) {
+            case "static":
+                request = "GET " + staticPaths[(int) (ticket % staticPaths.length)] + " HTTP/1.1\r\nHost: localhost\r\n" + connection + "\r\n";
+                break;
+            case "users":
+                request = "GET /api/users HTTP/1.1\r\nHost: localhost\r\n" + connection + "\r\n";
+                break;
+            case "create":
+                String body = "{\"name\":\"Load " + ticket + "\",\"email\":\"load" + ticket + "@example.com\"}";
+                request = "POST /api/users HTTP/1.1\r\nHost: localhost\r\n" + connection + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + body.length() + "\r\n\r\n" + body;
+                break;
+            case "echo":
+                request = "GET /api/echo?message=load" + ticket + " HTTP/1.1\r\nHost: localhost\r\n" + connection + "\r\n";
+                break;
+            default:
+                request = "GET /api/status HTTP/1.1\r\nHost: localhost\r\n" + connection + "\r\n";
+        }
+        return request.getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    /**
+     * Reads one response, with a Content-Length or chunked body
+     * @return status code, body bytes, and 1 if the server closes the connection after it
+     */
+    private static int[] readResponse(InputStream in, byte[] buffer) throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine.length() < 12) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        long contentLength = 0;
+        boolean chunked = false;
+        boolean close = statusLine.startsWith("HTTP/1.0");
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            String header = line.toLowerCase(Locale.ROOT);
+            if (header.startsWith("content-length:")) {
+                contentLength = Long.parseLong(header.substring(15).trim());
+            } else if (header.startsWith("transfer-encoding:") && header.contains("chunked")) {
+                chunked = true;
+            } else if (header.startsWith("connection:")) {
+                close = header.contains("close");
+            }
+        }
+        long body = 0;
+        if (chunked) {
+            long size;
+            while ((size = Long.parseLong(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                skip(in, buffer, size);
+                readLine(in);
+                body += size;
+            }
+            while (!readLine(in).isEmpty()) {
+                // Trailers
+            }
+        } else {
+            skip(in, buffer, contentLength);
+            body = contentLength;
+        }
+        return new int[] { status, (int) body, close ? 1 : 0 };
+    }
+    
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Connection closed mid-response");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+    
+    private static void skip(InputStream in, byte[] buffer, long length) throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (read < 0) {
+                throw new EOFException("Connection closed mid-body");
+            }
+            length -= read;
+        }
+    }
+    
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+    
+    /**
+     * Upper bound of the bucket holding the value at the given fraction of all values
+     */
+    private static long percentile(Metrics.Histogram histogram, double fraction) {
+        long[] counts = histogram.snapshot();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Metrics.Histogram.upperBound(i);
+            }
+        }
+        return Metrics.Histogram.upperBound(counts.length - 1);
+    }
+    
+    void print(int rate) {
+        long count = completed.sum();
+        System.out.printf("target %,d req/s, achieved %,.0f req/s over %.1f s (%,d ok, %,d errors, %,d sent late, %,d connects)%n",
+            rate, count / measuredSeconds, measuredSeconds, count, errors.sum(), late.sum(), connects.sum());
+        System.out.printf("%-16s %10s %10s %10s %10s %10s%n", "latency (ms)", "p50", "p90", "p99", "p99.9", "requests");
+        printRow("corrected", corrected, count);
+        printRow("service", service, count);
+        for (int i = 0; i < KINDS.length; i++) {
+            if (completedByKind[i].sum() > 0) {
+                printRow("  " + KINDS[i], byKind[i], completedByKind[i].sum());
+            }
+        }
+    }
+    
+    private static void printRow(String name, Metrics.Histogram histogram, long count) {
+        System.out.printf("%-16s", name);
+        for (double fraction : PERCENTILES) {
+            System.out.printf(" %10.3f", percentile(histogram, fraction) / 1e6);
+        }
+        System.out.printf(" %,10d%n", count);
+    }
+    
+    private JsonWriter toJson(int rate, int seconds, int connections, String mix) {
+        JsonWriter out = new JsonWriter()
+            .beginObject()
+            .name("rate").value(rate)
+            .name("seconds").value(seconds)
+            .name("connections").value(connections)
+            .name("mix").value(mix)
+            .name("throughput").value(Math.round(completed.sum() / measuredSeconds))
+            .name("completed").value(completed.sum())
+            .name("errors").value(errors.sum())
+            .name("late").value(late.sum())
+            .name("bytesReceived").value(bytesReceived.sum());
+        writeLatency(out.name("latencyMicros"), corrected);
+        writeLatency(out.name("serviceMicros"), service);
+        out.name("byKind").beginObject();
+        for (int i = 0; i < KINDS.length; i++) {
+            if (completedByKind[i].sum() > 0) {
+                out.name(KINDS[i]).beginObject().name("completed").value(completedByKind[i].sum());
+                writeLatency(out.name("latencyMicros"), byKind[i]);
+                out.endObject();
+            }
+        }
+        return out.endObject().endObject();
+    }
+    
+    private static void writeLatency(JsonWriter out, Metrics.Histogram histogram) {
+        out.beginObject()
+            .name("p50").value(percentile(histogram, 0.5) / 1000)
+            .name("p90").value(percentile(histogram, 0.9) / 1000)
+            .name("p99").value(percentile(histogram, 0.99) / 1000)
+            .name("p999").value(percentile(histogram, 0.999) / 1000)
+            .endObject();
+    }
+}
@@ -0,0 +1,131 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What recording metrics adds to a request. Times a single histogram
+ * sample, recordRequest (route counter lookup plus the handle histogram)
+ * and the whole set a worker records per request (parse, handle and send
+ * samples with the System.nanoTime reads that produce them), on one thread
+ * and on several at once, where threads share buckets and counters.
+ * Latencies come from a spread of values so samples land in different
+ * buckets. A /metrics scrape with the counters filled is timed last.
+ * Reported per case: CPU nanoseconds and bytes allocated per operation,
+ * counting only the measuring threads' CPU time, so runs with more threads
+ * than cores are not inflated by time spent descheduled. Each case runs a
+ * warmup round, then a measured round.
+ *
+ * Usage: java -cp bin MetricsBench [seconds] [threads]
+ */
+public class MetricsBench {
+    private static final String[] ROUTES = {
+        "/api/users", "/api/users/{id}", "/api/echo", "/api/status", null
+    };
+    private static final int[] STATUSES = { 200, 200, 200, 201, 304, 404 };
+    
+    private static volatile boolean stop;
+    private static volatile long sink;
+    
+    private interface Case {
+        void run(int i);
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        
+        // Latencies from 1 µs to about 100 ms, log-uniform
+        long[] latencies = new long[1024];
+        Random random = new Random(42);
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = (long) Math.pow(10, 3 + random.nextDouble() * 5);
+        }
+        
+        Metrics metrics = new Metrics();
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        Map<String, Case> cases = new LinkedHashMap<>();
+        cases.put("nanoTime", i -> sink += System.nanoTime());
+        cases.put("histogram record", i -> histogram.record(latencies[i & 1023]));
+        cases.put("recordRequest", i -> metrics.recordRequest(ROUTES[i % ROUTES.length],
+            STATUSES[i % STATUSES.length], latencies[i & 1023]));
+        cases.put("per request", i -> {
+            long started = System.nanoTime();
+            metrics.recordParse(latencies[i & 1023]);
+            metrics.recordRequest(ROUTES[i % ROUTES.length], STATUSES[i % STATUSES.length],
+                System.nanoTime() - started);
+            long sendStarted = System.nanoTime();
+            metrics.recordSend(System.nanoTime() - sendStarted);
+        });
+        
+        System.out.printf("%-20s %8s %12s %10s%n", "case", "threads", "ns/op", "bytes/op");
+        for (Map.Entry<String, Case> entry : cases.entrySet()) {
+            for (int count : new int[] { 1, threads }) {
+                run(entry.getKey(), entry.getValue(), count, seconds);
+            }
+        }
+        
+        // Scraping walks every bucket of the three histograms and formats the counters
+        com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < 1000; i++) {
+            sink += metrics.toPrometheus().length();
+        }
+        int scrapes = 0;
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(thread);
+        long started = System.nanoTime();
+        long elapsed;
+        do {
+            sink += metrics.toPrometheus().length();
+            scrapes++;
+            elapsed = System.nanoTime() - started;
+        } while (elapsed < TimeUnit.SECONDS.toNanos(seconds));
+        long allocated = threadBean.getThreadAllocatedBytes(thread) - allocatedBefore;
+        System.out.printf("%-20s %8d %,12d %,10d%n", "toPrometheus", 1, elapsed / scrapes, allocated / scrapes);
+    }
+    
+    private static void run(String name, Case benchmark, int threads, int seconds) throws InterruptedException {
+        measure(benchmark, threads, Math.max(1, seconds / 2));
+        double[] result = measure(benchmark, threads, seconds);
+        System.out.printf("%-20s %8d %12.1f %10.1f%n", name, threads, result[0], result[1]);
+    }
+    
+    /**
+     * @return CPU nanoseconds and bytes allocated per operation
+     */
+    private static double[] measure(Case benchmark, int threads, int seconds) throws InterruptedException {
+        com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        LongAdder ops = new LongAdder();
+        LongAdder cpuNanos = new LongAdder();
+        LongAdder allocated = new LongAdder();
+        stop = false;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int offset = t * 7919;
+            workers[t] = new Thread(() -> {
+                long thread = Thread.currentThread().getId();
+                long allocatedBefore = threadBean.getThreadAllocatedBytes(thread);
+                long started = threadBean.getCurrentThreadCpuTime();
+                long count = 0;
+                while (!stop) {
+                    for (int i = 0; i < 1000; i++) {
+                        benchmark.run(offset + i);
+                    }
+                    count += 1000;
+                }
+                cpuNanos.add(threadBean.getCurrentThreadCpuTime() - started);
+                allocated.add(threadBean.getThreadAllocatedBytes(thread) - allocatedBefore);
+                ops.add(count);
+            });
+            workers[t].start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        stop = true;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return new double[] { (double) cpuNanos.sum() / ops.sum(), (double) allocated.sum() / ops.sum() };
+    }
+}
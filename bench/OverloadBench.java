@@ -0,0 +1,218 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Socket-level overload test for the admission control in front of the
+ * worker pool. Each scenario starts a fresh server as a child process and
+ * opens far more keep-alive connections than it has pool threads, each on
+ * its own thread sending GET /api/echo back to back. With the blocking
+ * engine a connection holds a pool thread for its whole life, so the rest
+ * queue, and how long they wait is what the scenarios differ in:
+ *
+ *   unbounded  server.queue.capacity=0, no deadline: everyone is admitted
+ *              and waits, so latency grows with the backlog
+ *   capacity   a bounded queue: connections past it get an immediate 503
+ *   deadline   an unbounded queue, but connections that waited longer
+ *              than the deadline get a 503 when they reach a thread
+ *
+ * A client that gets a 503 reconnects after a short pause, keeping the
+ * pressure on. Latency is measured from connect (or from writing the
+ * request, on a reused connection) to the end of the response, for
+ * requests answered 200; admitted latency should stay flat with either
+ * limit while it climbs without one. Run it on the machine being measured
+ * with the client pinned away from the server cores (e.g. taskset).
+ *
+ * Usage: java -cp bin OverloadBench [connections] [seconds] [capacity] [deadlineMillis] [engine] [port]
+ */
+public class OverloadBench {
+    private static final byte[] REQUEST =
+        "GET /api/echo?message=bench HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int deadline = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        String engine = args.length > 4 ? args[4] : "blocking";
+        int port = args.length > 5 ? Integer.parseInt(args[5]) : 18080;
+        
+        Map<String, String[]> scenarios = new LinkedHashMap<>();
+        scenarios.put("unbounded", new String[] { "-Dserver.queue.capacity=0", "-Dserver.queue.deadline=0" });
+        scenarios.put("capacity=" + capacity,
+            new String[] { "-Dserver.queue.capacity=" + capacity, "-Dserver.queue.deadline=0" });
+        scenarios.put("deadline=" + deadline,
+            new String[] { "-Dserver.queue.capacity=0", "-Dserver.queue.deadline=" + deadline });
+        
+        System.out.printf("%d connections, %s engine, %d s per scenario%n", connections, engine, seconds);
+        System.out.printf("%-14s %10s %10s %8s %10s %10s %10s%n",
+            "scenario", "ok/s", "503/s", "errors", "p50 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, String[]> scenario : scenarios.entrySet()) {
+            Process server = startServer(engine, port, scenario.getValue());
+            try {
+                awaitPort(port);
+                run(port, connections, Math.max(1, seconds / 2));
+                Result result = run(port, connections, seconds);
+                long[] latencies = result.latencies;
+                Arrays.sort(latencies);
+                System.out.printf("%-14s %,10d %,10d %,8d %10.1f %10.1f %10.1f%n", scenario.getKey(),
+                    result.ok / seconds, result.rejected / seconds, result.errors,
+                    percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 1.0));
+            } finally {
+                server.destroy();
+                server.waitFor(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+    
+    private static final class Result {
+        long ok;
+        long rejected;
+        long errors;
+        long[] latencies;
+    }
+    
+    private static Process startServer(String engine, int port, String[] properties) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-Dserver.engine=" + engine);
+        command.add("-Dserver.accessLog=off");
+        command.addAll(Arrays.asList(properties));
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "HTTPServer", String.valueOf(port)));
+        return new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+    }
+    
+    private static void awaitPort(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+    
+    private static Result run(int port, int connections, int seconds) throws InterruptedException {
+        LongAdder ok = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        LongAdder errors = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<long[]> perThread = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                long[] latencies = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    try (Socket socket = new Socket()) {
+                        socket.connect(new InetSocketAddress("localhost", port), 5000);
+                        socket.setTcpNoDelay(true);
+                        socket.setSoTimeout(30_000);
+                        OutputStream out = socket.getOutputStream();
+                        InputStream in = new BufferedInputStream(socket.getInputStream());
+                        while (System.nanoTime() < deadline) {
+                            out.write(REQUEST);
+                            int[] response = readResponse(in, buffer);
+                            long end = System.nanoTime();
+                            if (response[0] == 503) {
+                                rejected.increment();
+                                // Back off briefly, then try again like an impatient client
+                                Thread.sleep(10);
+                                break;
+                            }
+                            ok.increment();
+                            if (count == latencies.length) {
+                                latencies = Arrays.copyOf(latencies, count * 2);
+                            }
+                            latencies[count++] = end - start;
+                            if (response[1] != 0) {
+                                break;
+                            }
+                            start = System.nanoTime();
+                        }
+                    } catch (IOException e) {
+                        errors.increment();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                perThread.add(Arrays.copyOf(latencies, count));
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        Result result = new Result();
+        result.ok = ok.sum();
+        result.rejected = rejected.sum();
+        result.errors = errors.sum();
+        result.latencies = perThread.stream().flatMapToLong(Arrays::stream).toArray();
+        return result;
+    }
+    
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+    
+    /**
+     * Reads one response with a Content-Length body
+     * @return the status code, and 1 if the server closes the connection after it
+     */
+    private static int[] readResponse(InputStream in, byte[] buffer) throws IOException {
+        int status = 0;
+        int contentLength = 0;
+        boolean close = false;
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed mid-response");
+            }
+            if (b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+                continue;
+            }
+            if (line.length() == 0) {
+                break;
+            }
+            String header = line.toString().toLowerCase(Locale.ROOT);
+            if (status == 0) {
+                status = Integer.parseInt(header.substring(9, 12));
+            } else if (header.startsWith("content-length:")) {
+                contentLength = Integer.parseInt(header.substring(15).trim());
+            } else if (header.startsWith("connection:") && header.contains("close")) {
+                close = true;
+            }
+            line.setLength(0);
+        }
+        while (contentLength > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, contentLength));
+            if (read < 0) {
+                throw new EOFException("Connection closed mid-body");
+            }
+            contentLength -= read;
+        }
+        return new int[] { status, close ? 1 : 0 };
+    }
+}
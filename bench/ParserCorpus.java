@@ -0,0 +1,144 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Corpus-driven check of request parsing: each case in the corpus file is
+ * a raw request and the status the server must answer it with (400, 413,
+ * 414, 431 or 501 for malformed request lines, header fields, framing
+ * headers and chunk sizes; 200 for requests that must parse). Every case is
+ * fed to a RequestParser whole and again one byte at a time, so the
+ * incremental paths see it too, with any body drained through readBody.
+ * Given a port, each case is also sent over its own connection to a
+ * running server and the status line of the reply is checked. Exits with
+ * status 1 on any mismatch.
+ *
+ * Usage: java -cp bin ParserCorpus [corpus] [port]
+ */
+public class ParserCorpus {
+    private static final Pattern REPEAT = Pattern.compile("\\{(\\d+)\\*([^}]*)\\}");
+    
+    public static void main(String[] args) throws IOException {
+        Path corpus = Paths.get(args.length > 0 ? args[0] : "bench/parser-corpus.txt");
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        
+        int cases = 0;
+        int failures = 0;
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(corpus, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int expected = Integer.parseInt(line.substring(0, 3));
+            byte[] request = decode(line.substring(4));
+            cases++;
+            
+            List<String> results = new ArrayList<>();
+            results.add("whole " + parse(request, request.length));
+            results.add("bytewise " + parse(request, 1));
+            if (port > 0) {
+                results.add("server " + send(request, port));
+            }
+            for (String result : results) {
+                int actual = Integer.parseInt(result.substring(result.indexOf(' ') + 1));
+                if (actual != expected) {
+                    failures++;
+                    System.out.printf("line %d, %s: expected %d, got %d: %s%n", lineNumber,
+                        result.substring(0, result.indexOf(' ')), expected, actual, abbreviate(line.substring(4)));
+                }
+            }
+        }
+        
+        System.out.printf("%d cases, %d failures%n", cases, failures);
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Feeds the request in pieces of the given size
+     * @return 200 if a request and its body were parsed completely, the
+     *         ParseException status if one was thrown, or 0 if more input
+     *         was still expected
+     */
+    private static int parse(byte[] request, int pieceSize) {
+        RequestParser parser = new RequestParser();
+        byte[] body = new byte[1024];
+        try {
+            for (int offset = 0; offset < request.length; offset += pieceSize) {
+                parser.feed(ByteBuffer.wrap(request, offset, Math.min(pieceSize, request.length - offset)));
+                if (!parser.inBody() && parser.next() == null) {
+                    continue;
+                }
+                int read;
+                while ((read = parser.readBody(body, 0, body.length)) > 0) {
+                    // Drain what is buffered
+                }
+                if (read < 0) {
+                    return 200;
+                }
+            }
+            return 0;
+        } catch (RequestParser.ParseException e) {
+            return e.getStatusCode();
+        } finally {
+            parser.release();
+        }
+    }
+    
+    /**
+     * @return the status the server answered with, or 0 if it closed without one
+     */
+    private static int send(byte[] request, int port) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(request);
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            String status = in.readLine();
+            return status != null && status.startsWith("HTTP/1.") ? Integer.parseInt(status.substring(9, 12)) : 0;
+        } catch (SocketException e) {
+            // Reset by a server that answered and closed before reading it all
+            return 0;
+        }
+    }
+    
+    /**
+     * Expands {N*text} repeats, then the \r \n \t and \\ escapes
+     */
+    private static byte[] decode(String text) {
+        Matcher matcher = REPEAT.matcher(text);
+        StringBuffer expanded = new StringBuffer();
+        while (matcher.find()) {
+            matcher.appendReplacement(expanded,
+                Matcher.quoteReplacement(matcher.group(2).repeat(Integer.parseInt(matcher.group(1)))));
+        }
+        matcher.appendTail(expanded);
+        
+        StringBuilder out = new StringBuilder(expanded.length());
+        for (int i = 0; i < expanded.length(); i++) {
+            char c = expanded.charAt(i);
+            if (c == '\\' && i + 1 < expanded.length()) {
+                char escaped = expanded.charAt(++i);
+                switch (escaped) {
+                    case 'r': out.append('\r'); break;
+                    case 'n': out.append('\n'); break;
+                    case 't': out.append('\t'); break;
+                    default: out.append(escaped); break;
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    private static String abbreviate(String text) {
+        return text.length() > 100 ? text.substring(0, 100) + "..." : text;
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.*;
+
+/**
+ * Building and sending a response: the pre-encoded writer (cached status
+ * lines and header bytes, head and body in one gathering write) against a
+ * copy of the send it replaced, which wrapped the stream in a new
+ * PrintWriter per response and printed each header from a HashMap. Each
+ * op builds a response with the headers the server sets on a keep-alive
+ * reply and sends it into a sink that discards the bytes but counts the
+ * write calls, each of which would be a syscall on a socket. Each case runs
+ * a warmup round so the JIT settles, then a measured round on this thread,
+ * reporting operations per second, bytes allocated per operation and
+ * writes per response.
+ *
+ * Usage: java -cp bin ResponseWriteBench [seconds]
+ */
+public class ResponseWriteBench {
+    private static final String JSON = "{\"status\":\"running\"}";
+    
+    private static volatile long sink;
+    
+    private interface Case {
+        void run() throws IOException;
+    }
+    
+    public static void main(String[] args) throws IOException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        
+        byte[] json = JSON.getBytes("UTF-8");
+        byte[] page = new byte[16 * 1024];
+        Arrays.fill(page, (byte) 'x');
+        CountingSink out = new CountingSink();
+        ByteBuffer[] headBuffer = { ByteBuffer.allocate(1024) };
+        
+        System.out.printf("%-24s %14s %14s %10s%n", "case", "ops/s", "bytes/op", "writes/op");
+        run("printwriter json", seconds, out, () -> {
+            LegacyResponse response = new LegacyResponse(200, "OK");
+            response.setHeader("Content-Type", "application/json");
+            response.setHeader("Connection", "keep-alive");
+            response.setHeader("Keep-Alive", "timeout=5, max=99");
+            response.setBody(JSON);
+            response.send(out.stream);
+        });
+        run("writer stream json", seconds, out, () -> {
+            HTTPResponse response = HTTPResponse.json(ByteBuffer.wrap(json));
+            response.setHeader("Connection", "keep-alive");
+            response.setHeader("Keep-Alive", "timeout=5, max=99");
+            response.send(out.stream);
+        });
+        run("writer channel json", seconds, out, () -> {
+            HTTPResponse response = HTTPResponse.json(ByteBuffer.wrap(json));
+            response.setHeader("Connection", "keep-alive");
+            response.setHeader("Keep-Alive", "timeout=5, max=99");
+            headBuffer[0] = response.send(out, headBuffer[0]);
+        });
+        run("printwriter 16k", seconds, out, () -> {
+            LegacyResponse response = new LegacyResponse(200, "OK");
+            response.setHeader("Content-Type", "text/plain");
+            response.setHeader("Connection", "keep-alive");
+            response.setHeader("Keep-Alive", "timeout=5, max=99");
+            response.setBody(page);
+            response.send(out.stream);
+        });
+        run("writer channel 16k", seconds, out, () -> {
+            HTTPResponse response = HTTPResponse.ok(page, "text/plain");
+            response.setHeader("Connection", "keep-alive");
+            response.setHeader("Keep-Alive", "timeout=5, max=99");
+            headBuffer[0] = response.send(out, headBuffer[0]);
+        });
+    }
+    
+    private static void run(String name, int seconds, CountingSink out, Case benchmark) throws IOException {
+        measure(benchmark, out, seconds * 1_000_000_000L / 2);
+        long[] result = measure(benchmark, out, seconds * 1_000_000_000L);
+        System.out.printf("%-24s %,14d %,14d %10.1f%n", name, result[0], result[1], result[2] / 10.0);
+    }
+    
+    /**
+     * @return operations per second, bytes allocated per operation and ten times the writes per operation
+     */
+    private static long[] measure(Case benchmark, CountingSink out, long nanos) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long ops = 0;
+        out.writes = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long started = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 100; i++) {
+                benchmark.run();
+            }
+            ops += 100;
+            elapsed = System.nanoTime() - started;
+        } while (elapsed < nanos);
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        sink += out.written;
+        return new long[] { ops * 1_000_000_000L / elapsed, allocated / ops, out.writes * 10 / ops };
+    }
+    
+    /**
+     * The response as it was sent before the pre-encoded writer
+     */
+    private static final class LegacyResponse {
+        private final int statusCode;
+        private final String statusMessage;
+        private final Map<String, String> headers = new HashMap<>();
+        private byte[] body;
+        
+        LegacyResponse(int statusCode, String statusMessage) {
+            this.statusCode = statusCode;
+            this.statusMessage = statusMessage;
+            headers.put("Server", HTTPResponse.SERVER_NAME);
+            headers.put("Connection", "close");
+        }
+        
+        void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+        
+        void setBody(byte[] body) {
+            this.body = body;
+            headers.put("Content-Length", String.valueOf(body.length));
+        }
+        
+        void setBody(String body) {
+            setBody(body.getBytes());
+        }
+        
+        void send(OutputStream output) throws IOException {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(output), true);
+            writer.print("HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                writer.print(header.getKey() + ": " + header.getValue() + "\r\n");
+            }
+            writer.print("\r\n");
+            writer.flush();
+            if (body != null && body.length > 0) {
+                output.write(body);
+                output.flush();
+            }
+        }
+    }
+    
+    /**
+     * Discards every byte and counts the write calls, as stream or channel
+     */
+    private static final class CountingSink implements GatheringByteChannel {
+        long written;
+        long writes;
+        final OutputStream stream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written++;
+                writes++;
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written += len;
+                writes++;
+            }
+        };
+        
+        @Override
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            source.position(source.limit());
+            written += length;
+            writes++;
+            return length;
+        }
+        
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                int remaining = sources[i].remaining();
+                sources[i].position(sources[i].limit());
+                total += remaining;
+            }
+            written += total;
+            writes++;
+            return total;
+        }
+        
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Route lookup: the segment trie in Router against the "METHOD:path"
+ * HashMap it replaced, over a table of a few hundred REST-style routes
+ * (per resource GET and POST on a collection and a literal sub-path, and
+ * three GET {param} patterns). The map can only hold the literal routes,
+ * so it is compared on those and on misses (a static file path falling
+ * through to the file handler); parameter routes are timed on the trie
+ * alone. Lookups cycle through a spread of paths so no single branch
+ * stays hot. Each case runs a warmup round so the JIT settles, then a
+ * measured round on this thread, reporting nanoseconds and bytes
+ * allocated per lookup.
+ *
+ * Usage: java -cp bin RouterBench [seconds] [routes]
+ */
+public class RouterBench {
+    private static volatile int sink;
+    
+    private interface Case {
+        int run(int i);
+    }
+    
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int routeCount = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        int resources = Math.max(1, routeCount / 7);
+        
+        Router router = new Router();
+        Map<String, RequestHandler.Route> map = new HashMap<>();
+        RequestHandler.Route route = request -> null;
+        for (int r = 0; r < resources; r++) {
+            String base = "/api/resource" + r;
+            for (String literal : new String[] { base, base + "/search" }) {
+                router.add("GET", literal, route);
+                router.add("POST", literal, route);
+                map.put("GET:" + literal, route);
+                map.put("POST:" + literal, route);
+            }
+            router.add("GET", base + "/{id}", route);
+            router.add("GET", base + "/{id}/items", route);
+            router.add("GET", base + "/{id}/items/{item}", route);
+        }
+        
+        String[] literalPaths = new String[256];
+        String[] paramPaths = new String[256];
+        String[] missPaths = new String[256];
+        Random random = new Random(42);
+        for (int i = 0; i < 256; i++) {
+            int r = random.nextInt(resources);
+            literalPaths[i] = "/api/resource" + r + (i % 2 == 0 ? "" : "/search");
+            paramPaths[i] = "/api/resource" + r + "/" + random.nextInt(100_000)
+                + (i % 2 == 0 ? "" : "/items/" + random.nextInt(1000));
+            missPaths[i] = "/assets/file" + i + ".css";
+        }
+        
+        System.out.printf("%d routes%n", resources * 7);
+        System.out.printf("%-20s %10s %10s%n", "case", "ns/op", "bytes/op");
+        run("trie literal", seconds, i -> lookup(router, "GET", literalPaths[i & 255]));
+        run("map literal", seconds, i -> lookup(map, "GET", literalPaths[i & 255]));
+        run("trie param", seconds, i -> lookup(router, "GET", paramPaths[i & 255]));
+        run("trie miss", seconds, i -> lookup(router, "GET", missPaths[i & 255]));
+        run("map miss", seconds, i -> lookup(map, "GET", missPaths[i & 255]));
+    }
+    
+    private static int lookup(Router router, String method, String path) {
+        Router.Endpoint endpoint = router.find(path);
+        return endpoint != null && endpoint.route(method) != null ? 1 : 0;
+    }
+    
+    /**
+     * The lookup RequestHandler.handle used to do
+     */
+    private static int lookup(Map<String, RequestHandler.Route> routes, String method, String path) {
+        String key = method + ":" + path;
+        if (routes.containsKey(key)) {
+            return routes.get(key) != null ? 1 : 0;
+        }
+        return 0;
+    }
+    
+    private static void run(String name, int seconds, Case benchmark) {
+        measure(benchmark, seconds * 1_000_000_000L / 2);
+        double[] result = measure(benchmark, seconds * 1_000_000_000L);
+        System.out.printf("%-20s %10.1f %10.1f%n", name, result[0], result[1]);
+    }
+    
+    /**
+     * @return nanoseconds and bytes allocated per operation
+     */
+    private static double[] measure(Case benchmark, long nanos) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long ops = 0;
+        int found = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long started = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 1000; i++) {
+                found += benchmark.run(i);
+            }
+            ops += 1000;
+            elapsed = System.nanoTime() - started;
+        } while (elapsed < nanos);
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        sink += found;
+        return new double[] { (double) elapsed / ops, (double) allocated / ops };
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Microbenchmarks of the per-request stages: parsing a request, routing
+ * it through RequestHandler and sending the response. Each case runs a
+ * warmup round so the JIT settles, then a measured round on this thread,
+ * reporting operations per second and bytes allocated per operation from
+ * the thread's allocated-bytes counter. Responses are sent into a sink
+ * that discards them, so no socket is involved. Run from the project
+ * directory, so the handler finds public/. With an output file the results
+ * are also written there as JSON, to diff between builds.
+ *
+ * Usage: java -cp bin ServerBench [seconds] [output.json]
+ */
+public class ServerBench {
+    private static final byte[] GET = get("/api/users?page=1");
+    private static final String USER = "{\"name\":\"Bench User\",\"email\":\"bench@example.com\"}";
+    private static final byte[] POST = request(
+        "POST /api/users HTTP/1.1\r\n"
+        + "Host: localhost:8080\r\n"
+        + "Content-Type: application/json\r\n"
+        + "Content-Length: " + USER.length() + "\r\n\r\n"
+        + USER);
+    
+    private static volatile long sink;
+    
+    private interface Case {
+        long run() throws IOException;
+    }
+    
+    public static void main(String[] args) throws IOException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        String output = args.length > 1 ? args[1] : null;
+        
+        ServerConfig config = new ServerConfig();
+        config.setResponseCache(true);
+        RequestHandler handler = new RequestHandler(config);
+        // Without the response cache every call reaches the route
+        config.setResponseCache(false);
+        RequestHandler uncached = new RequestHandler(config);
+        HTTPResponse small = HTTPResponse.json("{\"status\":\"running\"}");
+        byte[] page = new byte[16 * 1024];
+        Arrays.fill(page, (byte) 'x');
+        DiscardChannel channel = new DiscardChannel();
+        ByteBuffer[] headBuffer = { ByteBuffer.allocate(1024) };
+        
+        Map<String, long[]> results = new LinkedHashMap<>();
+        System.out.printf("%-24s %14s %14s%n", "case", "ops/s", "bytes/op");
+        run(results, "parse get", seconds, () -> parse(GET).getHeaders().size());
+        run(results, "parse post", seconds, () -> parse(POST).getContentLength());
+        HTTPRequest status = parse(get("/api/status"));
+        HTTPRequest users = parse(get("/api/users"));
+        HTTPRequest echo = parse(get("/api/echo?message=bench"));
+        HTTPRequest index = parse(get("/index.html"));
+        run(results, "handle status", seconds, () -> handler.handle(status).getContentLength());
+        run(results, "handle users", seconds, () -> uncached.handle(users).getContentLength());
+        run(results, "handle users cached", seconds, () -> handler.handle(users).getContentLength());
+        run(results, "handle echo", seconds, () -> uncached.handle(echo).getContentLength());
+        run(results, "handle static", seconds, () -> handler.handle(index).getContentLength());
+        run(results, "send stream", seconds, () -> {
+            HTTPResponse response = HTTPResponse.json("{\"status\":\"running\"}");
+            response.send(channel.stream);
+            return channel.written;
+        });
+        run(results, "send channel", seconds, () -> {
+            headBuffer[0] = small.send(channel, headBuffer[0]);
+            return channel.written;
+        });
+        run(results, "send channel 16k", seconds, () -> {
+            HTTPResponse response = HTTPResponse.ok(page, "text/plain");
+            headBuffer[0] = response.send(channel, headBuffer[0]);
+            return channel.written;
+        });
+        
+        if (output != null) {
+            JsonWriter out = new JsonWriter().beginObject();
+            for (Map.Entry<String, long[]> result : results.entrySet()) {
+                out.name(result.getKey()).beginObject()
+                    .name("opsPerSecond").value(result.getValue()[0])
+                    .name("bytesPerOp").value(result.getValue()[1])
+                    .endObject();
+            }
+            ByteBuffer json = out.endObject().toByteBuffer();
+            Files.write(Paths.get(output), Arrays.copyOf(json.array(), json.remaining()));
+        }
+    }
+    
+    /**
+     * A browser-like GET with the usual headers
+     */
+    private static byte[] get(String target) {
+        return request("GET " + target + " HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cache-Control: no-cache\r\n\r\n");
+    }
+    
+    private static byte[] request(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    private static HTTPRequest parse(byte[] request) throws IOException {
+        return HTTPRequest.parse(new ByteArrayInputStream(request));
+    }
+    
+    private static void run(Map<String, long[]> results, String name, int seconds, Case benchmark) throws IOException {
+        measure(benchmark, seconds * 1_000_000_000L / 2);
+        long[] result = measure(benchmark, seconds * 1_000_000_000L);
+        results.put(name, result);
+        System.out.printf("%-24s %,14d %,14d%n", name, result[0], result[1]);
+    }
+    
+    /**
+     * @return operations per second and bytes allocated per operation
+     */
+    private static long[] measure(Case benchmark, long nanos) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long ops = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long started = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 100; i++) {
+                sink += benchmark.run();
+            }
+            ops += 100;
+            elapsed = System.nanoTime() - started;
+        } while (elapsed < nanos);
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        return new long[] { ops * 1_000_000_000L / elapsed, allocated / ops };
+    }
+    
+    /**
+     * Accepts and drops every byte, as a socket with an empty send buffer would
+     */
+    private static final class DiscardChannel implements GatheringByteChannel {
+        long written;
+        final OutputStream stream = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written++;
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written += len;
+            }
+        };
+        
+        @Override
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            source.position(source.limit());
+            written += length;
+            return length;
+        }
+        
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += write(sources[i]);
+            }
+            return total;
+        }
+        
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+}
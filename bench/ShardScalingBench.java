@@ -0,0 +1,157 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput of the server as shards are added
+ * For each shard count (1, 2, 4, ... up to the maximum) a fresh server is
+ * started as a child process with -Dserver.shards set, then hit from this
+ * process by a fixed number of keep-alive connections, each on its own
+ * thread sending GET /api/echo back to back. A connection the server
+ * closes (at its per-connection request limit) is replaced at once, so
+ * accept stays on the measured path too. Run it on the machine
+ * being measured with the client pinned away from the server cores (e.g.
+ * taskset), or the two compete for the same CPUs.
+ *
+ * Usage: java -cp bin ShardScalingBench [maxShards] [seconds] [connections] [engine] [port]
+ */
+public class ShardScalingBench {
+    private static final byte[] REQUEST =
+        "GET /api/echo?message=bench HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    
+    public static void main(String[] args) throws Exception {
+        int maxShards = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        String engine = args.length > 3 ? args[3] : "blocking";
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 18080;
+        
+        List<Integer> shardCounts = new ArrayList<>();
+        for (int shards = 1; shards < maxShards; shards *= 2) {
+            shardCounts.add(shards);
+        }
+        shardCounts.add(maxShards);
+        
+        System.out.printf("%-8s %14s %10s%n", "shards", "requests/s", "errors");
+        for (int shards : shardCounts) {
+            Process server = startServer(shards, engine, port);
+            try {
+                awaitPort(port);
+                run(port, connections, seconds / 2);
+                long[] result = run(port, connections, seconds);
+                System.out.printf("%-8d %,14d %,10d%n", shards, result[0] / seconds, result[1]);
+            } finally {
+                server.destroy();
+                server.waitFor(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+    
+    private static Process startServer(int shards, String engine, int port) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = Arrays.asList(java,
+            "-Dserver.shards=" + shards,
+            "-Dserver.engine=" + engine,
+            "-Dserver.accessLog=off",
+            "-cp", System.getProperty("java.class.path"),
+            "HTTPServer", String.valueOf(port));
+        return new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+    }
+    
+    private static void awaitPort(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+    
+    /**
+     * @return requests completed and errors
+     */
+    private static long[] run(int port, int connections, int seconds) throws InterruptedException {
+        LongAdder completed = new LongAdder();
+        LongAdder errors = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                while (System.nanoTime() < deadline) {
+                    try (Socket socket = new Socket("localhost", port)) {
+                        socket.setTcpNoDelay(true);
+                        socket.setSoTimeout(5000);
+                        OutputStream out = socket.getOutputStream();
+                        InputStream in = new BufferedInputStream(socket.getInputStream());
+                        while (System.nanoTime() < deadline) {
+                            out.write(REQUEST);
+                            if (!readResponse(in, buffer)) {
+                                break;
+                            }
+                            completed.increment();
+                        }
+                    } catch (IOException e) {
+                        errors.increment();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new long[] { completed.sum(), errors.sum() };
+    }
+    
+    /**
+     * Reads one response with a Content-Length body
+     * @return false once the server closes the connection after it
+     */
+    private static boolean readResponse(InputStream in, byte[] buffer) throws IOException {
+        int contentLength = 0;
+        boolean close = false;
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed mid-response");
+            }
+            if (b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+                continue;
+            }
+            if (line.length() == 0) {
+                break;
+            }
+            String header = line.toString().toLowerCase(Locale.ROOT);
+            if (header.startsWith("content-length:")) {
+                contentLength = Integer.parseInt(header.substring(15).trim());
+            } else if (header.startsWith("connection:") && header.contains("close")) {
+                close = true;
+            }
+            line.setLength(0);
+        }
+        while (contentLength > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, contentLength));
+            if (read < 0) {
+                throw new EOFException("Connection closed mid-body");
+            }
+            contentLength -= read;
+        }
+        return !close;
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Static file serving: RequestHandler's cache hit and transferTo paths
+ * against the Files.readAllBytes path they replaced, for a small, a
+ * medium and a large file written to public/ for the run (the large one
+ * is over server.static.cacheMaxFile, so it is streamed with sendfile).
+ * Then the conditional and partial paths: a revalidation answered with
+ * 304 from the cached validators, and a single and a four-part Range
+ * request on the large file, which send only the requested regions.
+ * Each response is sent over a real loopback socket, drained by another
+ * thread, so transferTo takes the same path as in the server. Each case
+ * runs a warmup round, then a measured round, reporting requests per
+ * second, MB/s on the wire and bytes allocated per request on the sending
+ * thread. Run from the project directory.
+ *
+ * Usage: java -cp bin StaticFileBench [seconds] [largeMB]
+ */
+public class StaticFileBench {
+    private static volatile long sink;
+    
+    private interface Case {
+        /**
+         * @return bytes put on the wire
+         */
+        long run() throws IOException;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int largeMegabytes = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        
+        String small = "static-bench-4k.html";
+        String large = "static-bench-" + largeMegabytes + "m.bin";
+        long largeSize = largeMegabytes * 1024L * 1024;
+        Map<String, Integer> sizes = new LinkedHashMap<>();
+        sizes.put(small, 4 * 1024);
+        sizes.put("static-bench-128k.bin", 128 * 1024);
+        sizes.put(large, (int) largeSize);
+        List<Path> created = new ArrayList<>();
+        Random random = new Random(42);
+        
+        ServerConfig config = new ServerConfig();
+        // Identity bodies only; compression has its own benchmark
+        config.setCompression(false);
+        RequestHandler handler = new RequestHandler(config);
+        try (ServerSocketChannel listener = ServerSocketChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                SocketChannel client = SocketChannel.open(listener.getLocalAddress());
+                SocketChannel server = listener.accept()) {
+            AtomicLong received = new AtomicLong();
+            Thread drain = new Thread(() -> {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+                try {
+                    int read;
+                    while ((read = client.read(buffer)) >= 0) {
+                        received.addAndGet(read);
+                        buffer.clear();
+                    }
+                } catch (IOException e) {
+                    // Closed at the end of the run
+                }
+            }, "drain");
+            drain.setDaemon(true);
+            drain.start();
+            
+            ByteBuffer[] headBuffer = { ByteBuffer.allocate(1024) };
+            System.out.printf("%-28s %12s %10s %12s%n", "case", "requests/s", "MB/s", "bytes/req");
+            for (Map.Entry<String, Integer> file : sizes.entrySet()) {
+                Path path = Paths.get("public", file.getKey());
+                byte[] content = new byte[file.getValue()];
+                random.nextBytes(content);
+                Files.write(path, content);
+                created.add(path);
+                
+                HTTPRequest request = get("/" + file.getKey());
+                String label = file.getKey().substring("static-bench-".length(), file.getKey().indexOf('.'));
+                run("handler " + label, seconds, () -> {
+                    HTTPResponse response = handler.handle(request);
+                    headBuffer[0] = response.send(server, headBuffer[0]);
+                    return headBuffer[0].limit() + response.getContentLength();
+                });
+                run("readAllBytes " + label, seconds, () -> {
+                    HTTPResponse response = readAllBytes(file.getKey());
+                    headBuffer[0] = response.send(server, headBuffer[0]);
+                    return headBuffer[0].limit() + response.getContentLength();
+                });
+            }
+            
+            String etag = handler.handle(get("/" + small)).getHeader("ETag");
+            HTTPRequest revalidate = get("/" + small, "If-None-Match: " + etag);
+            HTTPRequest single = get("/" + large, "Range: bytes=0-65535");
+            StringBuilder parts = new StringBuilder("Range: bytes=");
+            for (int i = 0; i < 4; i++) {
+                long start = i * largeSize / 4;
+                parts.append(i > 0 ? "," : "").append(start).append('-').append(start + 16383);
+            }
+            HTTPRequest multipart = get("/" + large, parts.toString());
+            
+            Map<String, HTTPRequest> partial = new LinkedHashMap<>();
+            partial.put("if-none-match 4k", revalidate);
+            partial.put("range 64k of " + largeMegabytes + "m", single);
+            partial.put("4 x 16k ranges of " + largeMegabytes + "m", multipart);
+            int[] expected = { 304, 206, 206 };
+            int index = 0;
+            for (Map.Entry<String, HTTPRequest> conditional : partial.entrySet()) {
+                HTTPRequest request = conditional.getValue();
+                int status = handler.handle(request).getStatusCode();
+                if (status != expected[index++]) {
+                    throw new IllegalStateException(conditional.getKey() + ": got " + status);
+                }
+                run(conditional.getKey(), seconds, () -> {
+                    HTTPResponse response = handler.handle(request);
+                    headBuffer[0] = response.send(server, headBuffer[0]);
+                    return headBuffer[0].limit() + response.getContentLength();
+                });
+            }
+        } finally {
+            handler.close();
+            for (Path path : created) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+    
+    /**
+     * The serving path before the cache: two stats and a full read into a
+     * new array on every request
+     */
+    private static HTTPResponse readAllBytes(String name) throws IOException {
+        Path file = Paths.get("public", name);
+        if (!Files.exists(file) || Files.isDirectory(file)) {
+            return HTTPResponse.notFound();
+        }
+        byte[] content = Files.readAllBytes(file);
+        return HTTPResponse.ok(content, name.endsWith(".html") ? "text/html" : "application/octet-stream");
+    }
+    
+    private static HTTPRequest get(String target, String... headers) throws IOException {
+        StringBuilder request = new StringBuilder("GET ").append(target)
+            .append(" HTTP/1.1\r\nHost: localhost:8080\r\nConnection: keep-alive\r\n");
+        for (String header : headers) {
+            request.append(header).append("\r\n");
+        }
+        request.append("\r\n");
+        return HTTPRequest.parse(new ByteArrayInputStream(request.toString().getBytes(StandardCharsets.ISO_8859_1)));
+    }
+    
+    private static void run(String name, int seconds, Case benchmark) throws IOException {
+        measure(benchmark, seconds * 1_000_000_000L / 2);
+        long[] result = measure(benchmark, seconds * 1_000_000_000L);
+        System.out.printf("%-28s %,12d %,10d %,12d%n", name, result[0], result[1], result[2]);
+    }
+    
+    /**
+     * @return requests per second, MB per second and bytes allocated per request
+     */
+    private static long[] measure(Case benchmark, long nanos) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long ops = 0;
+        long bytes = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long started = System.nanoTime();
+        long elapsed;
+        do {
+            bytes += benchmark.run();
+            ops++;
+            elapsed = System.nanoTime() - started;
+        } while (elapsed < nanos);
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        sink += bytes;
+        return new long[] {
+            ops * 1_000_000_000L / elapsed,
+            bytes * 1_000_000_000L / elapsed / (1024 * 1024),
+            allocated / ops
+        };
+    }
+}
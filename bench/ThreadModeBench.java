@@ -0,0 +1,363 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pooled against virtual thread mode under many mostly idle connections
+ * For each server.threads mode a fresh server is started as a child
+ * process. First a crowd of idle keep-alive connections is opened, each
+ * sending one request and then going quiet, the way browsers and push
+ * clients hold connections; then a few active connections send GET
+ * /api/echo back to back. With the blocking engine every connection holds
+ * a thread while it is open, so in pool mode the idle crowd can take all
+ * of them and the active connections wait, while in virtual mode each
+ * connection only costs a parked virtual thread. Reported per mode: the
+ * active connections' throughput and latency, how many idle connections
+ * were answered, and the server's resident memory and OS thread count
+ * (from /proc, on Linux). Virtual mode needs the server on JDK 21+; on an
+ * older JDK the server falls back to the pool and that row is skipped.
+ *
+ * Then, per mode on a fresh server, more h2c connections than the pool has
+ * threads are opened by prior knowledge and left idle, and one GET is sent
+ * on each at once. On the blocking engine every HTTP/2 connection's frame
+ * reader holds a pool thread, so its streams have to run elsewhere or none
+ * would be answered. Connections past the pool size wait for a reader
+ * thread like any blocking-engine connection, until an idle one times out.
+ * Reported: streams answered before the timeout and their latency.
+ *
+ * Usage: java -cp bin ThreadModeBench [idle] [active] [seconds] [engine] [port] [h2c]
+ */
+public class ThreadModeBench {
+    private static final byte[] REQUEST =
+        "GET /api/echo?message=bench HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    
+    public static void main(String[] args) throws Exception {
+        int idle = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int active = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String engine = args.length > 3 ? args[3] : "blocking";
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 18080;
+        int h2c = args.length > 5 ? Integer.parseInt(args[5]) : 60;
+        
+        System.out.printf("%d idle + %d active connections, %s engine, %d s per mode%n", idle, active, engine, seconds);
+        System.out.printf("%-8s %12s %10s %10s %10s %12s %10s %8s%n",
+            "mode", "active/s", "errors", "p50 ms", "p99 ms", "idle served", "rss MB", "threads");
+        for (String mode : new String[] { "POOL", "VIRTUAL" }) {
+            Path log = Files.createTempFile("threadmode", ".log");
+            Process server = startServer(mode, engine, port, log);
+            List<Socket> crowd = new ArrayList<>();
+            try {
+                awaitPort(port);
+                if (Files.readString(log).contains("Using a thread pool")) {
+                    System.out.printf("%-8s skipped: the server fell back to the pool (virtual threads need JDK 21+, running %s)%n",
+                        mode.toLowerCase(Locale.ROOT), System.getProperty("java.version"));
+                    continue;
+                }
+                
+                for (int i = 0; i < idle; i++) {
+                    Socket socket = new Socket("localhost", port);
+                    socket.getOutputStream().write(REQUEST);
+                    crowd.add(socket);
+                }
+                long[] result = runActive(port, active, seconds);
+                String[] usage = usage(server.pid());
+                int served = countAnswered(crowd);
+                long[] latencies = Arrays.copyOfRange(result, 2, result.length);
+                Arrays.sort(latencies);
+                System.out.printf("%-8s %,12d %,10d %10.2f %10.2f %,12d %10s %8s%n", mode.toLowerCase(Locale.ROOT),
+                    result[0] / seconds, result[1], percentile(latencies, 0.5), percentile(latencies, 0.99),
+                    served, usage[0], usage[1]);
+            } finally {
+                for (Socket socket : crowd) {
+                    socket.close();
+                }
+                server.destroy();
+                server.waitFor(10, TimeUnit.SECONDS);
+                Files.deleteIfExists(log);
+            }
+        }
+        
+        System.out.println();
+        System.out.printf("%d idle h2c connections, then one GET on each%n", h2c);
+        System.out.printf("%-8s %12s %10s %10s%n", "mode", "answered", "p50 ms", "max ms");
+        for (String mode : new String[] { "POOL", "VIRTUAL" }) {
+            Path log = Files.createTempFile("threadmode", ".log");
+            Process server = startServer(mode, engine, port, log);
+            try {
+                awaitPort(port);
+                if (Files.readString(log).contains("Using a thread pool")) {
+                    System.out.printf("%-8s skipped%n", mode.toLowerCase(Locale.ROOT));
+                    continue;
+                }
+                long[] latencies = runHttp2(port, h2c, 15_000);
+                long[] answered = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+                System.out.printf("%-8s %5d of %-4d %10.2f %10.2f%n", mode.toLowerCase(Locale.ROOT), answered.length, h2c,
+                    percentile(answered, 0.5), percentile(answered, 1.0));
+            } finally {
+                server.destroy();
+                server.waitFor(10, TimeUnit.SECONDS);
+                Files.deleteIfExists(log);
+            }
+        }
+    }
+    
+    /**
+     * Opens the connections with the HTTP/2 preface, waits for the server
+     * to take them, then sends GET /api/echo on stream 1 of each at once
+     * @return per connection the nanoseconds until the response ended, or -1 if it did not in time
+     */
+    private static long[] runHttp2(int port, int connections, int timeoutMillis) throws Exception {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        encoder.encode(":method", "GET", block);
+        encoder.encode(":scheme", "http", block);
+        encoder.encode(":authority", "localhost", block);
+        encoder.encode(":path", "/api/echo?message=h2c", block);
+        byte[] fields = block.toByteArray();
+        byte[] headers = bytes(Http2Frames.frame(Http2Frames.HEADERS,
+            Http2Frames.FLAG_END_STREAM | Http2Frames.FLAG_END_HEADERS, 1, fields, 0, fields.length));
+        
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket("localhost", port);
+                socket.setTcpNoDelay(true);
+                OutputStream out = socket.getOutputStream();
+                out.write(Http2Frames.PREFACE);
+                out.write(bytes(Http2Frames.settings()));
+                sockets.add(socket);
+            }
+            // Let the server put a reader on every connection it has a thread for
+            Thread.sleep(1000);
+            
+            long[] latencies = new long[connections];
+            Thread[] readers = new Thread[connections];
+            long started = System.nanoTime();
+            long deadline = started + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            for (Socket socket : sockets) {
+                socket.getOutputStream().write(headers);
+            }
+            for (int i = 0; i < connections; i++) {
+                int index = i;
+                readers[i] = new Thread(() -> latencies[index] = awaitResponse(sockets.get(index), started, deadline));
+                readers[i].start();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            return latencies;
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+    
+    /**
+     * Reads frames until stream 1 ends, acknowledging the server's SETTINGS
+     * @return nanoseconds since started, or -1 on timeout or a closed connection
+     */
+    private static long awaitResponse(Socket socket, long started, long deadline) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte[] payload = new byte[16 * 1024];
+            while (true) {
+                socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int stream = in.readInt() & Integer.MAX_VALUE;
+                if (length > payload.length) {
+                    payload = new byte[length];
+                }
+                in.readFully(payload, 0, length);
+                if (type == Http2Frames.SETTINGS && (flags & Http2Frames.FLAG_ACK) == 0) {
+                    socket.getOutputStream().write(bytes(Http2Frames.settingsAck()));
+                } else if (stream == 1 && (type == Http2Frames.HEADERS || type == Http2Frames.DATA)
+                        && (flags & Http2Frames.FLAG_END_STREAM) != 0) {
+                    return System.nanoTime() - started;
+                }
+            }
+        } catch (IOException e) {
+            // Timed out, or the server closed the connection
+            return -1;
+        }
+    }
+    
+    private static byte[] bytes(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+    
+    private static Process startServer(String mode, String engine, int port, Path log) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = Arrays.asList(java,
+            "-Dserver.threads=" + mode,
+            "-Dserver.engine=" + engine,
+            "-Dserver.accessLog=off",
+            // Keep the idle crowd connected and queued rather than timed out or shed
+            "-Dserver.keepAlive.timeout=120000",
+            "-Dserver.queue.capacity=0",
+            "-cp", System.getProperty("java.class.path"),
+            "HTTPServer", String.valueOf(port));
+        return new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(log.toFile())
+            .start();
+    }
+    
+    private static void awaitPort(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+    
+    /**
+     * @return requests completed, errors, then the latency of each request in nanoseconds
+     */
+    private static long[] runActive(int port, int connections, int seconds) throws InterruptedException {
+        LongAdder errors = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<long[]> perThread = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            threads[i] = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                long[] latencies = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < deadline) {
+                    try (Socket socket = new Socket("localhost", port)) {
+                        socket.setTcpNoDelay(true);
+                        // A connection stuck behind the idle crowd gives up at the end of the run
+                        socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                        OutputStream out = socket.getOutputStream();
+                        InputStream in = new BufferedInputStream(socket.getInputStream());
+                        while (System.nanoTime() < deadline) {
+                            long start = System.nanoTime();
+                            out.write(REQUEST);
+                            boolean open = readResponse(in, buffer);
+                            if (count == latencies.length) {
+                                latencies = Arrays.copyOf(latencies, count * 2);
+                            }
+                            latencies[count++] = System.nanoTime() - start;
+                            if (!open) {
+                                break;
+                            }
+                        }
+                    } catch (IOException e) {
+                        errors.increment();
+                    }
+                }
+                perThread.add(Arrays.copyOf(latencies, count));
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long[] all = perThread.stream().flatMapToLong(Arrays::stream).toArray();
+        long[] result = new long[2 + all.length];
+        result[0] = all.length;
+        result[1] = errors.sum();
+        System.arraycopy(all, 0, result, 2, all.length);
+        return result;
+    }
+    
+    /**
+     * Counts the idle connections whose one request has been answered
+     */
+    private static int countAnswered(List<Socket> crowd) throws IOException {
+        int answered = 0;
+        for (Socket socket : crowd) {
+            socket.setSoTimeout(1);
+            try {
+                if (socket.getInputStream().read() >= 0) {
+                    answered++;
+                }
+            } catch (SocketTimeoutException e) {
+                // Still waiting for a thread
+            }
+        }
+        return answered;
+    }
+    
+    /**
+     * Resident memory in MB and OS thread count of a process, or "-" where /proc is missing
+     */
+    private static String[] usage(long pid) {
+        String[] usage = { "-", "-" };
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    usage[0] = Long.toString(Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024);
+                } else if (line.startsWith("Threads:")) {
+                    usage[1] = line.substring(8).trim();
+                }
+            }
+        } catch (IOException e) {
+            // Not Linux
+        }
+        return usage;
+    }
+    
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+    
+    /**
+     * Reads one response with a Content-Length body
+     * @return false once the server closes the connection after it
+     */
+    private static boolean readResponse(InputStream in, byte[] buffer) throws IOException {
+        int contentLength = 0;
+        boolean close = false;
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed mid-response");
+            }
+            if (b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+                continue;
+            }
+            if (line.length() == 0) {
+                break;
+            }
+            String header = line.toString().toLowerCase(Locale.ROOT);
+            if (header.startsWith("content-length:")) {
+                contentLength = Integer.parseInt(header.substring(15).trim());
+            } else if (header.startsWith("connection:") && header.contains("close")) {
+                close = true;
+            }
+            line.setLength(0);
+        }
+        while (contentLength > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, contentLength));
+            if (read < 0) {
+                throw new EOFException("Connection closed mid-body");
+            }
+            contentLength -= read;
+        }
+        return !close;
+    }
+}
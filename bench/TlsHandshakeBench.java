@@ -0,0 +1,110 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.KeyStore;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.*;
+
+/**
+ * Full versus resumed TLS handshakes per second against a running server
+ * Each connection handshakes, sends one small request and reads the
+ * response (which also delivers TLS 1.3 session tickets), then closes.
+ * In "full" mode every connection gets a fresh client context, so it has
+ * no session to resume; in "resumed" mode all connections share one
+ * context and its session cache, as a browser would. The server's
+ * certificate is trusted from the keystore the server was started with,
+ * so a self-signed one works.
+ *
+ * Usage: java -cp bin TlsHandshakeBench keystore password [port] [seconds] [threads] [protocol]
+ */
+public class TlsHandshakeBench {
+    private static final byte[] REQUEST =
+        "GET /api/status HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TlsHandshakeBench keystore password [port] [seconds] [threads] [protocol]");
+            System.exit(1);
+        }
+        char[] password = args[1].toCharArray();
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 8443;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+        String protocol = args.length > 5 ? args[5] : "TLSv1.3";
+        
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+            trusted.load(in, password);
+        }
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(trusted);
+        
+        System.out.printf("%-8s %8s %12s %10s%n", "mode", "conns", "conns/sec", "resumed");
+        for (boolean resume : new boolean[] { false, true }) {
+            TrustManager[] trustManagers = trust.getTrustManagers();
+            Callable<SSLSocketFactory> factory;
+            if (resume) {
+                SSLSocketFactory shared = newContext(trustManagers).getSocketFactory();
+                factory = () -> shared;
+            } else {
+                factory = () -> newContext(trustManagers).getSocketFactory();
+            }
+            run(factory, port, 2, threads, protocol);
+            Result result = run(factory, port, seconds, threads, protocol);
+            System.out.printf("%-8s %8d %12.1f %9.1f%%%n", resume ? "resumed" : "full", result.connections,
+                result.connections / (double) seconds, 100.0 * result.resumed / Math.max(1, result.connections));
+        }
+    }
+    
+    private static SSLContext newContext(TrustManager[] trustManagers) throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers, null);
+        return context;
+    }
+    
+    private static final class Result {
+        final long connections;
+        final long resumed;
+        
+        Result(long connections, long resumed) {
+            this.connections = connections;
+            this.resumed = resumed;
+        }
+    }
+    
+    private static Result run(Callable<SSLSocketFactory> factory, int port, int seconds, int threads,
+                              String protocol) throws InterruptedException {
+        LongAdder connections = new LongAdder();
+        LongAdder resumed = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            pool.execute(() -> {
+                byte[] buffer = new byte[8192];
+                while (System.nanoTime() < deadline) {
+                    long started = System.currentTimeMillis();
+                    try (SSLSocket socket = (SSLSocket) factory.call().createSocket("localhost", port)) {
+                        socket.setEnabledProtocols(new String[] { protocol });
+                        socket.startHandshake();
+                        socket.getOutputStream().write(REQUEST);
+                        InputStream in = socket.getInputStream();
+                        while (in.read(buffer) != -1) {
+                            // Drain the response
+                        }
+                        SSLSession session = socket.getSession();
+                        if (session.getCreationTime() < started) {
+                            resumed.increment();
+                        }
+                        connections.increment();
+                    } catch (Exception e) {
+                        System.err.println("Connection failed: " + e.getMessage());
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(seconds + 30L, TimeUnit.SECONDS);
+        return new Result(connections.sum(), resumed.sum());
+    }
+}
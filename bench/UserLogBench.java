@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * UserLog cost in two parts. Write throughput: for each group-commit
+ * window a fresh log is attached to a store and a pool of threads calls
+ * create() back to back, each waiting for its record to be synced, as a
+ * POST /api/users does; reported are creates per second and the latency of
+ * each create. Recovery: a million records are written once as a plain log
+ * and once compacted into a snapshot, then loaded into an empty store a few
+ * times, reporting the best time. fsync cost depends on the disk, so run
+ * it on the one the server will use: the files go to a temporary directory
+ * under the given one (the working directory by default, since /tmp is
+ * often memory-backed).
+ *
+ * Usage: java -cp bin UserLogBench [seconds] [threads] [records] [directory]
+ */
+public class UserLogBench {
+    private static final long[] WINDOWS_MILLIS = { 0, 1, 2, 5, 10 };
+    private static final int RECOVERY_ROUNDS = 3;
+    
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int records = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+        Path parent = Paths.get(args.length > 3 ? args[3] : ".");
+        
+        System.out.printf("write throughput, %d threads, %d s per window%n", threads, seconds);
+        System.out.printf("%-10s %12s %10s %10s%n", "window ms", "creates/s", "p50 ms", "p99 ms");
+        for (long window : WINDOWS_MILLIS) {
+            Path directory = Files.createTempDirectory(parent, "userlog-bench");
+            try {
+                UserStore store = new UserStore();
+                long[] latencies;
+                try (UserLog log = new UserLog(directory, window, 0)) {
+                    log.recover(store);
+                    store.setLog(log);
+                    latencies = createLoop(store, threads, seconds);
+                }
+                Arrays.sort(latencies);
+                System.out.printf("%-10d %,12d %10.2f %10.2f%n", window, latencies.length / seconds,
+                    percentile(latencies, 0.5), percentile(latencies, 0.99));
+            } finally {
+                deleteTree(directory);
+            }
+        }
+        
+        System.out.println();
+        System.out.printf("recovery of %,d records, best of %d%n", records, RECOVERY_ROUNDS);
+        System.out.printf("%-10s %12s %10s %12s%n", "source", "MB on disk", "ms", "records/s");
+        recovery("log", parent, records, 0);
+        recovery("snapshot", parent, records, records);
+    }
+    
+    /**
+     * @return the latency of every create in nanoseconds
+     */
+    private static long[] createLoop(UserStore store, int threads, int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<long[]> perThread = Collections.synchronizedList(new ArrayList<>());
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                long[] latencies = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    store.create("Bench User", "bench" + thread + "." + count + "@example.com");
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - start;
+                }
+                perThread.add(Arrays.copyOf(latencies, count));
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return perThread.stream().flatMapToLong(Arrays::stream).toArray();
+    }
+    
+    /**
+     * Writes the records through a UserLog, compacting them into a snapshot
+     * when snapshotInterval is reached, then times recovering them
+     */
+    private static void recovery(String source, Path parent, int records, int snapshotInterval) throws Exception {
+        Path directory = Files.createTempDirectory(parent, "userlog-bench");
+        try {
+            try (UserLog log = new UserLog(directory, 0, snapshotInterval)) {
+                log.recover(new UserStore());
+                CompletableFuture<Void> last = null;
+                for (int id = 1; id <= records; id++) {
+                    last = log.append(new UserStore.User(id, "User " + id, "user" + id + "@example.com"));
+                }
+                if (last != null) {
+                    last.get();
+                }
+            }
+            long bytes;
+            try (Stream<Path> files = Files.list(directory)) {
+                bytes = files.mapToLong(path -> path.toFile().length()).sum();
+            }
+            
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < RECOVERY_ROUNDS; round++) {
+                UserStore store = new UserStore();
+                long start = System.nanoTime();
+                int recovered;
+                try (UserLog log = new UserLog(directory, 0, 0)) {
+                    recovered = log.recover(store);
+                }
+                best = Math.min(best, System.nanoTime() - start);
+                if (recovered != records) {
+                    throw new IllegalStateException(source + ": recovered " + recovered + " of " + records);
+                }
+            }
+            System.out.printf("%-10s %12.1f %10.0f %,12d%n", source, bytes / (1024.0 * 1024.0),
+                best / 1e6, records * 1_000_000_000L / best);
+        } finally {
+            deleteTree(directory);
+        }
+    }
+    
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+    
+    private static void deleteTree(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
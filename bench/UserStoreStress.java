@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Concurrent create() stress test for UserStore. Every email is created
+ * twice from different threads, once upper-cased, so exactly one of each
+ * pair must win, and a duplicate must not burn an id. A reader thread
+ * records every user it can see while the creates run; none of them may
+ * later disappear, which is what happened when a create whose log append
+ * failed was visible before being rolled back.
+ *
+ * Three rounds: in memory; with a UserLog that snapshots as it goes, after
+ * which a fresh store recovered from disk must match; and with a log that
+ * is closed halfway, so the remaining creates fail and must leave nothing
+ * behind. Exits with status 1 on any failure.
+ *
+ * Usage: java -cp bin UserStoreStress [creates] [threads] [groupCommitMillis]
+ */
+public class UserStoreStress {
+    private static boolean ok = true;
+    
+    public static void main(String[] args) throws Exception {
+        int creates = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        long groupCommitMillis = args.length > 2 ? Long.parseLong(args[2]) : 2;
+        
+        UserStore memory = new UserStore();
+        Result result = run("memory", memory, null, creates, threads);
+        expect("memory", "created", creates, result.created);
+        expect("memory", "failed", 0, result.failed);
+        checkIds("memory", memory, creates, null);
+        
+        Path directory = Files.createTempDirectory("userstore-stress");
+        try {
+            UserStore logged = new UserStore();
+            try (UserLog log = new UserLog(directory, groupCommitMillis, creates / 7)) {
+                log.recover(logged);
+                logged.setLog(log);
+                result = run("logged", logged, null, creates, threads);
+            }
+            expect("logged", "created", creates, result.created);
+            expect("logged", "failed", 0, result.failed);
+            checkIds("logged", logged, creates, null);
+            
+            UserStore recovered = new UserStore();
+            try (UserLog log = new UserLog(directory, groupCommitMillis, 0)) {
+                log.recover(recovered);
+            }
+            checkIds("recovered", recovered, creates, logged);
+        } finally {
+            deleteTree(directory);
+        }
+        
+        directory = Files.createTempDirectory("userstore-stress");
+        try {
+            UserStore failing = new UserStore();
+            try (UserLog log = new UserLog(directory, groupCommitMillis, 0)) {
+                log.recover(failing);
+                failing.setLog(log);
+                result = run("failing", failing, log, creates, threads);
+            }
+            if (result.failed == 0) {
+                System.out.println("failing    no create failed; the log closed too late");
+                ok = false;
+            }
+            expect("failing", "size", result.created, failing.size());
+            expect("failing", "snapshot size", result.created, failing.snapshot().size());
+            
+            // A failed create must release its email: without the log, every
+            // email that never won can now be created
+            failing.setLog(null);
+            int blocked = 0;
+            for (int i = 0; i < creates; i++) {
+                if (result.wins[i].get() == 0 && failing.create("User " + i, email(i)) == null) {
+                    blocked++;
+                }
+            }
+            expect("failing", "emails still held after a failed create", 0, blocked);
+        } finally {
+            deleteTree(directory);
+        }
+        
+        System.out.println(ok ? "PASS" : "FAIL");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+    
+    private static final class Result {
+        int created;
+        int duplicates;
+        int failed;
+        AtomicInteger[] wins;
+    }
+    
+    /**
+     * Creates every email twice across the threads, closing closeHalfway
+     * (if given) once half the attempts have been claimed
+     */
+    private static Result run(String name, UserStore store, UserLog closeHalfway, int creates, int threads)
+            throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger created = new AtomicInteger();
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger[] wins = new AtomicInteger[creates];
+        for (int i = 0; i < creates; i++) {
+            wins[i] = new AtomicInteger();
+        }
+        
+        BitSet seen = new BitSet();
+        AtomicInteger pendingSeen = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (next.get() < 2 * creates) {
+                for (UserStore.User user : store.snapshot().users) {
+                    seen.set(user.id);
+                }
+                UserStore.User user = store.findByEmail(email(Math.min(next.get() / 2, creates - 1)));
+                if (user != null && user.id <= 0) {
+                    pendingSeen.incrementAndGet();
+                }
+            }
+        }, "reader");
+        reader.start();
+        
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                int attempt;
+                // The two attempts at one email are adjacent, so they usually race
+                while ((attempt = next.getAndIncrement()) < 2 * creates) {
+                    if (closeHalfway != null && attempt == creates) {
+                        closeHalfway.close();
+                    }
+                    int index = attempt / 2;
+                    String email = (attempt & 1) == 0 ? email(index) : email(index).toUpperCase(Locale.ROOT);
+                    try {
+                        if (store.create("User " + index, email) != null) {
+                            wins[index].incrementAndGet();
+                            created.incrementAndGet();
+                        } else {
+                            duplicates.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        long elapsed = System.nanoTime() - start;
+        reader.join();
+        
+        System.out.printf("%-10s %,d creates in %,d ms (%,.0f/s) on %d threads: %,d created, %,d duplicate, %,d failed%n",
+            name, 2 * creates, elapsed / 1_000_000, 2 * creates * 1e9 / elapsed, threads,
+            created.get(), duplicates.get(), failed.get());
+        
+        int doubleWins = 0;
+        for (AtomicInteger count : wins) {
+            if (count.get() > 1) {
+                doubleWins++;
+            }
+        }
+        int vanished = 0;
+        for (int id = seen.nextSetBit(0); id >= 0; id = seen.nextSetBit(id + 1)) {
+            if (store.get(id) == null) {
+                vanished++;
+            }
+        }
+        expect(name, "emails created twice", 0, doubleWins);
+        expect(name, "users seen, then gone", 0, vanished);
+        expect(name, "reservations seen by findByEmail", 0, pendingSeen.get());
+        
+        Result result = new Result();
+        result.created = created.get();
+        result.duplicates = duplicates.get();
+        result.failed = failed.get();
+        result.wins = wins;
+        return result;
+    }
+    
+    /**
+     * Checks ids 1..n are all present with no gaps, each email maps back to
+     * its user, and, given an expected store, both hold the same users
+     */
+    private static void checkIds(String name, UserStore store, int creates, UserStore expected) {
+        expect(name, "size", creates, store.size());
+        expect(name, "snapshot size", creates, store.snapshot().size());
+        int missing = 0;
+        int mismatched = 0;
+        for (int id = 1; id <= creates; id++) {
+            UserStore.User user = store.get(id);
+            if (user == null) {
+                missing++;
+            } else if (store.findByEmail(user.email) != user
+                    || expected != null && !same(user, expected.get(id))) {
+                mismatched++;
+            }
+        }
+        expect(name, "ids missing from 1.." + creates, 0, missing);
+        expect(name, "users mismatched", 0, mismatched);
+    }
+    
+    private static boolean same(UserStore.User a, UserStore.User b) {
+        return b != null && a.id == b.id && a.name.equals(b.name) && a.email.equals(b.email);
+    }
+    
+    private static void expect(String name, String what, long expected, long actual) {
+        if (expected != actual) {
+            System.out.printf("%-10s %s: expected %,d, got %,d%n", name, what, expected, actual);
+            ok = false;
+        }
+    }
+    
+    private static String email(int index) {
+        return "user" + index + "@example.com";
+    }
+    
+    private static void deleteTree(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
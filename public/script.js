@@ -69,6 +69,24 @@ Server received: "${data.received}"`;
     }
 }
 
+// Users as last fetched, kept current by the event stream
+let users = [];
+
+function escapeHtml(text) {
+    return String(text).replace(/[&<>"']/g, c => ({
+        '&': '&amp;', '<': '&lt;', '>': '&gt;', '"': '&quot;', "'": '&#39;'
+    })[c]);
+}
+
+function renderUsers() {
+    const output = document.getElementById('users-output');
+    let html = `<span class="success">✓ Found ${users.length} users</span>\n\n`;
+    users.forEach(user => {
+        html += `ID: ${user.id}\nName: ${escapeHtml(user.name)}\nEmail: ${escapeHtml(user.email)}\n\n`;
+    });
+    output.innerHTML = html;
+}
+
 // Get Users
 async function getUsers() {
     const output = document.getElementById('users-output');
@@ -76,19 +94,48 @@ async function getUsers() {
     
     try {
         const response = await fetch('/api/users');
-        const users = await response.json();
-        
-        let html = `<span class="success">✓ Found ${users.length} users</span>\n\n`;
-        users.forEach(user => {
-            html += `ID: ${user.id}\nName: ${user.name}\nEmail: ${user.email}\n\n`;
-        });
-        
-        output.innerHTML = html;
+        users = await response.json();
+        renderUsers();
     } catch (error) {
         output.innerHTML = `<span class="error">✗ Error: ${error.message}</span>`;
     }
 }
 
+// Live updates: the server pushes {"type":"user.created","user":{...}}
+// over /api/events, so the list never has to be polled
+let eventsRetryMs = 1000;
+
+function subscribeToEvents() {
+    const scheme = location.protocol === 'https:' ? 'wss:' : 'ws:';
+    const socket = new WebSocket(`${scheme}//${location.host}/api/events`);
+    
+    socket.addEventListener('open', () => {
+        eventsRetryMs = 1000;
+    });
+    
+    socket.addEventListener('message', event => {
+        let message;
+        try {
+            message = JSON.parse(event.data);
+        } catch (error) {
+            return;
+        }
+        if (message.type === 'user.created' && !users.some(user => user.id === message.user.id)) {
+            users.push(message.user);
+            renderUsers();
+        }
+    });
+    
+    socket.addEventListener('close', () => {
+        // Reconnect with backoff, then refetch what was missed while away
+        setTimeout(() => {
+            subscribeToEvents();
+            getUsers();
+        }, eventsRetryMs);
+        eventsRetryMs = Math.min(eventsRetryMs * 2, 30000);
+    });
+}
+
 // Create User
 async function createUser() {
     const name = document.getElementById('user-name').value;
@@ -117,8 +164,8 @@ async function createUser() {
 <span class="success">✓ User created successfully!</span>
 
 ID: ${user.id}
-Name: ${user.name}
-Email: ${user.email}`;
+Name: ${escapeHtml(user.name)}
+Email: ${escapeHtml(user.email)}`;
             
             // Clear inputs
             document.getElementById('user-name').value = '';
@@ -173,7 +220,9 @@ Avg Response Time: ${(duration / numRequests).toFixed(2)} ms`;
     }
 }
 
-// Auto-check status on page load
+// Auto-check status and load users on page load
 window.addEventListener('load', () => {
     checkStatus();
+    getUsers();
+    subscribeToEvents();
 });
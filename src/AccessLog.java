@@ -0,0 +1,328 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous access log
+ * Workers copy each request's fields into a preallocated slot of a
+ * bounded multi-producer ring buffer: a slot is claimed with one CAS on the
+ * tail and published through its sequence number, so logging never takes
+ * a lock or touches the console. A single writer thread drains the ring,
+ * formats records in Common or Combined Log Format (plus the latency in
+ * microseconds) and writes them in batches to stdout or to a file rotated
+ * by size. When the ring is full a record is either dropped and counted,
+ * or the worker waits for space, depending on the overflow policy.
+ */
+public class AccessLog implements Closeable {
+    public enum Format {
+        COMMON, COMBINED
+    }
+    
+    public enum Overflow {
+        DROP, BLOCK
+    }
+    
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+    private static final DateTimeFormatter CLF_DATE =
+        DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+    
+    /**
+     * One preallocated entry of the ring; fields are overwritten in place
+     */
+    private static final class Record {
+        long timestamp;
+        String clientIP;
+        String method;
+        String target;
+        String version;
+        int status;
+        long bytes;
+        long latencyNanos;
+        String referer;
+        String userAgent;
+    }
+    
+    private final Record[] ring;
+    // Per slot: equal to the position when free for that lap's producer, position + 1 once published
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    
+    private final Format format;
+    private final Overflow overflow;
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final Thread writer;
+    private volatile boolean running = true;
+    
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    
+    // Writer thread state
+    private OutputStream console;
+    private FileChannel channel;
+    private long fileSize;
+    private long cachedSecond = -1;
+    private String cachedDate;
+    
+    /**
+     * @param file log file, or null to write to stdout
+     * @param capacity ring slots, rounded up to a power of two
+     * @param maxBytes file size that triggers rotation; 0 never rotates
+     * @param maxFiles rotated files kept (file.1 is the newest)
+     */
+    public AccessLog(Path file, Format format, Overflow overflow, int capacity, long maxBytes, int maxFiles)
+            throws IOException {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new Record[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Record();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.format = format;
+        this.overflow = overflow;
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+        
+        if (file != null) {
+            openFile();
+        } else {
+            console = new FileOutputStream(FileDescriptor.out);
+        }
+        this.writer = new Thread(this::writeLoop, "access-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+    
+    /**
+     * Queues one request for logging; never blocks unless the policy is BLOCK and the ring is full
+     */
+    public void log(String clientIP, HTTPRequest request, HTTPResponse response, long latencyNanos) {
+        long position = claim();
+        if (position < 0) {
+            dropped.increment();
+            return;
+        }
+        Record record = ring[(int) position & mask];
+        record.timestamp = System.currentTimeMillis();
+        record.clientIP = clientIP;
+        record.method = request.getMethod();
+        record.target = request.getTarget();
+        record.version = request.getVersion();
+        record.status = response.getStatusCode();
+        record.bytes = response.getContentLength();
+        record.latencyNanos = latencyNanos;
+        if (format == Format.COMBINED) {
+            record.referer = request.getHeader("referer");
+            record.userAgent = request.getHeader("user-agent");
+        }
+        sequences.set((int) position & mask, position + 1);
+    }
+    
+    /**
+     * Claims the next slot
+     * @return its position, or -1 if the ring is full and records are dropped
+     */
+    private long claim() {
+        while (true) {
+            long position = tail.get();
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (sequence < position) {
+                // Slot still holds a record from the previous lap: ring is full
+                if (overflow == Overflow.DROP || !running) {
+                    return -1;
+                }
+                LockSupport.unpark(writer);
+                Thread.yield();
+            }
+            // Otherwise another producer moved the tail; retry
+        }
+    }
+    
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder(BATCH_SIZE * 160);
+        while (true) {
+            int count = 0;
+            while (count < BATCH_SIZE) {
+                int index = (int) head & mask;
+                if (sequences.get(index) != head + 1) {
+                    break;
+                }
+                Record record = ring[index];
+                format(record, batch);
+                record.referer = null;
+                record.userAgent = null;
+                // Hand the slot to the producer of the next lap
+                sequences.set(index, head + ring.length);
+                head++;
+                count++;
+            }
+            
+            if (count > 0) {
+                flush(batch);
+                written.add(count);
+                batch.setLength(0);
+            } else if (!running) {
+                break;
+            } else {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+        closeOutput();
+    }
+    
+    private void format(Record record, StringBuilder out) {
+        out.append(record.clientIP).append(" - - [").append(date(record.timestamp)).append("] \"");
+        out.append(record.method).append(' ');
+        appendEscaped(out, record.target);
+        out.append(' ').append(record.version).append("\" ").append(record.status).append(' ');
+        if (record.bytes > 0) {
+            out.append(record.bytes);
+        } else {
+            out.append('-');
+        }
+        if (format == Format.COMBINED) {
+            out.append(" \"");
+            appendEscaped(out, record.referer != null ? record.referer : "-");
+            out.append("\" \"");
+            appendEscaped(out, record.userAgent != null ? record.userAgent : "-");
+            out.append('"');
+        }
+        out.append(' ').append(record.latencyNanos / 1000).append('\n');
+    }
+    
+    /**
+     * Formatted date, reused for every record within the same second
+     */
+    private String date(long timestamp) {
+        long second = timestamp / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedDate = CLF_DATE.format(Instant.ofEpochSecond(second));
+        }
+        return cachedDate;
+    }
+    
+    /**
+     * Escapes quotes, backslashes and control characters so a request cannot forge log lines
+     */
+    private static void appendEscaped(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                out.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                out.append(c);
+            }
+        }
+    }
+    
+    private void flush(StringBuilder batch) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (channel != null) {
+                if (maxBytes > 0 && fileSize > 0 && fileSize + bytes.length > maxBytes) {
+                    rotate();
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                fileSize += bytes.length;
+            } else {
+                console.write(bytes);
+                console.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Access log write failed: " + e.getMessage());
+        }
+    }
+    
+    private void openFile() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+    }
+    
+    /**
+     * Shifts file.N-1 to file.N (dropping the oldest), moves the current file to file.1 and reopens
+     */
+    private void rotate() throws IOException {
+        channel.close();
+        channel = null;
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path source = rotated(i);
+            if (Files.exists(source)) {
+                Files.move(source, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        openFile();
+    }
+    
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+    
+    private void closeOutput() {
+        try {
+            if (channel != null) {
+                channel.close();
+            } else if (console != null) {
+                console.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing access log: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Records dropped because the ring was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+    
+    public long getWritten() {
+        return written.sum();
+    }
+    
+    /**
+     * Stops accepting records, writes out what is queued and closes the file
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded byte pipe between a reactor thread and a worker thread
+ * One side blocks (a worker reading a request body or writing a streamed
+ * response), the other never does (the reactor). When the non-blocking
+ * side finds the pipe full or empty it stalls and is woken through a
+ * callback once the worker has made room or added data, so a connection
+ * holds at most the pipe's capacity however large the body is. The ring is
+ * borrowed from the pool until release(). The blocking side waits on a
+ * lock condition rather than a monitor, so a virtual thread waiting for
+ * body data unmounts instead of pinning its carrier.
+ */
+final class BodyPipe {
+    private final int capacity;
+    private final ByteBuffer borrowed;
+    // Null once released
+    private byte[] ring;
+    private final Runnable wakeup;
+    private int head;
+    private int count;
+    private boolean closed;
+    private IOException failure;
+    private boolean stalled;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    
+    /**
+     * @param wakeup run, outside the lock, when the stalled non-blocking side can continue
+     */
+    BodyPipe(int capacity, Runnable wakeup) {
+        this.capacity = capacity;
+        this.borrowed = BufferPool.shared().acquire(capacity);
+        this.ring = borrowed.array();
+        this.wakeup = wakeup;
+    }
+    
+    // Blocking side
+    
+    /**
+     * Waits for data
+     * @return bytes read, or -1 once the pipe is closed and drained
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        int read;
+        boolean wake;
+        lock.lock();
+        try {
+            while (count == 0 && !closed && failure == null) {
+                await(notEmpty);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (count == 0) {
+                return -1;
+            }
+            read = Math.min(len, count);
+            int first = Math.min(read, capacity - head);
+            System.arraycopy(ring, head, b, off, first);
+            System.arraycopy(ring, 0, b, off + first, read - first);
+            head = (head + read) % capacity;
+            count -= read;
+            notFull.signalAll();
+            // Wake the producer only once half the pipe is free, not for every read
+            wake = stalled && count <= capacity / 2;
+            if (wake) {
+                stalled = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (wake) {
+            wakeup.run();
+        }
+        return read;
+    }
+    
+    /**
+     * Waits for room until everything is written
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            boolean wake;
+            lock.lock();
+            try {
+                while (count == capacity && failure == null) {
+                    await(notFull);
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (closed) {
+                    throw new IOException("Pipe closed");
+                }
+                int written = Math.min(len, capacity - count);
+                int tail = (head + count) % capacity;
+                int first = Math.min(written, capacity - tail);
+                System.arraycopy(b, off, ring, tail, first);
+                System.arraycopy(b, off + first, ring, 0, written - first);
+                count += written;
+                off += written;
+                len -= written;
+                notEmpty.signalAll();
+                wake = stalled;
+                stalled = false;
+            } finally {
+                lock.unlock();
+            }
+            if (wake) {
+                wakeup.run();
+            }
+        }
+    }
+    
+    private static void await(Condition condition) throws InterruptedIOException {
+        try {
+            condition.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+    
+    // Non-blocking side
+    
+    /**
+     * Copies as much as fits
+     * @return bytes taken; the pipe stalls the caller when it fills up
+     */
+    int offer(byte[] b, int off, int len) {
+        lock.lock();
+        try {
+            if (ring == null) {
+                // Released: nobody reads any more
+                return len;
+            }
+            int written = Math.min(len, capacity - count);
+            int tail = (head + count) % capacity;
+            int first = Math.min(written, capacity - tail);
+            System.arraycopy(b, off, ring, tail, first);
+            System.arraycopy(b, off + first, ring, 0, written - first);
+            count += written;
+            if (count == capacity) {
+                stalled = true;
+            }
+            notEmpty.signalAll();
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    int space() {
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    int available() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Writes buffered bytes to a non-blocking channel
+     * @return true once the pipe is closed and everything is written; false
+     * if the channel is full or the pipe is empty (then stalled until written to)
+     */
+    boolean drainTo(WritableByteChannel channel) throws IOException {
+        boolean drained = false;
+        lock.lock();
+        try {
+            while (count > 0) {
+                int contiguous = Math.min(count, capacity - head);
+                int written = channel.write(ByteBuffer.wrap(ring, head, contiguous));
+                head = (head + written) % capacity;
+                count -= written;
+                drained |= written > 0;
+                if (written < contiguous) {
+                    break;
+                }
+            }
+            if (drained) {
+                notFull.signalAll();
+            }
+            if (count > 0) {
+                return false;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (closed) {
+                return true;
+            }
+            stalled = true;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Either side
+    
+    /**
+     * Marks the end of the data; the reader sees -1 once it has read the rest
+     */
+    void close() {
+        boolean wake;
+        lock.lock();
+        try {
+            closed = true;
+            wake = stalled;
+            stalled = false;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (wake) {
+            wakeup.run();
+        }
+    }
+    
+    /**
+     * Aborts the transfer; both sides get the exception from now on
+     */
+    void fail(IOException e) {
+        boolean wake;
+        lock.lock();
+        try {
+            if (failure != null) {
+                return;
+            }
+            failure = e;
+            wake = stalled;
+            stalled = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (wake) {
+            wakeup.run();
+        }
+    }
+    
+    /**
+     * Returns the ring to the pool once the other side is done or has been
+     * failed; from then on the pipe fails, unless it was closed and drained,
+     * and offers are discarded
+     */
+    void release() {
+        lock.lock();
+        try {
+            if (ring == null) {
+                return;
+            }
+            if (failure == null && (!closed || count > 0)) {
+                failure = new IOException("Pipe released");
+            }
+            ring = null;
+            count = 0;
+            BufferPool.shared().release(borrowed);
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    InputStream inputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : BodyPipe.this.read(b, off, len);
+            }
+        };
+    }
+    
+    OutputStream outputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                BodyPipe.this.write(b, off, len);
+            }
+        };
+    }
+}
@@ -0,0 +1,477 @@
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-classed pool of the server's I/O buffers, shared by all connections
+ * Sizes are rounded up to a class (512 bytes to 64 KB, each class 1.5 or 2
+ * times the one below) and served from the calling thread's small cache,
+ * then from a shared stack per class, and only then allocated. A thread's
+ * cache trades with the shared stacks in batches, so their locks are taken
+ * once per batch rather than per buffer. Virtual threads skip the caches,
+ * which would die with each of them. Heap and direct buffers are pooled
+ * apart; larger sizes are plain allocations that release() lets go.
+ * A borrowed buffer must not be touched after it is released, nor released
+ * twice. The pool keeps an identity set of the buffers it holds, so a
+ * second release while the buffer is still idle is reported and ignored
+ * rather than handing it to two borrowers; one that comes after the buffer
+ * was borrowed again cannot be told apart from the new borrower's. With
+ * leak detection on, every borrowed buffer is tracked by a phantom
+ * reference that holds a stack trace of where it was borrowed; one that is
+ * garbage collected without having been released is reported with that
+ * trace, and releasing a buffer that is not out is reported and ignored.
+ */
+final class BufferPool {
+    static final int MIN_SIZE = 512;
+    static final int MAX_SIZE = 64 * 1024;
+    // 512, 768, 1K, 1.5K ... 32K, 48K, 64K
+    private static final int CLASSES = 15;
+    // A thread caches up to this many bytes, and buffers, per class
+    private static final int CACHE_BYTES = 32 * 1024;
+    private static final int CACHE_BUFFERS = 16;
+    
+    private static volatile BufferPool shared = new BufferPool(new ServerConfig());
+    
+    private final boolean pooling;
+    private final long maxIdleBytes;
+    private final AtomicLong idleBytes = new AtomicLong();
+    private final Kind heap = new Kind(false);
+    private final Kind direct = new Kind(true);
+    // Buffers in the caches and shared stacks
+    private final IdleSet idle = new IdleSet();
+    private final LongAdder doubleReleases = new LongAdder();
+    // Null under virtual threads
+    private final ThreadLocal<Cache> caches;
+    // Null unless leak detection is on
+    private final LeakDetector leaks;
+    
+    /**
+     * Heap or direct buffers: one shared stack per class, each guarded by itself
+     */
+    private static final class Kind {
+        final boolean direct;
+        final ArrayDeque<ByteBuffer>[] stacks;
+        final LongAdder acquired = new LongAdder();
+        final LongAdder allocated = new LongAdder();
+        
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Kind(boolean direct) {
+            this.direct = direct;
+            this.stacks = new ArrayDeque[CLASSES];
+            for (int i = 0; i < CLASSES; i++) {
+                stacks[i] = new ArrayDeque<>();
+            }
+        }
+        
+        ByteBuffer allocate(int size) {
+            return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+    }
+    
+    /**
+     * One thread's buffers, per kind and class
+     */
+    private static final class Cache {
+        final ByteBuffer[][] buffers = new ByteBuffer[2 * CLASSES][];
+        final int[] counts = new int[2 * CLASSES];
+    }
+    
+    BufferPool(ServerConfig config) {
+        this.pooling = config.isBufferPool();
+        this.maxIdleBytes = config.getBufferPoolBytes();
+        this.caches = config.getThreadMode() == ServerConfig.ThreadMode.VIRTUAL ? null : ThreadLocal.withInitial(Cache::new);
+        this.leaks = config.isBufferLeakDetection() ? new LeakDetector() : null;
+    }
+    
+    /**
+     * The pool every connection borrows from
+     */
+    static BufferPool shared() {
+        return shared;
+    }
+    
+    /**
+     * Replaces the shared pool with one set up from the server's
+     * configuration; done once at startup, before any connection
+     */
+    static void configure(ServerConfig config) {
+        shared = new BufferPool(config);
+    }
+    
+    /**
+     * A cleared heap buffer of at least the given capacity
+     */
+    ByteBuffer acquire(int size) {
+        return acquire(heap, size);
+    }
+    
+    /**
+     * A cleared direct buffer of at least the given capacity
+     */
+    ByteBuffer acquireDirect(int size) {
+        return acquire(direct, size);
+    }
+    
+    /**
+     * Hands a buffer back; null is ignored, so it can sit in a finally block
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (leaks != null && !leaks.untrack(buffer)) {
+            doubleRelease(buffer);
+            return;
+        }
+        if (!pooling) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0 || classSize(sizeClass) != capacity || buffer.isReadOnly()
+                || (buffer.hasArray() && (buffer.arrayOffset() != 0 || buffer.array().length != capacity))) {
+            // Not one of ours: an oversized buffer, a slice or a wrapped array
+            return;
+        }
+        if (!idle.add(buffer)) {
+            doubleRelease(buffer);
+            return;
+        }
+        Kind kind = buffer.isDirect() ? direct : heap;
+        buffer.clear();
+        if (caches == null) {
+            push(kind, sizeClass, buffer);
+            return;
+        }
+        Cache cache = caches.get();
+        int slot = slot(kind, sizeClass);
+        ByteBuffer[] buffers = cache.buffers[slot];
+        if (buffers == null) {
+            buffers = cache.buffers[slot] = new ByteBuffer[cacheCapacity(sizeClass)];
+        }
+        int count = cache.counts[slot];
+        if (count == buffers.length) {
+            // Full: the newer half goes to the shared stack in one batch
+            int keep = buffers.length / 2;
+            ArrayDeque<ByteBuffer> stack = kind.stacks[sizeClass];
+            synchronized (stack) {
+                for (int i = keep; i < count; i++) {
+                    if (reserve(capacity)) {
+                        stack.push(buffers[i]);
+                    } else {
+                        idle.remove(buffers[i]);
+                    }
+                    buffers[i] = null;
+                }
+            }
+            count = keep;
+        }
+        buffers[count] = buffer;
+        cache.counts[slot] = count + 1;
+    }
+    
+    private ByteBuffer acquire(Kind kind, int size) {
+        int sizeClass = sizeClass(size);
+        if (!pooling || sizeClass < 0) {
+            return track(kind.allocate(size), kind);
+        }
+        kind.acquired.increment();
+        ByteBuffer buffer = caches != null ? pollCache(kind, sizeClass) : poll(kind, sizeClass);
+        if (buffer == null) {
+            kind.allocated.increment();
+            buffer = kind.allocate(classSize(sizeClass));
+        } else {
+            idle.remove(buffer);
+        }
+        return track(buffer, kind);
+    }
+    
+    private ByteBuffer pollCache(Kind kind, int sizeClass) {
+        Cache cache = caches.get();
+        int slot = slot(kind, sizeClass);
+        int count = cache.counts[slot];
+        if (count == 0) {
+            // Empty: refill half of it from the shared stack in one batch
+            ByteBuffer[] buffers = cache.buffers[slot];
+            if (buffers == null) {
+                buffers = cache.buffers[slot] = new ByteBuffer[cacheCapacity(sizeClass)];
+            }
+            int batch = Math.max(1, buffers.length / 2);
+            ArrayDeque<ByteBuffer> stack = kind.stacks[sizeClass];
+            synchronized (stack) {
+                ByteBuffer buffer;
+                while (count < batch && (buffer = stack.poll()) != null) {
+                    buffers[count++] = buffer;
+                }
+            }
+            if (count == 0) {
+                return null;
+            }
+            idleBytes.addAndGet(-(long) count * classSize(sizeClass));
+        }
+        count--;
+        ByteBuffer buffer = cache.buffers[slot][count];
+        cache.buffers[slot][count] = null;
+        cache.counts[slot] = count;
+        return buffer;
+    }
+    
+    private ByteBuffer poll(Kind kind, int sizeClass) {
+        ArrayDeque<ByteBuffer> stack = kind.stacks[sizeClass];
+        ByteBuffer buffer;
+        synchronized (stack) {
+            buffer = stack.poll();
+        }
+        if (buffer != null) {
+            idleBytes.addAndGet(-buffer.capacity());
+        }
+        return buffer;
+    }
+    
+    private void push(Kind kind, int sizeClass, ByteBuffer buffer) {
+        if (reserve(buffer.capacity())) {
+            ArrayDeque<ByteBuffer> stack = kind.stacks[sizeClass];
+            synchronized (stack) {
+                stack.push(buffer);
+            }
+        } else {
+            idle.remove(buffer);
+        }
+    }
+    
+    private void doubleRelease(ByteBuffer buffer) {
+        doubleReleases.increment();
+        StringBuilder message = new StringBuilder("Buffer released twice: a ")
+            .append(buffer.capacity()).append("-byte ").append(buffer.isDirect() ? "direct" : "heap")
+            .append(" buffer that was not out was released at:");
+        for (StackTraceElement frame : new Throwable().getStackTrace()) {
+            if (!frame.getClassName().startsWith(BufferPool.class.getName())) {
+                message.append("\n\tat ").append(frame);
+            }
+        }
+        System.err.println(message);
+    }
+    
+    /**
+     * Counts a buffer going into a shared stack, unless that would exceed the idle limit
+     */
+    private boolean reserve(int size) {
+        if (idleBytes.addAndGet(size) <= maxIdleBytes) {
+            return true;
+        }
+        idleBytes.addAndGet(-size);
+        return false;
+    }
+    
+    private ByteBuffer track(ByteBuffer buffer, Kind kind) {
+        if (leaks != null) {
+            leaks.track(buffer, kind.direct);
+        }
+        return buffer;
+    }
+    
+    private static int slot(Kind kind, int sizeClass) {
+        return kind.direct ? CLASSES + sizeClass : sizeClass;
+    }
+    
+    /**
+     * Smallest class that holds the size, or -1 if it is above the largest
+     */
+    static int sizeClass(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+        // Size is in (2^(shift-1), 2^shift]: the class 3 * 2^(shift-2) or 2^shift
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        int power = 2 * (shift - 9);
+        return size <= 3 << (shift - 2) ? power - 1 : power;
+    }
+    
+    static int classSize(int sizeClass) {
+        return (sizeClass & 1) == 0 ? MIN_SIZE << (sizeClass >> 1) : (MIN_SIZE * 3 / 2) << (sizeClass >> 1);
+    }
+    
+    private static int cacheCapacity(int sizeClass) {
+        return Math.min(CACHE_BUFFERS, Math.max(1, CACHE_BYTES / classSize(sizeClass)));
+    }
+    
+    /**
+     * Buffers handed out, heap or direct
+     */
+    long getAcquired(boolean direct) {
+        return (direct ? this.direct : heap).acquired.sum();
+    }
+    
+    /**
+     * Buffers allocated because the pool had none of the size at hand
+     */
+    long getAllocated(boolean direct) {
+        return (direct ? this.direct : heap).allocated.sum();
+    }
+    
+    /**
+     * Bytes waiting in the shared stacks, not counting the threads' caches
+     */
+    long getIdleBytes() {
+        return idleBytes.get();
+    }
+    
+    /**
+     * Releases of a buffer that was already back in the pool, or not borrowed
+     */
+    long getDoubleReleases() {
+        return doubleReleases.sum();
+    }
+    
+    boolean isLeakDetection() {
+        return leaks != null;
+    }
+    
+    /**
+     * Buffers found garbage collected without having been released
+     */
+    long getLeaks() {
+        return leaks == null ? 0 : leaks.count.sum();
+    }
+    
+    /**
+     * Borrowed buffers and where they were borrowed. Trackers are found by
+     * the buffer's identity hash, chained on collisions; a tracker still
+     * registered when the queue hands it back belongs to a leaked buffer.
+     */
+    private static final class LeakDetector {
+        final ReferenceQueue<ByteBuffer> queue = new ReferenceQueue<>();
+        // Guarded by itself
+        final HashMap<Integer, Tracker> tracked = new HashMap<>();
+        final LongAdder count = new LongAdder();
+        
+        void track(ByteBuffer buffer, boolean direct) {
+            reportLeaks();
+            Tracker tracker = new Tracker(buffer, queue, direct);
+            synchronized (tracked) {
+                tracker.next = tracked.put(tracker.hash, tracker);
+            }
+        }
+        
+        /**
+         * @return false if the buffer was not out
+         */
+        boolean untrack(ByteBuffer buffer) {
+            Tracker tracker = remove(System.identityHashCode(buffer), buffer, null);
+            if (tracker == null) {
+                return false;
+            }
+            tracker.clear();
+            return true;
+        }
+        
+        /**
+         * Unlinks the given tracker, or else the one of the given buffer
+         */
+        private Tracker remove(int hash, ByteBuffer buffer, Tracker target) {
+            synchronized (tracked) {
+                Tracker previous = null;
+                for (Tracker tracker = tracked.get(hash); tracker != null; tracker = tracker.next) {
+                    if (target != null ? tracker == target : tracker.refersTo(buffer)) {
+                        if (previous != null) {
+                            previous.next = tracker.next;
+                        } else if (tracker.next != null) {
+                            tracked.put(hash, tracker.next);
+                        } else {
+                            tracked.remove(hash);
+                        }
+                        return tracker;
+                    }
+                    previous = tracker;
+                }
+                return null;
+            }
+        }
+        
+        private void reportLeaks() {
+            Reference<? extends ByteBuffer> reference;
+            while ((reference = queue.poll()) != null) {
+                Tracker tracker = (Tracker) reference;
+                if (remove(tracker.hash, null, tracker) == null) {
+                    continue;
+                }
+                count.increment();
+                StringBuilder message = new StringBuilder("Buffer leak: a ")
+                    .append(tracker.capacity).append("-byte ").append(tracker.direct ? "direct" : "heap")
+                    .append(" buffer was garbage collected without being released. Borrowed at:");
+                for (StackTraceElement frame : tracker.site.getStackTrace()) {
+                    if (!frame.getClassName().startsWith(BufferPool.class.getName())) {
+                        message.append("\n\tat ").append(frame);
+                    }
+                }
+                System.err.println(message);
+            }
+        }
+    }
+    
+    /**
+     * Identity set of the pooled buffers, striped by identity hash so
+     * threads releasing different buffers rarely meet on a lock. The maps
+     * keep keys in their own table, so adding and removing allocate
+     * nothing once a stripe has grown.
+     */
+    private static final class IdleSet {
+        private static final int STRIPES = 64;
+        
+        private final IdentityHashMap<ByteBuffer, Boolean>[] stripes;
+        
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        IdleSet() {
+            stripes = new IdentityHashMap[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new IdentityHashMap<>();
+            }
+        }
+        
+        /**
+         * @return false if the buffer is already in the set
+         */
+        boolean add(ByteBuffer buffer) {
+            IdentityHashMap<ByteBuffer, Boolean> stripe = stripe(buffer);
+            synchronized (stripe) {
+                return stripe.put(buffer, Boolean.TRUE) == null;
+            }
+        }
+        
+        void remove(ByteBuffer buffer) {
+            IdentityHashMap<ByteBuffer, Boolean> stripe = stripe(buffer);
+            synchronized (stripe) {
+                stripe.remove(buffer);
+            }
+        }
+        
+        private IdentityHashMap<ByteBuffer, Boolean> stripe(ByteBuffer buffer) {
+            int hash = System.identityHashCode(buffer);
+            return stripes[(hash ^ hash >>> 16) & (STRIPES - 1)];
+        }
+    }
+    
+    private static final class Tracker extends PhantomReference<ByteBuffer> {
+        final int hash;
+        final int capacity;
+        final boolean direct;
+        final Throwable site = new Throwable();
+        Tracker next;
+        
+        Tracker(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue, boolean direct) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+            this.capacity = buffer.capacity();
+            this.direct = direct;
+        }
+    }
+}
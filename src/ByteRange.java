@@ -0,0 +1,123 @@
+import java.util.*;
+
+/**
+ * A satisfiable byte range of a representation, end inclusive
+ * Parses Range headers of the form bytes=0-99,200-,-500 (RFC 9110
+ * section 14.1.2). Ranges are sorted and overlapping or adjacent ones are
+ * merged, so a request cannot make the server send the same bytes twice.
+ */
+public final class ByteRange {
+    private static final int MAX_RANGES = 16;
+    
+    final long start;
+    final long end;
+    
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+    
+    public long length() {
+        return end - start + 1;
+    }
+    
+    /**
+     * Value for Content-Range
+     */
+    public String contentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+    
+    /**
+     * Parses a Range header against a representation of the given size
+     * @return the ranges; an empty list if none is satisfiable (416); null
+     * if the header is malformed, uses another unit or asks for too many
+     * ranges, in which case it is ignored and the full content is sent
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        
+        List<ByteRange> ranges = new ArrayList<>(2);
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES * 4) {
+            return null;
+        }
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // Suffix range: the last N bytes
+                    long suffix = parseDigits(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else {
+                    first = parseDigits(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        last = size - 1;
+                    } else {
+                        last = parseDigits(spec.substring(dash + 1));
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, size - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < size) {
+                ranges.add(new ByteRange(first, last));
+            }
+        }
+        
+        ranges = coalesce(ranges);
+        return ranges.size() > MAX_RANGES ? null : ranges;
+    }
+    
+    private static long parseDigits(String value) {
+        if (value.isEmpty() || value.length() > 18) {
+            throw new NumberFormatException(value);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException(value);
+            }
+        }
+        return Long.parseLong(value);
+    }
+    
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(range -> range.start));
+        List<ByteRange> merged = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
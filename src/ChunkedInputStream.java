@@ -0,0 +1,115 @@
+import java.io.*;
+
+/**
+ * Decodes an HTTP/1.1 chunked body read from a stream
+ * The counterpart of ChunkedOutputStream, for responses relayed from an
+ * upstream server: reads return chunk data only, chunk extensions and
+ * trailers are skipped, and the stream ends after the last chunk with the
+ * source positioned at the start of the next message, so the connection
+ * can be reused. The underlying stream is not closed.
+ */
+final class ChunkedInputStream extends InputStream {
+    private static final int MAX_LINE = 1024;
+    private static final int MAX_TRAILERS = 16 * 1024;
+    
+    private final InputStream in;
+    // Data left in the current chunk; 0 between chunks
+    private long remaining;
+    private boolean finished;
+    
+    ChunkedInputStream(InputStream in) {
+        this.in = in;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (remaining == 0) {
+            remaining = readChunkSize();
+            if (remaining == 0) {
+                skipTrailers();
+                finished = true;
+                return -1;
+            }
+        }
+        int read = in.read(b, off, (int) Math.min(len, remaining));
+        if (read < 0) {
+            throw new EOFException("Chunked body ended early");
+        }
+        remaining -= read;
+        if (remaining == 0 && !readLine().isEmpty()) {
+            throw new IOException("Missing CRLF after chunk data");
+        }
+        return read;
+    }
+    
+    /**
+     * Chunk data that can be read without blocking
+     */
+    @Override
+    public int available() throws IOException {
+        return finished || remaining == 0 ? 0 : (int) Math.min(remaining, in.available());
+    }
+    
+    private long readChunkSize() throws IOException {
+        String line = readLine();
+        int end = line.indexOf(';');
+        String hex = (end >= 0 ? line.substring(0, end) : line).trim();
+        if (hex.isEmpty() || hex.length() > 15) {
+            throw new IOException("Invalid chunk size: " + hex);
+        }
+        long size = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new IOException("Invalid chunk size: " + hex);
+            }
+            size = size * 16 + digit;
+        }
+        return size;
+    }
+    
+    private void skipTrailers() throws IOException {
+        int total = 0;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            total += line.length();
+            if (total > MAX_TRAILERS) {
+                throw new IOException("Trailers too large");
+            }
+        }
+    }
+    
+    /**
+     * One line without its CRLF (a bare LF is accepted)
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Chunked body ended early");
+            }
+            if (line.length() == MAX_LINE) {
+                throw new IOException("Chunk line too long");
+            }
+            line.append((char) b);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames everything written into HTTP/1.1 chunks
+ * Small writes are gathered into one chunk of up to the buffer size, with
+ * room kept in front of the data for the size line, so each chunk goes out
+ * in one write however the handler slices its output. flush() ends the
+ * current chunk early, for bodies that trickle out over time. finish()
+ * writes the last chunk; the underlying stream stays open. The buffer is
+ * borrowed from the pool until release().
+ */
+final class ChunkedOutputStream extends OutputStream {
+    // Hex size of at most 8 digits plus CRLF
+    private static final int HEADER_ROOM = 10;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+    
+    private final OutputStream out;
+    private final boolean framed;
+    private final ByteBuffer borrowed;
+    private final byte[] buffer;
+    // Chunk data ends this far into the buffer, which may be larger
+    private final int limit;
+    private int count;
+    private long written;
+    private boolean finished;
+    private boolean released;
+    
+    /**
+     * @param framed false to pass the data through unframed (same buffering),
+     * for HTTP/1.0 clients whose body ends when the connection closes
+     */
+    ChunkedOutputStream(OutputStream out, int chunkSize, boolean framed) {
+        this.out = out;
+        this.framed = framed;
+        this.borrowed = BufferPool.shared().acquire(HEADER_ROOM + chunkSize + CRLF.length);
+        this.buffer = borrowed.array();
+        this.limit = HEADER_ROOM + chunkSize;
+        this.count = HEADER_ROOM;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == limit) {
+            writeChunk();
+        }
+        buffer[count++] = (byte) b;
+        written++;
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        int capacity = limit - HEADER_ROOM;
+        if (len >= capacity) {
+            // Large write: send it as its own chunk without copying
+            writeChunk();
+            if (framed) {
+                out.write(sizeLine(len));
+                out.write(b, off, len);
+                out.write(CRLF);
+            } else {
+                out.write(b, off, len);
+            }
+        } else {
+            if (count + len > limit) {
+                writeChunk();
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+        written += len;
+    }
+    
+    /**
+     * Sends what is buffered as a chunk and flushes the underlying stream
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!finished) {
+            writeChunk();
+        }
+        out.flush();
+    }
+    
+    /**
+     * Ends the body with the last chunk
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        writeChunk();
+        if (framed) {
+            out.write(LAST_CHUNK);
+        }
+        out.flush();
+        finished = true;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+    
+    /**
+     * Returns the buffer to the pool, finished or not; nothing can be written after
+     */
+    void release() {
+        if (!released) {
+            released = true;
+            finished = true;
+            BufferPool.shared().release(borrowed);
+        }
+    }
+    
+    /**
+     * Body bytes written, not counting chunk framing
+     */
+    long getWritten() {
+        return written;
+    }
+    
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("Body already finished");
+        }
+    }
+    
+    private void writeChunk() throws IOException {
+        int length = count - HEADER_ROOM;
+        if (length == 0) {
+            return;
+        }
+        if (!framed) {
+            out.write(buffer, HEADER_ROOM, length);
+        } else {
+            // Size line right-aligned against the data, CRLF after it
+            int position = HEADER_ROOM;
+            buffer[--position] = '\n';
+            buffer[--position] = '\r';
+            int remaining = length;
+            do {
+                buffer[--position] = HEX[remaining & 0xf];
+                remaining >>>= 4;
+            } while (remaining != 0);
+            buffer[count] = '\r';
+            buffer[count + 1] = '\n';
+            out.write(buffer, position, count + CRLF.length - position);
+        }
+        count = HEADER_ROOM;
+    }
+    
+    private static byte[] sizeLine(int length) {
+        return (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-client admission limits: requests in flight and a token-bucket rate
+ * State lives in a ConcurrentHashMap keyed by client IP, whose lookups
+ * take no lock and whose updates only lock one bin; a client's bucket is
+ * updated under that client's own monitor. Idle clients are swept once the
+ * map grows past a bound, so a scan from many addresses cannot grow it
+ * forever.
+ */
+public class ClientLimiter {
+    private static final int SWEEP_THRESHOLD = 10_000;
+    
+    private final int maxConcurrent;
+    private final double ratePerNano;
+    private final double burst;
+    private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<>();
+    
+    private static final class Client {
+        final AtomicInteger inFlight = new AtomicInteger();
+        double tokens;
+        long refilled;
+        
+        Client(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilled = now;
+        }
+    }
+    
+    /**
+     * @param maxConcurrent requests one client may have in flight; 0 for no limit
+     * @param ratePerSecond sustained requests per second per client; 0 for no limit
+     * @param burst requests a client may send at once after being idle
+     */
+    public ClientLimiter(int maxConcurrent, double ratePerSecond, int burst) {
+        this.maxConcurrent = maxConcurrent;
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.burst = Math.max(1, burst);
+    }
+    
+    /**
+     * Admits a request from the client
+     * @return true if the caller may proceed and must call release()
+     */
+    public boolean tryAcquire(String clientIP) {
+        long now = System.nanoTime();
+        Client client = clients.get(clientIP);
+        if (client == null) {
+            if (clients.size() >= SWEEP_THRESHOLD) {
+                sweep(now);
+            }
+            client = clients.computeIfAbsent(clientIP, ip -> new Client(burst, now));
+        }
+        
+        if (ratePerNano > 0) {
+            synchronized (client) {
+                client.tokens = Math.min(burst, client.tokens + (now - client.refilled) * ratePerNano);
+                client.refilled = now;
+                if (client.tokens < 1) {
+                    return false;
+                }
+                client.tokens -= 1;
+            }
+        }
+        
+        if (client.inFlight.incrementAndGet() > maxConcurrent && maxConcurrent > 0) {
+            client.inFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+    
+    public void release(String clientIP) {
+        Client client = clients.get(clientIP);
+        if (client != null) {
+            // A client swept between acquire and release starts over at zero
+            client.inFlight.updateAndGet(count -> Math.max(0, count - 1));
+        }
+    }
+    
+    /**
+     * Drops clients with nothing in flight and a full bucket; they would start over identically
+     */
+    private void sweep(long now) {
+        clients.values().removeIf(client -> {
+            if (client.inFlight.get() > 0) {
+                return false;
+            }
+            synchronized (client) {
+                return ratePerNano <= 0 || client.tokens + (now - client.refilled) * ratePerNano >= burst;
+            }
+        });
+    }
+    
+    /**
+     * Response for a client over its own limits
+     */
+    public static HTTPResponse tooManyRequests() {
+        HTTPResponse response = new HTTPResponse(429, "Too Many Requests");
+        response.setHeader("Content-Type", "text/html; charset=UTF-8");
+        response.setHeader("Retry-After", "1");
+        response.setBody("<html><body><h1>429 - Too Many Requests</h1></body></html>");
+        return response;
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the number of requests being handled at once
+ * Callers over the limit wait in a fair queue for up to queueTimeout
+ * milliseconds; if no permit frees up in time the request fails fast
+ * with 503 instead of piling up behind the ones already running.
+ */
+public class ConcurrencyLimiter {
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final long queueTimeout;
+    
+    public ConcurrencyLimiter(int maxConcurrent, long queueTimeout) {
+        this.maxConcurrent = maxConcurrent;
+        this.queueTimeout = queueTimeout;
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+    
+    /**
+     * Waits up to the queue timeout for a permit
+     * @return true if the caller may proceed and must call release()
+     */
+    public boolean acquire() {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        if (queueTimeout <= 0) {
+            return false;
+        }
+        try {
+            return permits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    
+    public void release() {
+        permits.release();
+    }
+    
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+    
+    public int getInFlight() {
+        return maxConcurrent - permits.availablePermits();
+    }
+    
+    public int getQueueLength() {
+        return permits.getQueueLength();
+    }
+    
+    /**
+     * Response sent when no permit could be acquired in time
+     */
+    public static HTTPResponse overloaded() {
+        HTTPResponse response = new HTTPResponse(503, "Service Unavailable");
+        response.setHeader("Content-Type", "text/html; charset=UTF-8");
+        response.setHeader("Retry-After", "1");
+        response.setBody("<html><body><h1>503 - Service Unavailable</h1></body></html>");
+        return response;
+    }
+}
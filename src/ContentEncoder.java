@@ -0,0 +1,312 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * gzip/deflate content encoding
+ * Picks an encoding from Accept-Encoding, compresses text-like bodies above
+ * a size threshold and keeps compressed variants of static files in a
+ * bounded LRU cache keyed by path, mtime and encoding. Deflaters are
+ * pooled, since each one holds native zlib state that is costly to set up
+ * and is only freed by end() or finalization.
+ */
+public class ContentEncoder {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    
+    // Marks a cached variant that came out no smaller than the original
+    private static final ByteBuffer NOT_SMALLER = ByteBuffer.allocate(0);
+    private static final byte[] GZIP_HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+    private static final int POOL_SIZE = 32;
+    
+    private final int minSize;
+    private final long maxCacheBytes;
+    private final DeflaterPool gzipDeflaters;
+    private final DeflaterPool zlibDeflaters;
+    
+    // Access-ordered, so iteration starts at the least recently used variant
+    private final LinkedHashMap<String, ByteBuffer> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    
+    public ContentEncoder(int level, int minSize, long maxCacheBytes) {
+        this.minSize = minSize;
+        this.maxCacheBytes = maxCacheBytes;
+        // gzip wraps raw deflate data in its own header and trailer
+        this.gzipDeflaters = new DeflaterPool(level, true);
+        this.zlibDeflaters = new DeflaterPool(level, false);
+    }
+    
+    /**
+     * Small pool of reset Deflaters, one kind (raw or zlib) per pool
+     */
+    private static final class DeflaterPool {
+        private final BlockingQueue<Deflater> idle = new ArrayBlockingQueue<>(POOL_SIZE);
+        private final int level;
+        private final boolean nowrap;
+        
+        DeflaterPool(int level, boolean nowrap) {
+            this.level = level;
+            this.nowrap = nowrap;
+        }
+        
+        Deflater borrow() {
+            Deflater deflater = idle.poll();
+            return deflater != null ? deflater : new Deflater(level, nowrap);
+        }
+        
+        void release(Deflater deflater) {
+            deflater.reset();
+            if (!idle.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+    
+    /**
+     * Chooses gzip or deflate from an Accept-Encoding value, honouring q-values
+     * @return the encoding, or null to send the body as is
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        for (String part : acceptEncoding.split(",")) {
+            int semicolon = part.indexOf(';');
+            String coding = (semicolon >= 0 ? part.substring(0, semicolon) : part).trim();
+            float q = semicolon >= 0 ? quality(part.substring(semicolon + 1)) : 1;
+            if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+                gzip = Math.max(gzip, q);
+            } else if (coding.equalsIgnoreCase(DEFLATE)) {
+                deflate = Math.max(deflate, q);
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip < 0) gzip = any;
+        if (deflate < 0) deflate = any;
+        
+        // gzip wins ties: some clients mishandle deflate's zlib framing
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+    
+    private static float quality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Float.parseFloat(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+    
+    /**
+     * Text-like types worth compressing; images other than SVG already are compressed
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        return contentType.startsWith("text/")
+            || contentType.startsWith("application/json")
+            || contentType.startsWith("application/javascript")
+            || contentType.startsWith("application/xml")
+            || contentType.startsWith("image/svg+xml");
+    }
+    
+    /**
+     * Compresses an in-memory body in place if the client accepts it and
+     * the type and size qualify. Responses that already carry a
+     * Content-Encoding or an ETag (whose variants only the producer can
+     * tag, as static files do), and file bodies, are left alone.
+     */
+    public void encode(HTTPRequest request, HTTPResponse response) {
+        if (response.getHeader("Content-Encoding") != null
+                || response.getHeader("ETag") != null
+                || !isCompressible(response.getHeader("Content-Type"))) {
+            return;
+        }
+        ByteBuffer body = response.bodyBuffer();
+        if (body == null) {
+            return;
+        }
+        response.setHeader("Vary", "Accept-Encoding");
+        if (body.remaining() < minSize) {
+            return;
+        }
+        String encoding = negotiate(request.getHeader("accept-encoding"));
+        if (encoding == null) {
+            return;
+        }
+        
+        byte[] compressed = compress(body, encoding);
+        if (compressed.length < response.getContentLength()) {
+            response.setHeader("Content-Encoding", encoding);
+            response.setBody(compressed);
+        }
+    }
+    
+    /**
+     * Compressed variant of a cached static file, from the variant cache when possible
+     * @return the encoded body, or null if the file is not cached in memory,
+     * is below the size threshold or does not get smaller
+     */
+    public ByteBuffer encode(StaticFileCache.Entry file, String encoding) {
+        ByteBuffer content = file.getContent();
+        if (content == null || content.remaining() < minSize) {
+            return null;
+        }
+        
+        String key = file.getPath() + "\0" + file.getLastModified() + "\0" + encoding;
+        ByteBuffer cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        if (cached != null) {
+            cacheHits.increment();
+            return cached == NOT_SMALLER ? null : cached.duplicate();
+        }
+        
+        byte[] compressed = compress(content, encoding);
+        ByteBuffer variant = compressed.length < file.getSize()
+            ? ByteBuffer.wrap(compressed).asReadOnlyBuffer()
+            : NOT_SMALLER;
+        synchronized (cache) {
+            ByteBuffer previous = cache.put(key, variant);
+            cachedBytes += variant.capacity() - (previous != null ? previous.capacity() : 0);
+            trim();
+        }
+        return variant == NOT_SMALLER ? null : variant.duplicate();
+    }
+    
+    /**
+     * Evicts least recently used variants until within the byte budget.
+     * Variants of older mtimes are never hit again and age out here.
+     */
+    private void trim() {
+        Iterator<ByteBuffer> it = cache.values().iterator();
+        while (cachedBytes > maxCacheBytes && it.hasNext()) {
+            cachedBytes -= it.next().capacity();
+            it.remove();
+        }
+    }
+    
+    /**
+     * Compresses the remaining bytes of the buffer without consuming them
+     */
+    byte[] compress(ByteBuffer input, String encoding) {
+        long started = System.nanoTime();
+        boolean gzip = GZIP.equals(encoding);
+        DeflaterPool pool = gzip ? gzipDeflaters : zlibDeflaters;
+        Deflater deflater = pool.borrow();
+        try {
+            int length = input.remaining();
+            ByteArrayBuilder out = new ByteArrayBuilder(Math.max(64, length / 3));
+            if (gzip) {
+                out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            }
+            
+            deflater.setInput(input.duplicate());
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.ensure(4096);
+                out.count += deflater.deflate(out.bytes, out.count, out.bytes.length - out.count);
+            }
+            
+            if (gzip) {
+                CRC32 crc = new CRC32();
+                crc.update(input.duplicate());
+                out.writeIntLE((int) crc.getValue());
+                out.writeIntLE(length);
+            }
+            
+            bytesIn.add(length);
+            bytesOut.add(out.count);
+            return out.toByteArray();
+        } finally {
+            pool.release(deflater);
+            compressNanos.add(System.nanoTime() - started);
+        }
+    }
+    
+    /**
+     * Growable output with direct access for Deflater.deflate
+     */
+    private static final class ByteArrayBuilder {
+        byte[] bytes;
+        int count;
+        
+        ByteArrayBuilder(int capacity) {
+            bytes = new byte[capacity];
+        }
+        
+        void ensure(int extra) {
+            if (bytes.length - count < extra) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + extra));
+            }
+        }
+        
+        void write(byte[] source, int offset, int length) {
+            ensure(length);
+            System.arraycopy(source, offset, bytes, count, length);
+            count += length;
+        }
+        
+        void writeIntLE(int value) {
+            ensure(4);
+            bytes[count++] = (byte) value;
+            bytes[count++] = (byte) (value >>> 8);
+            bytes[count++] = (byte) (value >>> 16);
+            bytes[count++] = (byte) (value >>> 24);
+        }
+        
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, count);
+        }
+    }
+    
+    /**
+     * Uncompressed bytes fed to the compressor
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+    
+    /**
+     * Compressed bytes produced
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+    
+    /**
+     * Wall time spent compressing, summed over threads
+     */
+    public long getCompressNanos() {
+        return compressNanos.sum();
+    }
+    
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+}
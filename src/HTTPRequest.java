@@ -1,81 +1,68 @@
 import java.io.*;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
  * Represents an HTTP request
- * Parses the request line, headers, and body
+ * Built by RequestParser from raw bytes. Header values stay as bytes in
+ * the copied header block and are only decoded when asked for. The body is
+ * a stream; getBody() buffers it on first use, for handlers that want it
+ * whole.
  */
 public class HTTPRequest {
     private String method;
+    private String target;
     private String path;
     private String version;
-    private Map<String, String> headers;
-    private String body;
     private Map<String, String> queryParams;
     
+    // Header names are lowercase; values are decoded lazily from rawHeaders
+    private String[] headerNames = new String[16];
+    private String[] headerValues = new String[16];
+    private int[] valueOffsets = new int[16];
+    private int[] valueLengths = new int[16];
+    private int headerCount;
+    private byte[] rawHeaders;
+    private Map<String, String> headers;
+    
+    private RequestBody bodyStream;
+    private byte[] body;
+    private String bodyText;
+    
+    // Set by the router; path parameters are located in path on demand
+    private Router.Endpoint endpoint;
+    
+    // System.nanoTime() when the first byte of the request was parsed
+    private long startNanos;
+    private String clientIP;
+    
     public HTTPRequest() {
-        this.headers = new HashMap<>();
         this.queryParams = new HashMap<>();
     }
     
-    public static HTTPRequest parse(InputStream input) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-        HTTPRequest request = new HTTPRequest();
-        
-        // Parse request line: GET /path HTTP/1.1
-        String requestLine = reader.readLine();
-        if (requestLine == null || requestLine.isEmpty()) {
-            return null;
-        }
-        
-        String[] requestParts = requestLine.split(" ");
-        if (requestParts.length != 3) {
-            return null;
-        }
-        
-        request.method = requestParts[0];
-        String fullPath = requestParts[1];
-        request.version = requestParts[2];
+    public HTTPRequest(String method, String target, String version) {
+        this();
+        this.method = method;
+        this.target = target;
+        this.version = version;
         
         // Parse path and query parameters
-        int queryIndex = fullPath.indexOf('?');
+        int queryIndex = target.indexOf('?');
         if (queryIndex != -1) {
-            request.path = fullPath.substring(0, queryIndex);
-            String queryString = fullPath.substring(queryIndex + 1);
-            request.parseQueryParams(queryString);
+            this.path = target.substring(0, queryIndex);
+            parseQueryParams(target.substring(queryIndex + 1));
         } else {
-            request.path = fullPath;
+            this.path = target;
         }
-        
-        // Parse headers
-        String headerLine;
-        while ((headerLine = reader.readLine()) != null && !headerLine.isEmpty()) {
-            int colonIndex = headerLine.indexOf(':');
-            if (colonIndex > 0) {
-                String headerName = headerLine.substring(0, colonIndex).trim();
-                String headerValue = headerLine.substring(colonIndex + 1).trim();
-                request.headers.put(headerName.toLowerCase(), headerValue);
-            }
-        }
-        
-        // Parse body for POST requests
-        if ("POST".equalsIgnoreCase(request.method)) {
-            String contentLength = request.headers.get("content-length");
-            if (contentLength != null) {
-                try {
-                    int length = Integer.parseInt(contentLength);
-                    char[] bodyChars = new char[length];
-                    int read = reader.read(bodyChars, 0, length);
-                    if (read > 0) {
-                        request.body = new String(bodyChars, 0, read);
-                    }
-                } catch (NumberFormatException e) {
-                    // Invalid content-length
-                }
-            }
-        }
-        
-        return request;
+    }
+    
+    /**
+     * Parses a single request from a stream. Connections that serve several
+     * requests keep one RequestParser instead, so pipelined bytes are not lost.
+     */
+    public static HTTPRequest parse(InputStream input) throws IOException {
+        return new RequestParser().read(input);
     }
     
     private void parseQueryParams(String queryString) {
@@ -90,6 +77,67 @@ public class HTTPRequest {
         }
     }
     
+    /**
+     * Adds a header whose value is bytes [offset, offset + length) of the raw
+     * header block; the same block is shared by all headers of the request
+     */
+    void addRawHeader(String name, byte[] raw, int offset, int length) {
+        rawHeaders = raw;
+        ensureHeaderCapacity();
+        headerNames[headerCount] = name;
+        valueOffsets[headerCount] = offset;
+        valueLengths[headerCount] = length;
+        headerCount++;
+    }
+    
+    /**
+     * Adds an already decoded header (name is lowercased)
+     */
+    void addHeader(String name, String value) {
+        ensureHeaderCapacity();
+        headerNames[headerCount] = name.toLowerCase();
+        headerValues[headerCount] = value;
+        valueLengths[headerCount] = -1;
+        headerCount++;
+        headers = null;
+    }
+    
+    private void ensureHeaderCapacity() {
+        if (headerCount == headerNames.length) {
+            int capacity = headerCount * 2;
+            headerNames = Arrays.copyOf(headerNames, capacity);
+            headerValues = Arrays.copyOf(headerValues, capacity);
+            valueOffsets = Arrays.copyOf(valueOffsets, capacity);
+            valueLengths = Arrays.copyOf(valueLengths, capacity);
+        }
+    }
+    
+    int headerCount() {
+        return headerCount;
+    }
+    
+    /**
+     * Lowercase name of the index-th header, in the order received
+     */
+    String headerName(int index) {
+        return headerNames[index];
+    }
+    
+    String headerValue(int index) {
+        String value = headerValues[index];
+        if (value == null) {
+            value = new String(rawHeaders, valueOffsets[index], valueLengths[index], StandardCharsets.ISO_8859_1);
+            headerValues[index] = value;
+        }
+        return value;
+    }
+    
+    void setBody(RequestBody bodyStream) {
+        this.bodyStream = bodyStream;
+        this.body = null;
+        this.bodyText = null;
+    }
+    
     public String getMethod() {
         return method;
     }
@@ -98,22 +146,232 @@ public class HTTPRequest {
         return path;
     }
     
+    /**
+     * Request target as received, including the query string
+     */
+    public String getTarget() {
+        return target != null ? target : path;
+    }
+    
+    long getStartNanos() {
+        return startNanos;
+    }
+    
+    void setStartNanos(long startNanos) {
+        this.startNanos = startNanos;
+    }
+    
+    /**
+     * Address of the client that sent the request, set when it is dispatched
+     */
+    public String getClientIP() {
+        return clientIP;
+    }
+    
+    void setClientIP(String clientIP) {
+        this.clientIP = clientIP;
+    }
+    
     public String getVersion() {
         return version;
     }
     
     public Map<String, String> getHeaders() {
+        if (headers == null) {
+            Map<String, String> map = new HashMap<>();
+            for (int i = 0; i < headerCount; i++) {
+                map.put(headerNames[i], headerValue(i));
+            }
+            headers = map;
+        }
         return headers;
     }
     
     public String getHeader(String name) {
-        return headers.get(name.toLowerCase());
+        // Last occurrence wins, as when headers were collected into a map
+        for (int i = headerCount - 1; i >= 0; i--) {
+            if (headerNames[i].equalsIgnoreCase(name)) {
+                return headerValue(i);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Content-Length parsed straight from the header bytes. Repeats must
+     * agree, since a sender and a proxy picking different ones is a way
+     * to smuggle a request (RFC 9112 section 6.3).
+     * @return the length, -1 if absent, or -2 if it is not a valid number
+     *         or is repeated with different values
+     */
+    public long getContentLength() {
+        long result = -1;
+        for (int i = 0; i < headerCount; i++) {
+            if (headerNames[i].equals("content-length")) {
+                long value = contentLength(i);
+                if (value < 0 || result >= 0 && value != result) {
+                    return -2;
+                }
+                result = value;
+            }
+        }
+        return result;
+    }
+    
+    private long contentLength(int i) {
+        if (valueLengths[i] < 0) {
+            return parseLength(headerValues[i]);
+        }
+        int length = valueLengths[i];
+        if (length == 0 || length > 18) {
+            return -2;
+        }
+        long value = 0;
+        for (int j = valueOffsets[i], stop = j + length; j < stop; j++) {
+            byte b = rawHeaders[j];
+            if (b < '0' || b > '9') {
+                return -2;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
     }
     
+    private static long parseLength(String value) {
+        try {
+            long length = Long.parseLong(value.trim());
+            return length >= 0 ? length : -2;
+        } catch (NumberFormatException e) {
+            return -2;
+        }
+    }
+    
+    /**
+     * Whether the client wants the connection kept open after this request.
+     * HTTP/1.1 is persistent unless "Connection: close" is sent;
+     * HTTP/1.0 only when "Connection: keep-alive" is sent.
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader("connection");
+        if (HttpConstants.HTTP_1_1.equals(version)) {
+            return connection == null || !hasToken(connection, "close");
+        }
+        return connection != null && hasToken(connection, "keep-alive");
+    }
+    
+    private static boolean hasToken(String headerValue, String token) {
+        for (String part : headerValue.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Body decoded as UTF-8, or null if the request has none
+     */
     public String getBody() {
+        byte[] bytes = getBodyBytes();
+        if (bodyText == null && bytes != null) {
+            bodyText = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return bodyText;
+    }
+    
+    /**
+     * Rest of the body read into memory, or null if the request has none
+     * @throws UncheckedIOException if the client fails mid-body, or wrapping a
+     * RequestParser.ParseException if the body is malformed or too large to buffer
+     */
+    public byte[] getBodyBytes() {
+        if (body == null && bodyStream != null) {
+            try {
+                body = bodyStream.readFully();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
         return body;
     }
     
+    public boolean hasBody() {
+        return bodyStream != null;
+    }
+    
+    /**
+     * Body as a stream, read as the client sends it; empty if there is none
+     */
+    public RequestBody getBodyStream() {
+        return bodyStream != null ? bodyStream : RequestBody.empty();
+    }
+    
+    public ReadableByteChannel getBodyChannel() {
+        return getBodyStream().channel();
+    }
+    
+    void setEndpoint(Router.Endpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+    
+    /**
+     * Pattern of the matched route, e.g. "/api/users/{id}", or null
+     */
+    public String getRoutePattern() {
+        return endpoint != null ? endpoint.getPattern() : null;
+    }
+    
+    /**
+     * Value captured by a {name} segment of the matched route, percent-decoded.
+     * "*" returns the remainder matched by a trailing wildcard.
+     */
+    public String getPathParam(String name) {
+        if (endpoint == null) {
+            return null;
+        }
+        int segment = endpoint.segmentOf(name);
+        if (segment < 0) {
+            return null;
+        }
+        
+        // Skip to the start of the segment
+        int start = 1;
+        for (int i = 0; i < segment; i++) {
+            int slash = path.indexOf('/', start);
+            if (slash < 0) {
+                return endpoint.isWildcard(name) ? "" : null;
+            }
+            start = slash + 1;
+        }
+        if (start > path.length()) {
+            return "";
+        }
+        int end = endpoint.isWildcard(name) ? path.length() : path.indexOf('/', start);
+        return percentDecode(path, start, end < 0 ? path.length() : end);
+    }
+    
+    private static String percentDecode(String value, int start, int end) {
+        int percent = value.indexOf('%', start);
+        if (percent < 0 || percent >= end) {
+            return value.substring(start, end);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c == '%' && i + 2 < end) {
+                int high = Character.digit(value.charAt(i + 1), 16);
+                int low = Character.digit(value.charAt(i + 2), 16);
+                if (high >= 0 && low >= 0) {
+                    bytes.write((high << 4) | low);
+                    i += 2;
+                    continue;
+                }
+            }
+            bytes.write(c);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+    
     public Map<String, String> getQueryParams() {
         return queryParams;
     }
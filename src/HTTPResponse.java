@@ -1,4 +1,8 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 
 /**
@@ -6,60 +10,323 @@ import java.util.*;
  * Builds and sends responses to clients
  */
 public class HTTPResponse {
+    public static final String SERVER_NAME = "Java-Multi-Threaded-Server/1.0";
+    private static final int HEAD_BUFFER_SIZE = 512;
+    
     private int statusCode;
     private String statusMessage;
-    private Map<String, String> headers;
+    // Few headers per response: parallel arrays instead of a HashMap
+    private String[] headerNames = new String[8];
+    private String[] headerValues = new String[8];
+    private int headerCount;
     private byte[] body;
+    private ByteBuffer bodyBuffer;
+    private Path bodyFile;
+    private Segment[] segments;
+    private long contentLength;
+    
+    /**
+     * Piece of a file body: either bytes held in memory (such as a
+     * multipart boundary) or a region of the file streamed when sending
+     */
+    public static final class Segment {
+        final byte[] bytes;
+        final long offset;
+        final long length;
+        
+        private Segment(byte[] bytes, long offset, long length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+        
+        public static Segment of(byte[] bytes) {
+            return new Segment(bytes, 0, bytes.length);
+        }
+        
+        public static Segment region(long offset, long length) {
+            return new Segment(null, offset, length);
+        }
+        
+        boolean isRegion() {
+            return bytes == null;
+        }
+    }
     
     public HTTPResponse(int statusCode, String statusMessage) {
         this.statusCode = statusCode;
         this.statusMessage = statusMessage;
-        this.headers = new HashMap<>();
         
-        // Default headers
-        headers.put("Server", "Java-Multi-Threaded-Server/1.0");
-        headers.put("Connection", "close");
+        // Default headers (Connection is set by the server per request)
+        setHeader("Server", SERVER_NAME);
     }
     
     public void setHeader(String name, String value) {
-        headers.put(name, value);
+        int index = indexOfHeader(name);
+        if (index >= 0) {
+            headerValues[index] = value;
+            return;
+        }
+        addHeader(name, value);
+    }
+    
+    /**
+     * Adds a header even if one of that name is set already, for headers
+     * that may repeat such as Set-Cookie
+     */
+    void addHeader(String name, String value) {
+        if (headerCount == headerNames.length) {
+            headerNames = Arrays.copyOf(headerNames, headerCount * 2);
+            headerValues = Arrays.copyOf(headerValues, headerCount * 2);
+        }
+        headerNames[headerCount] = name;
+        headerValues[headerCount] = value;
+        headerCount++;
+    }
+    
+    public void removeHeader(String name) {
+        int index = indexOfHeader(name);
+        if (index >= 0) {
+            headerCount--;
+            System.arraycopy(headerNames, index + 1, headerNames, index, headerCount - index);
+            System.arraycopy(headerValues, index + 1, headerValues, index, headerCount - index);
+            headerNames[headerCount] = null;
+            headerValues[headerCount] = null;
+        }
+    }
+    
+    public String getHeader(String name) {
+        int index = indexOfHeader(name);
+        return index >= 0 ? headerValues[index] : null;
+    }
+    
+    private int indexOfHeader(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            if (headerNames[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
     }
     
     public void setBody(byte[] body) {
+        clearBody();
         this.body = body;
-        headers.put("Content-Length", String.valueOf(body.length));
+        this.contentLength = body.length;
     }
     
     public void setBody(String body) {
-        setBody(body.getBytes());
+        setBody(body.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Uses a shared (typically cached, direct) buffer as the body.
+     * The buffer is duplicated so concurrent responses keep their own position.
+     */
+    public void setBody(ByteBuffer buffer) {
+        clearBody();
+        this.bodyBuffer = buffer.duplicate();
+        this.contentLength = bodyBuffer.remaining();
+    }
+    
+    /**
+     * Streams the body from a file when sending instead of holding it in memory
+     */
+    public void setBody(Path file, long length) {
+        setBody(file, Segment.region(0, length));
+    }
+    
+    /**
+     * Streams the body from regions of a file, interleaved with in-memory
+     * bytes; used for byte ranges
+     */
+    public void setBody(Path file, Segment... segments) {
+        clearBody();
+        this.bodyFile = file;
+        this.segments = segments;
+        for (Segment segment : segments) {
+            contentLength += segment.length;
+        }
+    }
+    
+    private void clearBody() {
+        body = null;
+        bodyBuffer = null;
+        bodyFile = null;
+        segments = null;
+        contentLength = 0;
     }
     
     public void send(OutputStream output) throws IOException {
-        PrintWriter writer = new PrintWriter(new OutputStreamWriter(output), true);
+        ByteBuffer head = encodeHead(ByteBuffer.allocate(HEAD_BUFFER_SIZE));
+        output.write(head.array(), 0, head.limit());
         
-        // Status line
-        writer.print("HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n");
-        
-        // Headers
-        for (Map.Entry<String, String> header : headers.entrySet()) {
-            writer.print(header.getKey() + ": " + header.getValue() + "\r\n");
+        // Body
+        ByteBuffer buffer = bodyBuffer();
+        if (buffer != null) {
+            if (buffer.hasArray()) {
+                output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                Channels.newChannel(output).write(buffer);
+            }
+        } else if (bodyFile != null) {
+            WritableByteChannel target = Channels.newChannel(output);
+            try (FileChannel file = FileChannel.open(bodyFile, StandardOpenOption.READ)) {
+                for (Segment segment : segments) {
+                    if (segment.isRegion()) {
+                        transfer(file, segment, target);
+                    } else {
+                        output.write(segment.bytes);
+                    }
+                }
+            }
         }
+        output.flush();
+    }
+    
+    public void send(GatheringByteChannel channel) throws IOException {
+        send(channel, ByteBuffer.allocate(HEAD_BUFFER_SIZE));
+    }
+    
+    /**
+     * Sends the response straight to a channel. The head is encoded into the
+     * caller's reusable buffer and goes out together with an in-memory body in
+     * one gathering write. File regions go through FileChannel.transferTo,
+     * which uses sendfile when the target is a socket.
+     * @return the head buffer to reuse next time (larger if it had to grow)
+     */
+    public ByteBuffer send(GatheringByteChannel channel, ByteBuffer headBuffer) throws IOException {
+        headBuffer.clear();
+        ByteBuffer head = encodeHead(headBuffer);
         
-        // Empty line between headers and body
-        writer.print("\r\n");
-        writer.flush();
-        
-        // Body
+        ByteBuffer buffer = bodyBuffer();
+        if (buffer != null) {
+            ByteBuffer[] buffers = { head, buffer };
+            while (buffer.hasRemaining()) {
+                channel.write(buffers);
+            }
+        } else {
+            while (head.hasRemaining()) {
+                channel.write(head);
+            }
+            if (bodyFile != null) {
+                try (FileChannel file = FileChannel.open(bodyFile, StandardOpenOption.READ)) {
+                    for (Segment segment : segments) {
+                        if (segment.isRegion()) {
+                            transfer(file, segment, channel);
+                        } else {
+                            ByteBuffer bytes = ByteBuffer.wrap(segment.bytes);
+                            while (bytes.hasRemaining()) {
+                                channel.write(bytes);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return head;
+    }
+    
+    private void transfer(FileChannel file, Segment segment, WritableByteChannel target) throws IOException {
+        long position = segment.offset;
+        long end = segment.offset + segment.length;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, target);
+            if (sent <= 0 && position >= file.size()) {
+                throw new EOFException("File truncated while sending: " + bodyFile);
+            }
+            position += sent;
+        }
+    }
+    
+    /**
+     * Encodes the status line, headers and the blank line that ends them
+     * into the buffer (or a larger one if it does not fit), flipped for reading
+     */
+    ByteBuffer encodeHead(ByteBuffer buffer) {
+        // No Content-Length on responses that never carry a body, or whose length is not known up front
+        ByteBuffer head = ResponseEncoder.encodeHead(buffer, statusCode, statusMessage,
+            headerNames, headerValues, headerCount, bodyAllowed() && hasFixedLength(), contentLength);
+        head.flip();
+        return head;
+    }
+    
+    /**
+     * Whether the status allows a body: not 1xx, 204 or 304
+     */
+    boolean bodyAllowed() {
+        return statusCode >= 200 && statusCode != 204 && statusCode != 304;
+    }
+    
+    int headerCount() {
+        return headerCount;
+    }
+    
+    String headerName(int index) {
+        return headerNames[index];
+    }
+    
+    String headerValue(int index) {
+        return headerValues[index];
+    }
+    
+    /**
+     * Whether the body length is known before sending; false for streamed bodies
+     */
+    boolean hasFixedLength() {
+        return true;
+    }
+    
+    /**
+     * In-memory body as a buffer ready to write, or null if there is none
+     * (no body, or a file body)
+     */
+    ByteBuffer bodyBuffer() {
+        if (bodyBuffer != null) {
+            return bodyBuffer.duplicate();
+        }
         if (body != null && body.length > 0) {
-            output.write(body);
-            output.flush();
+            return ByteBuffer.wrap(body);
         }
+        return null;
+    }
+    
+    Path getBodyFile() {
+        return bodyFile;
+    }
+    
+    /**
+     * Parts of the file body in order; null unless the body is a file
+     */
+    Segment[] getBodySegments() {
+        return segments;
+    }
+    
+    public long getContentLength() {
+        return contentLength;
+    }
+    
+    /**
+     * Serializes the full response (status line, headers and body)
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256 + (int) Math.min(contentLength, 1 << 20));
+        try {
+            send(buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buffer.toByteArray();
     }
     
     public int getStatusCode() {
         return statusCode;
     }
     
+    public String getStatusMessage() {
+        return statusMessage;
+    }
+    
     // Factory methods for common responses
     public static HTTPResponse ok(String body) {
         HTTPResponse response = new HTTPResponse(200, "OK");
@@ -82,6 +349,26 @@ public class HTTPResponse {
         return response;
     }
     
+    /**
+     * JSON already encoded as UTF-8, e.g. from a JsonWriter; the buffer is shared, not copied
+     */
+    public static HTTPResponse json(ByteBuffer jsonBody) {
+        HTTPResponse response = new HTTPResponse(200, "OK");
+        response.setHeader("Content-Type", "application/json");
+        response.setBody(jsonBody);
+        return response;
+    }
+    
+    /**
+     * Plain error page for any status
+     */
+    public static HTTPResponse error(int statusCode, String statusMessage) {
+        HTTPResponse response = new HTTPResponse(statusCode, statusMessage);
+        response.setHeader("Content-Type", "text/html; charset=UTF-8");
+        response.setBody("<html><body><h1>" + statusCode + " - " + statusMessage + "</h1></body></html>");
+        return response;
+    }
+    
     public static HTTPResponse notFound() {
         HTTPResponse response = new HTTPResponse(404, "Not Found");
         response.setHeader("Content-Type", "text/html; charset=UTF-8");
@@ -103,6 +390,12 @@ public class HTTPResponse {
         return response;
     }
     
+    public static HTTPResponse methodNotAllowed(String allow) {
+        HTTPResponse response = methodNotAllowed();
+        response.setHeader("Allow", allow);
+        return response;
+    }
+    
     public static HTTPResponse internalError() {
         HTTPResponse response = new HTTPResponse(500, "Internal Server Error");
         response.setHeader("Content-Type", "text/html; charset=UTF-8");
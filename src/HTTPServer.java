@@ -1,48 +1,240 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.security.GeneralSecurityException;
+import java.util.*;
 import java.util.concurrent.*;
 
 /**
  * Multi-threaded HTTP Web Server
- * Handles concurrent connections using a thread pool
+ * Handles concurrent connections using a thread pool. With several shards
+ * (server.shards) each one is an independent listener, accept thread and
+ * worker pool: the listeners share the port through SO_REUSEPORT, the
+ * kernel spreads new connections over them, and a connection stays on
+ * its shard's threads, so no accept thread or work queue is shared.
  */
 public class HTTPServer {
     private final int port;
-    private final ExecutorService threadPool;
+    private final ServerConfig config;
+    // One worker pool per shard
+    private final ExecutorService[] workerPools;
+    // Per shard, where HTTP/2 streams run on the blocking engine. Each h2
+    // connection's frame reader holds a worker thread for its lifetime, so
+    // with its streams on the same pool enough connections would leave no
+    // thread to answer any of them.
+    private final ExecutorService[] streamPools;
     private final RequestHandler requestHandler;
+    private final ConcurrencyLimiter limiter;
+    private final ClientLimiter clientLimiter;
+    private final AccessLog accessLog;
+    private final Metrics metrics;
     private volatile boolean running;
-    private ServerSocket serverSocket;
+    private ServerSocketChannel[] serverChannels;
+    private NioEngine[] nioEngines;
+    private TlsContext tlsContext;
     
     // Configuration
     private static final int THREAD_POOL_SIZE = 50;
     private static final int BACKLOG = 1000;
+    private static final int HEAD_BUFFER_SIZE = 512;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    
+    // Sent from the accept thread, so built once up front
+    private static final byte[] OVERLOADED = overloadedBytes();
     
     public HTTPServer(int port) {
-        this.port = port;
-        this.threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-        this.requestHandler = new RequestHandler();
+        this(new ServerConfig(port));
+    }
+    
+    public HTTPServer(ServerConfig config) {
+        this.config = config;
+        this.port = config.getPort();
+        BufferPool.configure(config);
+        this.metrics = new Metrics();
+        this.workerPools = new ExecutorService[config.getShards()];
+        for (int i = 0; i < workerPools.length; i++) {
+            workerPools[i] = createExecutor(config);
+            metrics.addExecutor(workerPools[i]);
+        }
+        this.streamPools = new ExecutorService[workerPools.length];
+        for (int i = 0; i < streamPools.length; i++) {
+            // The NIO engine reads frames on its reactors, and virtual threads are not bounded
+            if (config.getEngine() == ServerConfig.Engine.NIO || !config.isHttp2()
+                    || config.getThreadMode() == ServerConfig.ThreadMode.VIRTUAL) {
+                streamPools[i] = workerPools[i];
+            } else {
+                // Threads start on first use, so a server without h2 clients pays nothing
+                streamPools[i] = createExecutor(config);
+                metrics.addExecutor(streamPools[i]);
+            }
+        }
+        this.requestHandler = new RequestHandler(config, metrics);
+        this.limiter = config.getMaxConcurrency() > 0
+            ? new ConcurrencyLimiter(config.getMaxConcurrency(), config.getQueueTimeout())
+            : null;
+        this.clientLimiter = config.getClientMaxConcurrency() > 0 || config.getClientRate() > 0
+            ? new ClientLimiter(config.getClientMaxConcurrency(), config.getClientRate(), config.getClientBurst())
+            : null;
+        this.accessLog = createAccessLog(config);
         this.running = false;
     }
     
+    private static byte[] overloadedBytes() {
+        HTTPResponse response = ConcurrencyLimiter.overloaded();
+        response.setHeader("Connection", "close");
+        return response.toBytes();
+    }
+    
+    private static AccessLog createAccessLog(ServerConfig config) {
+        String target = config.getAccessLog();
+        if (target == null || target.equalsIgnoreCase("off")) {
+            return null;
+        }
+        try {
+            return new AccessLog("-".equals(target) ? null : java.nio.file.Paths.get(target),
+                config.getAccessLogFormat(), config.getAccessLogOverflow(), config.getAccessLogBuffer(),
+                config.getAccessLogMaxBytes(), config.getAccessLogMaxFiles());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open access log " + target, e);
+        }
+    }
+    
+    /**
+     * Fixed platform thread pool with a bounded queue, or one virtual thread
+     * per task on JDK 21+. Looked up reflectively so the server still
+     * compiles and runs on older JDKs.
+     */
+    private static ExecutorService createExecutor(ServerConfig config) {
+        if (config.getThreadMode() == ServerConfig.ThreadMode.VIRTUAL) {
+            try {
+                return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads need JDK 21+ (running "
+                    + System.getProperty("java.version") + "). Using a thread pool.");
+                config.setThreadMode(ServerConfig.ThreadMode.POOL);
+            }
+        }
+        int capacity = config.getWorkQueueCapacity();
+        BlockingQueue<Runnable> queue = capacity > 0
+            ? new ArrayBlockingQueue<>(capacity)
+            : new LinkedBlockingQueue<>();
+        // The default AbortPolicy throws when the queue is full, so callers can shed
+        return new ThreadPoolExecutor(THREAD_POOL_SIZE, THREAD_POOL_SIZE, 0L, TimeUnit.MILLISECONDS, queue);
+    }
+    
     public void start() throws IOException {
-        serverSocket = new ServerSocket(port, BACKLOG);
+        try {
+            tlsContext = TlsContext.fromConfig(config);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot set up TLS from " + config.getTlsKeystore() + ": " + e.getMessage(), e);
+        }
+        int shards = workerPools.length;
+        if (config.getEngine() == ServerConfig.Engine.NIO) {
+            nioEngines = new NioEngine[shards];
+            for (int i = 0; i < shards; i++) {
+                nioEngines[i] = new NioEngine(this, config, workerPools[i], i, shards);
+                nioEngines[i].bind(BACKLOG);
+            }
+        } else {
+            serverChannels = new ServerSocketChannel[shards];
+            for (int i = 0; i < shards; i++) {
+                serverChannels[i] = openListener(port, BACKLOG, shards > 1);
+            }
+        }
         running = true;
         
         System.out.println("╔════════════════════════════════════════════╗");
         System.out.println("║   Multi-Threaded Web Server Started      ║");
         System.out.println("╚════════════════════════════════════════════╝");
-        System.out.println("→ Port: " + port);
-        System.out.println("→ Thread Pool Size: " + THREAD_POOL_SIZE);
+        System.out.println("→ Port: " + port + (tlsContext != null ? " (HTTPS)" : ""));
+        System.out.println("→ Engine: " + config.getEngine().name().toLowerCase()
+            + (nioEngines != null ? " (" + nioEngines[0].getReactorCount() + " reactors"
+                + (shards > 1 ? " per shard" : "") + ")" : ""));
+        if (shards > 1) {
+            System.out.println("→ Shards: " + shards + " (SO_REUSEPORT listeners, one worker pool each)");
+        }
+        if (config.getThreadMode() == ServerConfig.ThreadMode.VIRTUAL) {
+            System.out.println("→ Threads: virtual (one per task)");
+        } else {
+            System.out.println("→ Thread Pool Size: " + THREAD_POOL_SIZE + (shards > 1 ? " per shard" : ""));
+        }
+        if (limiter != null) {
+            System.out.println("→ Max Concurrent Requests: " + limiter.getMaxConcurrent()
+                + " (queue timeout " + config.getQueueTimeout() + "ms)");
+        }
         System.out.println("→ Max Queued Connections: " + BACKLOG);
+        if (tlsContext != null) {
+            System.out.println("→ TLS: " + String.join(", ", tlsContext.getProtocols())
+                + ", ALPN " + String.join(", ", tlsContext.getApplicationProtocols()));
+        }
+        System.out.println("→ Access Log: " + (accessLog == null ? "off"
+            : ("-".equals(config.getAccessLog()) ? "stdout" : config.getAccessLog())
+                + " (" + config.getAccessLogFormat().name().toLowerCase() + ")"));
+        if (config.isKeepAlive()) {
+            System.out.println("→ Keep-Alive: " + config.getKeepAliveTimeout() + "ms idle, "
+                + config.getMaxRequestsPerConnection() + " requests/connection");
+        } else {
+            System.out.println("→ Keep-Alive: disabled");
+        }
         System.out.println("→ Ready to accept connections...\n");
         
-        // Main accept loop
+        // Shards past the first accept on their own threads; the first uses this one
+        for (int i = 1; i < shards; i++) {
+            int shard = i;
+            Thread acceptor = new Thread(() -> acceptLoop(shard), "accept-" + shard);
+            acceptor.start();
+        }
+        acceptLoop(0);
+    }
+    
+    /**
+     * Listening channel for the port. Channel-backed sockets let static
+     * files go out through transferTo; with reusePort several listeners
+     * can bind the same port and the kernel balances connections over them.
+     */
+    static ServerSocketChannel openListener(int port, int backlog, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reusePort) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IOException("SO_REUSEPORT is not supported on this platform; run with server.shards=1");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port), backlog);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Accepts connections for one shard until stopped
+     */
+    private void acceptLoop(int shard) {
+        if (nioEngines != null) {
+            nioEngines[shard].acceptLoop();
+            return;
+        }
+        
+        ServerSocketChannel serverChannel = serverChannels[shard];
+        ExecutorService workers = workerPools[shard];
+        ExecutorService streams = streamPools[shard];
         while (running) {
             try {
-                Socket clientSocket = serverSocket.accept();
+                SocketChannel client = serverChannel.accept();
+                long accepted = System.nanoTime();
                 
-                // Submit connection to thread pool
-                threadPool.submit(() -> handleClient(clientSocket));
+                // Hand the connection to the pool, or turn it away at once if the queue is full
+                try {
+                    workers.execute(() -> handleClient(client.socket(), accepted, streams));
+                } catch (RejectedExecutionException e) {
+                    rejectOverloaded(client);
+                }
                 
             } catch (IOException e) {
                 if (running) {
@@ -52,70 +244,448 @@ public class HTTPServer {
         }
     }
     
-    private void handleClient(Socket clientSocket) {
-        try (clientSocket) {
-            clientSocket.setSoTimeout(5000); // 5 second timeout
+    /**
+     * Writes a prebuilt 503 from the accept thread without blocking on the
+     * client: one non-blocking write into the fresh socket's send buffer.
+     * Request bytes that already arrived are drained first, since closing
+     * with unread input makes the kernel reset the connection and the
+     * client would never see the 503. A TLS client cannot be answered
+     * without a handshake, which the accept thread must not do, so it is
+     * only closed.
+     */
+    private void rejectOverloaded(SocketChannel client) {
+        metrics.recordShed("queue_full");
+        try (client) {
+            if (tlsContext != null) {
+                return;
+            }
+            client.configureBlocking(false);
+            client.write(ByteBuffer.wrap(OVERLOADED));
+            client.shutdownOutput();
+            ByteBuffer discard = BufferPool.shared().acquireDirect(4096);
+            try {
+                while (client.read(discard) > 0) {
+                    discard.clear();
+                }
+            } finally {
+                BufferPool.shared().release(discard);
+            }
+        } catch (IOException e) {
+            // Client is gone or its buffer is full; closing is all that is left
+        }
+    }
+    
+    /**
+     * Whether work queued at the given time waited past the deadline
+     */
+    boolean pastDeadline(long queuedAt) {
+        int deadline = config.getWorkQueueDeadline();
+        return deadline > 0 && System.nanoTime() - queuedAt > TimeUnit.MILLISECONDS.toNanos(deadline);
+    }
+    
+    /**
+     * 503 for work that was turned away, closing the connection
+     */
+    HTTPResponse shed(String reason, int served) {
+        metrics.recordShed(reason);
+        HTTPResponse response = ConcurrencyLimiter.overloaded();
+        setConnectionHeaders(response, false, served);
+        return response;
+    }
+    
+    /**
+     * @param streams where the streams run if the connection switches to HTTP/2
+     */
+    private void handleClient(Socket clientSocket, long accepted, ExecutorService streams) {
+        int served = 0;
+        // Set once a WebSocket hub owns the socket; it closes it then
+        boolean adopted = false;
+        TlsChannel tls = null;
+        metrics.connectionOpened();
+        try {
+            if (pastDeadline(accepted)) {
+                // Waited so long in the queue that the client has likely given up
+                if (tlsContext == null) {
+                    shed("deadline", 0).send(clientSocket.getChannel());
+                } else {
+                    metrics.recordShed("deadline");
+                }
+                return;
+            }
+            String clientIP = clientSocket.getInetAddress().getHostAddress();
             
-            // Get input and output streams
-            InputStream input = clientSocket.getInputStream();
-            OutputStream output = clientSocket.getOutputStream();
+            // Idle timeout between requests on a persistent connection
+            clientSocket.setSoTimeout(config.getKeepAliveTimeout());
             
-            // Parse HTTP request
-            HTTPRequest request = HTTPRequest.parse(input);
+            InputStream input;
+            GatheringByteChannel output;
+            if (tlsContext == null) {
+                input = clientSocket.getInputStream();
+                output = clientSocket.getChannel();
+            } else {
+                // Handshake here on the worker, not on the accept thread; reads
+                // go through the socket's stream so the idle timeout applies
+                tls = new TlsChannel(tlsContext.newEngine(), Channels.newChannel(clientSocket.getInputStream()),
+                    clientSocket.getChannel(), null, null, metrics);
+                tls.handshake();
+                input = Channels.newInputStream(tls);
+                output = tls;
+                if (Http2Connection.ALPN_PROTOCOL.equals(tls.getApplicationProtocol())) {
+                    served = serveHttp2(input, output, streams, clientIP, 0, null, null, new byte[0]);
+                    return;
+                }
+            }
             
-            if (request != null) {
-                // Generate HTTP response
-                HTTPResponse response = requestHandler.handle(request);
-                
-                // Send response
-                response.send(output);
-                
-                // Log the request
-                logRequest(clientSocket, request, response);
+            // One parser for the whole connection so that pipelined
+            // requests already buffered are not dropped
+            RequestParser parser = new RequestParser();
+            BufferPool buffers = BufferPool.shared();
+            ByteBuffer headBuffer = buffers.acquire(HEAD_BUFFER_SIZE);
+            try {
+                boolean keepAlive = true;
+                while (keepAlive && running) {
+                    // Parse HTTP request
+                    HTTPRequest request;
+                    try {
+                        request = parser.read(input);
+                    } catch (RequestParser.ParseException e) {
+                        metrics.recordParseError();
+                        HTTPResponse response = HTTPResponse.error(e.getStatusCode(), e.getStatusMessage());
+                        setConnectionHeaders(response, false, served);
+                        response.send(output, headBuffer);
+                        break;
+                    }
+                    if (request == null) {
+                        break;
+                    }
+                    if (HttpConstants.HTTP_2.equals(request.getVersion())) {
+                        // Prior knowledge: the line was the start of the HTTP/2 preface
+                        if (config.isHttp2() && Http2Connection.isPreface(request)) {
+                            served = serveHttp2(input, output, streams, clientIP, Http2Connection.PREFACE_REQUEST_LINE,
+                                null, null, parser.takeBuffered());
+                        } else {
+                            HTTPResponse response = HTTPResponse.error(505, "HTTP Version Not Supported");
+                            setConnectionHeaders(response, false, served);
+                            response.send(output, headBuffer);
+                        }
+                        break;
+                    }
+                    byte[] upgradeSettings = config.isHttp2() && tls == null ? Http2Connection.upgradeSettings(request) : null;
+                    if (upgradeSettings != null) {
+                        served = serveHttp2(input, output, streams, clientIP, 0, request, upgradeSettings, parser.takeBuffered());
+                        break;
+                    }
+                    served++;
+                    long started = System.nanoTime();
+                    if (request.hasBody() && RequestBody.expectsContinue(request)) {
+                        request.getBodyStream().setContinueSender(() -> writeFully(output, RequestBody.CONTINUE));
+                    }
+                    
+                    // Generate HTTP response
+                    HTTPResponse response = dispatch(request, clientIP, shouldKeepAlive(request, served), served);
+                    keepAlive = keepsAlive(response);
+                    settleContinue(request, response);
+                    
+                    // Send response; pipelined requests are answered in order
+                    long sendStarted = System.nanoTime();
+                    ByteBuffer head = response.send(output, headBuffer);
+                    if (head != headBuffer) {
+                        // Grown for a large head: keep the larger one
+                        buffers.release(headBuffer);
+                        headBuffer = head;
+                    }
+                    metrics.recordSend(System.nanoTime() - sendStarted);
+                    
+                    // Log the request
+                    logRequest(clientIP, request, response, started);
+                    
+                    if (response instanceof WebSocketUpgrade) {
+                        // No thread waits on the socket from here on
+                        ((WebSocketUpgrade) response).adopt(clientSocket.getChannel(), tls, parser.takeBuffered());
+                        adopted = true;
+                        return;
+                    }
+                    
+                    // A body the handler left unread is skipped if it is all here;
+                    // otherwise close rather than wait for the rest of it
+                    if (!parser.skipBufferedBody()) {
+                        break;
+                    }
+                }
+            } finally {
+                parser.release();
+                buffers.release(headBuffer);
             }
             
         } catch (SocketTimeoutException e) {
-            System.err.println("Client timeout: " + clientSocket.getInetAddress());
+            // An idle keep-alive connection timing out is the normal way it ends
+            if (served == 0) {
+                System.err.println("Client timeout: " + clientSocket.getInetAddress());
+            }
         } catch (IOException e) {
             System.err.println("Error handling client: " + e.getMessage());
+        } finally {
+            if (!adopted) {
+                if (tls != null) {
+                    // A close_notify if the socket takes it; hands back its buffers too
+                    closeQuietly(tls);
+                }
+                closeQuietly(clientSocket);
+                metrics.connectionClosed();
+            }
         }
     }
     
-    private void logRequest(Socket socket, HTTPRequest request, HTTPResponse response) {
-        String clientIP = socket.getInetAddress().getHostAddress();
-        System.out.printf("[%s] %s %s → %d%n", 
-            clientIP, 
-            request.getMethod(), 
-            request.getPath(), 
-            response.getStatusCode()
-        );
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing useful to do
+        }
     }
     
-    public void stop() {
-        running = false;
+    /**
+     * Runs the connection as HTTP/2 until it ends: this thread reads frames
+     * while the streams are answered on the given executor, which must not
+     * be the pool this thread belongs to
+     * @param buffered bytes the HTTP/1.1 parser read past the switch
+     * @return streams served
+     */
+    private int serveHttp2(InputStream input, GatheringByteChannel output, ExecutorService streams, String clientIP,
+                           int prefaceMatched, HTTPRequest upgrade, byte[] upgradeSettings, byte[] buffered)
+            throws IOException {
+        Http2Connection connection = new Http2Connection(this, config, streams,
+            Http2Connection.blockingOutput(output), clientIP);
+        ByteBuffer borrowed = BufferPool.shared().acquire(READ_BUFFER_SIZE);
+        try {
+            connection.start(prefaceMatched, upgrade, upgradeSettings);
+            connection.receive(ByteBuffer.wrap(buffered));
+            byte[] buffer = borrowed.array();
+            while (running) {
+                int read;
+                try {
+                    read = input.read(buffer, 0, READ_BUFFER_SIZE);
+                } catch (SocketTimeoutException e) {
+                    // Only idle once no stream is in flight
+                    if (connection.hasActiveStreams()) {
+                        continue;
+                    }
+                    connection.goAway();
+                    break;
+                }
+                if (read < 0) {
+                    break;
+                }
+                connection.receive(ByteBuffer.wrap(buffer, 0, read));
+            }
+        } finally {
+            connection.close();
+            BufferPool.shared().release(borrowed);
+        }
+        return connection.getServed();
+    }
+    
+    private static void writeFully(WritableByteChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    /**
+     * Resolves a 100 Continue the request still waits for before its final
+     * response goes out: sent if the response is streamed (its writer may
+     * still read the body), dropped otherwise. Shared by both engines.
+     */
+    static void settleContinue(HTTPRequest request, HTTPResponse response) {
+        if (!request.hasBody()) {
+            return;
+        }
+        RequestBody body = request.getBodyStream();
+        if (response instanceof StreamingResponse) {
+            try {
+                body.sendPendingContinue();
+            } catch (IOException e) {
+                // The connection is broken; sending the response fails the same way
+            }
+        } else {
+            body.cancelContinue();
+        }
+    }
+    
+    /**
+     * Whether the connection stays open after the given request,
+     * which is the served-th request on that connection
+     */
+    boolean shouldKeepAlive(HTTPRequest request, int served) {
+        return config.isKeepAlive()
+            && request.isKeepAlive()
+            && served < config.getMaxRequestsPerConnection();
+    }
+    
+    /**
+     * Runs the request through the handler and adds connection headers.
+     * Shared by the blocking and NIO engines so routes behave the same on both.
+     */
+    HTTPResponse dispatch(HTTPRequest request, String clientIP, boolean keepAlive, int served) {
+        long started = System.nanoTime();
+        request.setClientIP(clientIP);
+        if (request.getStartNanos() != 0) {
+            metrics.recordParse(started - request.getStartNanos());
+        }
         
+        if (clientLimiter != null && !clientLimiter.tryAcquire(clientIP)) {
+            // This client is over its own share; others are unaffected
+            metrics.recordShed("client_limit");
+            HTTPResponse response = ClientLimiter.tooManyRequests();
+            setConnectionHeaders(response, keepAlive, served);
+            return response;
+        }
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+            return dispatchAdmitted(request, keepAlive, served, started);
+        } finally {
+            if (clientLimiter != null) {
+                clientLimiter.release(clientIP);
             }
-        } catch (IOException e) {
-            System.err.println("Error closing server socket: " + e.getMessage());
+        }
+    }
+    
+    private HTTPResponse dispatchAdmitted(HTTPRequest request, boolean keepAlive, int served, long started) {
+        if (limiter != null && !limiter.acquire()) {
+            // Over the concurrency limit: fail fast and drop the connection
+            HTTPResponse response = ConcurrencyLimiter.overloaded();
+            setConnectionHeaders(response, false, served);
+            metrics.recordRequest(null, response.getStatusCode(), System.nanoTime() - started);
+            return response;
         }
         
-        threadPool.shutdown();
+        HTTPResponse response;
         try {
-            if (!threadPool.awaitTermination(10, TimeUnit.SECONDS)) {
-                threadPool.shutdownNow();
+            response = requestHandler.handle(request);
+        } catch (UncheckedIOException e) {
+            // Failed reading the body: malformed or too large to buffer, or the client went away
+            if (e.getCause() instanceof RequestParser.ParseException) {
+                RequestParser.ParseException cause = (RequestParser.ParseException) e.getCause();
+                response = HTTPResponse.error(cause.getStatusCode(), cause.getStatusMessage());
+            } else {
+                System.err.println("Error reading body of " + request + ": " + e.getCause());
+                response = HTTPResponse.internalError();
+            }
+            keepAlive = false;
+        } catch (RuntimeException e) {
+            System.err.println("Error in handler for " + request + ": " + e);
+            response = HTTPResponse.internalError();
+        } finally {
+            if (limiter != null) {
+                limiter.release();
             }
-        } catch (InterruptedException e) {
-            threadPool.shutdownNow();
+        }
+        if (response instanceof StreamingResponse && !HttpConstants.HTTP_1_1.equals(request.getVersion())) {
+            // HTTP/1.0 has no chunked coding: the body ends when the connection closes
+            ((StreamingResponse) response).setChunked(false);
+            keepAlive = false;
+        }
+        metrics.recordRequest(request.getRoutePattern(), response.getStatusCode(), System.nanoTime() - started);
+        setConnectionHeaders(response, keepAlive, served);
+        return response;
+    }
+    
+    /**
+     * Whether the connection stays open after sending this response
+     */
+    static boolean keepsAlive(HTTPResponse response) {
+        return "keep-alive".equals(response.getHeader("Connection"));
+    }
+    
+    void setConnectionHeaders(HTTPResponse response, boolean keepAlive, int served) {
+        if (response instanceof WebSocketUpgrade) {
+            // Switching protocols: the handshake's Connection: Upgrade stays
+            return;
+        }
+        if (keepAlive) {
+            int remaining = config.getMaxRequestsPerConnection() - served;
+            response.setHeader("Connection", "keep-alive");
+            // Whole seconds, rounded down so clients never count on more than the
+            // server keeps; a sub-second timeout still reads as 1, not timeout=0
+            int timeoutSeconds = Math.max(1, config.getKeepAliveTimeout() / 1000);
+            response.setHeader("Keep-Alive", "timeout=" + timeoutSeconds + ", max=" + remaining);
+        } else {
+            response.setHeader("Connection", "close");
+        }
+    }
+    
+    /**
+     * TLS settings for accepted connections, or null when serving plaintext
+     */
+    TlsContext getTlsContext() {
+        return tlsContext;
+    }
+    
+    Metrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Hands the request to the asynchronous access log, if enabled
+     * @param started System.nanoTime() when the request was parsed
+     */
+    void logRequest(String clientIP, HTTPRequest request, HTTPResponse response, long started) {
+        if (accessLog != null) {
+            accessLog.log(clientIP, request, response, System.nanoTime() - started);
+        }
+    }
+    
+    public void stop() {
+        running = false;
+        
+        if (nioEngines != null) {
+            for (NioEngine engine : nioEngines) {
+                if (engine != null) {
+                    engine.stop();
+                }
+            }
+        }
+        
+        if (serverChannels != null) {
+            for (ServerSocketChannel serverChannel : serverChannels) {
+                try {
+                    if (serverChannel != null && serverChannel.isOpen()) {
+                        serverChannel.close();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error closing server socket: " + e.getMessage());
+                }
+            }
+        }
+        
+        Set<ExecutorService> executors = Collections.newSetFromMap(new IdentityHashMap<>());
+        executors.addAll(Arrays.asList(workerPools));
+        executors.addAll(Arrays.asList(streamPools));
+        for (ExecutorService workers : executors) {
+            workers.shutdown();
+        }
+        // One shared deadline for all shards
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (ExecutorService workers : executors) {
+            try {
+                if (!workers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    workers.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                workers.shutdownNow();
+            }
+        }
+        
+        requestHandler.close();
+        if (accessLog != null) {
+            accessLog.close();
         }
         
         System.out.println("\nServer stopped.");
     }
     
     public static void main(String[] args) {
-        int port = 8080;
+        int port = ServerConfig.DEFAULT_PORT;
         
         // Parse command line arguments
         if (args.length > 0) {
@@ -126,7 +696,7 @@ public class HTTPServer {
             }
         }
         
-        HTTPServer server = new HTTPServer(port);
+        HTTPServer server = new HTTPServer(ServerConfig.fromSystemProperties(port));
         
         // Graceful shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
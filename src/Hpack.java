@@ -0,0 +1,348 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541)
+ * Each direction of a connection has its own dynamic table, so the
+ * connection keeps one Decoder (for requests, used by its reader) and one
+ * Encoder (for responses, used under its write lock so blocks go out in
+ * the order they were encoded). Repeated headers such as content-type
+ * and server shrink to one or two bytes after their first use.
+ */
+final class Hpack {
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    // Per-entry overhead counted against the table size
+    private static final int ENTRY_OVERHEAD = 32;
+    
+    private static final String[][] STATIC_TABLE = {
+        { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+        { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+        { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+        { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+        { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+        { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+        { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+        { "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+        { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" },
+        { "host", "" }, { "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" },
+        { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" },
+        { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+        { "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+        { "retry-after", "" }, { "server", "" }, { "set-cookie", "" }, { "strict-transport-security", "" },
+        { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+        { "www-authenticate", "" }
+    };
+    
+    // Static indexes by "name" (first match) and by "name\0value"
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    
+    // Values that change with every response only churn the dynamic table
+    private static final Set<String> NOT_INDEXED = new HashSet<>(Arrays.asList(
+        "content-length", "content-range", "date", "etag", "last-modified", "location", "set-cookie", "age"));
+    
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+    
+    private Hpack() {
+    }
+    
+    /**
+     * Receives decoded header fields in order
+     */
+    @FunctionalInterface
+    interface HeaderSink {
+        void header(String name, String value) throws Http2Frames.Http2Exception;
+    }
+    
+    /**
+     * Entries added by header blocks, newest first (index 1), evicted
+     * oldest first once their total size exceeds the maximum
+     */
+    private static final class DynamicTable {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        // Slot of the oldest entry; entries run from there in insertion order
+        private int oldest;
+        private int count;
+        private int size;
+        private int maxSize;
+        
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+        
+        int length() {
+            return count;
+        }
+        
+        private int slot(int index) {
+            // index 1 is the newest entry
+            return (oldest + count - index) % names.length;
+        }
+        
+        String name(int index) {
+            return names[slot(index)];
+        }
+        
+        String value(int index) {
+            return values[slot(index)];
+        }
+        
+        void add(String name, String value) {
+            int entrySize = entrySize(name, value);
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize) {
+                // Larger than the whole table: it empties the table and is not added
+                return;
+            }
+            if (count == names.length) {
+                String[] newNames = new String[names.length * 2];
+                String[] newValues = new String[names.length * 2];
+                for (int i = 0; i < count; i++) {
+                    newNames[i] = names[(oldest + i) % names.length];
+                    newValues[i] = values[(oldest + i) % names.length];
+                }
+                names = newNames;
+                values = newValues;
+                oldest = 0;
+            }
+            int slot = (oldest + count) % names.length;
+            names[slot] = name;
+            values[slot] = value;
+            count++;
+            size += entrySize;
+        }
+        
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+        
+        private void evict(int targetSize) {
+            while (size > targetSize && count > 0) {
+                size -= entrySize(names[oldest], values[oldest]);
+                names[oldest] = null;
+                values[oldest] = null;
+                oldest = (oldest + 1) % names.length;
+                count--;
+            }
+        }
+        
+        private static int entrySize(String name, String value) {
+            return name.length() + value.length() + ENTRY_OVERHEAD;
+        }
+    }
+    
+    /**
+     * Decodes request header blocks
+     */
+    static final class Decoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        // Largest size the peer may set the table to: what our SETTINGS allow
+        private final int maxTableSize = DEFAULT_TABLE_SIZE;
+        private byte[] block;
+        private int position;
+        private int limit;
+        
+        /**
+         * Decodes one complete header block (HEADERS plus any CONTINUATION payloads)
+         */
+        void decode(byte[] block, int offset, int length, HeaderSink sink) throws Http2Frames.Http2Exception {
+            this.block = block;
+            this.position = offset;
+            this.limit = offset + length;
+            boolean fieldSeen = false;
+            while (position < limit) {
+                int b = block[position] & 0xff;
+                if ((b & 0x80) != 0) {
+                    // Indexed field
+                    int index = readInt(7);
+                    sink.header(name(index), value(index));
+                    fieldSeen = true;
+                } else if ((b & 0xc0) == 0x40) {
+                    // Literal with incremental indexing
+                    int index = readInt(6);
+                    String name = index == 0 ? readString() : name(index);
+                    String value = readString();
+                    table.add(name, value);
+                    sink.header(name, value);
+                    fieldSeen = true;
+                } else if ((b & 0xe0) == 0x20) {
+                    // Dynamic table size update, only allowed ahead of the fields
+                    int size = readInt(5);
+                    if (fieldSeen || size > maxTableSize) {
+                        throw Http2Frames.compressionError("Invalid table size update");
+                    }
+                    table.setMaxSize(size);
+                } else {
+                    // Literal without indexing (0000) or never indexed (0001)
+                    int index = readInt(4);
+                    String name = index == 0 ? readString() : name(index);
+                    sink.header(name, readString());
+                    fieldSeen = true;
+                }
+            }
+            this.block = null;
+        }
+        
+        private String name(int index) throws Http2Frames.Http2Exception {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            }
+            int dynamic = index - STATIC_TABLE.length;
+            if (index < 1 || dynamic > table.length()) {
+                throw Http2Frames.compressionError("Header index out of range: " + index);
+            }
+            return table.name(dynamic);
+        }
+        
+        private String value(int index) throws Http2Frames.Http2Exception {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][1];
+            }
+            int dynamic = index - STATIC_TABLE.length;
+            if (index < 1 || dynamic > table.length()) {
+                throw Http2Frames.compressionError("Header index out of range: " + index);
+            }
+            return table.value(dynamic);
+        }
+        
+        /**
+         * Integer with an N-bit prefix (RFC 7541 section 5.1)
+         */
+        private int readInt(int prefixBits) throws Http2Frames.Http2Exception {
+            int mask = (1 << prefixBits) - 1;
+            int value = block[position++] & mask;
+            if (value < mask) {
+                return value;
+            }
+            int shift = 0;
+            while (true) {
+                if (position >= limit) {
+                    throw Http2Frames.compressionError("Truncated integer");
+                }
+                int b = block[position++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+                if (shift > 21) {
+                    throw Http2Frames.compressionError("Integer too large");
+                }
+            }
+        }
+        
+        private String readString() throws Http2Frames.Http2Exception {
+            if (position >= limit) {
+                throw Http2Frames.compressionError("Truncated string");
+            }
+            boolean huffman = (block[position] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > limit - position) {
+                throw Http2Frames.compressionError("Truncated string");
+            }
+            String value = huffman
+                ? Huffman.decode(block, position, length)
+                : new String(block, position, length, StandardCharsets.ISO_8859_1);
+            position += length;
+            return value;
+        }
+    }
+    
+    /**
+     * Encodes response header blocks
+     */
+    static final class Encoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private int pendingSizeUpdate = -1;
+        
+        /**
+         * Applies the peer's SETTINGS_HEADER_TABLE_SIZE; announced at the start of the next block
+         */
+        void setMaxTableSize(int peerLimit) {
+            int size = Math.min(peerLimit, DEFAULT_TABLE_SIZE);
+            table.setMaxSize(size);
+            pendingSizeUpdate = size;
+        }
+        
+        /**
+         * Appends one field; call for each field of a block in order
+         */
+        void encode(String name, String value, ByteArrayOutputStream out) {
+            if (pendingSizeUpdate >= 0) {
+                writeInt(out, 0x20, 5, pendingSizeUpdate);
+                pendingSizeUpdate = -1;
+            }
+            Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+            if (exact != null) {
+                writeInt(out, 0x80, 7, exact);
+                return;
+            }
+            int nameIndex = 0;
+            Integer staticName = STATIC_NAMES.get(name);
+            if (staticName != null) {
+                nameIndex = staticName;
+            }
+            for (int i = 1; i <= table.length(); i++) {
+                if (table.name(i).equals(name)) {
+                    if (table.value(i).equals(value)) {
+                        writeInt(out, 0x80, 7, STATIC_TABLE.length + i);
+                        return;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = STATIC_TABLE.length + i;
+                    }
+                }
+            }
+            
+            boolean index = !NOT_INDEXED.contains(name);
+            if (index) {
+                writeInt(out, 0x40, 6, nameIndex);
+            } else {
+                writeInt(out, 0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+            if (index) {
+                table.add(name, value);
+            }
+        }
+        
+        private static void writeInt(ByteArrayOutputStream out, int pattern, int prefixBits, int value) {
+            int mask = (1 << prefixBits) - 1;
+            if (value < mask) {
+                out.write(pattern | value);
+                return;
+            }
+            out.write(pattern | mask);
+            value -= mask;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+        
+        private static void writeString(ByteArrayOutputStream out, String value) {
+            int huffmanLength = Huffman.encodedLength(value);
+            if (huffmanLength < value.length()) {
+                writeInt(out, 0x80, 7, huffmanLength);
+                Huffman.encode(value, out);
+            } else {
+                writeInt(out, 0x00, 7, value.length());
+                byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+    }
+}
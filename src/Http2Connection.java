@@ -0,0 +1,1216 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One HTTP/2 connection (RFC 9113), independent of the engine carrying it
+ * The engine feeds received bytes to receive() from its reading thread and
+ * supplies an Output for frames. Each request stream is handed to the
+ * worker pool and dispatched through the server like an HTTP/1.1 request,
+ * so routes run unchanged while many requests share one connection.
+ * Responses go out as HPACK-compressed HEADERS and DATA frames within the
+ * client's flow-control windows; request bodies reach the handler through
+ * a pipe the size of the window we advertise, which is only reopened as
+ * the handler reads, so a slow handler holds back its own stream alone.
+ */
+final class Http2Connection {
+    static final String ALPN_PROTOCOL = "h2";
+    // "PRI * HTTP/2.0\r\n\r\n", already consumed when the HTTP/1.1 parser saw it
+    static final int PREFACE_REQUEST_LINE = 18;
+    
+    // Compressed header block limit, before any decoding
+    private static final int MAX_HEADER_BLOCK = 64 * 1024;
+    private static final byte[] NO_BYTES = new byte[0];
+    // Hop-by-hop headers HTTP/2 does not carry (RFC 9113 section 8.2.2)
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<>(Arrays.asList(
+        "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+    
+    /**
+     * Where frames go. write() is called under the connection's write lock,
+     * so frames from different streams never interleave, and only queues
+     * them; flush() sends them once the lock is released, so no stream
+     * holds the lock while waiting on the socket.
+     */
+    interface Output {
+        /**
+         * Blocks a worker while earlier frames still wait to be sent; called
+         * before taking the write lock, never from the reading thread
+         */
+        void awaitRoom() throws IOException;
+        
+        /**
+         * Queues the frames, in order, without blocking on the network
+         */
+        void write(ByteBuffer... frames) throws IOException;
+        
+        /**
+         * Sends what is queued, or leaves it to a send already under way
+         */
+        void flush() throws IOException;
+        
+        /**
+         * The connection is gone: waiting and later writes fail
+         */
+        void close();
+    }
+    
+    private final HTTPServer server;
+    private final Executor workers;
+    private final Output output;
+    private final String clientIP;
+    private final int maxConcurrentStreams;
+    private final int initialWindowSize;
+    private final long stallTimeout;
+    
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    // Encoder state and frame order are guarded by writeLock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    // Send windows are guarded by flowLock
+    private final ReentrantLock flowLock = new ReentrantLock();
+    private final Condition windowOpened = flowLock.newCondition();
+    private long sendWindow = Http2Frames.DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindow = Http2Frames.DEFAULT_WINDOW_SIZE;
+    private volatile int peerMaxFrameSize = Http2Frames.DEFAULT_MAX_FRAME_SIZE;
+    private volatile boolean closed;
+    
+    // Reading thread only
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    // Borrowed from the pool until close
+    private ByteBuffer inBuffer = BufferPool.shared().acquire(Http2Frames.HEADER_LENGTH + Http2Frames.DEFAULT_MAX_FRAME_SIZE);
+    private byte[] in = inBuffer.array();
+    private int inStart;
+    private int inEnd;
+    private int prefaceMatched;
+    private boolean settingsReceived;
+    private int lastStreamId;
+    private int served;
+    // Header block continued in CONTINUATION frames
+    private int continuedStream;
+    private int continuedFlags;
+    private ByteArrayOutputStream continuedBlock;
+    private int connectionUnacked;
+    
+    /**
+     * A request and its response in flight
+     */
+    private final class Stream {
+        final int id;
+        final HTTPRequest request;
+        // Request body on its way to the handler; null if there is none
+        BodyPipe body;
+        volatile boolean reset;
+        // Guarded by flowLock
+        long sendWindow;
+        final ReentrantLock lock = new ReentrantLock();
+        // Guarded by lock
+        boolean remoteClosed;
+        int receiveWindow = initialWindowSize;
+        int unacked;
+        
+        Stream(int id, HTTPRequest request) {
+            this.id = id;
+            this.request = request;
+        }
+    }
+    
+    Http2Connection(HTTPServer server, ServerConfig config, Executor workers, Output output, String clientIP) {
+        this.server = server;
+        this.workers = workers;
+        this.output = output;
+        this.clientIP = clientIP;
+        this.maxConcurrentStreams = config.getHttp2MaxConcurrentStreams();
+        this.initialWindowSize = config.getHttp2InitialWindowSize();
+        this.stallTimeout = config.getKeepAliveTimeout();
+    }
+    
+    /**
+     * Output for a blocking channel
+     */
+    static Output blockingOutput(GatheringByteChannel channel) {
+        return new BlockingOutput(channel);
+    }
+    
+    /**
+     * Frames queued for a blocking channel. The thread that flushes while
+     * no write is under way writes everything queued, including what other
+     * streams add meanwhile; the others return at once. Workers wait in
+     * awaitRoom only while the backlog is over the limit, so a client that
+     * stops reading stalls the streams writing to it, not the lock.
+     */
+    private static final class BlockingOutput implements Output {
+        private static final int QUEUE_LIMIT = 256 * 1024;
+        
+        private final GatheringByteChannel channel;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition room = lock.newCondition();
+        private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+        private final ByteBuffer[] batch = new ByteBuffer[64];
+        private long queued;
+        private boolean writing;
+        private boolean closed;
+        
+        BlockingOutput(GatheringByteChannel channel) {
+            this.channel = channel;
+        }
+        
+        @Override
+        public void awaitRoom() throws IOException {
+            lock.lock();
+            try {
+                while (queued > QUEUE_LIMIT && !closed) {
+                    try {
+                        room.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public void write(ByteBuffer... buffers) throws IOException {
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                for (ByteBuffer buffer : buffers) {
+                    frames.add(buffer);
+                    queued += buffer.remaining();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            lock.lock();
+            try {
+                if (writing) {
+                    return;
+                }
+                writing = true;
+                try {
+                    while (!frames.isEmpty() && !closed) {
+                        int count = 0;
+                        long bytes = 0;
+                        while (count < batch.length && !frames.isEmpty()) {
+                            ByteBuffer frame = frames.pollFirst();
+                            bytes += frame.remaining();
+                            batch[count++] = frame;
+                        }
+                        boolean written = false;
+                        // The socket write happens with the lock released, so
+                        // other streams keep queueing behind it
+                        lock.unlock();
+                        try {
+                            ByteBuffer last = batch[count - 1];
+                            do {
+                                channel.write(batch, 0, count);
+                            } while (last.hasRemaining());
+                            written = true;
+                        } finally {
+                            lock.lock();
+                            Arrays.fill(batch, 0, count, null);
+                            queued -= bytes;
+                            if (!written) {
+                                closed = true;
+                                frames.clear();
+                            }
+                            room.signalAll();
+                        }
+                    }
+                } finally {
+                    writing = false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                frames.clear();
+                room.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Settings from an "Upgrade: h2c" request (RFC 7540 section 3.2)
+     * @return the decoded SETTINGS payload, or null if the request does not
+     * ask for a usable upgrade (one with a body is served as HTTP/1.1)
+     */
+    static byte[] upgradeSettings(HTTPRequest request) {
+        String upgrade = request.getHeader("upgrade");
+        String settings = request.getHeader("http2-settings");
+        if (upgrade == null || settings == null || request.hasBody()
+                || !HttpConstants.HTTP_1_1.equals(request.getVersion())) {
+            return null;
+        }
+        boolean h2c = false;
+        for (String token : upgrade.split(",")) {
+            h2c |= token.trim().equalsIgnoreCase("h2c");
+        }
+        if (!h2c) {
+            return null;
+        }
+        try {
+            byte[] payload = Base64.getUrlDecoder().decode(settings.trim());
+            return payload.length % 6 == 0 ? payload : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Whether a request line parsed as HTTP/1.x was the start of the prior-knowledge preface
+     */
+    static boolean isPreface(HTTPRequest request) {
+        return "PRI".equals(request.getMethod()) && "*".equals(request.getTarget())
+            && HttpConstants.HTTP_2.equals(request.getVersion()) && request.getHeaders().isEmpty();
+    }
+    
+    /**
+     * Sends our SETTINGS and, for an upgrade, the 101 before them and the
+     * response to the upgraded request on stream 1
+     * @param prefaceMatched bytes of the client preface already consumed
+     * @param upgrade the HTTP/1.1 request that asked for h2c, or null
+     * @param upgradeSettings its decoded HTTP2-Settings
+     */
+    void start(int prefaceMatched, HTTPRequest upgrade, byte[] upgradeSettings) throws IOException {
+        this.prefaceMatched = prefaceMatched;
+        ByteBuffer settings = Http2Frames.settings(
+            Http2Frames.SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams,
+            Http2Frames.SETTINGS_INITIAL_WINDOW_SIZE, initialWindowSize,
+            Http2Frames.SETTINGS_MAX_HEADER_LIST_SIZE, RequestParser.DEFAULT_MAX_HEADER_SIZE);
+        writeLock.lock();
+        try {
+            if (upgrade == null) {
+                output.write(settings);
+            } else {
+                HTTPResponse switching = new HTTPResponse(101, "Switching Protocols");
+                switching.setHeader("Connection", "Upgrade");
+                switching.setHeader("Upgrade", "h2c");
+                output.write(ByteBuffer.wrap(switching.toBytes()), settings);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        output.flush();
+        if (upgrade != null) {
+            applySettings(upgradeSettings, 0, upgradeSettings.length);
+            Stream stream = newStream(1, upgrade);
+            stream.remoteClosed = true;
+            lastStreamId = 1;
+            dispatch(stream, null);
+        }
+    }
+    
+    /**
+     * Consumes bytes from the client, acting on every complete frame
+     * @throws IOException on a connection error, after sending GOAWAY; the caller closes
+     */
+    void receive(ByteBuffer data) throws IOException {
+        append(data);
+        try {
+            if (!matchPreface()) {
+                return;
+            }
+            while (inEnd - inStart >= Http2Frames.HEADER_LENGTH) {
+                int length = (in[inStart] & 0xff) << 16 | (in[inStart + 1] & 0xff) << 8 | (in[inStart + 2] & 0xff);
+                if (length > Http2Frames.DEFAULT_MAX_FRAME_SIZE) {
+                    throw Http2Frames.connectionError(Http2Frames.FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+                }
+                if (inEnd - inStart < Http2Frames.HEADER_LENGTH + length) {
+                    break;
+                }
+                int type = in[inStart + 3] & 0xff;
+                int flags = in[inStart + 4] & 0xff;
+                int streamId = ((in[inStart + 5] & 0x7f) << 24) | (in[inStart + 6] & 0xff) << 16
+                    | (in[inStart + 7] & 0xff) << 8 | (in[inStart + 8] & 0xff);
+                int payload = inStart + Http2Frames.HEADER_LENGTH;
+                inStart = payload + length;
+                try {
+                    onFrame(type, flags, streamId, payload, length);
+                } catch (Http2Frames.Http2Exception e) {
+                    if (e.isConnectionError()) {
+                        throw e;
+                    }
+                    resetStream(e.getStreamId(), e.getErrorCode());
+                }
+            }
+        } catch (Http2Frames.Http2Exception e) {
+            try {
+                send(Http2Frames.goAway(lastStreamId, e.getErrorCode(), e.getMessage()));
+            } catch (IOException ignored) {
+                // The connection is closing either way
+            }
+            close();
+            throw e;
+        }
+    }
+    
+    private void append(ByteBuffer data) {
+        int length = data.remaining();
+        if (in.length - inEnd < length) {
+            System.arraycopy(in, inStart, in, 0, inEnd - inStart);
+            inEnd -= inStart;
+            inStart = 0;
+            if (in.length - inEnd < length) {
+                ByteBuffer larger = BufferPool.shared().acquire(inEnd + length);
+                System.arraycopy(in, 0, larger.array(), 0, inEnd);
+                BufferPool.shared().release(inBuffer);
+                inBuffer = larger;
+                in = larger.array();
+            }
+        }
+        data.get(in, inEnd, length);
+        inEnd += length;
+    }
+    
+    private boolean matchPreface() throws Http2Frames.Http2Exception {
+        while (prefaceMatched < Http2Frames.PREFACE.length && inStart < inEnd) {
+            if (in[inStart++] != Http2Frames.PREFACE[prefaceMatched++]) {
+                throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "Invalid connection preface");
+            }
+        }
+        return prefaceMatched == Http2Frames.PREFACE.length;
+    }
+    
+    private void onFrame(int type, int flags, int streamId, int offset, int length) throws IOException {
+        if (continuedStream != 0 && (type != Http2Frames.CONTINUATION || streamId != continuedStream)) {
+            throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "Header block interrupted");
+        }
+        if (!settingsReceived && type != Http2Frames.SETTINGS) {
+            throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "Preface not followed by SETTINGS");
+        }
+        switch (type) {
+            case Http2Frames.DATA:
+                onData(flags, streamId, offset, length);
+                break;
+            case Http2Frames.HEADERS:
+                onHeaders(flags, streamId, offset, length);
+                break;
+            case Http2Frames.CONTINUATION:
+                if (continuedStream == 0) {
+                    throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                }
+                continuedBlock.write(in, offset, length);
+                if (continuedBlock.size() > MAX_HEADER_BLOCK) {
+                    throw Http2Frames.connectionError(Http2Frames.ENHANCE_YOUR_CALM, "Header block too large");
+                }
+                if ((flags & Http2Frames.FLAG_END_HEADERS) != 0) {
+                    byte[] block = continuedBlock.toByteArray();
+                    int id = continuedStream;
+                    continuedStream = 0;
+                    continuedBlock = null;
+                    onHeaderBlock(id, continuedFlags, block, 0, block.length);
+                }
+                break;
+            case Http2Frames.PRIORITY:
+                requireStream(streamId);
+                if (length != 5) {
+                    throw new Http2Frames.Http2Exception(Http2Frames.FRAME_SIZE_ERROR, streamId, "Bad PRIORITY");
+                }
+                break;
+            case Http2Frames.RST_STREAM:
+                requireStream(streamId);
+                requireLength(length, 4);
+                if (streamId > lastStreamId) {
+                    throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "RST_STREAM on idle stream");
+                }
+                Stream stream = streams.remove(streamId);
+                if (stream != null) {
+                    cancel(stream);
+                }
+                break;
+            case Http2Frames.SETTINGS:
+                onSettings(flags, streamId, offset, length);
+                break;
+            case Http2Frames.PUSH_PROMISE:
+                throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "Clients cannot push");
+            case Http2Frames.PING:
+                requireLength(length, 8);
+                if (streamId != 0) {
+                    throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "PING on a stream");
+                }
+                if ((flags & Http2Frames.FLAG_ACK) == 0) {
+                    send(Http2Frames.pingAck(ByteBuffer.wrap(in, offset, 8).getLong()));
+                }
+                break;
+            case Http2Frames.GOAWAY:
+                // The client opens no more streams; those in flight finish
+                break;
+            case Http2Frames.WINDOW_UPDATE:
+                requireLength(length, 4);
+                onWindowUpdate(streamId, ByteBuffer.wrap(in, offset, 4).getInt() & Integer.MAX_VALUE);
+                break;
+            default:
+                // Unknown frame types are ignored (RFC 9113 section 4.1)
+                break;
+        }
+    }
+    
+    private static void requireStream(int streamId) throws Http2Frames.Http2Exception {
+        if (streamId == 0) {
+            throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "Frame needs a stream");
+        }
+    }
+    
+    private static void requireLength(int length, int expected) throws Http2Frames.Http2Exception {
+        if (length != expected) {
+            throw Http2Frames.connectionError(Http2Frames.FRAME_SIZE_ERROR, "Bad frame length " + length);
+        }
+    }
+    
+    /**
+     * Start and end of the payload inside padding (and a HEADERS priority block)
+     */
+    private int[] unpad(int flags, int streamId, int offset, int length, int skip) throws Http2Frames.Http2Exception {
+        int start = offset;
+        int end = offset + length;
+        if ((flags & Http2Frames.FLAG_PADDED) != 0) {
+            if (length < 1) {
+                throw Http2Frames.connectionError(Http2Frames.FRAME_SIZE_ERROR, "Missing pad length");
+            }
+            end -= in[start++] & 0xff;
+        }
+        start += skip;
+        if (end < start) {
+            throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "Padding exceeds payload on stream " + streamId);
+        }
+        return new int[] { start, end };
+    }
+    
+    private void onData(int flags, int streamId, int offset, int length) throws IOException {
+        requireStream(streamId);
+        if (streamId > lastStreamId) {
+            throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "DATA on idle stream");
+        }
+        int[] payload = unpad(flags, streamId, offset, length, 0);
+        // Flow control counts the whole payload; the connection window is
+        // reopened on receipt, since every stream's own window bounds it
+        connectionUnacked += length;
+        if (connectionUnacked >= Http2Frames.DEFAULT_WINDOW_SIZE / 2) {
+            send(Http2Frames.windowUpdate(0, connectionUnacked));
+            connectionUnacked = 0;
+        }
+        
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            // Already answered or reset: the rest of its body is dropped
+            return;
+        }
+        stream.lock.lock();
+        try {
+            if (stream.remoteClosed) {
+                throw new Http2Frames.Http2Exception(Http2Frames.STREAM_CLOSED, streamId, "DATA after end of stream");
+            }
+            if (length > stream.receiveWindow) {
+                throw new Http2Frames.Http2Exception(Http2Frames.FLOW_CONTROL_ERROR, streamId, "Window exceeded");
+            }
+            stream.receiveWindow -= length;
+        } finally {
+            stream.lock.unlock();
+        }
+        int data = payload[1] - payload[0];
+        if (data > 0) {
+            // Always fits: the pipe is as large as the window and only
+            // reopened once the handler has read from it
+            stream.body.offer(in, payload[0], data);
+        }
+        // Padding never reaches the handler, so its share of the window comes straight back
+        consumed(stream, length - data);
+        if ((flags & Http2Frames.FLAG_END_STREAM) != 0) {
+            endRemote(stream);
+        }
+    }
+    
+    private void onHeaders(int flags, int streamId, int offset, int length) throws IOException {
+        requireStream(streamId);
+        int skip = (flags & Http2Frames.FLAG_PRIORITY) != 0 ? 5 : 0;
+        int[] payload = unpad(flags, streamId, offset, length, skip);
+        if ((flags & Http2Frames.FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(streamId, flags, in, payload[0], payload[1] - payload[0]);
+        } else {
+            continuedStream = streamId;
+            continuedFlags = flags;
+            continuedBlock = new ByteArrayOutputStream();
+            continuedBlock.write(in, payload[0], payload[1] - payload[0]);
+        }
+    }
+    
+    private void onHeaderBlock(int streamId, int flags, byte[] block, int offset, int length) throws IOException {
+        Stream existing = streams.get(streamId);
+        if (existing != null || streamId <= lastStreamId) {
+            // Trailers, or a block for a stream already done; decoded all the
+            // same to keep the compression state in step with the client
+            decoder.decode(block, offset, length, (name, value) -> { });
+            if (existing == null) {
+                return;
+            }
+            if ((flags & Http2Frames.FLAG_END_STREAM) == 0) {
+                throw new Http2Frames.Http2Exception(Http2Frames.PROTOCOL_ERROR, streamId, "Trailers must end the stream");
+            }
+            endRemote(existing);
+            return;
+        }
+        if ((streamId & 1) == 0) {
+            throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "Even stream id " + streamId);
+        }
+        lastStreamId = streamId;
+        RequestBuilder builder = new RequestBuilder();
+        decoder.decode(block, offset, length, builder);
+        if (streams.size() >= maxConcurrentStreams) {
+            throw new Http2Frames.Http2Exception(Http2Frames.REFUSED_STREAM, streamId, "Too many streams");
+        }
+        
+        HTTPRequest request = builder.build(streamId);
+        Stream stream = newStream(streamId, request);
+        if ((flags & Http2Frames.FLAG_END_STREAM) == 0) {
+            // The reading side never waits on the pipe, so it needs no wakeup
+            stream.body = new BodyPipe(initialWindowSize, () -> { });
+            request.setBody(new RequestBody(bodyInput(stream), RequestParser.DEFAULT_MAX_BODY_SIZE));
+        } else {
+            stream.remoteClosed = true;
+        }
+        HTTPResponse rejected = null;
+        if (builder.size > RequestParser.DEFAULT_MAX_HEADER_SIZE) {
+            server.getMetrics().recordParseError();
+            rejected = HTTPResponse.error(431, "Request Header Fields Too Large");
+        }
+        dispatch(stream, rejected);
+    }
+    
+    private Stream newStream(int id, HTTPRequest request) {
+        Stream stream = new Stream(id, request);
+        flowLock.lock();
+        try {
+            stream.sendWindow = peerInitialWindow;
+        } finally {
+            flowLock.unlock();
+        }
+        streams.put(id, stream);
+        return stream;
+    }
+    
+    private void endRemote(Stream stream) {
+        stream.lock.lock();
+        try {
+            stream.remoteClosed = true;
+        } finally {
+            stream.lock.unlock();
+        }
+        if (stream.body != null) {
+            stream.body.close();
+        }
+    }
+    
+    private void onSettings(int flags, int streamId, int offset, int length) throws IOException {
+        if (streamId != 0) {
+            throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & Http2Frames.FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw Http2Frames.connectionError(Http2Frames.FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        settingsReceived = true;
+        applySettings(in, offset, length);
+        send(Http2Frames.settingsAck());
+    }
+    
+    private void applySettings(byte[] payload, int offset, int length) throws Http2Frames.Http2Exception {
+        if (length % 6 != 0) {
+            throw Http2Frames.connectionError(Http2Frames.FRAME_SIZE_ERROR, "SETTINGS length " + length);
+        }
+        ByteBuffer settings = ByteBuffer.wrap(payload, offset, length);
+        while (settings.hasRemaining()) {
+            int id = settings.getShort() & 0xffff;
+            int value = settings.getInt();
+            switch (id) {
+                case Http2Frames.SETTINGS_HEADER_TABLE_SIZE:
+                    writeLock.lock();
+                    try {
+                        encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    break;
+                case Http2Frames.SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "ENABLE_PUSH " + value);
+                    }
+                    break;
+                case Http2Frames.SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw Http2Frames.connectionError(Http2Frames.FLOW_CONTROL_ERROR, "Initial window too large");
+                    }
+                    flowLock.lock();
+                    try {
+                        // Applies to the windows of open streams too (RFC 9113 section 6.9.2)
+                        int delta = value - peerInitialWindow;
+                        peerInitialWindow = value;
+                        for (Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > Http2Frames.MAX_WINDOW_SIZE) {
+                                throw Http2Frames.connectionError(Http2Frames.FLOW_CONTROL_ERROR, "Window overflow");
+                            }
+                        }
+                        windowOpened.signalAll();
+                    } finally {
+                        flowLock.unlock();
+                    }
+                    break;
+                case Http2Frames.SETTINGS_MAX_FRAME_SIZE:
+                    if (value < Http2Frames.DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "MAX_FRAME_SIZE " + value);
+                    }
+                    peerMaxFrameSize = value;
+                    break;
+                default:
+                    // MAX_CONCURRENT_STREAMS limits pushes, which are never sent; others are advisory
+                    break;
+            }
+        }
+    }
+    
+    private void onWindowUpdate(int streamId, int increment) throws Http2Frames.Http2Exception {
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw Http2Frames.connectionError(Http2Frames.PROTOCOL_ERROR, "Zero window increment");
+            }
+            throw new Http2Frames.Http2Exception(Http2Frames.PROTOCOL_ERROR, streamId, "Zero window increment");
+        }
+        flowLock.lock();
+        try {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > Http2Frames.MAX_WINDOW_SIZE) {
+                    throw Http2Frames.connectionError(Http2Frames.FLOW_CONTROL_ERROR, "Window overflow");
+                }
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                stream.sendWindow += increment;
+                if (stream.sendWindow > Http2Frames.MAX_WINDOW_SIZE) {
+                    throw new Http2Frames.Http2Exception(Http2Frames.FLOW_CONTROL_ERROR, streamId, "Window overflow");
+                }
+            }
+            windowOpened.signalAll();
+        } finally {
+            flowLock.unlock();
+        }
+    }
+    
+    /**
+     * Collects a request's decoded fields, checking the rules for HTTP/2
+     * requests (RFC 9113 section 8.2 and 8.3)
+     */
+    private static final class RequestBuilder implements Hpack.HeaderSink {
+        private final List<String> names = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+        private final long received = System.nanoTime();
+        private String method;
+        private String scheme;
+        private String path;
+        private String authority;
+        private String cookie;
+        private boolean regularSeen;
+        private boolean malformed;
+        // Uncompressed size as counted for SETTINGS_MAX_HEADER_LIST_SIZE
+        int size;
+        
+        @Override
+        public void header(String name, String value) {
+            size += name.length() + value.length() + 32;
+            if (size > RequestParser.DEFAULT_MAX_HEADER_SIZE) {
+                // Decoding goes on to keep the table in step; the request gets a 431
+                return;
+            }
+            if (name.startsWith(":")) {
+                malformed |= regularSeen;
+                switch (name) {
+                    case ":method":
+                        malformed |= method != null;
+                        method = value;
+                        break;
+                    case ":scheme":
+                        malformed |= scheme != null;
+                        scheme = value;
+                        break;
+                    case ":path":
+                        malformed |= path != null || value.isEmpty();
+                        path = value;
+                        break;
+                    case ":authority":
+                        malformed |= authority != null;
+                        authority = value;
+                        break;
+                    default:
+                        malformed = true;
+                        break;
+                }
+                return;
+            }
+            regularSeen = true;
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                malformed |= c >= 'A' && c <= 'Z';
+            }
+            malformed |= CONNECTION_HEADERS.contains(name) || (name.equals("te") && !value.equals("trailers"));
+            if (name.equals("cookie")) {
+                // Split into one field per crumb for compression; rejoined for the handler
+                cookie = cookie == null ? value : cookie + "; " + value;
+                return;
+            }
+            names.add(name);
+            values.add(value);
+        }
+        
+        HTTPRequest build(int streamId) throws Http2Frames.Http2Exception {
+            if (malformed || method == null || scheme == null || path == null) {
+                throw new Http2Frames.Http2Exception(Http2Frames.PROTOCOL_ERROR, streamId, "Malformed request");
+            }
+            HTTPRequest request = new HTTPRequest(method, path, HttpConstants.HTTP_2);
+            if (authority != null && !names.contains("host")) {
+                request.addHeader("host", authority);
+            }
+            for (int i = 0; i < names.size(); i++) {
+                request.addHeader(names.get(i), values.get(i));
+            }
+            if (cookie != null) {
+                request.addHeader("cookie", cookie);
+            }
+            request.setStartNanos(received);
+            return request;
+        }
+    }
+    
+    /**
+     * The request body as the handler reads it; what it takes out of the
+     * pipe is given back to the client as window
+     */
+    private InputStream bodyInput(Stream stream) {
+        InputStream pipe = stream.body.inputStream();
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = pipe.read(b, off, len);
+                if (read > 0) {
+                    consumed(stream, read);
+                }
+                return read;
+            }
+        };
+    }
+    
+    /**
+     * Reopens the stream's receive window by what left it, in batches of half the window
+     */
+    private void consumed(Stream stream, int bytes) throws IOException {
+        int increment;
+        stream.lock.lock();
+        try {
+            if (stream.remoteClosed || stream.reset) {
+                return;
+            }
+            stream.unacked += bytes;
+            if (stream.unacked < initialWindowSize / 2) {
+                return;
+            }
+            increment = stream.unacked;
+            stream.unacked = 0;
+            stream.receiveWindow += increment;
+        } finally {
+            stream.lock.unlock();
+        }
+        send(Http2Frames.windowUpdate(stream.id, increment));
+    }
+    
+    private void dispatch(Stream stream, HTTPResponse rejected) throws Http2Frames.Http2Exception {
+        int count = ++served;
+        long queued = System.nanoTime();
+        try {
+            workers.execute(() -> {
+                HTTPResponse response;
+                if (rejected != null) {
+                    response = rejected;
+                } else if (server.pastDeadline(queued)) {
+                    response = server.shed("deadline", count);
+                } else {
+                    response = server.dispatch(stream.request, clientIP, true, count);
+                }
+                respond(stream, response, queued);
+            });
+        } catch (RejectedExecutionException e) {
+            // Work queue full: the client may retry a refused stream elsewhere
+            server.getMetrics().recordShed("queue_full");
+            throw new Http2Frames.Http2Exception(Http2Frames.REFUSED_STREAM, stream.id, "Work queue full");
+        }
+    }
+    
+    /**
+     * Sends the response on the worker that produced it, then retires the stream
+     */
+    private void respond(Stream stream, HTTPResponse response, long started) {
+        try {
+            sendResponse(stream, response);
+        } catch (IOException e) {
+            if (!stream.reset && !closed) {
+                // A body that failed midway (file gone, writer threw) cuts the stream short
+                trySend(Http2Frames.rstStream(stream.id, Http2Frames.INTERNAL_ERROR));
+            }
+        } finally {
+            streams.remove(stream.id);
+            boolean unread;
+            stream.lock.lock();
+            try {
+                unread = !stream.remoteClosed && !stream.reset;
+            } finally {
+                stream.lock.unlock();
+            }
+            if (unread) {
+                // Answered before the whole body arrived: the client can stop sending it
+                trySend(Http2Frames.rstStream(stream.id, Http2Frames.NO_ERROR));
+                cancel(stream);
+            }
+            if (stream.body != null) {
+                // The handler is done with it; DATA still arriving is dropped
+                stream.body.release();
+            }
+            server.logRequest(clientIP, stream.request, response, started);
+        }
+    }
+    
+    private void sendResponse(Stream stream, HTTPResponse response) throws IOException {
+        boolean bodyAllowed = response.bodyAllowed() && !HttpConstants.HEAD.equals(stream.request.getMethod());
+        ByteBuffer memory = bodyAllowed ? response.bodyBuffer() : null;
+        boolean file = bodyAllowed && response.getBodyFile() != null;
+        boolean streaming = bodyAllowed && response instanceof StreamingResponse;
+        try {
+            writeHeaders(stream, response, memory == null && !file && !streaming);
+        } catch (IOException e) {
+            if (streaming) {
+                ((StreamingResponse) response).discard();
+            }
+            throw e;
+        }
+        
+        if (memory != null) {
+            writeData(stream, memory, true);
+        } else if (file) {
+            writeFile(stream, response);
+            writeData(stream, ByteBuffer.wrap(NO_BYTES), true);
+        } else if (streaming) {
+            StreamingResponse streamed = (StreamingResponse) response;
+            // DATA frames delimit the body; chunked coding would be part of it
+            streamed.setChunked(false);
+            DataOutputStream body = new DataOutputStream(stream);
+            streamed.writeBody(body);
+            body.end();
+        }
+    }
+    
+    private void writeHeaders(Stream stream, HTTPResponse response, boolean endStream) throws IOException {
+        output.awaitRoom();
+        writeLock.lock();
+        try {
+            checkOpen(stream);
+            ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+            encoder.encode(":status", Integer.toString(response.getStatusCode()), block);
+            for (int i = 0; i < response.headerCount(); i++) {
+                String name = response.headerName(i).toLowerCase(Locale.ROOT);
+                if (!CONNECTION_HEADERS.contains(name)) {
+                    encoder.encode(name, response.headerValue(i), block);
+                }
+            }
+            if (response.bodyAllowed() && response.hasFixedLength()) {
+                encoder.encode("content-length", Long.toString(response.getContentLength()), block);
+            }
+            
+            // Split over CONTINUATION frames if larger than a frame; they go out back to back
+            byte[] bytes = block.toByteArray();
+            int frameSize = peerMaxFrameSize;
+            int frameCount = Math.max(1, (bytes.length + frameSize - 1) / frameSize);
+            ByteBuffer[] frames = new ByteBuffer[frameCount];
+            for (int i = 0; i < frameCount; i++) {
+                int offset = i * frameSize;
+                int length = Math.min(frameSize, bytes.length - offset);
+                int flags = i == frameCount - 1 ? Http2Frames.FLAG_END_HEADERS : 0;
+                if (i == 0 && endStream) {
+                    flags |= Http2Frames.FLAG_END_STREAM;
+                }
+                frames[i] = Http2Frames.frame(i == 0 ? Http2Frames.HEADERS : Http2Frames.CONTINUATION,
+                    flags, stream.id, bytes, offset, length);
+            }
+            output.write(frames);
+        } finally {
+            writeLock.unlock();
+        }
+        output.flush();
+    }
+    
+    /**
+     * Sends the buffer as DATA frames as the windows allow; the buffer must
+     * not change until the frames are written
+     */
+    private void writeData(Stream stream, ByteBuffer data, boolean endStream) throws IOException {
+        do {
+            int length = data.hasRemaining() ? reserve(stream, data.remaining()) : 0;
+            ByteBuffer payload = data.duplicate();
+            payload.limit(payload.position() + length);
+            data.position(data.position() + length);
+            int flags = endStream && !data.hasRemaining() ? Http2Frames.FLAG_END_STREAM : 0;
+            output.awaitRoom();
+            writeLock.lock();
+            try {
+                checkOpen(stream);
+                output.write(Http2Frames.header(Http2Frames.DATA, flags, stream.id, length), payload);
+            } finally {
+                writeLock.unlock();
+            }
+            output.flush();
+        } while (data.hasRemaining());
+    }
+    
+    /**
+     * Sends the segments of a file body, reading each frame's payload straight into the frame
+     */
+    private void writeFile(Stream stream, HTTPResponse response) throws IOException {
+        try (FileChannel file = FileChannel.open(response.getBodyFile(), StandardOpenOption.READ)) {
+            for (HTTPResponse.Segment segment : response.getBodySegments()) {
+                if (!segment.isRegion()) {
+                    writeData(stream, ByteBuffer.wrap(segment.bytes), false);
+                    continue;
+                }
+                long position = segment.offset;
+                long end = segment.offset + segment.length;
+                while (position < end) {
+                    int length = reserve(stream, (int) Math.min(end - position, Integer.MAX_VALUE));
+                    ByteBuffer frame = Http2Frames.allocate(Http2Frames.DATA, 0, stream.id, length);
+                    while (frame.hasRemaining()) {
+                        if (file.read(frame, position + frame.position() - Http2Frames.HEADER_LENGTH) < 0) {
+                            throw new EOFException("File truncated while sending: " + response.getBodyFile());
+                        }
+                    }
+                    frame.flip();
+                    position += length;
+                    output.awaitRoom();
+                    writeLock.lock();
+                    try {
+                        checkOpen(stream);
+                        output.write(frame);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    output.flush();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Takes up to wanted bytes (at most a frame) of both send windows,
+     * waiting while either is closed
+     */
+    private int reserve(Stream stream, int wanted) throws IOException {
+        flowLock.lock();
+        try {
+            long deadline = 0;
+            while (true) {
+                checkOpen(stream);
+                long available = Math.min(stream.sendWindow, sendWindow);
+                if (available > 0) {
+                    int length = (int) Math.min(Math.min(wanted, available), peerMaxFrameSize);
+                    stream.sendWindow -= length;
+                    sendWindow -= length;
+                    return length;
+                }
+                long now = System.currentTimeMillis();
+                if (deadline == 0) {
+                    deadline = now + stallTimeout;
+                } else if (now >= deadline) {
+                    throw new IOException("Client kept the flow-control window closed");
+                }
+                try {
+                    windowOpened.await(deadline - now, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        } finally {
+            flowLock.unlock();
+        }
+    }
+    
+    private void checkOpen(Stream stream) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        if (stream.reset) {
+            throw new IOException("Stream reset");
+        }
+    }
+    
+    /**
+     * Streamed body as DATA frames of up to the peer's frame size; flush()
+     * sends what is buffered, end() the rest with END_STREAM
+     */
+    private final class DataOutputStream extends OutputStream {
+        private final Stream stream;
+        private byte[] buffer = new byte[peerMaxFrameSize];
+        private int count;
+        
+        DataOutputStream(Stream stream) {
+            this.stream = stream;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int copied = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, copied);
+                count += copied;
+                off += copied;
+                len -= copied;
+                if (count == buffer.length) {
+                    flush();
+                }
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                send(false);
+            }
+        }
+        
+        void end() throws IOException {
+            send(true);
+        }
+        
+        private void send(boolean endStream) throws IOException {
+            // Queued frames may still refer to the buffer, so it is not reused
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+            buffer = new byte[buffer.length];
+            count = 0;
+            writeData(stream, data, endStream);
+        }
+    }
+    
+    private void send(ByteBuffer frame) throws IOException {
+        writeLock.lock();
+        try {
+            output.write(frame);
+        } finally {
+            writeLock.unlock();
+        }
+        output.flush();
+    }
+    
+    private void trySend(ByteBuffer frame) {
+        try {
+            send(frame);
+        } catch (IOException e) {
+            // The connection is going away; nothing more to tell the client
+        }
+    }
+    
+    private void resetStream(int streamId, int errorCode) throws IOException {
+        send(Http2Frames.rstStream(streamId, errorCode));
+        Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            cancel(stream);
+        }
+    }
+    
+    /**
+     * Stops a stream's handler: reads of its body and writes of its response fail from now on
+     */
+    private void cancel(Stream stream) {
+        stream.reset = true;
+        if (stream.body != null) {
+            stream.body.fail(new IOException("Stream reset"));
+        }
+        flowLock.lock();
+        try {
+            windowOpened.signalAll();
+        } finally {
+            flowLock.unlock();
+        }
+    }
+    
+    /**
+     * Streams opened so far
+     */
+    int getServed() {
+        return served;
+    }
+    
+    /**
+     * Whether requests are still being handled or answered
+     */
+    boolean hasActiveStreams() {
+        return !streams.isEmpty();
+    }
+    
+    /**
+     * Tells the client no more streams will be accepted, before closing an idle connection
+     */
+    void goAway() {
+        trySend(Http2Frames.goAway(lastStreamId, Http2Frames.NO_ERROR, null));
+    }
+    
+    /**
+     * The transport is gone: fails every stream still in flight. Called
+     * by the reading thread, which receives nothing after it.
+     */
+    void close() {
+        closed = true;
+        output.close();
+        for (Stream stream : streams.values()) {
+            cancel(stream);
+        }
+        BufferPool.shared().release(inBuffer);
+        inBuffer = null;
+        in = NO_BYTES;
+        inStart = inEnd = 0;
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP/2 frame layout (RFC 9113 section 4): type, flag, setting and error
+ * code constants, and encoders that lay out each frame in one buffer
+ * ready to write. Every frame starts with a 9-byte header: 24-bit payload
+ * length, type, flags and a 31-bit stream id.
+ */
+final class Http2Frames {
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    static final int HEADER_LENGTH = 9;
+    
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+    
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+    
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+    
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+    
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    
+    /**
+     * A violation of the protocol, fatal to one stream or to the whole connection
+     */
+    static class Http2Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int errorCode;
+        private final int streamId;
+        
+        /**
+         * @param streamId the stream to reset, or 0 for a connection error
+         */
+        Http2Exception(int errorCode, int streamId, String message) {
+            super(message);
+            this.errorCode = errorCode;
+            this.streamId = streamId;
+        }
+        
+        int getErrorCode() {
+            return errorCode;
+        }
+        
+        int getStreamId() {
+            return streamId;
+        }
+        
+        boolean isConnectionError() {
+            return streamId == 0;
+        }
+    }
+    
+    private Http2Frames() {
+    }
+    
+    static Http2Exception connectionError(int errorCode, String message) {
+        return new Http2Exception(errorCode, 0, message);
+    }
+    
+    static Http2Exception compressionError(String message) {
+        return new Http2Exception(COMPRESSION_ERROR, 0, message);
+    }
+    
+    /**
+     * Frame with room for the payload after the header; the caller puts the
+     * payload and flips
+     */
+    static ByteBuffer allocate(int type, int flags, int streamId, int length) {
+        return putHeader(ByteBuffer.allocate(HEADER_LENGTH + length), type, flags, streamId, length);
+    }
+    
+    /**
+     * Frame header alone, for a payload sent from its own buffer
+     */
+    static ByteBuffer header(int type, int flags, int streamId, int length) {
+        return putHeader(ByteBuffer.allocate(HEADER_LENGTH), type, flags, streamId, length).flip();
+    }
+    
+    private static ByteBuffer putHeader(ByteBuffer frame, int type, int flags, int streamId, int length) {
+        frame.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+        return frame.put((byte) type).put((byte) flags).putInt(streamId & MAX_WINDOW_SIZE);
+    }
+    
+    static ByteBuffer frame(int type, int flags, int streamId, byte[] payload, int offset, int length) {
+        return allocate(type, flags, streamId, length).put(payload, offset, length).flip();
+    }
+    
+    static ByteBuffer settings(int... idsAndValues) {
+        ByteBuffer frame = allocate(SETTINGS, 0, 0, idsAndValues.length / 2 * 6);
+        for (int i = 0; i < idsAndValues.length; i += 2) {
+            frame.putShort((short) idsAndValues[i]).putInt(idsAndValues[i + 1]);
+        }
+        return frame.flip();
+    }
+    
+    static ByteBuffer settingsAck() {
+        return allocate(SETTINGS, FLAG_ACK, 0, 0).flip();
+    }
+    
+    static ByteBuffer pingAck(long payload) {
+        return allocate(PING, FLAG_ACK, 0, 8).putLong(payload).flip();
+    }
+    
+    static ByteBuffer windowUpdate(int streamId, int increment) {
+        return allocate(WINDOW_UPDATE, 0, streamId, 4).putInt(increment).flip();
+    }
+    
+    static ByteBuffer rstStream(int streamId, int errorCode) {
+        return allocate(RST_STREAM, 0, streamId, 4).putInt(errorCode).flip();
+    }
+    
+    static ByteBuffer goAway(int lastStreamId, int errorCode, String debug) {
+        byte[] data = debug == null ? new byte[0] : debug.getBytes(StandardCharsets.UTF_8);
+        return allocate(GOAWAY, 0, 0, 8 + data.length).putInt(lastStreamId).putInt(errorCode).put(data).flip();
+    }
+}
@@ -0,0 +1,121 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Interned protocol strings for the request parser
+ * Methods, versions and common header names are matched against the raw
+ * bytes and returned as shared constants, so parsing a typical request
+ * allocates no String for them.
+ */
+final class HttpConstants {
+    static final String GET = "GET";
+    static final String HEAD = "HEAD";
+    static final String POST = "POST";
+    static final String PUT = "PUT";
+    static final String PATCH = "PATCH";
+    static final String DELETE = "DELETE";
+    static final String OPTIONS = "OPTIONS";
+    
+    static final String HTTP_1_1 = "HTTP/1.1";
+    static final String HTTP_1_0 = "HTTP/1.0";
+    // Only seen in the prior-knowledge preface line; the parser serves 1.x
+    static final String HTTP_2 = "HTTP/2.0";
+    
+    private static final String[] METHODS = { GET, POST, HEAD, PUT, PATCH, DELETE, OPTIONS };
+    private static final String[] VERSIONS = { HTTP_1_1, HTTP_1_0, HTTP_2 };
+    
+    // Lowercase, as request header names are stored
+    private static final String[] HEADER_NAMES = {
+        "host", "connection", "content-length", "content-type", "accept", "accept-encoding",
+        "accept-language", "user-agent", "transfer-encoding", "cookie", "referer", "origin",
+        "cache-control", "pragma", "upgrade", "if-none-match", "if-modified-since", "range",
+        "if-range", "authorization", "expect", "keep-alive", "sec-fetch-site", "sec-fetch-mode",
+        "sec-fetch-dest", "sec-fetch-user", "upgrade-insecure-requests", "dnt", "te"
+    };
+    
+    private static final byte[][] METHOD_BYTES = bytes(METHODS);
+    private static final byte[][] VERSION_BYTES = bytes(VERSIONS);
+    private static final byte[][] HEADER_NAME_BYTES = bytes(HEADER_NAMES);
+    
+    // RFC 9110 token characters
+    private static final boolean[] TOKEN = new boolean[128];
+    
+    static {
+        String special = "!#$%&'*+-.^_`|~";
+        for (int c = 0; c < 128; c++) {
+            TOKEN[c] = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || special.indexOf(c) >= 0;
+        }
+    }
+    
+    private HttpConstants() {
+    }
+    
+    private static byte[][] bytes(String[] values) {
+        byte[][] result = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return result;
+    }
+    
+    static boolean isTokenChar(byte b) {
+        return b >= 0 && TOKEN[b];
+    }
+    
+    /**
+     * Method as a shared constant, or a new String for extension methods
+     */
+    static String method(byte[] buffer, int offset, int length) {
+        int index = find(METHOD_BYTES, buffer, offset, length, false);
+        return index >= 0 ? METHODS[index] : ascii(buffer, offset, length);
+    }
+    
+    /**
+     * HTTP/1.1, HTTP/1.0 or HTTP/2.0 constant, or null for anything else
+     */
+    static String version(byte[] buffer, int offset, int length) {
+        int index = find(VERSION_BYTES, buffer, offset, length, false);
+        return index >= 0 ? VERSIONS[index] : null;
+    }
+    
+    /**
+     * Lowercase header name, shared for common names
+     */
+    static String headerName(byte[] buffer, int offset, int length) {
+        int index = find(HEADER_NAME_BYTES, buffer, offset, length, true);
+        if (index >= 0) {
+            return HEADER_NAMES[index];
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) toLower(buffer[offset + i]);
+        }
+        return new String(chars);
+    }
+    
+    static String ascii(byte[] buffer, int offset, int length) {
+        return new String(buffer, offset, length, StandardCharsets.ISO_8859_1);
+    }
+    
+    private static int find(byte[][] candidates, byte[] buffer, int offset, int length, boolean ignoreCase) {
+        outer:
+        for (int c = 0; c < candidates.length; c++) {
+            byte[] candidate = candidates[c];
+            if (candidate.length != length) {
+                continue;
+            }
+            for (int i = 0; i < length; i++) {
+                byte b = buffer[offset + i];
+                if ((ignoreCase ? toLower(b) : b) != candidate[i]) {
+                    continue outer;
+                }
+            }
+            return c;
+        }
+        return -1;
+    }
+    
+    private static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + 32 : b;
+    }
+}
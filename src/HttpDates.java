@@ -0,0 +1,33 @@
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * HTTP-date formatting and parsing (RFC 9110 section 5.6.7)
+ */
+final class HttpDates {
+    // IMF-fixdate; RFC_1123_DATE_TIME would print single-digit days
+    private static final DateTimeFormatter IMF_FIXDATE =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    
+    private HttpDates() {
+    }
+    
+    static String format(long epochMillis) {
+        return IMF_FIXDATE.format(Instant.ofEpochMilli(epochMillis));
+    }
+    
+    /**
+     * @return milliseconds since the epoch, or -1 if the value is not a valid date
+     */
+    static long parse(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Pull parser for JSON (RFC 8259) over UTF-8 request bytes
+ * next() returns one token at a time and the caller keeps only what it
+ * needs, skipping the rest with skipValue(), so reading two fields out of
+ * a body builds no tree and no map. Strings without escapes are decoded
+ * in one call; nesting, commas and colons are checked as the tokens are
+ * read, and anything malformed ends with a JsonException naming the
+ * offset.
+ */
+public final class JsonParser {
+    private static final int MAX_DEPTH = 64;
+    
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY,
+        NAME, STRING, NUMBER, TRUE, FALSE, NULL, END_DOCUMENT
+    }
+    
+    // What may come next
+    private static final int VALUE = 0;
+    private static final int VALUE_OR_END = 1;
+    private static final int NAME_OR_END = 2;
+    private static final int NAME = 3;
+    private static final int COMMA_OR_END = 4;
+    private static final int DONE = 5;
+    
+    /**
+     * Malformed JSON
+     */
+    public static class JsonException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        public JsonException(String message, int offset) {
+            super(message + " at offset " + offset);
+        }
+    }
+    
+    private final byte[] input;
+    private final int start;
+    private final int limit;
+    private int position;
+    private int state = VALUE;
+    // Per open container: true for an object, false for an array
+    private boolean[] objects = new boolean[8];
+    private int depth;
+    private String text;
+    
+    public JsonParser(byte[] input) {
+        this(input, 0, input.length);
+    }
+    
+    public JsonParser(byte[] input, int offset, int length) {
+        this.input = input;
+        this.start = offset;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+    
+    /**
+     * Advances to the next token
+     * @return END_DOCUMENT once the top-level value is complete
+     */
+    public Token next() throws JsonException {
+        text = null;
+        skipWhitespace();
+        switch (state) {
+            case DONE:
+                if (position < limit) {
+                    throw error("Unexpected data after the document");
+                }
+                return Token.END_DOCUMENT;
+            case COMMA_OR_END:
+                if (position < limit && input[position] == ',') {
+                    position++;
+                    state = objects[depth - 1] ? NAME : VALUE;
+                    return next();
+                }
+                return end();
+            case NAME_OR_END:
+                if (position < limit && input[position] == '}') {
+                    return end();
+                }
+                return name();
+            case NAME:
+                return name();
+            case VALUE_OR_END:
+                if (position < limit && input[position] == ']') {
+                    return end();
+                }
+                return value();
+            default:
+                return value();
+        }
+    }
+    
+    /**
+     * Decoded text of the last NAME, STRING or NUMBER token
+     */
+    public String getString() {
+        return text;
+    }
+    
+    /**
+     * The last NUMBER token as a long
+     */
+    public long getLong() throws JsonException {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw error("Not an integer: " + text);
+        }
+    }
+    
+    /**
+     * Reads the next token, which must be a string
+     */
+    public String nextString() throws JsonException {
+        if (next() != Token.STRING) {
+            throw error("Expected a string");
+        }
+        return text;
+    }
+    
+    /**
+     * Skips the value that follows a NAME, or the rest of the container
+     * just opened when called after BEGIN_OBJECT or BEGIN_ARRAY
+     */
+    public void skipValue() throws JsonException {
+        int target = depth;
+        if (state == VALUE) {
+            Token token = next();
+            if (token != Token.BEGIN_OBJECT && token != Token.BEGIN_ARRAY) {
+                return;
+            }
+        } else {
+            target--;
+        }
+        while (depth > target) {
+            if (next() == Token.END_DOCUMENT) {
+                return;
+            }
+        }
+    }
+    
+    private Token name() throws JsonException {
+        if (position >= limit || input[position] != '"') {
+            throw error("Expected a member name");
+        }
+        text = readString();
+        skipWhitespace();
+        if (position >= limit || input[position] != ':') {
+            throw error("Expected ':'");
+        }
+        position++;
+        state = VALUE;
+        return Token.NAME;
+    }
+    
+    private Token end() throws JsonException {
+        if (position >= limit) {
+            throw error("Unexpected end of input");
+        }
+        byte b = input[position];
+        boolean object = objects[depth - 1];
+        if (b != (object ? '}' : ']')) {
+            throw error(object ? "Expected ',' or '}'" : "Expected ',' or ']'");
+        }
+        position++;
+        depth--;
+        afterValue();
+        return object ? Token.END_OBJECT : Token.END_ARRAY;
+    }
+    
+    private Token value() throws JsonException {
+        if (position >= limit) {
+            throw error("Unexpected end of input");
+        }
+        byte b = input[position];
+        switch (b) {
+            case '{':
+                position++;
+                push(true);
+                state = NAME_OR_END;
+                return Token.BEGIN_OBJECT;
+            case '[':
+                position++;
+                push(false);
+                state = VALUE_OR_END;
+                return Token.BEGIN_ARRAY;
+            case '"':
+                text = readString();
+                afterValue();
+                return Token.STRING;
+            case 't':
+                literal("true");
+                return Token.TRUE;
+            case 'f':
+                literal("false");
+                return Token.FALSE;
+            case 'n':
+                literal("null");
+                return Token.NULL;
+            default:
+                if (b == '-' || (b >= '0' && b <= '9')) {
+                    text = readNumber();
+                    afterValue();
+                    return Token.NUMBER;
+                }
+                throw error("Unexpected character");
+        }
+    }
+    
+    private void push(boolean object) throws JsonException {
+        if (depth == MAX_DEPTH) {
+            throw error("Nested too deeply");
+        }
+        if (depth == objects.length) {
+            objects = Arrays.copyOf(objects, depth * 2);
+        }
+        objects[depth++] = object;
+    }
+    
+    private void afterValue() {
+        state = depth == 0 ? DONE : COMMA_OR_END;
+    }
+    
+    private void literal(String word) throws JsonException {
+        int length = word.length();
+        if (limit - position < length) {
+            throw error("Unexpected end of input");
+        }
+        for (int i = 0; i < length; i++) {
+            if (input[position + i] != word.charAt(i)) {
+                throw error("Invalid literal");
+            }
+        }
+        position += length;
+        afterValue();
+    }
+    
+    private String readNumber() throws JsonException {
+        int begin = position;
+        if (input[position] == '-') {
+            position++;
+        }
+        if (position < limit && input[position] == '0') {
+            position++;
+        } else if (digits() == 0) {
+            throw error("Invalid number");
+        }
+        if (position < limit && input[position] == '.') {
+            position++;
+            if (digits() == 0) {
+                throw error("Invalid number");
+            }
+        }
+        if (position < limit && (input[position] == 'e' || input[position] == 'E')) {
+            position++;
+            if (position < limit && (input[position] == '+' || input[position] == '-')) {
+                position++;
+            }
+            if (digits() == 0) {
+                throw error("Invalid number");
+            }
+        }
+        return new String(input, begin, position - begin, StandardCharsets.US_ASCII);
+    }
+    
+    private int digits() {
+        int begin = position;
+        while (position < limit && input[position] >= '0' && input[position] <= '9') {
+            position++;
+        }
+        return position - begin;
+    }
+    
+    /**
+     * Reads a string whose opening quote is at the current position
+     */
+    private String readString() throws JsonException {
+        int begin = ++position;
+        while (position < limit) {
+            byte b = input[position];
+            if (b == '"') {
+                return new String(input, begin, position++ - begin, StandardCharsets.UTF_8);
+            }
+            if (b == '\\') {
+                return readEscapedString(begin);
+            }
+            if ((b & 0xff) < 0x20) {
+                throw error("Control character in string");
+            }
+            position++;
+        }
+        throw error("Unterminated string");
+    }
+    
+    private String readEscapedString(int begin) throws JsonException {
+        StringBuilder out = new StringBuilder(position - begin + 16);
+        out.append(new String(input, begin, position - begin, StandardCharsets.UTF_8));
+        int run = position;
+        while (position < limit) {
+            byte b = input[position];
+            if (b == '"' || b == '\\') {
+                if (position > run) {
+                    out.append(new String(input, run, position - run, StandardCharsets.UTF_8));
+                }
+                if (b == '"') {
+                    position++;
+                    return out.toString();
+                }
+                if (++position >= limit) {
+                    break;
+                }
+                byte escape = input[position++];
+                switch (escape) {
+                    case '"': out.append('"'); break;
+                    case '\\': out.append('\\'); break;
+                    case '/': out.append('/'); break;
+                    case 'b': out.append('\b'); break;
+                    case 'f': out.append('\f'); break;
+                    case 'n': out.append('\n'); break;
+                    case 'r': out.append('\r'); break;
+                    case 't': out.append('\t'); break;
+                    case 'u': out.append(readHex()); break;
+                    default: throw error("Invalid escape");
+                }
+                run = position;
+            } else if ((b & 0xff) < 0x20) {
+                throw error("Control character in string");
+            } else {
+                position++;
+            }
+        }
+        throw error("Unterminated string");
+    }
+    
+    private char readHex() throws JsonException {
+        if (limit - position < 4) {
+            throw error("Invalid escape");
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(input[position++], 16);
+            if (digit < 0) {
+                throw error("Invalid escape");
+            }
+            value = value << 4 | digit;
+        }
+        return (char) value;
+    }
+    
+    private void skipWhitespace() {
+        while (position < limit) {
+            byte b = input[position];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return;
+            }
+            position++;
+        }
+    }
+    
+    private JsonException error(String message) {
+        return new JsonException(message, position - start);
+    }
+}
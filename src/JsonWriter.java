@@ -0,0 +1,226 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming JSON writer producing UTF-8 bytes
+ * Tokens are encoded straight into one growable byte array, which becomes
+ * the response body without a copy (toByteBuffer), so serializing costs
+ * no intermediate Strings or format parsing. Commas between members are
+ * inserted from a per-level flag; strings are escaped as RFC 8259
+ * requires, so client-supplied text can never break the document.
+ *
+ * The writer checks nesting only; calls are expected in a valid order,
+ * e.g. out.beginObject().name("id").value(1).endObject().
+ */
+public final class JsonWriter {
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    
+    private byte[] bytes;
+    private int count;
+    // Per open container: whether a member has been written, so the next needs a comma
+    private boolean[] hasMember = new boolean[8];
+    private int depth;
+    private boolean afterName;
+    
+    public JsonWriter() {
+        this(256);
+    }
+    
+    public JsonWriter(int capacity) {
+        this.bytes = new byte[Math.max(16, capacity)];
+    }
+    
+    public JsonWriter beginObject() {
+        beforeValue();
+        write('{');
+        push();
+        return this;
+    }
+    
+    public JsonWriter endObject() {
+        pop();
+        write('}');
+        return this;
+    }
+    
+    public JsonWriter beginArray() {
+        beforeValue();
+        write('[');
+        push();
+        return this;
+    }
+    
+    public JsonWriter endArray() {
+        pop();
+        write(']');
+        return this;
+    }
+    
+    /**
+     * Member name; the next call writes its value
+     */
+    public JsonWriter name(String name) {
+        separate();
+        writeString(name);
+        write(':');
+        afterName = true;
+        return this;
+    }
+    
+    public JsonWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        writeString(value);
+        return this;
+    }
+    
+    public JsonWriter value(long value) {
+        beforeValue();
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return this;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int i = count + digits - 1; i >= count; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+        return this;
+    }
+    
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+    
+    public JsonWriter nullValue() {
+        beforeValue();
+        writeAscii("null");
+        return this;
+    }
+    
+    /**
+     * The document so far, backed by the writer's array
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(bytes, 0, count);
+    }
+    
+    public int size() {
+        return count;
+    }
+    
+    private void push() {
+        if (depth == hasMember.length) {
+            hasMember = Arrays.copyOf(hasMember, depth * 2);
+        }
+        hasMember[depth++] = false;
+    }
+    
+    private void pop() {
+        if (depth == 0) {
+            throw new IllegalStateException("No open object or array");
+        }
+        depth--;
+        afterName = false;
+    }
+    
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+        } else {
+            separate();
+        }
+    }
+    
+    private void separate() {
+        if (depth > 0) {
+            if (hasMember[depth - 1]) {
+                write(',');
+            }
+            hasMember[depth - 1] = true;
+        }
+    }
+    
+    private void writeString(String value) {
+        int length = value.length();
+        write('"');
+        for (int i = 0; i < length; i++) {
+            // Room for the longest encoding of one char, a six-byte escape
+            ensure(6);
+            char c = value.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                bytes[count++] = (byte) c;
+            } else if (c < 0x80) {
+                writeEscape(c);
+            } else if (c < 0x800) {
+                bytes[count++] = (byte) (0xc0 | c >> 6);
+                bytes[count++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                bytes[count++] = (byte) (0xf0 | codePoint >> 18);
+                bytes[count++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                bytes[count++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                bytes[count++] = (byte) (0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate: not encodable as UTF-8, but valid as an escape
+                writeEscape(c);
+            } else {
+                bytes[count++] = (byte) (0xe0 | c >> 12);
+                bytes[count++] = (byte) (0x80 | c >> 6 & 0x3f);
+                bytes[count++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        write('"');
+    }
+    
+    private void writeEscape(char c) {
+        bytes[count++] = '\\';
+        switch (c) {
+            case '"': bytes[count++] = '"'; return;
+            case '\\': bytes[count++] = '\\'; return;
+            case '\n': bytes[count++] = 'n'; return;
+            case '\r': bytes[count++] = 'r'; return;
+            case '\t': bytes[count++] = 't'; return;
+            case '\b': bytes[count++] = 'b'; return;
+            case '\f': bytes[count++] = 'f'; return;
+            default:
+                bytes[count++] = 'u';
+                bytes[count++] = HEX[c >> 12 & 0xf];
+                bytes[count++] = HEX[c >> 8 & 0xf];
+                bytes[count++] = HEX[c >> 4 & 0xf];
+                bytes[count++] = HEX[c & 0xf];
+        }
+    }
+    
+    private void writeAscii(String text) {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            bytes[count++] = (byte) text.charAt(i);
+        }
+    }
+    
+    private void write(char c) {
+        ensure(1);
+        bytes[count++] = (byte) c;
+    }
+    
+    private void ensure(int extra) {
+        if (bytes.length - count < extra) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + extra));
+        }
+    }
+}
@@ -0,0 +1,442 @@
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request metrics in Prometheus text format
+ * Counters are striped LongAdders, per route pattern and status class.
+ * Phase latencies (parse, handle, send) go into log-linear histograms: 16
+ * sub-buckets per power of two, so any recorded value is reported within
+ * about 6%, with one atomic increment per sample and no locks. Quantiles
+ * are computed from the buckets only when /metrics is scraped.
+ */
+public class Metrics {
+    public static final String PARSE = "parse";
+    public static final String HANDLE = "handle";
+    public static final String SEND = "send";
+    
+    private static final String[] STATUS_CLASSES = { "1xx", "2xx", "3xx", "4xx", "5xx" };
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    // Requests that matched no route pattern: static files and 404s
+    private static final String NO_ROUTE = "static";
+    
+    private final ConcurrentHashMap<String, LongAdder[]> requests = new ConcurrentHashMap<>();
+    private final Histogram parse = new Histogram();
+    private final Histogram handle = new Histogram();
+    private final Histogram send = new Histogram();
+    private final LongAdder openConnections = new LongAdder();
+    private final LongAdder connectionsTotal = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> shed = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> tlsHandshakes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> responseCache = new ConcurrentHashMap<>();
+    private final LongAdder openWebSockets = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> webSocketsClosed = new ConcurrentHashMap<>();
+    // Per upstream: responses by status class, then requests that got none
+    private final ConcurrentHashMap<String, LongAdder[]> proxyRequests = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> proxyConnections = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> proxyEjections = new ConcurrentHashMap<>();
+    private final List<ExecutorService> executors = new CopyOnWriteArrayList<>();
+    
+    /**
+     * Lock-free log-linear histogram of nanosecond values
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+        
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(index(value));
+            sum.add(value);
+        }
+        
+        /**
+         * Values below 16 get a bucket each; above that, 16 buckets per power of two
+         */
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BITS;
+            return ((shift + 1) << SUB_BITS) | (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+        
+        /**
+         * Largest value that falls into the bucket
+         */
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = (index >>> SUB_BITS) - 1;
+            long lower = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+            return lower + (1L << shift) - 1;
+        }
+        
+        /**
+         * Point-in-time copy; concurrent records may or may not be included
+         */
+        long[] snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+            }
+            return copy;
+        }
+        
+        long sum() {
+            return sum.sum();
+        }
+    }
+    
+    public void recordRequest(String routePattern, int statusCode, long handleNanos) {
+        String route = routePattern != null ? routePattern : NO_ROUTE;
+        LongAdder[] byClass = requests.get(route);
+        if (byClass == null) {
+            byClass = requests.computeIfAbsent(route, key -> newCounters());
+        }
+        int statusClass = statusCode / 100 - 1;
+        if (statusClass >= 0 && statusClass < byClass.length) {
+            byClass[statusClass].increment();
+        }
+        handle.record(handleNanos);
+    }
+    
+    private static LongAdder[] newCounters() {
+        return newCounters(STATUS_CLASSES.length);
+    }
+    
+    private static LongAdder[] newCounters(int length) {
+        LongAdder[] counters = new LongAdder[length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+    
+    /**
+     * Time from the first byte of a request until it was fully parsed
+     */
+    public void recordParse(long nanos) {
+        parse.record(nanos);
+    }
+    
+    /**
+     * Time to write the response to the socket
+     */
+    public void recordSend(long nanos) {
+        send.record(nanos);
+    }
+    
+    public void recordParseError() {
+        parseErrors.increment();
+    }
+    
+    /**
+     * Work turned away before being handled, e.g. "queue_full", "deadline" or "client_limit"
+     */
+    public void recordShed(String reason) {
+        shed.computeIfAbsent(reason, key -> new LongAdder()).increment();
+    }
+    
+    /**
+     * TLS handshake outcome: "full", "resumed" or "failed"
+     */
+    public void recordTlsHandshake(String result) {
+        tlsHandshakes.computeIfAbsent(result, key -> new LongAdder()).increment();
+    }
+    
+    /**
+     * Response cache lookup: "hit", "miss" or "coalesced" (waited for another request's miss)
+     */
+    public void recordResponseCache(String result) {
+        responseCache.computeIfAbsent(result, key -> new LongAdder()).increment();
+    }
+    
+    public void webSocketOpened() {
+        openWebSockets.increment();
+    }
+    
+    /**
+     * WebSocket session ended: "closed" (closing handshake), "abnormal",
+     * "protocol_error", "slow_consumer", "idle", "error" or "shutdown"
+     */
+    public void webSocketClosed(String reason) {
+        openWebSockets.decrement();
+        webSocketsClosed.computeIfAbsent(reason, key -> new LongAdder()).increment();
+    }
+    
+    /**
+     * Request forwarded to an upstream, by the status it answered with, or 0 if it gave no response
+     */
+    public void recordProxyRequest(String upstream, int statusCode) {
+        LongAdder[] byClass = proxyRequests.get(upstream);
+        if (byClass == null) {
+            byClass = proxyRequests.computeIfAbsent(upstream, key -> newCounters(STATUS_CLASSES.length + 1));
+        }
+        int statusClass = statusCode / 100 - 1;
+        byClass[statusClass >= 0 && statusClass < STATUS_CLASSES.length ? statusClass : STATUS_CLASSES.length].increment();
+    }
+    
+    /**
+     * New connection to an upstream, when none was idle in its pool
+     */
+    public void recordProxyConnection(String upstream) {
+        proxyConnections.computeIfAbsent(upstream, key -> new LongAdder()).increment();
+    }
+    
+    /**
+     * Upstream taken out of rotation after consecutive failures
+     */
+    public void recordProxyEjection(String upstream) {
+        proxyEjections.computeIfAbsent(upstream, key -> new LongAdder()).increment();
+    }
+    
+    public void connectionOpened() {
+        openConnections.increment();
+        connectionsTotal.increment();
+    }
+    
+    public void connectionClosed() {
+        openConnections.decrement();
+    }
+    
+    /**
+     * Executor whose queue length and active threads are reported, summed
+     * over all added; gauges are only available for a ThreadPoolExecutor
+     */
+    public void addExecutor(ExecutorService executor) {
+        executors.add(executor);
+    }
+    
+    /**
+     * All metrics in the Prometheus text exposition format (version 0.0.4)
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        
+        out.append("# HELP http_requests_total Requests handled, by route pattern and status class.\n");
+        out.append("# TYPE http_requests_total counter\n");
+        List<String> routes = new ArrayList<>(requests.keySet());
+        Collections.sort(routes);
+        for (String route : routes) {
+            LongAdder[] byClass = requests.get(route);
+            for (int i = 0; i < byClass.length; i++) {
+                long count = byClass[i].sum();
+                if (count > 0) {
+                    out.append("http_requests_total{route=\"").append(escape(route))
+                        .append("\",code=\"").append(STATUS_CLASSES[i]).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+        
+        out.append("# HELP http_request_duration_seconds Latency of each phase of a request.\n");
+        out.append("# TYPE http_request_duration_seconds summary\n");
+        appendSummary(out, PARSE, parse);
+        appendSummary(out, HANDLE, handle);
+        appendSummary(out, SEND, send);
+        
+        appendMetric(out, "http_parse_errors_total", "counter", "Requests rejected as malformed or too large.", parseErrors.sum());
+        out.append("# HELP http_requests_shed_total Work rejected by admission control, by reason.\n");
+        out.append("# TYPE http_requests_shed_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(shed).entrySet()) {
+            out.append("http_requests_shed_total{reason=\"").append(entry.getKey()).append("\"} ")
+                .append(entry.getValue().sum()).append('\n');
+        }
+        if (!tlsHandshakes.isEmpty()) {
+            out.append("# HELP tls_handshakes_total TLS handshakes, by result (full, resumed or failed).\n");
+            out.append("# TYPE tls_handshakes_total counter\n");
+            for (Map.Entry<String, LongAdder> entry : new TreeMap<>(tlsHandshakes).entrySet()) {
+                out.append("tls_handshakes_total{result=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+            }
+        }
+        if (!responseCache.isEmpty()) {
+            out.append("# HELP http_response_cache_total Cacheable API requests, by result (hit, miss or coalesced).\n");
+            out.append("# TYPE http_response_cache_total counter\n");
+            for (Map.Entry<String, LongAdder> entry : new TreeMap<>(responseCache).entrySet()) {
+                out.append("http_response_cache_total{result=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+            }
+        }
+        appendMetric(out, "http_connections_open", "gauge", "Client connections currently open.", openConnections.sum());
+        appendMetric(out, "http_connections_total", "counter", "Client connections accepted.", connectionsTotal.sum());
+        appendMetric(out, "websocket_sessions_open", "gauge", "WebSocket connections currently open.", openWebSockets.sum());
+        if (!webSocketsClosed.isEmpty()) {
+            out.append("# HELP websocket_sessions_closed_total WebSocket connections ended, by reason.\n");
+            out.append("# TYPE websocket_sessions_closed_total counter\n");
+            for (Map.Entry<String, LongAdder> entry : new TreeMap<>(webSocketsClosed).entrySet()) {
+                out.append("websocket_sessions_closed_total{reason=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+            }
+        }
+        if (!proxyRequests.isEmpty()) {
+            out.append("# HELP proxy_upstream_requests_total Requests forwarded, by upstream and status class (error: no response).\n");
+            out.append("# TYPE proxy_upstream_requests_total counter\n");
+            for (Map.Entry<String, LongAdder[]> entry : new TreeMap<>(proxyRequests).entrySet()) {
+                LongAdder[] byClass = entry.getValue();
+                for (int i = 0; i < byClass.length; i++) {
+                    long count = byClass[i].sum();
+                    if (count > 0) {
+                        out.append("proxy_upstream_requests_total{upstream=\"").append(escape(entry.getKey()))
+                            .append("\",code=\"").append(i < STATUS_CLASSES.length ? STATUS_CLASSES[i] : "error")
+                            .append("\"} ").append(count).append('\n');
+                    }
+                }
+            }
+            appendByUpstream(out, "proxy_upstream_connections_opened_total",
+                "Connections opened to each upstream; the rest of its requests reused pooled ones.", proxyConnections);
+            appendByUpstream(out, "proxy_upstream_ejections_total",
+                "Times each upstream was ejected after consecutive failures.", proxyEjections);
+        }
+        
+        long queued = 0;
+        long active = 0;
+        long poolSize = 0;
+        boolean pools = false;
+        for (ExecutorService executor : executors) {
+            if (executor instanceof ThreadPoolExecutor) {
+                ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+                queued += pool.getQueue().size();
+                active += pool.getActiveCount();
+                poolSize += pool.getPoolSize();
+                pools = true;
+            }
+        }
+        if (pools) {
+            appendMetric(out, "executor_queue_length", "gauge", "Tasks waiting for a worker thread.", queued);
+            appendMetric(out, "executor_active_threads", "gauge", "Worker threads running a task.", active);
+            appendMetric(out, "executor_pool_size", "gauge", "Worker threads in the pool.", poolSize);
+        }
+        
+        BufferPool buffers = BufferPool.shared();
+        appendByKind(out, "buffer_pool_acquired_total", "I/O buffers borrowed from the pool, by kind.",
+            buffers.getAcquired(false), buffers.getAcquired(true));
+        appendByKind(out, "buffer_pool_allocated_total", "Borrowed buffers the pool had to allocate, by kind.",
+            buffers.getAllocated(false), buffers.getAllocated(true));
+        appendMetric(out, "buffer_pool_idle_bytes", "gauge",
+            "Bytes waiting in the pool's shared stacks, not counting per-thread caches.", buffers.getIdleBytes());
+        appendMetric(out, "buffer_pool_double_releases_total", "counter",
+            "Releases of a buffer that was already back in the pool; each is a bug, reported on stderr.",
+            buffers.getDoubleReleases());
+        if (buffers.isLeakDetection()) {
+            appendMetric(out, "buffer_pool_leaks_total", "counter",
+                "Pooled buffers garbage collected without having been released.", buffers.getLeaks());
+        }
+        appendJvm(out);
+        return out.toString();
+    }
+    
+    /**
+     * Garbage collections, allocation and buffer memory, to tell what the
+     * server's allocation rate costs
+     */
+    private static void appendJvm(StringBuilder out) {
+        List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        out.append("# HELP jvm_gc_collections_total Garbage collections, by collector.\n");
+        out.append("# TYPE jvm_gc_collections_total counter\n");
+        for (GarbageCollectorMXBean collector : collectors) {
+            out.append("jvm_gc_collections_total{gc=\"").append(escape(collector.getName())).append("\"} ")
+                .append(collector.getCollectionCount()).append('\n');
+        }
+        out.append("# HELP jvm_gc_collection_seconds_total Time spent in garbage collections, by collector.\n");
+        out.append("# TYPE jvm_gc_collection_seconds_total counter\n");
+        for (GarbageCollectorMXBean collector : collectors) {
+            out.append("jvm_gc_collection_seconds_total{gc=\"").append(escape(collector.getName())).append("\"} ")
+                .append(collector.getCollectionTime() / 1000.0).append('\n');
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+            if (allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled()) {
+                long allocated = 0;
+                for (long bytes : allocation.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+                    // -1 for a thread that ended meanwhile
+                    allocated += Math.max(0, bytes);
+                }
+                appendMetric(out, "jvm_threads_allocated_bytes", "gauge",
+                    "Heap bytes allocated by the platform threads alive now; a thread's share goes when it ends.",
+                    allocated);
+            }
+        }
+        out.append("# HELP jvm_buffer_memory_used_bytes Memory used by direct and mapped buffers.\n");
+        out.append("# TYPE jvm_buffer_memory_used_bytes gauge\n");
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            out.append("jvm_buffer_memory_used_bytes{pool=\"").append(escape(pool.getName())).append("\"} ")
+                .append(pool.getMemoryUsed()).append('\n');
+        }
+    }
+    
+    private static void appendSummary(StringBuilder out, String phase, Histogram histogram) {
+        long[] counts = histogram.snapshot();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        for (double quantile : QUANTILES) {
+            out.append("http_request_duration_seconds{phase=\"").append(phase)
+                .append("\",quantile=\"").append(quantile).append("\"} ");
+            if (total == 0) {
+                out.append("NaN\n");
+                continue;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    out.append(seconds(Histogram.upperBound(i))).append('\n');
+                    break;
+                }
+            }
+        }
+        out.append("http_request_duration_seconds_sum{phase=\"").append(phase).append("\"} ")
+            .append(seconds(histogram.sum())).append('\n');
+        out.append("http_request_duration_seconds_count{phase=\"").append(phase).append("\"} ")
+            .append(total).append('\n');
+    }
+    
+    private static void appendByUpstream(StringBuilder out, String name, String help, Map<String, LongAdder> counts) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counts).entrySet()) {
+            out.append(name).append("{upstream=\"").append(escape(entry.getKey())).append("\"} ")
+                .append(entry.getValue().sum()).append('\n');
+        }
+    }
+    
+    private static void appendByKind(StringBuilder out, String name, String help, long heap, long direct) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append("{kind=\"heap\"} ").append(heap).append('\n');
+        out.append(name).append("{kind=\"direct\"} ").append(direct).append('\n');
+    }
+    
+    private static void appendMetric(StringBuilder out, String name, String type, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+    
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+    
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,973 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Non-blocking connection engine
+ * An acceptor hands connections to N reactor threads, each running its own
+ * Selector. Reactors read into a reusable buffer, parse requests as the bytes
+ * arrive and hand complete requests to the server's worker pool, so idle or
+ * slow clients no longer hold a worker thread. Request bodies and streamed
+ * responses pass between the reactor and the worker through a bounded
+ * pipe, and the reactor stops reading (or writing) while it is full (or
+ * empty), so memory per connection stays fixed whatever the payload size.
+ * With TLS each connection reads and writes through a non-blocking
+ * TlsChannel; the handshake runs on the reactor, with its expensive
+ * delegated tasks handed to the worker pool, so it never stalls the
+ * acceptor or the other connections. A connection that switches to
+ * HTTP/2 (through ALPN, prior knowledge or an h2c upgrade) is fed to an
+ * Http2Connection instead of the parser; its frames are queued for the
+ * reactor to write, and workers answering streams wait while the queue
+ * is full.
+ */
+public class NioEngine {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int HEAD_BUFFER_SIZE = 512;
+    private static final int BODY_PIPE_SIZE = 64 * 1024;
+    // HTTP/2 frames queued for the socket: workers wait above this, reading pauses well above it
+    private static final int HTTP2_QUEUE_LIMIT = 256 * 1024;
+    private static final int HTTP2_READ_PAUSE = 4 * HTTP2_QUEUE_LIMIT;
+    private static final long SELECT_TIMEOUT = 1000;
+    
+    private final HTTPServer server;
+    private final ServerConfig config;
+    private final ExecutorService workers;
+    private final Reactor[] reactors;
+    private final int shard;
+    private final boolean sharded;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+    
+    /**
+     * @param shard index of this engine's shard, out of shards; with more
+     * than one, each has its own listener and a share of the reactor threads
+     */
+    public NioEngine(HTTPServer server, ServerConfig config, ExecutorService workers, int shard, int shards) {
+        this.server = server;
+        this.config = config;
+        this.workers = workers;
+        this.shard = shard;
+        this.sharded = shards > 1;
+        this.reactors = new Reactor[Math.max(1, config.getReactorThreads() / shards)];
+    }
+    
+    public void bind(int backlog) throws IOException {
+        serverChannel = HTTPServer.openListener(config.getPort(), backlog, sharded);
+        
+        running = true;
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+            Thread thread = new Thread(reactors[i], "nio-reactor-" + (sharded ? shard + "-" : "") + i);
+            thread.start();
+        }
+    }
+    
+    public int getReactorCount() {
+        return reactors.length;
+    }
+    
+    /**
+     * Accepts connections until stopped, spreading them round-robin over the reactors
+     */
+    public void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                reactors[next].register(channel);
+                next = (next + 1) % reactors.length;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    public void stop() {
+        running = false;
+        closeQuietly(serverChannel);
+        for (Reactor reactor : reactors) {
+            if (reactor != null) {
+                reactor.selector.wakeup();
+            }
+        }
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing useful to do
+        }
+    }
+    
+    /**
+     * Event loop owning a selector and every connection registered with it.
+     * All connection state is only touched from this thread; workers hand
+     * results back through the task queue.
+     */
+    private final class Reactor implements Runnable {
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        // Decoded request body bytes on their way from the parser into a pipe
+        private final byte[] bodyBuffer = new byte[READ_BUFFER_SIZE];
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        
+        Reactor() throws IOException {
+            this.selector = Selector.open();
+        }
+        
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                } catch (IOException e) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+        
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+        
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (running) {
+                try {
+                    selector.select(SELECT_TIMEOUT);
+                    
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (connection == null || !key.isValid()) {
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                    
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= SELECT_TIMEOUT) {
+                        closeIdle(now);
+                        lastSweep = now;
+                    }
+                } catch (IOException e) {
+                    System.err.println("Reactor error: " + e.getMessage());
+                }
+            }
+            
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            closeQuietly(selector);
+        }
+        
+        private void closeIdle(long now) {
+            List<Connection> idle = new ArrayList<>();
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && connection.isIdle(now)) {
+                    idle.add(connection);
+                }
+            }
+            for (Connection connection : idle) {
+                connection.expire();
+            }
+        }
+    }
+    
+    /**
+     * Per-connection state: partially received bytes, the request in flight
+     * and the response being written. Requests on one connection are handled
+     * one at a time, so pipelined requests are answered in order.
+     */
+    private final class Connection {
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final String clientIP;
+        // Null for plaintext; otherwise everything goes through it
+        private final TlsChannel tls;
+        private final GatheringByteChannel output;
+        
+        // Holds received but not yet consumed bytes and resumes mid-request
+        private final RequestParser parser = new RequestParser();
+        
+        // Reused for every response head; only touched by the one worker
+        // handling the request in flight, or by the reactor once it is done
+        private ByteBuffer headBuffer = BufferPool.shared().acquire(HEAD_BUFFER_SIZE);
+        private PendingWrite outbound;
+        // Body of the request in flight while it is still arriving
+        private BodyPipe requestBody;
+        // Its pipe, kept until the response is written and nothing reads it any more
+        private BodyPipe requestPipe;
+        private boolean inFlight;
+        private int served;
+        private long lastActivity = System.currentTimeMillis();
+        private boolean closed;
+        // Set once the connection switches to HTTP/2; the parser is done with then
+        private Http2Connection http2;
+        private Http2Output http2Output;
+        private boolean protocolChecked;
+        private boolean readPaused;
+        
+        Connection(Reactor reactor, SocketChannel channel, SelectionKey key) throws IOException {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.key = key;
+            this.clientIP = remoteAddress(channel);
+            TlsContext tlsContext = server.getTlsContext();
+            this.tls = tlsContext == null ? null : new TlsChannel(tlsContext.newEngine(), channel, channel,
+                workers, () -> reactor.execute(this::resumeHandshake), server.getMetrics());
+            this.output = tls != null ? tls : channel;
+            server.getMetrics().connectionOpened();
+        }
+        
+        void onReadable() throws IOException {
+            ByteBuffer buffer = reactor.readBuffer;
+            buffer.clear();
+            int read = tls != null ? tls.read(buffer) : channel.read(buffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            if (tls != null && outbound == null && tls.hasPendingOutput()) {
+                // Handshake records the socket did not take yet
+                setInterest(SelectionKey.OP_WRITE, true);
+            }
+            if (tls != null && !protocolChecked && tls.isHandshakeComplete()) {
+                protocolChecked = true;
+                if (Http2Connection.ALPN_PROTOCOL.equals(tls.getApplicationProtocol())) {
+                    startHttp2(0, null, null);
+                }
+            }
+            if (read == 0) {
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            buffer.flip();
+            if (http2 != null) {
+                http2.receive(buffer);
+                flushHttp2();
+                if (tls != null && tls.hasBufferedInput()) {
+                    reactor.execute(this::resumeRead);
+                }
+                return;
+            }
+            parser.feed(buffer);
+            if (requestBody != null) {
+                pumpBody();
+                return;
+            }
+            processPending();
+        }
+        
+        void onWritable() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            if (http2 != null) {
+                flushHttp2();
+                return;
+            }
+            if (outbound == null) {
+                // Only TLS records were waiting: handshake messages or an interim response
+                if (tls == null || tls.flush()) {
+                    setInterest(SelectionKey.OP_WRITE, false);
+                    resumeRead();
+                }
+                return;
+            }
+            if (!outbound.writeTo(output) || (tls != null && !tls.flush())) {
+                // Wait for the socket to drain, or for the worker to stream more
+                setInterest(SelectionKey.OP_WRITE, outbound.isBlocked() || (tls != null && tls.hasPendingOutput()));
+                return;
+            }
+            
+            PendingWrite done = outbound;
+            outbound = null;
+            inFlight = false;
+            done.release();
+            releaseRequestPipe();
+            server.getMetrics().recordSend(System.nanoTime() - done.created);
+            if (done.upgrade != null) {
+                handOff(done.upgrade);
+                return;
+            }
+            // A body the handler left unread is skipped if it is all here; otherwise
+            // the connection closes rather than wait for the rest of it
+            if (done.close || !parser.skipBufferedBody()) {
+                close();
+                return;
+            }
+            setInterest(SelectionKey.OP_WRITE, false);
+            processPending();
+        }
+        
+        /**
+         * Gives the socket to the WebSocket hub once the 101 has gone out.
+         * The connection counts as closed here, so callbacks still queued
+         * for it do nothing, but the socket stays open.
+         */
+        private void handOff(WebSocketUpgrade upgrade) {
+            closed = true;
+            key.attach(null);
+            key.cancel();
+            releaseHeadBuffer();
+            try {
+                upgrade.adopt(channel, tls, parser.takeBuffered());
+            } catch (IOException e) {
+                server.getMetrics().connectionClosed();
+                closeQuietly(tls != null ? tls : channel);
+            }
+        }
+        
+        private void setInterest(int op, boolean on) {
+            int ops = key.interestOps();
+            key.interestOps(on ? ops | op : ops & ~op);
+        }
+        
+        /**
+         * Turns reading on or off. Input the TlsChannel has already taken
+         * off the socket raises no selector event, so it is picked up
+         * through the task queue instead.
+         */
+        private void setReadInterest(boolean on) {
+            setInterest(SelectionKey.OP_READ, on);
+            if (on && tls != null && tls.hasBufferedInput()) {
+                reactor.execute(this::resumeRead);
+            }
+        }
+        
+        /**
+         * Dispatches the next complete request, if any, and sets the interest ops
+         * for what the connection is waiting on next
+         */
+        private void processPending() throws IOException {
+            if (inFlight) {
+                return;
+            }
+            
+            HTTPRequest request;
+            try {
+                request = parser.next();
+            } catch (RequestParser.ParseException e) {
+                reject(e.getStatusCode(), e.getStatusMessage());
+                return;
+            }
+            if (request == null) {
+                setInterest(SelectionKey.OP_WRITE, tls != null && tls.hasPendingOutput());
+                setReadInterest(true);
+                return;
+            }
+            if (HttpConstants.HTTP_2.equals(request.getVersion())) {
+                // Prior knowledge: the line was the start of the HTTP/2 preface
+                if (config.isHttp2() && Http2Connection.isPreface(request)) {
+                    startHttp2(Http2Connection.PREFACE_REQUEST_LINE, null, null);
+                } else {
+                    reject(505, "HTTP Version Not Supported");
+                }
+                return;
+            }
+            byte[] upgradeSettings = config.isHttp2() && tls == null && !parser.inBody()
+                ? Http2Connection.upgradeSettings(request) : null;
+            if (upgradeSettings != null) {
+                served++;
+                startHttp2(0, request, upgradeSettings);
+                return;
+            }
+            if (parser.inBody()) {
+                startBody(request);
+            }
+            dispatch(request);
+            if (requestBody != null) {
+                pumpBody();
+            }
+        }
+        
+        /**
+         * Hands the connection to HTTP/2, with whatever the parser read past the switch
+         */
+        private void startHttp2(int prefaceMatched, HTTPRequest upgrade, byte[] upgradeSettings) throws IOException {
+            http2Output = new Http2Output(reactor, this::resumeHttp2);
+            http2 = new Http2Connection(server, config, workers, http2Output, clientIP);
+            http2.start(prefaceMatched, upgrade, upgradeSettings);
+            byte[] buffered = parser.takeBuffered();
+            if (buffered.length > 0) {
+                http2.receive(ByteBuffer.wrap(buffered));
+            }
+            flushHttp2();
+            setReadInterest(true);
+        }
+        
+        /**
+         * Writes queued HTTP/2 frames as far as the socket takes them, and
+         * stops reading while a client that does not read lets them pile up
+         */
+        private void flushHttp2() throws IOException {
+            boolean drained = http2Output.drainTo(output) && (tls == null || tls.flush());
+            setInterest(SelectionKey.OP_WRITE, !drained);
+            boolean pause = http2Output.queued() > HTTP2_READ_PAUSE;
+            if (pause != readPaused) {
+                readPaused = pause;
+                setReadInterest(!pause);
+            }
+        }
+        
+        private void resumeHttp2() {
+            if (!closed) {
+                try {
+                    flushHttp2();
+                } catch (IOException | CancelledKeyException e) {
+                    close();
+                }
+            }
+        }
+        
+        private void startBody(HTTPRequest request) {
+            requestBody = new BodyPipe(BODY_PIPE_SIZE, () -> reactor.execute(this::resumeBody));
+            requestPipe = requestBody;
+            RequestBody body = new RequestBody(requestBody.inputStream(), parser.getMaxBodySize());
+            if (RequestBody.expectsContinue(request)) {
+                body.setContinueSender(() -> reactor.execute(this::sendContinue));
+            }
+            request.setBody(body);
+        }
+        
+        /**
+         * Moves decoded body bytes from the parser into the pipe, reading
+         * from the socket only while the pipe has room
+         */
+        private void pumpBody() {
+            BodyPipe pipe = requestBody;
+            try {
+                while (true) {
+                    int space = pipe.space();
+                    if (space == 0) {
+                        // Resumed by resumeBody once the worker has read half of it
+                        setInterest(SelectionKey.OP_READ, false);
+                        return;
+                    }
+                    int decoded = parser.readBody(reactor.bodyBuffer, 0, Math.min(space, reactor.bodyBuffer.length));
+                    if (decoded < 0) {
+                        pipe.close();
+                        requestBody = null;
+                        setInterest(SelectionKey.OP_READ, false);
+                        return;
+                    }
+                    if (decoded == 0) {
+                        setReadInterest(true);
+                        return;
+                    }
+                    pipe.offer(reactor.bodyBuffer, 0, decoded);
+                }
+            } catch (RequestParser.ParseException e) {
+                // The handler sees the error; the connection closes after its response
+                pipe.fail(e);
+                requestBody = null;
+                setInterest(SelectionKey.OP_READ, false);
+            }
+        }
+        
+        private void resumeBody() {
+            if (requestBody != null && !closed) {
+                try {
+                    pumpBody();
+                } catch (CancelledKeyException e) {
+                    close();
+                }
+            }
+        }
+        
+        private void resumeRead() {
+            if (!closed && (key.interestOps() & SelectionKey.OP_READ) != 0) {
+                try {
+                    onReadable();
+                } catch (IOException | CancelledKeyException e) {
+                    close();
+                }
+            }
+        }
+        
+        /**
+         * Continues the TLS handshake once a worker has run its delegated tasks
+         */
+        private void resumeHandshake() {
+            if (!closed) {
+                try {
+                    onReadable();
+                } catch (IOException | CancelledKeyException e) {
+                    close();
+                }
+            }
+        }
+        
+        private void resumeWrite() {
+            if (outbound != null && !closed) {
+                try {
+                    onWritable();
+                } catch (IOException | CancelledKeyException e) {
+                    close();
+                }
+            }
+        }
+        
+        /**
+         * Writes the interim 100 Continue straight to the socket. Nothing
+         * else is being written while the request is handled, so the send
+         * buffer has room; a short write means the client is not reading.
+         * (Through TLS the record is taken whole and any rest goes out on OP_WRITE.)
+         */
+        private void sendContinue() {
+            if (closed || outbound != null) {
+                return;
+            }
+            try {
+                ByteBuffer interim = ByteBuffer.wrap(RequestBody.CONTINUE);
+                output.write(interim);
+                if (interim.hasRemaining()) {
+                    close();
+                } else if (tls != null && tls.hasPendingOutput()) {
+                    setInterest(SelectionKey.OP_WRITE, true);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+        
+        private void dispatch(HTTPRequest request) {
+            inFlight = true;
+            served++;
+            int count = served;
+            long started = System.nanoTime();
+            key.interestOps(0);
+            
+            try {
+                workers.execute(() -> {
+                    HTTPResponse response = server.pastDeadline(started)
+                        ? server.shed("deadline", count)
+                        : server.dispatch(request, clientIP, server.shouldKeepAlive(request, count), count);
+                    if (response instanceof StreamingResponse) {
+                        stream(request, (StreamingResponse) response);
+                        server.logRequest(clientIP, request, response, started);
+                        return;
+                    }
+                    HTTPServer.settleContinue(request, response);
+                    PendingWrite pending;
+                    try {
+                        pending = PendingWrite.of(response, headBuffer, !HTTPServer.keepsAlive(response));
+                    } catch (IOException e) {
+                        // File body vanished between lookup and open
+                        response = HTTPResponse.internalError();
+                        server.setConnectionHeaders(response, false, count);
+                        pending = PendingWrite.of(response.toBytes(), true);
+                    }
+                    if (response instanceof WebSocketUpgrade) {
+                        pending.upgrade = (WebSocketUpgrade) response;
+                    }
+                    server.logRequest(clientIP, request, response, started);
+                    PendingWrite write = pending;
+                    reactor.execute(() -> write(write));
+                });
+            } catch (RejectedExecutionException e) {
+                // Work queue full: answer 503 from the reactor and close
+                write(PendingWrite.of(server.shed("queue_full", count).toBytes(), true));
+            }
+        }
+        
+        /**
+         * Runs the body writer on this worker thread, feeding the reactor
+         * through a pipe; writes block while the client is slow to read
+         */
+        private void stream(HTTPRequest request, StreamingResponse response) {
+            BodyPipe pipe = new BodyPipe(BODY_PIPE_SIZE, () -> reactor.execute(this::resumeWrite));
+            headBuffer.clear();
+            PendingWrite write = PendingWrite.streaming(response.encodeHead(headBuffer), pipe,
+                !HTTPServer.keepsAlive(response));
+            HTTPServer.settleContinue(request, response);
+            reactor.execute(() -> write(write));
+            try {
+                response.writeBody(pipe.outputStream());
+                pipe.close();
+            } catch (IOException e) {
+                // The reactor sends what is buffered, then closes the connection mid-body
+                pipe.fail(e);
+            }
+        }
+        
+        private void reject(int statusCode, String statusMessage) {
+            server.getMetrics().recordParseError();
+            inFlight = true;
+            HTTPResponse response = HTTPResponse.error(statusCode, statusMessage);
+            server.setConnectionHeaders(response, false, served);
+            write(PendingWrite.of(response.toBytes(), true));
+        }
+        
+        private void write(PendingWrite write) {
+            if (!channel.isOpen()) {
+                write.release();
+                // The worker is done with the head buffer that close() left to it
+                releaseHeadBuffer();
+                return;
+            }
+            outbound = write;
+            try {
+                onWritable();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+        
+        /**
+         * Idle between requests, or stalled on a client that stopped sending
+         * its body or reading the response; a busy handler is never idle
+         */
+        boolean isIdle(long now) {
+            if (http2 != null) {
+                return !http2.hasActiveStreams() && now - lastActivity > config.getKeepAliveTimeout();
+            }
+            boolean waitingOnClient = !inFlight
+                || (key.isValid() && (key.interestOps() & (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) != 0);
+            return waitingOnClient && now - lastActivity > config.getKeepAliveTimeout();
+        }
+        
+        /**
+         * Closes an idle connection, telling an HTTP/2 client first
+         */
+        void expire() {
+            if (http2 != null) {
+                http2.goAway();
+            }
+            close();
+        }
+        
+        void close() {
+            if (!closed) {
+                closed = true;
+                server.getMetrics().connectionClosed();
+            }
+            if (http2 != null) {
+                try {
+                    // A GOAWAY queued last, if the socket takes it
+                    http2Output.drainTo(output);
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+                // Closes the output too, waking workers waiting for room
+                http2.close();
+            }
+            if (requestBody != null) {
+                requestBody.fail(new EOFException("Connection closed mid-body"));
+                requestBody = null;
+            }
+            releaseRequestPipe();
+            key.cancel();
+            // Through TLS, a close_notify first if the socket takes it
+            closeQuietly(tls != null ? tls : channel);
+            parser.release();
+            // A worker still answering encodes into the head buffer; write() returns it then
+            if (!inFlight || outbound != null) {
+                releaseHeadBuffer();
+            }
+            if (outbound != null) {
+                outbound.release();
+                outbound = null;
+            }
+        }
+        
+        private void releaseHeadBuffer() {
+            BufferPool.shared().release(headBuffer);
+            headBuffer = null;
+        }
+        
+        private void releaseRequestPipe() {
+            if (requestPipe != null) {
+                requestPipe.release();
+                requestPipe = null;
+                requestBody = null;
+            }
+        }
+    }
+    
+    /**
+     * HTTP/2 frames on their way from the connection's workers (and its
+     * reactor) to the socket, written by the reactor alone
+     */
+    private final class Http2Output implements Http2Connection.Output {
+        private final Reactor reactor;
+        private final Runnable flush;
+        private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+        private final ByteBuffer[] batch = new ByteBuffer[64];
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition room = lock.newCondition();
+        private long queued;
+        private boolean scheduled;
+        private boolean closed;
+        
+        Http2Output(Reactor reactor, Runnable flush) {
+            this.reactor = reactor;
+            this.flush = flush;
+        }
+        
+        @Override
+        public void awaitRoom() throws IOException {
+            lock.lock();
+            try {
+                while (queued > HTTP2_QUEUE_LIMIT && !closed) {
+                    try {
+                        room.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public void write(ByteBuffer... buffers) throws IOException {
+            boolean schedule;
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                for (ByteBuffer buffer : buffers) {
+                    frames.add(buffer);
+                    queued += buffer.remaining();
+                }
+                schedule = !scheduled;
+                scheduled = true;
+            } finally {
+                lock.unlock();
+            }
+            if (schedule) {
+                reactor.execute(flush);
+            }
+        }
+        
+        @Override
+        public void flush() {
+            // The reactor writes what write() scheduled
+        }
+        
+        /**
+         * Writes as much as the channel accepts without blocking
+         * @return true once nothing is left queued
+         */
+        boolean drainTo(GatheringByteChannel channel) throws IOException {
+            lock.lock();
+            try {
+                scheduled = false;
+                while (!frames.isEmpty()) {
+                    int count = 0;
+                    for (ByteBuffer frame : frames) {
+                        batch[count++] = frame;
+                        if (count == batch.length) {
+                            break;
+                        }
+                    }
+                    long written = channel.write(batch, 0, count);
+                    Arrays.fill(batch, 0, count, null);
+                    queued -= written;
+                    while (!frames.isEmpty() && !frames.peekFirst().hasRemaining()) {
+                        frames.pollFirst();
+                    }
+                    if (written == 0) {
+                        break;
+                    }
+                }
+                if (queued <= HTTP2_QUEUE_LIMIT) {
+                    room.signalAll();
+                }
+                return frames.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        long queued() {
+            lock.lock();
+            try {
+                return queued;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                frames.clear();
+                room.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * A response ready to go out: the head and any in-memory body are sent
+     * with one gathering write, then the segments of a file body (file
+     * regions with transferTo, boundaries from memory) or a streamed body
+     * from its pipe, resuming wherever the socket buffer filled up
+     */
+    private static final class PendingWrite {
+        private static final HTTPResponse.Segment[] NO_SEGMENTS = new HTTPResponse.Segment[0];
+        
+        private final ByteBuffer[] buffers;
+        private final FileChannel file;
+        private final HTTPResponse.Segment[] segments;
+        private int segment;
+        private long position;
+        private ByteBuffer segmentBytes;
+        private BodyPipe stream;
+        // Set for a 101 to WebSocket: the socket goes to the hub once this is written
+        WebSocketUpgrade upgrade;
+        final boolean close;
+        final long created = System.nanoTime();
+        
+        private PendingWrite(ByteBuffer[] buffers, FileChannel file, HTTPResponse.Segment[] segments, boolean close) {
+            this.buffers = buffers;
+            this.file = file;
+            this.segments = segments;
+            this.close = close;
+            if (segments.length > 0) {
+                position = segments[0].offset;
+            }
+        }
+        
+        static PendingWrite of(byte[] bytes, boolean close) {
+            return new PendingWrite(new ByteBuffer[] { ByteBuffer.wrap(bytes) }, null, NO_SEGMENTS, close);
+        }
+        
+        static PendingWrite streaming(ByteBuffer head, BodyPipe stream, boolean close) {
+            PendingWrite write = new PendingWrite(new ByteBuffer[] { head }, null, NO_SEGMENTS, close);
+            write.stream = stream;
+            return write;
+        }
+        
+        static PendingWrite of(HTTPResponse response, ByteBuffer headBuffer, boolean close) throws IOException {
+            headBuffer.clear();
+            ByteBuffer head = response.encodeHead(headBuffer);
+            ByteBuffer body = response.bodyBuffer();
+            if (body != null) {
+                return new PendingWrite(new ByteBuffer[] { head, body }, null, NO_SEGMENTS, close);
+            }
+            if (response.getBodyFile() != null) {
+                FileChannel file = FileChannel.open(response.getBodyFile(), StandardOpenOption.READ);
+                return new PendingWrite(new ByteBuffer[] { head }, file, response.getBodySegments(), close);
+            }
+            return new PendingWrite(new ByteBuffer[] { head }, null, NO_SEGMENTS, close);
+        }
+        
+        /**
+         * Writes as much as the socket accepts without blocking
+         * @return true once the whole response has been written
+         */
+        boolean writeTo(GatheringByteChannel channel) throws IOException {
+            ByteBuffer last = buffers[buffers.length - 1];
+            if (last.hasRemaining()) {
+                channel.write(buffers);
+                if (last.hasRemaining()) {
+                    return false;
+                }
+            }
+            while (segment < segments.length) {
+                HTTPResponse.Segment current = segments[segment];
+                if (current.isRegion()) {
+                    long end = current.offset + current.length;
+                    while (position < end) {
+                        long sent = file.transferTo(position, end - position, channel);
+                        if (sent <= 0) {
+                            if (position >= file.size()) {
+                                throw new EOFException("File truncated while sending");
+                            }
+                            return false;
+                        }
+                        position += sent;
+                    }
+                } else {
+                    if (segmentBytes == null) {
+                        segmentBytes = ByteBuffer.wrap(current.bytes);
+                    }
+                    channel.write(segmentBytes);
+                    if (segmentBytes.hasRemaining()) {
+                        return false;
+                    }
+                    segmentBytes = null;
+                }
+                if (++segment < segments.length) {
+                    position = segments[segment].offset;
+                }
+            }
+            return stream == null || stream.drainTo(channel);
+        }
+        
+        /**
+         * After writeTo returned false: true if the socket is full, false if
+         * a streamed body is waiting on its producer
+         */
+        boolean isBlocked() {
+            return buffers[buffers.length - 1].hasRemaining() || segment < segments.length
+                || stream == null || stream.available() > 0;
+        }
+        
+        void release() {
+            closeQuietly(file);
+            if (stream != null) {
+                // Unblocks a producer still writing to a closed connection
+                stream.fail(new IOException("Connection closed"));
+                stream.release();
+            }
+        }
+    }
+    
+    private static String remoteAddress(SocketChannel channel) {
+        try {
+            SocketAddress address = channel.getRemoteAddress();
+            if (address instanceof InetSocketAddress) {
+                return ((InetSocketAddress) address).getAddress().getHostAddress();
+            }
+        } catch (IOException e) {
+            // Fall through
+        }
+        return "unknown";
+    }
+}
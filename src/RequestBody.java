@@ -0,0 +1,147 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Body of a request as a stream
+ * Bytes are decoded from Content-Length or chunked framing as the handler
+ * reads them, so an upload of any size passes through a fixed amount of
+ * memory. Reads block until the client sends more, and the client can
+ * only send as fast as the handler reads: TCP flow control (or the NIO
+ * engine's bounded pipe) provides the backpressure.
+ */
+public class RequestBody extends InputStream {
+    static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int CHUNK_SIZE = 8192;
+    
+    /**
+     * Writes the interim 100 Continue a client waits for before sending its body
+     */
+    @FunctionalInterface
+    interface ContinueSender {
+        void sendContinue() throws IOException;
+    }
+    
+    private final InputStream source;
+    private final int maxBuffered;
+    private ContinueSender continueSender;
+    private long received;
+    private boolean finished;
+    
+    /**
+     * @param maxBuffered largest body readFully() will hold in memory
+     */
+    RequestBody(InputStream source, int maxBuffered) {
+        this.source = source;
+        this.maxBuffered = maxBuffered;
+    }
+    
+    static RequestBody empty() {
+        return new RequestBody(InputStream.nullInputStream(), 0);
+    }
+    
+    /**
+     * Whether the client holds its body back until told to go ahead
+     */
+    static boolean expectsContinue(HTTPRequest request) {
+        String expect = request.getHeader("expect");
+        return expect != null && expect.trim().equalsIgnoreCase("100-continue")
+            && HttpConstants.HTTP_1_1.equals(request.getVersion());
+    }
+    
+    /**
+     * Arms the 100 Continue, sent on the first read
+     */
+    void setContinueSender(ContinueSender sender) {
+        this.continueSender = sender;
+    }
+    
+    /**
+     * Sends a pending 100 Continue now, ahead of a final response whose
+     * producer may still read the body
+     */
+    void sendPendingContinue() throws IOException {
+        ContinueSender sender = continueSender;
+        continueSender = null;
+        if (sender != null) {
+            sender.sendContinue();
+        }
+    }
+    
+    /**
+     * Drops a pending 100 Continue: once the final response has started, it
+     * would arrive out of order, and the client sends the body or not on its own
+     */
+    void cancelContinue() {
+        continueSender = null;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        sendPendingContinue();
+        int read = source.read(b, off, len);
+        if (read < 0) {
+            finished = true;
+        } else {
+            received += read;
+        }
+        return read;
+    }
+    
+    /**
+     * Reads the rest of the body into memory
+     * @throws RequestParser.ParseException 413 if it is larger than the buffering limit
+     */
+    public byte[] readFully() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        ByteBuffer borrowed = BufferPool.shared().acquire(CHUNK_SIZE);
+        byte[] chunk = borrowed.array();
+        try {
+            int read;
+            while ((read = read(chunk, 0, CHUNK_SIZE)) != -1) {
+                if (out.size() + read > maxBuffered) {
+                    throw new RequestParser.ParseException(413, "Payload Too Large");
+                }
+                out.write(chunk, 0, read);
+            }
+        } finally {
+            BufferPool.shared().release(borrowed);
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * The body as a channel, for handlers that work with ByteBuffers
+     */
+    public ReadableByteChannel channel() {
+        return Channels.newChannel(this);
+    }
+    
+    /**
+     * Whether the end of the body has been read
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+    
+    /**
+     * Body bytes read so far
+     */
+    public long getReceived() {
+        return received;
+    }
+}
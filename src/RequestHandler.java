@@ -1,6 +1,9 @@
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.file.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.lang.management.ManagementFactory;
 
 /**
@@ -9,33 +12,155 @@ import java.lang.management.ManagementFactory;
  */
 public class RequestHandler {
     private static final String STATIC_DIR = "public";
-    private final Map<String, Route> routes;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+    private final Router router;
+    private final StaticFileCache fileCache;
+    private final ContentEncoder contentEncoder;
+    private final ResponseCache responseCache;
+    private final long responseCacheTtl;
+    private final UserStore users;
+    private final UserLog userLog;
+    private final WebSocketHub webSockets;
+    private final List<ReverseProxy> proxies;
+    private final Metrics metrics;
+    private final Path uploadDir;
+    private final long uploadMaxBytes;
     
     public RequestHandler() {
-        this.routes = new HashMap<>();
+        this(new ServerConfig());
+    }
+    
+    public RequestHandler(ServerConfig config) {
+        this(config, new Metrics());
+    }
+    
+    public RequestHandler(ServerConfig config, Metrics metrics) {
+        this.metrics = metrics;
+        this.router = new Router();
+        this.fileCache = new StaticFileCache(config.getStaticCacheBytes(), config.getStaticCacheMaxFileSize());
+        this.uploadDir = Paths.get(config.getUploadDir());
+        this.uploadMaxBytes = config.getUploadMaxBytes();
+        this.contentEncoder = config.isCompression()
+            ? new ContentEncoder(config.getCompressionLevel(), config.getCompressionMinSize(), config.getCompressionCacheBytes())
+            : null;
+        this.responseCache = config.isResponseCache()
+            ? new ResponseCache(config.getResponseCacheBytes(), metrics)
+            : null;
+        this.responseCacheTtl = config.getResponseCacheTtl();
+        // Messages a client sends on /api/events are echoed back to it
+        this.webSockets = new WebSocketHub(config, metrics, (session, opcode, payload) -> session.send(opcode, payload));
+        this.proxies = ReverseProxy.fromConfig(config, metrics);
+        
+        // In-memory user storage, optionally backed by a durable log
+        this.users = new UserStore();
+        this.userLog = openUserLog(config, users);
+        if (users.size() == 0) {
+            users.create("Alice", "alice@example.com");
+            users.create("Bob", "bob@example.com");
+        }
+        
         registerRoutes();
     }
     
+    private static UserLog openUserLog(ServerConfig config, UserStore users) {
+        if (config.getUserDataDir() == null) {
+            return null;
+        }
+        try {
+            long started = System.nanoTime();
+            UserLog log = new UserLog(Paths.get(config.getUserDataDir()),
+                config.getUserLogGroupCommit(), config.getUserLogSnapshotInterval());
+            int recovered = log.recover(users);
+            users.setLog(log);
+            System.out.printf("Recovered %d users from %s in %d ms%n", recovered,
+                config.getUserDataDir(), (System.nanoTime() - started) / 1_000_000);
+            return log;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open user log in " + config.getUserDataDir(), e);
+        }
+    }
+    
+    /**
+     * Closes WebSocket sessions and idle upstream connections, and flushes pending user log writes
+     */
+    public void close() {
+        webSockets.close();
+        for (ReverseProxy proxy : proxies) {
+            proxy.close();
+        }
+        if (userLog != null) {
+            userLog.close();
+        }
+    }
+    
     private void registerRoutes() {
         // API endpoints
-        routes.put("GET:/api/status", this::handleStatus);
-        routes.put("GET:/api/echo", this::handleEcho);
-        routes.put("POST:/api/echo", this::handleEchoPost);
-        routes.put("GET:/api/users", this::handleGetUsers);
-        routes.put("POST:/api/users", this::handleCreateUser);
+        // Not cached: uptime, memory and connection counts change between requests
+        router.add("GET", "/api/status", this::handleStatus);
+        router.add("GET", "/metrics", this::handleMetrics);
+        router.add("GET", "/api/echo", this::handleEcho);
+        router.add("POST", "/api/echo", this::handleEchoPost);
+        router.add("PUT", "/api/echo", this::handleEchoStream);
+        router.add("GET", "/api/users", cached(this::handleGetUsers));
+        router.add("POST", "/api/users", this::handleCreateUser);
+        router.add("GET", "/api/users/{id}", cached(this::handleGetUser));
+        router.add("GET", "/api/events", this::handleEvents);
+        router.add("PUT", "/api/uploads/{name}", this::handleUpload);
+        router.add("PATCH", "/api/uploads/{name}", this::handleUpload);
+        
+        // Proxied prefixes; routes above win where they overlap
+        for (ReverseProxy proxy : proxies) {
+            for (String method : ReverseProxy.METHODS) {
+                router.add(method, proxy.getPattern(), proxy);
+            }
+        }
+    }
+    
+    /**
+     * Serves a route through the response cache, if enabled. Its responses
+     * may depend only on the method, path and query: they are cached
+     * content-encoded, per negotiated encoding.
+     */
+    private Route cached(Route route) {
+        if (responseCache == null) {
+            return route;
+        }
+        return request -> {
+            String encoding = contentEncoder != null
+                ? ContentEncoder.negotiate(request.getHeader("accept-encoding"))
+                : null;
+            return responseCache.get(request, encoding, responseCacheTtl, r -> encode(r, route.handle(r)));
+        };
     }
     
     public HTTPResponse handle(HTTPRequest request) {
-        String routeKey = request.getMethod() + ":" + request.getPath();
-        
+        // Cached routes come back encoded already; encoding skips those with a Content-Encoding
+        return encode(request, route(request));
+    }
+    
+    private HTTPResponse encode(HTTPRequest request, HTTPResponse response) {
+        if (contentEncoder != null) {
+            contentEncoder.encode(request, response);
+        }
+        return response;
+    }
+    
+    private HTTPResponse route(HTTPRequest request) {
         // Check for API route
-        if (routes.containsKey(routeKey)) {
-            return routes.get(routeKey).handle(request);
+        Router.Endpoint endpoint = router.find(request.getPath());
+        if (endpoint != null) {
+            request.setEndpoint(endpoint);
+            Route route = endpoint.route(request.getMethod());
+            if (route == null) {
+                return HTTPResponse.methodNotAllowed(endpoint.getAllow());
+            }
+            return route.handle(request);
         }
         
         // Try to serve static file
         if ("GET".equalsIgnoreCase(request.getMethod())) {
-            return serveStaticFile(request.getPath());
+            return serveStaticFile(request, request.getPath());
         }
         
         return HTTPResponse.notFound();
@@ -48,12 +173,36 @@ public class RequestHandler {
         long totalMemory = Runtime.getRuntime().totalMemory();
         long freeMemory = Runtime.getRuntime().freeMemory();
         
-        String json = String.format(
-            "{\"status\":\"running\",\"uptime\":%d,\"processors\":%d,\"memory\":{\"total\":%d,\"free\":%d}}",
-            uptime, availableProcessors, totalMemory, freeMemory
-        );
-        
-        return HTTPResponse.json(json);
+        JsonWriter out = new JsonWriter()
+            .beginObject()
+            .name("status").value("running")
+            .name("uptime").value(uptime)
+            .name("processors").value(availableProcessors)
+            .name("memory").beginObject()
+                .name("total").value(totalMemory)
+                .name("free").value(freeMemory)
+            .endObject();
+        writeCompressionStats(out);
+        return HTTPResponse.json(out.endObject().toByteBuffer());
+    }
+    
+    private HTTPResponse handleMetrics(HTTPRequest request) {
+        HTTPResponse response = new HTTPResponse(200, "OK");
+        response.setHeader("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
+        response.setBody(metrics.toPrometheus());
+        return response;
+    }
+    
+    private void writeCompressionStats(JsonWriter out) {
+        if (contentEncoder == null) {
+            return;
+        }
+        out.name("compression").beginObject()
+            .name("bytesIn").value(contentEncoder.getBytesIn())
+            .name("bytesOut").value(contentEncoder.getBytesOut())
+            .name("cpuMillis").value(contentEncoder.getCompressNanos() / 1_000_000)
+            .name("cacheHits").value(contentEncoder.getCacheHits())
+            .endObject();
     }
     
     private HTTPResponse handleEcho(HTTPRequest request) {
@@ -62,8 +211,7 @@ public class RequestHandler {
             message = "Hello from the server!";
         }
         
-        String json = String.format("{\"echo\":\"%s\"}", message);
-        return HTTPResponse.json(json);
+        return HTTPResponse.json(new JsonWriter().beginObject().name("echo").value(message).endObject().toByteBuffer());
     }
     
     private HTTPResponse handleEchoPost(HTTPRequest request) {
@@ -72,46 +220,231 @@ public class RequestHandler {
             return HTTPResponse.badRequest("No body provided");
         }
         
-        String json = String.format("{\"received\":\"%s\"}", body);
-        return HTTPResponse.json(json);
+        return HTTPResponse.json(new JsonWriter(body.length() + 16)
+            .beginObject().name("received").value(body).endObject().toByteBuffer());
     }
     
-    // Simple in-memory user storage (for demonstration)
-    private static final List<User> users = new ArrayList<>();
-    private static int nextUserId = 1;
+    /**
+     * WebSocket handshake (RFC 6455 section 4.2) for the event stream:
+     * subscribers are sent {"type":"user.created","user":{...}} for every
+     * new user
+     */
+    private HTTPResponse handleEvents(HTTPRequest request) {
+        if (!HttpConstants.HTTP_1_1.equals(request.getVersion())
+                || !hasToken(request.getHeader("upgrade"), "websocket")
+                || !hasToken(request.getHeader("connection"), "upgrade")) {
+            HTTPResponse response = HTTPResponse.error(426, "Upgrade Required");
+            response.setHeader("Upgrade", "websocket");
+            return response;
+        }
+        if (!WebSocketFrames.VERSION.equals(request.getHeader("sec-websocket-version"))) {
+            HTTPResponse response = HTTPResponse.error(426, "Upgrade Required");
+            response.setHeader("Sec-WebSocket-Version", WebSocketFrames.VERSION);
+            return response;
+        }
+        String key = request.getHeader("sec-websocket-key");
+        if (!WebSocketFrames.isValidKey(key)) {
+            return HTTPResponse.badRequest("Invalid Sec-WebSocket-Key");
+        }
+        return new WebSocketUpgrade(webSockets, WebSocketFrames.acceptKey(key.trim()));
+    }
+    
+    /**
+     * Whether a comma-separated header value lists the token, ignoring case
+     */
+    private static boolean hasToken(String value, String token) {
+        if (value == null) {
+            return false;
+        }
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Streams the body straight back as it arrives, in chunks
+     */
+    private HTTPResponse handleEchoStream(HTTPRequest request) {
+        RequestBody body = request.getBodyStream();
+        StreamingResponse response = new StreamingResponse(200, "OK", body::transferTo);
+        String contentType = request.getHeader("content-type");
+        response.setHeader("Content-Type", contentType != null ? contentType : "application/octet-stream");
+        return response;
+    }
+    
+    /**
+     * PUT stores the body as a new version of the file, PATCH appends it.
+     * The body is copied to disk as it arrives, so uploads of any size use
+     * one fixed buffer.
+     */
+    private HTTPResponse handleUpload(HTTPRequest request) {
+        String name = request.getPathParam("name");
+        if (name == null || !name.matches("[A-Za-z0-9_-][A-Za-z0-9._-]{0,254}")) {
+            return HTTPResponse.badRequest("Invalid file name");
+        }
+        long declared = request.getContentLength();
+        if (declared > uploadMaxBytes) {
+            return HTTPResponse.error(413, "Payload Too Large");
+        }
+        
+        Path target = uploadDir.resolve(name);
+        boolean append = "PATCH".equals(request.getMethod());
+        try {
+            long received;
+            boolean created = !Files.exists(target);
+            if (append) {
+                if (created) {
+                    return HTTPResponse.notFound();
+                }
+                try (OutputStream out = Files.newOutputStream(target, StandardOpenOption.APPEND)) {
+                    received = copyUpload(request.getBodyStream(), out, uploadMaxBytes - Files.size(target));
+                }
+            } else {
+                // Written beside the target and moved into place, so no one sees a partial file
+                Files.createDirectories(uploadDir);
+                Path tmp = Files.createTempFile(uploadDir, ".upload-", ".tmp");
+                try {
+                    try (OutputStream out = Files.newOutputStream(tmp)) {
+                        received = copyUpload(request.getBodyStream(), out, uploadMaxBytes);
+                    }
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+            
+            HTTPResponse response = created ? new HTTPResponse(201, "Created") : new HTTPResponse(200, "OK");
+            response.setHeader("Content-Type", "application/json");
+            response.setBody(new JsonWriter().beginObject()
+                .name("name").value(name)
+                .name("received").value(received)
+                .name("size").value(Files.size(target))
+                .endObject().toByteBuffer());
+            return response;
+        } catch (RequestParser.ParseException e) {
+            return HTTPResponse.error(e.getStatusCode(), e.getStatusMessage());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
     
-    static {
-        users.add(new User(nextUserId++, "Alice", "alice@example.com"));
-        users.add(new User(nextUserId++, "Bob", "bob@example.com"));
+    /**
+     * Copies the body to the file
+     * @return bytes copied
+     * @throws RequestParser.ParseException 413 once more than limit bytes arrive
+     */
+    private static long copyUpload(RequestBody body, OutputStream out, long limit) throws IOException {
+        ByteBuffer borrowed = BufferPool.shared().acquire(UPLOAD_BUFFER_SIZE);
+        byte[] buffer = borrowed.array();
+        long copied = 0;
+        int read;
+        try {
+            while ((read = body.read(buffer, 0, UPLOAD_BUFFER_SIZE)) != -1) {
+                copied += read;
+                if (copied > limit) {
+                    throw new RequestParser.ParseException(413, "Payload Too Large");
+                }
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            BufferPool.shared().release(borrowed);
+        }
+        return copied;
     }
     
     private HTTPResponse handleGetUsers(HTTPRequest request) {
-        StringBuilder json = new StringBuilder("[");
-        for (int i = 0; i < users.size(); i++) {
-            if (i > 0) json.append(",");
-            json.append(users.get(i).toJson());
+        UserStore.Snapshot snapshot = users.snapshot();
+        String offsetParam = request.getQueryParam("offset");
+        String limitParam = request.getQueryParam("limit");
+        if (offsetParam == null && limitParam == null) {
+            return HTTPResponse.json(snapshot.toJson());
+        }
+        
+        int offset;
+        int limit;
+        try {
+            offset = offsetParam != null ? Integer.parseInt(offsetParam) : 0;
+            limit = limitParam != null ? Integer.parseInt(limitParam) : MAX_PAGE_SIZE;
+        } catch (NumberFormatException e) {
+            return HTTPResponse.badRequest("offset and limit must be numbers");
+        }
+        if (offset < 0 || limit < 0) {
+            return HTTPResponse.badRequest("offset and limit must not be negative");
+        }
+        
+        HTTPResponse response = HTTPResponse.json(snapshot.toJson(offset, Math.min(limit, MAX_PAGE_SIZE)));
+        response.setHeader("X-Total-Count", String.valueOf(snapshot.size()));
+        return response;
+    }
+    
+    private HTTPResponse handleGetUser(HTTPRequest request) {
+        int id;
+        try {
+            id = Integer.parseInt(request.getPathParam("id"));
+        } catch (NumberFormatException e) {
+            return HTTPResponse.badRequest("User id must be a number");
         }
-        json.append("]");
         
-        return HTTPResponse.json(json.toString());
+        UserStore.User user = users.get(id);
+        if (user == null) {
+            return HTTPResponse.notFound();
+        }
+        return HTTPResponse.json(user.toJson());
     }
     
     private HTTPResponse handleCreateUser(HTTPRequest request) {
-        String body = request.getBody();
-        if (body == null || body.isEmpty()) {
+        byte[] body = request.getBodyBytes();
+        if (body == null || body.length == 0) {
             return HTTPResponse.badRequest("No body provided");
         }
         
-        // Simple JSON parsing (name and email)
-        String name = extractJsonValue(body, "name");
-        String email = extractJsonValue(body, "email");
+        String name = null;
+        String email = null;
+        try {
+            JsonParser parser = new JsonParser(body);
+            if (parser.next() != JsonParser.Token.BEGIN_OBJECT) {
+                return HTTPResponse.badRequest("Expected a JSON object");
+            }
+            while (parser.next() == JsonParser.Token.NAME) {
+                String field = parser.getString();
+                if (field.equals("name")) {
+                    name = parser.nextString();
+                } else if (field.equals("email")) {
+                    email = parser.nextString();
+                } else {
+                    parser.skipValue();
+                }
+            }
+            parser.next();
+        } catch (JsonParser.JsonException e) {
+            return HTTPResponse.badRequest("Invalid JSON: " + e.getMessage());
+        }
         
         if (name == null || email == null) {
             return HTTPResponse.badRequest("Name and email required");
         }
         
-        User newUser = new User(nextUserId++, name, email);
-        users.add(newUser);
+        UserStore.User newUser = users.create(name, email);
+        if (newUser == null) {
+            HTTPResponse conflict = new HTTPResponse(409, "Conflict");
+            conflict.setHeader("Content-Type", "text/html; charset=UTF-8");
+            conflict.setBody("<html><body><h1>409 - Conflict</h1><p>Email already registered</p></body></html>");
+            return conflict;
+        }
+        
+        if (responseCache != null) {
+            // The list pages and /api/users/{id} alike
+            responseCache.invalidate("/api/users");
+        }
+        
+        if (webSockets.getSessionCount() > 0) {
+            JsonWriter event = new JsonWriter(128).beginObject().name("type").value("user.created").name("user");
+            newUser.writeJson(event);
+            webSockets.broadcast(event.endObject().toByteBuffer());
+        }
         
         HTTPResponse response = new HTTPResponse(201, "Created");
         response.setHeader("Content-Type", "application/json");
@@ -119,26 +452,8 @@ public class RequestHandler {
         return response;
     }
     
-    private String extractJsonValue(String json, String key) {
-        String searchKey = "\"" + key + "\"";
-        int keyIndex = json.indexOf(searchKey);
-        if (keyIndex == -1) return null;
-        
-        int colonIndex = json.indexOf(":", keyIndex);
-        if (colonIndex == -1) return null;
-        
-        int valueStart = json.indexOf("\"", colonIndex) + 1;
-        int valueEnd = json.indexOf("\"", valueStart);
-        
-        if (valueStart > 0 && valueEnd > valueStart) {
-            return json.substring(valueStart, valueEnd);
-        }
-        
-        return null;
-    }
-    
     // Static file serving
-    private HTTPResponse serveStaticFile(String path) {
+    private HTTPResponse serveStaticFile(HTTPRequest request, String path) {
         // Default to index.html for root path
         if ("/".equals(path)) {
             path = "/index.html";
@@ -152,20 +467,204 @@ public class RequestHandler {
                 return HTTPResponse.badRequest("Invalid path");
             }
             
-            if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
+            // One stat call; validators come from the cached metadata
+            StaticFileCache.Entry file = fileCache.get(filePath, false);
+            if (file == null) {
                 return HTTPResponse.notFound();
             }
             
-            byte[] content = Files.readAllBytes(filePath);
             String contentType = getContentType(path);
+            boolean compressible = contentEncoder != null && ContentEncoder.isCompressible(contentType);
             
-            return HTTPResponse.ok(content, contentType);
+            String matched = notModified(request, file);
+            if (matched != null) {
+                HTTPResponse response = new HTTPResponse(304, "Not Modified");
+                response.setHeader("ETag", matched);
+                response.setHeader("Last-Modified", file.getLastModifiedHeader());
+                if (compressible) {
+                    response.setHeader("Vary", "Accept-Encoding");
+                }
+                return response;
+            }
+            
+            String range = request.getHeader("range");
+            if (range != null && ifRangeMatches(request, file)) {
+                List<ByteRange> ranges = ByteRange.parse(range, file.getSize());
+                if (ranges != null) {
+                    HTTPResponse response = serveRanges(file, contentType, ranges);
+                    if (compressible) {
+                        response.setHeader("Vary", "Accept-Encoding");
+                    }
+                    return response;
+                }
+            }
+            
+            // Small files come from the cache, large ones are streamed
+            file = fileCache.load(file);
+            HTTPResponse response = new HTTPResponse(200, "OK");
+            response.setHeader("Content-Type", contentType);
+            response.setHeader("ETag", file.getETag());
+            response.setHeader("Last-Modified", file.getLastModifiedHeader());
+            response.setHeader("Accept-Ranges", "bytes");
+            if (compressible && encodeStaticFile(request, response, filePath, file)) {
+                return response;
+            }
+            ByteBuffer content = file.getContent();
+            if (content != null) {
+                response.setBody(content);
+            } else {
+                response.setBody(file.getPath(), file.getSize());
+            }
+            return response;
             
         } catch (IOException e) {
             return HTTPResponse.internalError();
         }
     }
     
+    /**
+     * Sets a gzip/deflate body: a precompressed .gz sibling if one is at
+     * least as new as the file, else a cached compressed variant
+     * @return false to send the file as is
+     */
+    private boolean encodeStaticFile(HTTPRequest request, HTTPResponse response,
+                                     Path filePath, StaticFileCache.Entry file) throws IOException {
+        response.setHeader("Vary", "Accept-Encoding");
+        String encoding = ContentEncoder.negotiate(request.getHeader("accept-encoding"));
+        if (encoding == null) {
+            return false;
+        }
+        
+        if (ContentEncoder.GZIP.equals(encoding)) {
+            StaticFileCache.Entry gzipped = fileCache.get(filePath.resolveSibling(filePath.getFileName() + ".gz"));
+            if (gzipped != null && gzipped.getLastModified() >= file.getLastModified()) {
+                response.setHeader("Content-Encoding", ContentEncoder.GZIP);
+                response.setHeader("ETag", variantTag(file.getETag(), ContentEncoder.GZIP));
+                ByteBuffer content = gzipped.getContent();
+                if (content != null) {
+                    response.setBody(content);
+                } else {
+                    response.setBody(gzipped.getPath(), gzipped.getSize());
+                }
+                return true;
+            }
+        }
+        
+        ByteBuffer encoded = contentEncoder.encode(file, encoding);
+        if (encoded == null) {
+            return false;
+        }
+        response.setHeader("Content-Encoding", encoding);
+        response.setHeader("ETag", variantTag(file.getETag(), encoding));
+        response.setBody(encoded);
+        return true;
+    }
+    
+    /**
+     * Strong tag of an encoded variant: "size-mtime" becomes "size-mtime-gzip"
+     */
+    private static String variantTag(String etag, String encoding) {
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+    
+    /**
+     * Evaluates If-None-Match, or If-Modified-Since when there is none,
+     * from the file's metadata only
+     * @return the entity tag to send with a 304, or null to send the content
+     */
+    private static String notModified(HTTPRequest request, StaticFileCache.Entry file) {
+        String ifNoneMatch = request.getHeader("if-none-match");
+        if (ifNoneMatch != null) {
+            String etag = file.getETag();
+            String variantPrefix = etag.substring(0, etag.length() - 1) + "-";
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*")) {
+                    return etag;
+                }
+                // Weak comparison: W/ prefixes are ignored
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(etag) || (tag.startsWith(variantPrefix) && tag.endsWith("\""))) {
+                    return tag;
+                }
+            }
+            return null;
+        }
+        
+        String ifModifiedSince = request.getHeader("if-modified-since");
+        if (ifModifiedSince != null) {
+            long since = HttpDates.parse(ifModifiedSince);
+            // HTTP dates have one-second resolution
+            if (since >= 0 && file.getLastModified() / 1000 <= since / 1000) {
+                return file.getETag();
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Range applies unless If-Range names another version. An entity tag
+     * must match strongly; a date must equal Last-Modified exactly.
+     */
+    private static boolean ifRangeMatches(HTTPRequest request, StaticFileCache.Entry file) {
+        String ifRange = request.getHeader("if-range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            return ifRange.equals(file.getETag());
+        }
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        long date = HttpDates.parse(ifRange);
+        return date >= 0 && date / 1000 == file.getLastModified() / 1000;
+    }
+    
+    /**
+     * 206 streaming the requested ranges straight from the file, as one
+     * part or as multipart/byteranges; 416 if none is satisfiable
+     */
+    private static HTTPResponse serveRanges(StaticFileCache.Entry file, String contentType, List<ByteRange> ranges) {
+        long size = file.getSize();
+        if (ranges.isEmpty()) {
+            HTTPResponse response = new HTTPResponse(416, "Range Not Satisfiable");
+            response.setHeader("Content-Range", "bytes */" + size);
+            response.setHeader("Content-Type", "text/html; charset=UTF-8");
+            response.setBody("<html><body><h1>416 - Range Not Satisfiable</h1></body></html>");
+            return response;
+        }
+        
+        HTTPResponse response = new HTTPResponse(206, "Partial Content");
+        response.setHeader("ETag", file.getETag());
+        response.setHeader("Last-Modified", file.getLastModifiedHeader());
+        response.setHeader("Accept-Ranges", "bytes");
+        if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            response.setHeader("Content-Type", contentType);
+            response.setHeader("Content-Range", range.contentRange(size));
+            response.setBody(file.getPath(), HTTPResponse.Segment.region(range.start, range.length()));
+            return response;
+        }
+        
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        response.setHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        HTTPResponse.Segment[] segments = new HTTPResponse.Segment[ranges.size() * 2 + 1];
+        int index = 0;
+        for (ByteRange range : ranges) {
+            String partHead = "\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                + "\r\nContent-Range: " + range.contentRange(size) + "\r\n\r\n";
+            segments[index++] = HTTPResponse.Segment.of(partHead.getBytes(StandardCharsets.ISO_8859_1));
+            segments[index++] = HTTPResponse.Segment.region(range.start, range.length());
+        }
+        segments[index] = HTTPResponse.Segment.of(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        response.setBody(file.getPath(), segments);
+        return response;
+    }
+    
     private String getContentType(String path) {
         if (path.endsWith(".html") || path.endsWith(".htm")) {
             return "text/html; charset=UTF-8";
@@ -195,22 +694,4 @@ public class RequestHandler {
     interface Route {
         HTTPResponse handle(HTTPRequest request);
     }
-    
-    // Simple User class
-    static class User {
-        int id;
-        String name;
-        String email;
-        
-        User(int id, String name, String email) {
-            this.id = id;
-            this.name = name;
-            this.email = email;
-        }
-        
-        String toJson() {
-            return String.format("{\"id\":%d,\"name\":\"%s\",\"email\":\"%s\"}", 
-                id, name, email);
-        }
-    }
 }
@@ -0,0 +1,651 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP/1.x request parser working on raw bytes
+ * Bytes are appended to one buffer, borrowed from the pool, either from
+ * a blocking stream (fill) or from a selector read (feed). next()
+ * resumes where the previous call stopped, so a request split across any
+ * number of reads is scanned only once. A request is returned as soon as
+ * its headers are complete; its body (Content-Length or chunked) is then
+ * decoded by readBody as the handler consumes it, so the buffer never
+ * holds more than one read's worth of body. Pipelined bytes that follow a
+ * request stay buffered for the next call.
+ */
+public class RequestParser {
+    public static final int DEFAULT_MAX_REQUEST_LINE = 8 * 1024;
+    public static final int DEFAULT_MAX_HEADER_SIZE = 16 * 1024;
+    public static final int DEFAULT_MAX_BODY_SIZE = 10 * 1024 * 1024;
+    private static final int MAX_HEADERS = 100;
+    private static final int MAX_CHUNK_LINE = 1024;
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+    
+    // Parser states
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADERS = 1;
+    private static final int BODY = 2;
+    
+    // Chunked body states
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_DATA = 1;
+    private static final int CHUNK_END = 2;
+    private static final int TRAILERS = 3;
+    
+    /**
+     * Malformed or oversized request; carries the status to answer with
+     */
+    public static class ParseException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int statusCode;
+        private final String statusMessage;
+        
+        public ParseException(int statusCode, String statusMessage) {
+            super(statusCode + " " + statusMessage);
+            this.statusCode = statusCode;
+            this.statusMessage = statusMessage;
+        }
+        
+        public int getStatusCode() {
+            return statusCode;
+        }
+        
+        public String getStatusMessage() {
+            return statusMessage;
+        }
+    }
+    
+    private final int maxRequestLine;
+    private final int maxHeaderSize;
+    private final int maxBodySize;
+    
+    // Buffered input: bytes [start, end) are not consumed yet. The buffer is
+    // borrowed from the pool while it holds any and handed back once drained,
+    // so an idle keep-alive connection holds none.
+    private ByteBuffer borrowed;
+    private byte[] buffer = EMPTY;
+    private int start;
+    private int end;
+    
+    // Progress on the current request
+    private int state = REQUEST_LINE;
+    private int scan;
+    private int headerStart;
+    private int lineStart;
+    private long requestStart;
+    private HTTPRequest request;
+    
+    // Progress on the current body: bytes left in it (Content-Length) or in the current chunk
+    private boolean chunked;
+    private int chunkState;
+    private long remaining;
+    private int trailerBytes;
+    private ParseException bodyError;
+    
+    public RequestParser() {
+        this(DEFAULT_MAX_REQUEST_LINE, DEFAULT_MAX_HEADER_SIZE, DEFAULT_MAX_BODY_SIZE);
+    }
+    
+    public RequestParser(int maxRequestLine, int maxHeaderSize, int maxBodySize) {
+        this.maxRequestLine = maxRequestLine;
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxBodySize = maxBodySize;
+    }
+    
+    /**
+     * Reads once from a blocking stream into the buffer
+     * @return false at end of stream
+     */
+    public boolean fill(InputStream input) throws IOException {
+        makeRoom(1);
+        int read = input.read(buffer, end, buffer.length - end);
+        if (read == -1) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+    
+    /**
+     * Appends bytes received from a channel
+     */
+    public void feed(ByteBuffer source) {
+        int length = source.remaining();
+        makeRoom(length);
+        source.get(buffer, end, length);
+        end += length;
+    }
+    
+    /**
+     * Blocking convenience: reads from the stream until a request head is
+     * parsed; a body is attached as a stream that reads on from the same input
+     * @return the request, or null if the stream ended before one started
+     */
+    public HTTPRequest read(InputStream input) throws IOException {
+        HTTPRequest next;
+        while ((next = next()) == null) {
+            if (state == BODY) {
+                throw new IllegalStateException("Body of the previous request not consumed");
+            }
+            if (!fill(input)) {
+                if (isIdle()) {
+                    return null;
+                }
+                throw new EOFException("Connection closed mid-request");
+            }
+        }
+        if (state == BODY) {
+            next.setBody(new RequestBody(bodyStream(input), maxBodySize));
+        }
+        return next;
+    }
+    
+    /**
+     * Parses as far as the buffered bytes allow
+     * @return a request whose head is complete, or null if more input is
+     * needed or the previous request's body has not been consumed yet
+     */
+    public HTTPRequest next() throws ParseException {
+        if (state == BODY) {
+            return null;
+        }
+        if (state == REQUEST_LINE && !parseRequestLine()) {
+            return null;
+        }
+        if (!parseHeaders()) {
+            return null;
+        }
+        
+        HTTPRequest complete = request;
+        complete.setStartNanos(requestStart);
+        if (startBody(complete)) {
+            state = BODY;
+            request = null;
+            requestStart = 0;
+        } else {
+            reset();
+        }
+        return complete;
+    }
+    
+    /**
+     * True while the body of the last returned request is still being read
+     */
+    public boolean inBody() {
+        return state == BODY;
+    }
+    
+    /**
+     * Largest body a handler may buffer in memory with getBody()
+     */
+    public int getMaxBodySize() {
+        return maxBodySize;
+    }
+    
+    /**
+     * Decodes body bytes of the current request from the buffer
+     * @param destination array to copy into, or null to discard
+     * @return bytes decoded, 0 if more input is needed, or -1 once the body is complete
+     */
+    public int readBody(byte[] destination, int offset, int length) throws ParseException {
+        if (state != BODY) {
+            return -1;
+        }
+        if (bodyError != null) {
+            throw bodyError;
+        }
+        try {
+            return chunked ? readChunked(destination, offset, length) : readFixed(destination, offset, length);
+        } catch (ParseException e) {
+            // The framing is lost; the connection cannot be reused
+            bodyError = e;
+            throw e;
+        }
+    }
+    
+    /**
+     * Discards whatever of an unread body is already buffered
+     * @return true if the body is complete and the next request can be parsed
+     */
+    public boolean skipBufferedBody() {
+        try {
+            while (readBody(null, 0, Integer.MAX_VALUE) > 0) {
+                // Keep discarding
+            }
+        } catch (ParseException e) {
+            return false;
+        }
+        return state != BODY;
+    }
+    
+    /**
+     * Body of the current request, reading from the blocking input whenever
+     * the buffer runs dry. Large Content-Length bodies bypass the buffer once
+     * it is empty and are read straight into the caller's array.
+     */
+    private InputStream bodyStream(InputStream input) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (true) {
+                    if (state == BODY && !chunked && start == end) {
+                        int read = input.read(b, off, (int) Math.min(len, remaining));
+                        if (read < 0) {
+                            throw new EOFException("Connection closed mid-body");
+                        }
+                        remaining -= read;
+                        if (remaining == 0) {
+                            RequestParser.this.reset();
+                        }
+                        return read;
+                    }
+                    int decoded = readBody(b, off, len);
+                    if (decoded != 0) {
+                        return decoded;
+                    }
+                    if (!fill(input)) {
+                        throw new EOFException("Connection closed mid-body");
+                    }
+                }
+            }
+        };
+    }
+    
+    /**
+     * True when no part of a request has been received yet
+     */
+    public boolean isIdle() {
+        if (state != REQUEST_LINE) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (buffer[i] != '\r' && buffer[i] != '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public boolean hasBufferedInput() {
+        return end > start;
+    }
+    
+    /**
+     * Hands over the bytes buffered after the last request, for a connection
+     * that switches protocols; the parser is left empty
+     */
+    public byte[] takeBuffered() {
+        byte[] rest = Arrays.copyOfRange(buffer, start, end);
+        start = end;
+        reset();
+        return rest;
+    }
+    
+    private void reset() {
+        state = REQUEST_LINE;
+        request = null;
+        requestStart = 0;
+        chunked = false;
+        remaining = 0;
+        scan = start;
+        if (start == end) {
+            start = end = scan = 0;
+            release();
+        }
+    }
+    
+    /**
+     * Returns the buffer to the pool, dropping whatever unread input it
+     * holds; for a connection that is done
+     */
+    public void release() {
+        start = end = scan = 0;
+        BufferPool.shared().release(borrowed);
+        borrowed = null;
+        buffer = EMPTY;
+    }
+    
+    private void makeRoom(int needed) {
+        if (buffer.length - end >= needed) {
+            return;
+        }
+        // Shift unconsumed bytes to the front before growing
+        int unconsumed = end - start;
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, unconsumed);
+            scan -= start;
+            headerStart -= start;
+            lineStart -= start;
+            start = 0;
+            end = unconsumed;
+        }
+        if (buffer.length - end < needed) {
+            BufferPool pool = BufferPool.shared();
+            ByteBuffer larger = pool.acquire(Math.max(Math.max(buffer.length * 2, INITIAL_BUFFER_SIZE), end + needed));
+            System.arraycopy(buffer, 0, larger.array(), 0, end);
+            pool.release(borrowed);
+            borrowed = larger;
+            buffer = larger.array();
+        }
+    }
+    
+    /**
+     * Finds the next line end at or after the scan position
+     * @return index of the '\n', or -1 if not buffered yet
+     */
+    private int findLineEnd() {
+        for (int i = scan; i < end; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        scan = end;
+        return -1;
+    }
+    
+    private boolean parseRequestLine() throws ParseException {
+        // Tolerate empty lines before the request line (RFC 9112 section 2.2)
+        while (start < end && (buffer[start] == '\r' || buffer[start] == '\n')) {
+            start++;
+        }
+        if (scan < start) {
+            scan = start;
+        }
+        if (requestStart == 0 && start < end) {
+            requestStart = System.nanoTime();
+        }
+        
+        int lineEnd = findLineEnd();
+        if (lineEnd < 0) {
+            if (end - start > maxRequestLine) {
+                throw new ParseException(414, "URI Too Long");
+            }
+            return false;
+        }
+        if (lineEnd - start > maxRequestLine) {
+            throw new ParseException(414, "URI Too Long");
+        }
+        
+        int lineStop = lineEnd > start && buffer[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+        int firstSpace = indexOf(' ', start, lineStop);
+        int secondSpace = firstSpace < 0 ? -1 : indexOf(' ', firstSpace + 1, lineStop);
+        if (firstSpace <= start || secondSpace <= firstSpace + 1 || secondSpace + 1 >= lineStop
+                || indexOf(' ', secondSpace + 1, lineStop) >= 0) {
+            throw new ParseException(400, "Bad Request");
+        }
+        
+        String method = HttpConstants.method(buffer, start, firstSpace - start);
+        String version = HttpConstants.version(buffer, secondSpace + 1, lineStop - secondSpace - 1);
+        if (version == null) {
+            throw new ParseException(400, "Bad Request");
+        }
+        String target = HttpConstants.ascii(buffer, firstSpace + 1, secondSpace - firstSpace - 1);
+        
+        request = new HTTPRequest(method, target, version);
+        start = lineEnd + 1;
+        scan = start;
+        headerStart = start;
+        lineStart = start;
+        state = HEADERS;
+        return true;
+    }
+    
+    private boolean parseHeaders() throws ParseException {
+        // Wait for the blank line so the header block can be copied out in one piece
+        int blankLine = -1;
+        while (true) {
+            int lineEnd = findLineEnd();
+            if (lineEnd < 0) {
+                if (end - headerStart > maxHeaderSize) {
+                    throw new ParseException(431, "Request Header Fields Too Large");
+                }
+                return false;
+            }
+            int currentLine = lineStart;
+            scan = lineEnd + 1;
+            lineStart = scan;
+            if (lineEnd == currentLine || (lineEnd == currentLine + 1 && buffer[currentLine] == '\r')) {
+                blankLine = currentLine;
+                break;
+            }
+            if (lineEnd - headerStart > maxHeaderSize) {
+                throw new ParseException(431, "Request Header Fields Too Large");
+            }
+        }
+        
+        // Copy the header block once; values are decoded lazily from it
+        byte[] head = Arrays.copyOfRange(buffer, headerStart, blankLine);
+        int count = 0;
+        int position = 0;
+        while (position < head.length) {
+            int lineEnd = indexOf(head, '\n', position);
+            if (lineEnd < 0) {
+                lineEnd = head.length;
+            }
+            int lineStop = lineEnd > position && head[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            addHeader(head, position, lineStop);
+            if (++count > MAX_HEADERS) {
+                throw new ParseException(431, "Request Header Fields Too Large");
+            }
+            position = lineEnd + 1;
+        }
+        
+        start = scan;
+        return true;
+    }
+    
+    private void addHeader(byte[] head, int lineStart, int lineStop) throws ParseException {
+        byte first = head[lineStart];
+        if (first == ' ' || first == '\t') {
+            // Obsolete line folding is not accepted (RFC 9112 section 5.2)
+            throw new ParseException(400, "Bad Request");
+        }
+        int colon = indexOf(head, ':', lineStart);
+        if (colon <= lineStart || colon >= lineStop) {
+            throw new ParseException(400, "Bad Request");
+        }
+        for (int i = lineStart; i < colon; i++) {
+            if (!HttpConstants.isTokenChar(head[i])) {
+                throw new ParseException(400, "Bad Request");
+            }
+        }
+        
+        int valueStart = colon + 1;
+        int valueStop = lineStop;
+        while (valueStart < valueStop && (head[valueStart] == ' ' || head[valueStart] == '\t')) {
+            valueStart++;
+        }
+        while (valueStop > valueStart && (head[valueStop - 1] == ' ' || head[valueStop - 1] == '\t')) {
+            valueStop--;
+        }
+        
+        String name = HttpConstants.headerName(head, lineStart, colon - lineStart);
+        request.addRawHeader(name, head, valueStart, valueStop - valueStart);
+    }
+    
+    /**
+     * Sets up body framing from the headers
+     * @return false if the request has no body
+     */
+    private boolean startBody(HTTPRequest request) throws ParseException {
+        String transferEncoding = request.getHeader("transfer-encoding");
+        long length = request.getContentLength();
+        if (transferEncoding != null) {
+            // Both framings at once is how requests are smuggled past proxies (RFC 9112 section 6.1)
+            if (length != -1) {
+                throw new ParseException(400, "Bad Request");
+            }
+            if (!transferEncoding.trim().equalsIgnoreCase("chunked")) {
+                throw new ParseException(501, "Not Implemented");
+            }
+            chunked = true;
+            chunkState = CHUNK_SIZE;
+            trailerBytes = 0;
+            bodyError = null;
+            return true;
+        }
+        if (length < -1) {
+            throw new ParseException(400, "Bad Request");
+        }
+        if (length <= 0) {
+            return false;
+        }
+        chunked = false;
+        remaining = length;
+        bodyError = null;
+        return true;
+    }
+    
+    private int readFixed(byte[] destination, int offset, int length) {
+        int count = copy(destination, offset, (int) Math.min(length, remaining));
+        remaining -= count;
+        if (remaining == 0) {
+            reset();
+        }
+        return count;
+    }
+    
+    private int readChunked(byte[] destination, int offset, int length) throws ParseException {
+        while (true) {
+            switch (chunkState) {
+                case CHUNK_SIZE:
+                    if (!parseChunkSize()) {
+                        return 0;
+                    }
+                    break;
+                case CHUNK_DATA:
+                    int count = copy(destination, offset, (int) Math.min(length, remaining));
+                    remaining -= count;
+                    if (remaining == 0) {
+                        chunkState = CHUNK_END;
+                    }
+                    if (count > 0 || remaining > 0) {
+                        return count;
+                    }
+                    break;
+                case CHUNK_END:
+                    // The CRLF that closes the chunk data
+                    int lineEnd = indexOf('\n', start, end);
+                    if (lineEnd < 0) {
+                        if (end - start > 1) {
+                            throw new ParseException(400, "Bad Request");
+                        }
+                        return 0;
+                    }
+                    if (lineEnd > start + 1 || (lineEnd == start + 1 && buffer[start] != '\r')) {
+                        throw new ParseException(400, "Bad Request");
+                    }
+                    start = lineEnd + 1;
+                    chunkState = CHUNK_SIZE;
+                    break;
+                default:
+                    return skipTrailers() ? -1 : 0;
+            }
+        }
+    }
+    
+    /**
+     * Parses "hex-size[;extensions]" CRLF; extensions are ignored
+     */
+    private boolean parseChunkSize() throws ParseException {
+        int lineEnd = indexOf('\n', start, end);
+        if (lineEnd < 0) {
+            if (end - start > MAX_CHUNK_LINE) {
+                throw new ParseException(400, "Bad Request");
+            }
+            return false;
+        }
+        long size = 0;
+        int digits = 0;
+        int i = start;
+        for (; i < lineEnd; i++) {
+            int digit = Character.digit(buffer[i], 16);
+            if (digit < 0) {
+                break;
+            }
+            // 15 hex digits keep the size positive in a long
+            if (++digits > 15) {
+                throw new ParseException(413, "Payload Too Large");
+            }
+            size = (size << 4) | digit;
+        }
+        if (digits == 0 || (i < lineEnd && buffer[i] != ';' && buffer[i] != ' '
+                && buffer[i] != '\t' && buffer[i] != '\r')) {
+            throw new ParseException(400, "Bad Request");
+        }
+        start = lineEnd + 1;
+        if (size == 0) {
+            chunkState = TRAILERS;
+        } else {
+            remaining = size;
+            chunkState = CHUNK_DATA;
+        }
+        return true;
+    }
+    
+    /**
+     * Skips trailer fields up to the blank line that ends the body
+     * @return true once the body is complete
+     */
+    private boolean skipTrailers() throws ParseException {
+        while (true) {
+            int lineEnd = indexOf('\n', start, end);
+            if (lineEnd < 0) {
+                if (trailerBytes + end - start > maxHeaderSize) {
+                    throw new ParseException(431, "Request Header Fields Too Large");
+                }
+                return false;
+            }
+            boolean blank = lineEnd == start || (lineEnd == start + 1 && buffer[start] == '\r');
+            trailerBytes += lineEnd + 1 - start;
+            start = lineEnd + 1;
+            if (blank) {
+                reset();
+                return true;
+            }
+            if (trailerBytes > maxHeaderSize) {
+                throw new ParseException(431, "Request Header Fields Too Large");
+            }
+        }
+    }
+    
+    /**
+     * Takes up to max buffered bytes
+     */
+    private int copy(byte[] destination, int offset, int max) {
+        int count = Math.min(max, end - start);
+        if (destination != null) {
+            System.arraycopy(buffer, start, destination, offset, count);
+        }
+        start += count;
+        return count;
+    }
+    
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static int indexOf(byte[] bytes, char c, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,217 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of responses for API routes that opt in
+ * A response is kept as its status, headers and body bytes (already
+ * content-encoded), keyed by method, path, sorted query parameters and
+ * the negotiated encoding, so a hit runs no handler code and copies no
+ * bytes. Entries expire after a TTL, and the least recently used are
+ * evicted beyond a byte budget. Concurrent misses on one key coalesce:
+ * the first request runs the route and the others wait for its response.
+ * Write routes invalidate the entries under a route prefix explicitly, so
+ * a client never reads a stale response after its own write.
+ */
+public class ResponseCache {
+    // Rough cost of an entry beyond its body: key, headers and map node
+    private static final int ENTRY_OVERHEAD = 256;
+    
+    private final long maxBytes;
+    private final Metrics metrics;
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    // Misses being computed, by key; guarded by this like entries
+    private final Map<String, Pending> pending = new HashMap<>();
+    private long cachedBytes;
+    
+    public ResponseCache(long maxBytes, Metrics metrics) {
+        this.maxBytes = maxBytes;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Snapshot of a response that can be replayed any number of times
+     */
+    private static final class Entry {
+        final String pattern;
+        final int statusCode;
+        final String statusMessage;
+        final String[] headerNames;
+        final String[] headerValues;
+        final ByteBuffer body;
+        final long expires;
+        
+        private Entry(String pattern, HTTPResponse response, ByteBuffer body, long expires) {
+            this.pattern = pattern;
+            this.statusCode = response.getStatusCode();
+            this.statusMessage = response.getStatusMessage();
+            this.headerNames = new String[response.headerCount()];
+            this.headerValues = new String[response.headerCount()];
+            for (int i = 0; i < headerNames.length; i++) {
+                headerNames[i] = response.headerName(i);
+                headerValues[i] = response.headerValue(i);
+            }
+            this.body = body;
+            this.expires = expires;
+        }
+        
+        /**
+         * @return the snapshot, or null if the body is streamed or read from a file
+         */
+        static Entry of(String pattern, HTTPResponse response, long expires) {
+            if (!response.hasFixedLength()) {
+                return null;
+            }
+            ByteBuffer body = response.bodyBuffer();
+            if (body == null && response.getContentLength() > 0) {
+                return null;
+            }
+            return new Entry(pattern, response, body, expires);
+        }
+        
+        HTTPResponse toResponse() {
+            HTTPResponse response = new HTTPResponse(statusCode, statusMessage);
+            for (int i = 0; i < headerNames.length; i++) {
+                response.setHeader(headerNames[i], headerValues[i]);
+            }
+            if (body != null) {
+                response.setBody(body);
+            }
+            return response;
+        }
+        
+        long weight(String key) {
+            return ENTRY_OVERHEAD + 2L * key.length() + (body != null ? body.remaining() : 0);
+        }
+    }
+    
+    /**
+     * A miss in progress; completes with the leader's snapshot, or null if
+     * it has none to share and each waiter has to run the route itself
+     */
+    private static final class Pending {
+        final String pattern;
+        final CompletableFuture<Entry> result = new CompletableFuture<>();
+        
+        Pending(String pattern) {
+            this.pattern = pattern;
+        }
+    }
+    
+    /**
+     * Answers a request from the cache, or runs the route and caches a 200 response
+     * @param variant what else the response depends on, e.g. the negotiated encoding
+     * @param route must answer from the method, path, query and variant alone
+     */
+    public HTTPResponse get(HTTPRequest request, String variant, long ttlMillis, RequestHandler.Route route) {
+        String pattern = request.getRoutePattern();
+        String key = key(request, variant);
+        Pending leader = null;
+        Pending waitFor;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.nanoTime() - entry.expires < 0) {
+                metrics.recordResponseCache("hit");
+                return entry.toResponse();
+            }
+            if (entry != null) {
+                remove(key);
+            }
+            waitFor = pending.get(key);
+            if (waitFor == null) {
+                leader = new Pending(pattern);
+                pending.put(key, leader);
+            }
+        }
+        
+        if (waitFor != null) {
+            Entry shared = waitFor.result.join();
+            if (shared != null) {
+                metrics.recordResponseCache("coalesced");
+                return shared.toResponse();
+            }
+            metrics.recordResponseCache("miss");
+            return route.handle(request);
+        }
+        
+        metrics.recordResponseCache("miss");
+        Entry entry = null;
+        try {
+            HTTPResponse response = route.handle(request);
+            entry = Entry.of(pattern, response, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+            return response;
+        } finally {
+            synchronized (this) {
+                // Not stored if the pattern was invalidated while the route ran
+                if (pending.remove(key, leader) && entry != null && entry.statusCode == 200) {
+                    put(key, entry);
+                }
+            }
+            leader.result.complete(entry);
+        }
+    }
+    
+    /**
+     * Drops every response cached for a route pattern and the patterns
+     * below it, e.g. "/api/users" (every page of the list) and
+     * "/api/users/{id}" after a user is created, including misses still
+     * being computed
+     */
+    public synchronized void invalidate(String prefix) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (isUnder(entry.getValue().pattern, prefix)) {
+                cachedBytes -= entry.getValue().weight(entry.getKey());
+                it.remove();
+            }
+        }
+        pending.values().removeIf(miss -> isUnder(miss.pattern, prefix));
+    }
+    
+    private static boolean isUnder(String pattern, String prefix) {
+        return pattern.startsWith(prefix)
+            && (pattern.length() == prefix.length() || pattern.charAt(prefix.length()) == '/');
+    }
+    
+    private static String key(HTTPRequest request, String variant) {
+        StringBuilder key = new StringBuilder(64);
+        key.append(request.getMethod()).append(' ').append(request.getPath());
+        Map<String, String> query = request.getQueryParams();
+        if (!query.isEmpty()) {
+            char separator = '?';
+            for (Map.Entry<String, String> param : new TreeMap<>(query).entrySet()) {
+                key.append(separator).append(param.getKey()).append('=').append(param.getValue());
+                separator = '&';
+            }
+        }
+        if (variant != null) {
+            key.append('\0').append(variant);
+        }
+        return key.toString();
+    }
+    
+    private void put(String key, Entry entry) {
+        long weight = entry.weight(key);
+        if (weight > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        cachedBytes += weight - (previous != null ? previous.weight(key) : 0);
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (cachedBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> oldest = it.next();
+            cachedBytes -= oldest.getValue().weight(oldest.getKey());
+            it.remove();
+        }
+    }
+    
+    private void remove(String key) {
+        Entry previous = entries.remove(key);
+        if (previous != null) {
+            cachedBytes -= previous.weight(key);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializes response heads straight into a byte buffer
+ * Status lines and common header names/values are encoded once at class
+ * load and copied as byte arrays; only uncommon values are encoded per
+ * response, and Content-Length digits are written without a String.
+ */
+final class ResponseEncoder {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] COLON_SPACE = { ':', ' ' };
+    private static final byte[] CONTENT_LENGTH = bytes("Content-Length: ");
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    private static final String[] STATUS_MESSAGES = new String[600];
+    private static final Map<String, byte[]> CONSTANTS = new HashMap<>();
+    
+    static {
+        String[][] statuses = {
+            { "101", "Switching Protocols" }, { "200", "OK" }, { "201", "Created" },
+            { "204", "No Content" }, { "206", "Partial Content" }, { "301", "Moved Permanently" },
+            { "302", "Found" }, { "304", "Not Modified" }, { "400", "Bad Request" },
+            { "404", "Not Found" }, { "405", "Method Not Allowed" }, { "408", "Request Timeout" },
+            { "409", "Conflict" }, { "411", "Length Required" }, { "413", "Payload Too Large" },
+            { "414", "URI Too Long" }, { "416", "Range Not Satisfiable" },
+            { "429", "Too Many Requests" },
+            { "431", "Request Header Fields Too Large" }, { "500", "Internal Server Error" },
+            { "501", "Not Implemented" }, { "502", "Bad Gateway" }, { "503", "Service Unavailable" },
+            { "504", "Gateway Timeout" },
+            { "505", "HTTP Version Not Supported" }
+        };
+        for (String[] status : statuses) {
+            int code = Integer.parseInt(status[0]);
+            STATUS_LINES[code] = bytes("HTTP/1.1 " + status[0] + " " + status[1] + "\r\n");
+            STATUS_MESSAGES[code] = status[1];
+        }
+        
+        String[] constants = {
+            // Header names
+            "Server", "Content-Type", "Connection", "Keep-Alive", "Retry-After", "Location",
+            "Cache-Control", "Vary", "Allow", "Transfer-Encoding",
+            // Header values
+            HTTPResponse.SERVER_NAME, "close", "keep-alive", "1", "chunked",
+            "text/html; charset=UTF-8", "text/css", "application/javascript",
+            "application/json", "image/png", "image/jpeg", "image/gif", "image/svg+xml",
+            "image/x-icon", "application/octet-stream"
+        };
+        for (String constant : constants) {
+            CONSTANTS.put(constant, bytes(constant));
+        }
+    }
+    
+    private ResponseEncoder() {
+    }
+    
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    /**
+     * Appends the status line, headers and terminating blank line to the buffer.
+     * Returns the buffer to use from now on: the same one, or a larger copy if
+     * it ran out of room. The result is left in write mode.
+     */
+    static ByteBuffer encodeHead(ByteBuffer buffer, int statusCode, String statusMessage,
+                                 String[] names, String[] values, int headerCount,
+                                 boolean writeContentLength, long contentLength) {
+        boolean cached = statusCode >= 0 && statusCode < STATUS_LINES.length
+            && statusMessage.equals(STATUS_MESSAGES[statusCode]);
+        if (cached) {
+            buffer = put(buffer, STATUS_LINES[statusCode]);
+        } else {
+            buffer = putString(buffer, "HTTP/1.1 " + statusCode + " " + statusMessage);
+            buffer = put(buffer, CRLF);
+        }
+        
+        for (int i = 0; i < headerCount; i++) {
+            buffer = putString(buffer, names[i]);
+            buffer = put(buffer, COLON_SPACE);
+            buffer = putString(buffer, values[i]);
+            buffer = put(buffer, CRLF);
+        }
+        
+        if (writeContentLength) {
+            buffer = put(buffer, CONTENT_LENGTH);
+            buffer = putLong(buffer, contentLength);
+            buffer = put(buffer, CRLF);
+        }
+        
+        // Empty line between headers and body
+        return put(buffer, CRLF);
+    }
+    
+    private static ByteBuffer putString(ByteBuffer buffer, String value) {
+        byte[] constant = CONSTANTS.get(value);
+        if (constant != null) {
+            return put(buffer, constant);
+        }
+        
+        int length = value.length();
+        buffer = ensure(buffer, length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                // Rare non-ASCII value: fall back to a full UTF-8 encode
+                buffer.position(buffer.position() - i);
+                return put(buffer, value.getBytes(StandardCharsets.UTF_8));
+            }
+            buffer.put((byte) c);
+        }
+        return buffer;
+    }
+    
+    private static ByteBuffer putLong(ByteBuffer buffer, long value) {
+        buffer = ensure(buffer, 20);
+        if (value == 0) {
+            return buffer.put((byte) '0');
+        }
+        int start = buffer.position();
+        while (value > 0) {
+            buffer.put((byte) ('0' + (value % 10)));
+            value /= 10;
+        }
+        // Digits were written least significant first
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+            byte tmp = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, tmp);
+        }
+        return buffer;
+    }
+    
+    private static ByteBuffer put(ByteBuffer buffer, byte[] bytes) {
+        return ensure(buffer, bytes.length).put(bytes);
+    }
+    
+    private static ByteBuffer ensure(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        return larger.put(buffer);
+    }
+}
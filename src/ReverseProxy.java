@@ -0,0 +1,648 @@
+import java.io.*;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Route that forwards requests under a path prefix to upstream servers
+ * Requests go out over pooled keep-alive connections, so a request costs
+ * a connection setup only when every pooled one is busy. Each request
+ * picks an upstream by smooth weighted round robin; with LEAST_REQUESTS
+ * only among those with the fewest requests in flight for their weight,
+ * so a slow server gets less traffic while it is slow. An upstream that
+ * cannot be connected to is skipped for the next one, and one that keeps
+ * failing is ejected for a while (see Upstream).
+ *
+ * The request body is copied to the upstream as it is read from the
+ * client, and the response body is relayed as it arrives, re-framed as
+ * chunked; only bodies of up to BUFFERED_BODY bytes are held in memory, so
+ * they go out with a Content-Length and can be compressed. Hop-by-hop
+ * headers are dropped in both directions and X-Forwarded-For is appended.
+ */
+public class ReverseProxy implements RequestHandler.Route {
+    /**
+     * Methods forwarded; anything else gets 405 from the router
+     */
+    static final String[] METHODS = {
+        HttpConstants.GET, HttpConstants.HEAD, HttpConstants.POST, HttpConstants.PUT,
+        HttpConstants.PATCH, HttpConstants.DELETE, HttpConstants.OPTIONS
+    };
+    private static final int BUFFERED_BODY = 16 * 1024;
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_HEADERS = 100;
+    // Headers that describe one connection, not the message (RFC 9110 section 7.6.1)
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList(
+        "connection", "keep-alive", "proxy-connection", "proxy-authenticate", "proxy-authorization",
+        "te", "trailer", "transfer-encoding", "upgrade"));
+    
+    private final String prefix;
+    private final Upstream[] upstreams;
+    private final ServerConfig.ProxyBalancer balancer;
+    private final Metrics metrics;
+    
+    /**
+     * Upstream closed or reset the connection before any of the response
+     * arrived; on a reused connection it was most likely closed while idle
+     */
+    private static final class NoResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        NoResponseException(String message, IOException cause) {
+            super(message, cause);
+        }
+    }
+    
+    /**
+     * Status line and headers of an upstream response, and how its body is framed
+     */
+    private static final class ResponseHead {
+        int statusCode;
+        String statusMessage;
+        boolean http10;
+        final List<String> names = new ArrayList<>();
+        final List<String> values = new ArrayList<>();
+        
+        /**
+         * Last value of the header, or null
+         */
+        String get(String name) {
+            for (int i = names.size() - 1; i >= 0; i--) {
+                if (names.get(i).equalsIgnoreCase(name)) {
+                    return values.get(i);
+                }
+            }
+            return null;
+        }
+    }
+    
+    ReverseProxy(String prefix, Upstream[] upstreams, ServerConfig.ProxyBalancer balancer, Metrics metrics) {
+        this.prefix = prefix;
+        this.upstreams = upstreams;
+        this.balancer = balancer;
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Routes from config.getProxyRoutes(): ";"-separated "prefix=upstreams"
+     * entries, upstreams being ","-separated "host:port" with an optional "*weight"
+     * @throws IllegalArgumentException if the setting is malformed
+     */
+    static List<ReverseProxy> fromConfig(ServerConfig config, Metrics metrics) {
+        List<ReverseProxy> proxies = new ArrayList<>();
+        if (config.getProxyRoutes() == null) {
+            return proxies;
+        }
+        for (String entry : config.getProxyRoutes().split(";")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            String prefix = equals > 0 ? entry.substring(0, equals).trim() : "";
+            if (!prefix.startsWith("/")) {
+                throw new IllegalArgumentException("Proxy route must be /prefix=host:port,...: " + entry);
+            }
+            while (prefix.length() > 1 && prefix.endsWith("/")) {
+                prefix = prefix.substring(0, prefix.length() - 1);
+            }
+            List<Upstream> upstreams = new ArrayList<>();
+            for (String server : entry.substring(equals + 1).split(",")) {
+                upstreams.add(parseUpstream(server.trim(), config, metrics));
+            }
+            proxies.add(new ReverseProxy(prefix, upstreams.toArray(new Upstream[0]), config.getProxyBalancer(), metrics));
+        }
+        return proxies;
+    }
+    
+    private static Upstream parseUpstream(String server, ServerConfig config, Metrics metrics) {
+        try {
+            int weight = 1;
+            int star = server.indexOf('*');
+            if (star >= 0) {
+                weight = Integer.parseInt(server.substring(star + 1).trim());
+                server = server.substring(0, star).trim();
+            }
+            int colon = server.lastIndexOf(':');
+            int port = Integer.parseInt(server.substring(colon + 1));
+            if (colon <= 0 || port < 1 || port > 65535 || weight < 1) {
+                throw new IllegalArgumentException("Invalid upstream: " + server);
+            }
+            return new Upstream(server.substring(0, colon), port, weight, config, metrics);
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid upstream: " + server);
+        }
+    }
+    
+    /**
+     * Router pattern covering the prefix and everything below it
+     */
+    String getPattern() {
+        return prefix.equals("/") ? "/*" : prefix + "/*";
+    }
+    
+    /**
+     * Closes the idle upstream connections
+     */
+    void close() {
+        for (Upstream upstream : upstreams) {
+            upstream.closeIdle();
+        }
+    }
+    
+    @Override
+    public HTTPResponse handle(HTTPRequest request) {
+        boolean[] tried = new boolean[upstreams.length];
+        boolean anyTried = false;
+        Upstream upstream;
+        while ((upstream = choose(tried)) != null) {
+            anyTried = true;
+            upstream.begin();
+            Upstream.Connection connection;
+            try {
+                connection = upstream.acquire();
+            } catch (IOException e) {
+                // Nothing was sent, so the next upstream can take the request
+                upstream.end();
+                upstream.recordFailure();
+                metrics.recordProxyRequest(upstream.getName(), 0);
+                continue;
+            }
+            return forward(upstream, connection, request);
+        }
+        // Every upstream failed to connect, or all are ejected
+        return anyTried ? HTTPResponse.error(502, "Bad Gateway") : HTTPResponse.error(503, "Service Unavailable");
+    }
+    
+    /**
+     * Next upstream among those available and not tried yet for this
+     * request, or null if none is left. With LEAST_REQUESTS only those with
+     * the fewest requests in flight for their weight are candidates; smooth
+     * weighted round robin picks among the candidates.
+     */
+    private synchronized Upstream choose(boolean[] tried) {
+        long now = System.currentTimeMillis();
+        int[] outstanding = new int[upstreams.length];
+        int least = -1;
+        for (int i = 0; i < upstreams.length; i++) {
+            if (tried[i] || !upstreams[i].isAvailable(now)) {
+                tried[i] = true;
+                continue;
+            }
+            outstanding[i] = upstreams[i].getOutstanding();
+            if (least < 0 || compareLoad(outstanding, i, least) < 0) {
+                least = i;
+            }
+        }
+        if (least < 0) {
+            return null;
+        }
+        
+        long total = 0;
+        int best = -1;
+        for (int i = 0; i < upstreams.length; i++) {
+            if (tried[i] || (balancer == ServerConfig.ProxyBalancer.LEAST_REQUESTS
+                    && compareLoad(outstanding, i, least) != 0)) {
+                continue;
+            }
+            Upstream upstream = upstreams[i];
+            upstream.currentWeight += upstream.getWeight();
+            total += upstream.getWeight();
+            if (best < 0 || upstream.currentWeight > upstreams[best].currentWeight) {
+                best = i;
+            }
+        }
+        tried[best] = true;
+        upstreams[best].currentWeight -= total;
+        return upstreams[best];
+    }
+    
+    /**
+     * Orders two upstreams by requests in flight per unit of weight
+     */
+    private int compareLoad(int[] outstanding, int a, int b) {
+        return Long.compare((long) outstanding[a] * upstreams[b].getWeight(),
+            (long) outstanding[b] * upstreams[a].getWeight());
+    }
+    
+    /**
+     * Sends the request on the connection and turns the upstream's answer
+     * into the response; owns the connection and the in-flight count from here
+     */
+    private HTTPResponse forward(Upstream upstream, Upstream.Connection connection, HTTPRequest request) {
+        while (true) {
+            ResponseHead head;
+            try {
+                writeRequest(connection, request);
+                head = readHead(connection.in);
+            } catch (UncheckedIOException e) {
+                // The client failed sending its body; not the upstream's fault
+                upstream.release(connection, false);
+                upstream.end();
+                throw e;
+            } catch (IOException e) {
+                upstream.release(connection, false);
+                if (e instanceof NoResponseException && connection.isReused() && !request.hasBody()) {
+                    // Closed by the upstream while pooled: replay on a new connection
+                    try {
+                        connection = upstream.connect();
+                        continue;
+                    } catch (IOException connectFailure) {
+                        e = connectFailure;
+                    }
+                }
+                upstream.end();
+                upstream.recordFailure();
+                metrics.recordProxyRequest(upstream.getName(), 0);
+                return e instanceof SocketTimeoutException
+                    ? HTTPResponse.error(504, "Gateway Timeout")
+                    : HTTPResponse.error(502, "Bad Gateway");
+            }
+            return respond(upstream, connection, request, head);
+        }
+    }
+    
+    private void writeRequest(Upstream.Connection connection, HTTPRequest request) throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        head.append(request.getMethod()).append(' ').append(request.getTarget()).append(" HTTP/1.1\r\n");
+        String connectionHeader = request.getHeader("connection");
+        String forwardedFor = null;
+        for (int i = 0; i < request.headerCount(); i++) {
+            String name = request.headerName(i);
+            if (name.equals("x-forwarded-for")) {
+                forwardedFor = forwardedFor == null ? request.headerValue(i) : forwardedFor + ", " + request.headerValue(i);
+            } else if (!HOP_BY_HOP.contains(name) && !name.equals("content-length") && !name.equals("expect")
+                    && !hasToken(connectionHeader, name)) {
+                // The 100 Continue is the client's business with this server, which reads the body on demand
+                head.append(name).append(": ").append(request.headerValue(i)).append("\r\n");
+            }
+        }
+        String clientIP = request.getClientIP();
+        if (clientIP != null) {
+            forwardedFor = forwardedFor == null ? clientIP : forwardedFor + ", " + clientIP;
+        }
+        if (forwardedFor != null) {
+            head.append("x-forwarded-for: ").append(forwardedFor).append("\r\n");
+        }
+        long length = request.getContentLength();
+        if (request.hasBody()) {
+            head.append(length >= 0 ? "content-length: " + length : "transfer-encoding: chunked").append("\r\n");
+        }
+        head.append("\r\n");
+        
+        OutputStream out = connection.out;
+        try {
+            out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            if (request.hasBody() && length >= 0) {
+                copyBody(request.getBodyStream(), out);
+            } else if (request.hasBody()) {
+                ChunkedOutputStream body = new ChunkedOutputStream(out, COPY_BUFFER_SIZE, true);
+                try {
+                    copyBody(request.getBodyStream(), body);
+                    body.finish();
+                } finally {
+                    body.release();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            if (e instanceof SocketTimeoutException) {
+                throw e;
+            }
+            throw new NoResponseException("Upstream closed the connection", e);
+        }
+    }
+    
+    /**
+     * Copies the client's body to the upstream; failures reading it come out unchecked
+     */
+    private static void copyBody(RequestBody source, OutputStream target) throws IOException {
+        ByteBuffer borrowed = BufferPool.shared().acquire(COPY_BUFFER_SIZE);
+        byte[] buffer = borrowed.array();
+        try {
+            while (true) {
+                int read;
+                try {
+                    read = source.read(buffer, 0, COPY_BUFFER_SIZE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (read < 0) {
+                    return;
+                }
+                target.write(buffer, 0, read);
+            }
+        } finally {
+            BufferPool.shared().release(borrowed);
+        }
+    }
+    
+    /**
+     * Reads the final response's status line and headers, skipping 1xx interim responses
+     */
+    private static ResponseHead readHead(InputStream in) throws IOException {
+        try {
+            in.mark(1);
+            if (in.read() < 0) {
+                throw new EOFException("Upstream closed the connection");
+            }
+            in.reset();
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new NoResponseException("No response from upstream", e);
+        }
+        
+        while (true) {
+            ResponseHead head = new ResponseHead();
+            int[] budget = { RequestParser.DEFAULT_MAX_HEADER_SIZE };
+            String statusLine = readLine(in, budget);
+            if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12 || statusLine.charAt(8) != ' ') {
+                throw new IOException("Invalid status line from upstream");
+            }
+            head.http10 = statusLine.charAt(7) == '0';
+            try {
+                head.statusCode = Integer.parseInt(statusLine.substring(9, 12));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line from upstream");
+            }
+            head.statusMessage = statusLine.length() > 13 ? statusLine.substring(13) : "";
+            
+            String line;
+            while (!(line = readLine(in, budget)).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0 || line.charAt(0) == ' ' || line.charAt(0) == '\t'
+                        || head.names.size() == MAX_HEADERS) {
+                    throw new IOException("Invalid header from upstream");
+                }
+                head.names.add(line.substring(0, colon).trim());
+                head.values.add(line.substring(colon + 1).trim());
+            }
+            if (head.statusCode == 101) {
+                throw new IOException("Upstream switched protocols");
+            }
+            if (head.statusCode >= 200) {
+                return head;
+            }
+        }
+    }
+    
+    private static String readLine(InputStream in, int[] budget) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Upstream response ended early");
+            }
+            if (--budget[0] < 0) {
+                throw new IOException("Upstream response head too large");
+            }
+            line.append((char) b);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+    
+    /**
+     * Builds the response for the client from the upstream's head; the body
+     * is read now if small, otherwise relayed when the response is sent
+     */
+    private HTTPResponse respond(Upstream upstream, Upstream.Connection connection, HTTPRequest request,
+                               ResponseHead head) {
+        int status = head.statusCode;
+        if (status == 502 || status == 503 || status == 504) {
+            upstream.recordFailure();
+        } else {
+            upstream.recordSuccess();
+        }
+        metrics.recordProxyRequest(upstream.getName(), status);
+        
+        String connectionHeader = head.get("connection");
+        boolean reusable = head.http10
+            ? hasToken(connectionHeader, "keep-alive")
+            : !hasToken(connectionHeader, "close");
+        String transferEncoding = head.get("transfer-encoding");
+        long length = -1;
+        try {
+            String contentLength = head.get("content-length");
+            length = contentLength != null && transferEncoding == null ? Long.parseLong(contentLength) : -1;
+        } catch (NumberFormatException e) {
+            reusable = false;
+        }
+        
+        boolean noBody = HttpConstants.HEAD.equals(request.getMethod())
+            || status == 204 || status == 304 || length == 0;
+        if (noBody) {
+            // Content-Length passes through unchanged, as for HEAD it describes the body not sent
+            HTTPResponse response = new BodilessResponse(status, head.statusMessage);
+            copyHeaders(head, response, true);
+            upstream.release(connection, reusable);
+            upstream.end();
+            return response;
+        }
+        
+        InputStream body;
+        if (transferEncoding != null) {
+            boolean chunked = hasToken(transferEncoding, "chunked");
+            body = chunked ? new ChunkedInputStream(connection.in) : connection.in;
+            reusable &= chunked;
+        } else if (length > 0) {
+            body = new BoundedInputStream(connection.in, length);
+        } else {
+            // Delimited by the upstream closing the connection
+            body = connection.in;
+            reusable = false;
+        }
+        
+        if (length > 0 && length <= BUFFERED_BODY) {
+            byte[] bytes = new byte[(int) length];
+            try {
+                int read = body.readNBytes(bytes, 0, bytes.length);
+                if (read < bytes.length) {
+                    throw new EOFException("Upstream response ended early");
+                }
+            } catch (IOException e) {
+                upstream.release(connection, false);
+                upstream.end();
+                upstream.recordFailure();
+                return e instanceof SocketTimeoutException
+                    ? HTTPResponse.error(504, "Gateway Timeout")
+                    : HTTPResponse.error(502, "Bad Gateway");
+            }
+            upstream.release(connection, reusable);
+            upstream.end();
+            HTTPResponse response = new HTTPResponse(status, head.statusMessage);
+            copyHeaders(head, response, false);
+            response.setBody(bytes);
+            return response;
+        }
+        
+        Relay relay = new Relay(upstream, connection, body, reusable);
+        HTTPResponse response = new RelayedResponse(status, head.statusMessage, relay);
+        copyHeaders(head, response, false);
+        return response;
+    }
+    
+    /**
+     * Copies end-to-end headers; the upstream's Server replaces ours, and
+     * headers that repeat (such as Set-Cookie) stay separate
+     */
+    private static void copyHeaders(ResponseHead head, HTTPResponse response, boolean keepLength) {
+        String connectionHeader = head.get("connection");
+        for (int i = 0; i < head.names.size(); i++) {
+            String name = head.names.get(i);
+            String lower = name.toLowerCase(Locale.ROOT);
+            if (HOP_BY_HOP.contains(lower) || hasToken(connectionHeader, lower)
+                    || (!keepLength && lower.equals("content-length"))) {
+                continue;
+            }
+            if (lower.equals("server")) {
+                response.setHeader(name, head.values.get(i));
+            } else {
+                response.addHeader(name, head.values.get(i));
+            }
+        }
+    }
+    
+    private static boolean hasToken(String headerValue, String token) {
+        if (headerValue == null) {
+            return false;
+        }
+        for (String part : headerValue.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Response without a body whose headers, Content-Length included, are the upstream's
+     */
+    private static final class BodilessResponse extends HTTPResponse {
+        BodilessResponse(int statusCode, String statusMessage) {
+            super(statusCode, statusMessage);
+        }
+        
+        @Override
+        boolean hasFixedLength() {
+            return false;
+        }
+    }
+    
+    /**
+     * Response whose body is relayed from the upstream while it is sent
+     */
+    private static final class RelayedResponse extends StreamingResponse {
+        private final Relay relay;
+        
+        RelayedResponse(int statusCode, String statusMessage, Relay relay) {
+            super(statusCode, statusMessage, relay);
+            this.relay = relay;
+        }
+        
+        @Override
+        void discard() {
+            relay.finish(false);
+        }
+    }
+    
+    /**
+     * Copies an upstream body to the client, then hands the connection back
+     */
+    private static final class Relay implements StreamingResponse.BodyWriter {
+        private final Upstream upstream;
+        private final Upstream.Connection connection;
+        private final InputStream body;
+        private final boolean reusable;
+        private boolean finished;
+        
+        Relay(Upstream upstream, Upstream.Connection connection, InputStream body, boolean reusable) {
+            this.upstream = upstream;
+            this.connection = connection;
+            this.body = body;
+            this.reusable = reusable;
+        }
+        
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ByteBuffer borrowed = BufferPool.shared().acquire(COPY_BUFFER_SIZE);
+            byte[] buffer = borrowed.array();
+            boolean complete = false;
+            try {
+                while (true) {
+                    int read;
+                    try {
+                        read = body.read(buffer, 0, COPY_BUFFER_SIZE);
+                    } catch (IOException e) {
+                        upstream.recordFailure();
+                        throw e;
+                    }
+                    if (read < 0) {
+                        break;
+                    }
+                    out.write(buffer, 0, read);
+                    if (body.available() == 0) {
+                        // Nothing more has arrived: pass on what there is rather than wait for a full chunk
+                        out.flush();
+                    }
+                }
+                complete = true;
+            } finally {
+                BufferPool.shared().release(borrowed);
+                finish(complete && reusable);
+            }
+        }
+        
+        synchronized void finish(boolean reuse) {
+            if (!finished) {
+                finished = true;
+                upstream.release(connection, reuse);
+                upstream.end();
+            }
+        }
+    }
+    
+    /**
+     * The first length bytes of a stream, which is left open and positioned after them
+     */
+    private static final class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+        
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read < 0) {
+                throw new EOFException("Upstream response ended early");
+            }
+            remaining -= read;
+            return read;
+        }
+        
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(remaining, in.available());
+        }
+    }
+}
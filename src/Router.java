@@ -0,0 +1,225 @@
+import java.util.*;
+
+/**
+ * Segment trie mapping request paths to routes
+ * Patterns are split on '/'; a segment is literal text, a {name} parameter
+ * matching any one non-empty segment, or a trailing * matching the rest of
+ * the path. Literal segments win over parameters, which win over
+ * wildcards, with backtracking when a branch dead-ends. All methods of a
+ * pattern share one leaf, so a path registered for other methods can be
+ * answered with 405 and an Allow header.
+ *
+ * Lookups walk the path in place with regionMatches and allocate nothing;
+ * parameter values are only located and decoded when a handler asks for them.
+ */
+public class Router {
+    private final Node root = new Node(null);
+    
+    /**
+     * A registered pattern and the routes attached to it per method
+     */
+    public static final class Endpoint {
+        private final String pattern;
+        // Segment index of each {param}; "*" names the wildcard
+        private final String[] paramNames;
+        private final int[] paramSegments;
+        private String[] methods = new String[0];
+        private RequestHandler.Route[] routes = new RequestHandler.Route[0];
+        private String allow = "";
+        
+        Endpoint(String pattern, String[] paramNames, int[] paramSegments) {
+            this.pattern = pattern;
+            this.paramNames = paramNames;
+            this.paramSegments = paramSegments;
+        }
+        
+        public String getPattern() {
+            return pattern;
+        }
+        
+        /**
+         * Route for the method, or null if the pattern exists only for other methods
+         */
+        public RequestHandler.Route route(String method) {
+            for (int i = 0; i < methods.length; i++) {
+                if (methods[i].equals(method)) {
+                    return routes[i];
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Value for the Allow header: every method registered for this pattern
+         */
+        public String getAllow() {
+            return allow;
+        }
+        
+        /**
+         * Index of the path segment holding the parameter, or -1
+         */
+        int segmentOf(String name) {
+            for (int i = 0; i < paramNames.length; i++) {
+                if (paramNames[i].equals(name)) {
+                    return paramSegments[i];
+                }
+            }
+            return -1;
+        }
+        
+        boolean isWildcard(String name) {
+            return "*".equals(name) && paramNames.length > 0 && "*".equals(paramNames[paramNames.length - 1]);
+        }
+        
+        private void put(String method, RequestHandler.Route route) {
+            for (int i = 0; i < methods.length; i++) {
+                if (methods[i].equals(method)) {
+                    routes[i] = route;
+                    return;
+                }
+            }
+            methods = Arrays.copyOf(methods, methods.length + 1);
+            routes = Arrays.copyOf(routes, routes.length + 1);
+            methods[methods.length - 1] = method;
+            routes[routes.length - 1] = route;
+            allow = String.join(", ", methods);
+        }
+    }
+    
+    private static final class Node {
+        private static final Node[] NONE = new Node[0];
+        private static final int[] NO_HASHES = new int[0];
+        
+        final String segment;
+        Node[] children = NONE;
+        // String.hashCode of each child's segment, checked before comparing text
+        int[] hashes = NO_HASHES;
+        Node param;
+        Node wildcard;
+        Endpoint endpoint;
+        
+        Node(String segment) {
+            this.segment = segment;
+        }
+        
+        Node child(String segment) {
+            for (Node child : children) {
+                if (child.segment.equals(segment)) {
+                    return child;
+                }
+            }
+            Node child = new Node(segment);
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = child;
+            hashes = Arrays.copyOf(hashes, hashes.length + 1);
+            hashes[hashes.length - 1] = segment.hashCode();
+            return child;
+        }
+    }
+    
+    /**
+     * Registers a route, e.g. add("GET", "/api/users/{id}", handler).
+     * Routes are registered before the server starts and not changed afterwards.
+     */
+    public void add(String method, String pattern, RequestHandler.Route route) {
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Pattern must start with '/': " + pattern);
+        }
+        
+        Node node = root;
+        List<String> names = new ArrayList<>();
+        List<Integer> segments = new ArrayList<>();
+        String[] parts = pattern.substring(1).split("/", -1);
+        int count = pattern.length() == 1 ? 0 : parts.length;
+        for (int i = 0; i < count; i++) {
+            String part = parts[i];
+            if (part.equals("*")) {
+                if (i != count - 1) {
+                    throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+                }
+                if (node.wildcard == null) {
+                    node.wildcard = new Node("*");
+                }
+                node = node.wildcard;
+                names.add("*");
+                segments.add(i);
+            } else if (part.startsWith("{") && part.endsWith("}")) {
+                if (node.param == null) {
+                    node.param = new Node("{}");
+                }
+                node = node.param;
+                names.add(part.substring(1, part.length() - 1));
+                segments.add(i);
+            } else {
+                node = node.child(part);
+            }
+        }
+        
+        if (node.endpoint == null) {
+            int[] indexes = new int[segments.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = segments.get(i);
+            }
+            node.endpoint = new Endpoint(pattern, names.toArray(new String[0]), indexes);
+        }
+        node.endpoint.put(method, route);
+    }
+    
+    /**
+     * Finds the endpoint whose pattern matches the path, whatever the method
+     * @return the endpoint, or null if no pattern matches
+     */
+    public Endpoint find(String path) {
+        if (path == null || path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+        Node node = match(root, path, 1);
+        return node != null ? node.endpoint : null;
+    }
+    
+    private static Node match(Node node, String path, int position) {
+        int length = path.length();
+        if (position >= length) {
+            if (node.endpoint != null) {
+                return node;
+            }
+            // A trailing wildcard also matches an empty remainder
+            return node.wildcard != null ? node.wildcard : null;
+        }
+        
+        int segmentEnd = path.indexOf('/', position);
+        if (segmentEnd < 0) {
+            segmentEnd = length;
+        }
+        int segmentLength = segmentEnd - position;
+        int next = segmentEnd < length ? segmentEnd + 1 : length;
+        
+        Node[] children = node.children;
+        if (children.length > 0) {
+            // Same formula as String.hashCode, over the segment in place
+            int hash = 0;
+            for (int i = position; i < segmentEnd; i++) {
+                hash = 31 * hash + path.charAt(i);
+            }
+            int[] hashes = node.hashes;
+            for (int i = 0; i < children.length; i++) {
+                Node child = children[i];
+                if (hashes[i] == hash && child.segment.length() == segmentLength
+                        && path.regionMatches(position, child.segment, 0, segmentLength)) {
+                    Node found = match(child, path, next);
+                    if (found != null) {
+                        return found;
+                    }
+                }
+            }
+        }
+        if (node.param != null && segmentLength > 0) {
+            Node found = match(node.param, path, next);
+            if (found != null) {
+                return found;
+            }
+        }
+        return node.wildcard;
+    }
+}
@@ -0,0 +1,903 @@
+/**
+ * Server configuration
+ * Values default to the constants below and can be overridden with
+ * system properties, e.g. java -Dserver.keepAlive.timeout=10000 -cp bin HTTPServer
+ */
+public class ServerConfig {
+    /**
+     * Connection handling engine
+     * BLOCKING: one pooled thread per connection; NIO: selector reactors + worker pool
+     */
+    public enum Engine {
+        BLOCKING, NIO
+    }
+    
+    /**
+     * Threads that run connections (blocking engine) or handlers (NIO engine)
+     * POOL: fixed platform thread pool; VIRTUAL: one virtual thread per task (JDK 21+)
+     */
+    public enum ThreadMode {
+        POOL, VIRTUAL
+    }
+    
+    /**
+     * How a proxy route picks an upstream for each request
+     * LEAST_REQUESTS: fewest requests in flight for its weight; ROUND_ROBIN: smooth weighted round robin
+     */
+    public enum ProxyBalancer {
+        LEAST_REQUESTS, ROUND_ROBIN
+    }
+    
+    // Defaults
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5000;
+    public static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+    public static final int DEFAULT_VIRTUAL_MAX_CONCURRENCY = 10000;
+    public static final int DEFAULT_QUEUE_TIMEOUT = 100;
+    public static final int DEFAULT_WORK_QUEUE_CAPACITY = 1000;
+    public static final int DEFAULT_WORK_QUEUE_DEADLINE = 0;
+    public static final long DEFAULT_STATIC_CACHE_BYTES = 32L * 1024 * 1024;
+    public static final long DEFAULT_STATIC_CACHE_MAX_FILE = 256L * 1024;
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    public static final int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+    public static final long DEFAULT_COMPRESSION_CACHE_BYTES = 8L * 1024 * 1024;
+    public static final int DEFAULT_ACCESS_LOG_BUFFER = 8192;
+    public static final long DEFAULT_ACCESS_LOG_MAX_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_ACCESS_LOG_MAX_FILES = 5;
+    public static final int DEFAULT_USER_LOG_GROUP_COMMIT = 2;
+    public static final int DEFAULT_USER_LOG_SNAPSHOT_INTERVAL = 10000;
+    public static final String DEFAULT_UPLOAD_DIR = "uploads";
+    public static final long DEFAULT_UPLOAD_MAX_BYTES = 1L << 30;
+    public static final String DEFAULT_TLS_KEYSTORE_TYPE = "PKCS12";
+    public static final String DEFAULT_TLS_PROTOCOLS = "TLSv1.3,TLSv1.2";
+    public static final String DEFAULT_TLS_APPLICATION_PROTOCOLS = "h2,http/1.1";
+    public static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 20480;
+    public static final int DEFAULT_TLS_SESSION_TIMEOUT = 86400;
+    public static final int DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS = 100;
+    public static final int DEFAULT_HTTP2_INITIAL_WINDOW_SIZE = 65535;
+    public static final long DEFAULT_RESPONSE_CACHE_BYTES = 4L * 1024 * 1024;
+    public static final int DEFAULT_RESPONSE_CACHE_TTL = 1000;
+    public static final int DEFAULT_WEBSOCKET_MAX_MESSAGE = 64 * 1024;
+    public static final int DEFAULT_WEBSOCKET_QUEUE_BYTES = 256 * 1024;
+    public static final int DEFAULT_WEBSOCKET_PING_INTERVAL = 30000;
+    public static final int DEFAULT_PROXY_POOL_SIZE = 32;
+    public static final int DEFAULT_PROXY_IDLE_TIMEOUT = 4000;
+    public static final int DEFAULT_PROXY_CONNECT_TIMEOUT = 1000;
+    public static final int DEFAULT_PROXY_READ_TIMEOUT = 30000;
+    public static final int DEFAULT_PROXY_MAX_FAILURES = 5;
+    public static final int DEFAULT_PROXY_EJECT_TIME = 10000;
+    public static final long DEFAULT_BUFFER_POOL_BYTES = 32L * 1024 * 1024;
+    
+    private int port = DEFAULT_PORT;
+    private Engine engine = Engine.BLOCKING;
+    private int reactorThreads = Runtime.getRuntime().availableProcessors();
+    private int shards = 1;
+    private ThreadMode threadMode = ThreadMode.POOL;
+    private int maxConcurrency;
+    private int queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+    private int workQueueCapacity = DEFAULT_WORK_QUEUE_CAPACITY;
+    private int workQueueDeadline = DEFAULT_WORK_QUEUE_DEADLINE;
+    private int clientMaxConcurrency;
+    private double clientRate;
+    private int clientBurst;
+    private long staticCacheBytes = DEFAULT_STATIC_CACHE_BYTES;
+    private long staticCacheMaxFileSize = DEFAULT_STATIC_CACHE_MAX_FILE;
+    private boolean keepAlive = true;
+    private int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+    private int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+    private boolean compression = true;
+    private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+    private int compressionMinSize = DEFAULT_COMPRESSION_MIN_SIZE;
+    private long compressionCacheBytes = DEFAULT_COMPRESSION_CACHE_BYTES;
+    private String accessLog = "-";
+    private AccessLog.Format accessLogFormat = AccessLog.Format.COMMON;
+    private AccessLog.Overflow accessLogOverflow = AccessLog.Overflow.DROP;
+    private int accessLogBuffer = DEFAULT_ACCESS_LOG_BUFFER;
+    private long accessLogMaxBytes = DEFAULT_ACCESS_LOG_MAX_BYTES;
+    private int accessLogMaxFiles = DEFAULT_ACCESS_LOG_MAX_FILES;
+    private String userDataDir;
+    private int userLogGroupCommit = DEFAULT_USER_LOG_GROUP_COMMIT;
+    private int userLogSnapshotInterval = DEFAULT_USER_LOG_SNAPSHOT_INTERVAL;
+    private String uploadDir = DEFAULT_UPLOAD_DIR;
+    private long uploadMaxBytes = DEFAULT_UPLOAD_MAX_BYTES;
+    private String tlsKeystore;
+    private String tlsKeystorePassword = "";
+    private String tlsKeystoreType = DEFAULT_TLS_KEYSTORE_TYPE;
+    private String tlsProtocols = DEFAULT_TLS_PROTOCOLS;
+    private String tlsApplicationProtocols = DEFAULT_TLS_APPLICATION_PROTOCOLS;
+    private int tlsSessionCacheSize = DEFAULT_TLS_SESSION_CACHE_SIZE;
+    private int tlsSessionTimeout = DEFAULT_TLS_SESSION_TIMEOUT;
+    private boolean tlsSessionTickets = true;
+    private boolean http2 = true;
+    private int http2MaxConcurrentStreams = DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS;
+    private int http2InitialWindowSize = DEFAULT_HTTP2_INITIAL_WINDOW_SIZE;
+    private boolean responseCache = false;
+    private long responseCacheBytes = DEFAULT_RESPONSE_CACHE_BYTES;
+    private int responseCacheTtl = DEFAULT_RESPONSE_CACHE_TTL;
+    private int webSocketMaxMessage = DEFAULT_WEBSOCKET_MAX_MESSAGE;
+    private int webSocketQueueBytes = DEFAULT_WEBSOCKET_QUEUE_BYTES;
+    private int webSocketPingInterval = DEFAULT_WEBSOCKET_PING_INTERVAL;
+    private String proxyRoutes;
+    private ProxyBalancer proxyBalancer = ProxyBalancer.LEAST_REQUESTS;
+    private int proxyPoolSize = DEFAULT_PROXY_POOL_SIZE;
+    private int proxyIdleTimeout = DEFAULT_PROXY_IDLE_TIMEOUT;
+    private int proxyConnectTimeout = DEFAULT_PROXY_CONNECT_TIMEOUT;
+    private int proxyReadTimeout = DEFAULT_PROXY_READ_TIMEOUT;
+    private int proxyMaxFailures = DEFAULT_PROXY_MAX_FAILURES;
+    private int proxyEjectTime = DEFAULT_PROXY_EJECT_TIME;
+    private boolean bufferPool = true;
+    private long bufferPoolBytes = DEFAULT_BUFFER_POOL_BYTES;
+    private boolean bufferLeakDetection;
+    
+    public ServerConfig() {
+    }
+    
+    public ServerConfig(int port) {
+        this.port = port;
+    }
+    
+    /**
+     * Builds a configuration from -Dserver.* system properties
+     */
+    public static ServerConfig fromSystemProperties(int port) {
+        ServerConfig config = new ServerConfig(port);
+        config.engine = enumProperty("server.engine", Engine.class, config.engine);
+        config.setReactorThreads(intProperty("server.nio.reactors", config.reactorThreads));
+        config.setShards(intProperty("server.shards", config.shards));
+        config.threadMode = enumProperty("server.threads", ThreadMode.class, config.threadMode);
+        // Virtual threads remove the pool as a natural cap, so they get a limit by default
+        int defaultConcurrency = config.threadMode == ThreadMode.VIRTUAL ? DEFAULT_VIRTUAL_MAX_CONCURRENCY : 0;
+        config.maxConcurrency = intProperty("server.maxConcurrency", defaultConcurrency);
+        config.queueTimeout = intProperty("server.maxConcurrency.queueTimeout", config.queueTimeout);
+        config.workQueueCapacity = intProperty("server.queue.capacity", config.workQueueCapacity);
+        config.workQueueDeadline = intProperty("server.queue.deadline", config.workQueueDeadline);
+        config.clientMaxConcurrency = intProperty("server.client.maxConcurrency", config.clientMaxConcurrency);
+        config.clientRate = doubleProperty("server.client.rate", config.clientRate);
+        // One second's worth of requests, and at least one so a fractional rate can admit anything
+        config.clientBurst = intProperty("server.client.burst", Math.max(1, (int) Math.ceil(config.clientRate)));
+        config.staticCacheBytes = longProperty("server.static.cacheBytes", config.staticCacheBytes);
+        config.staticCacheMaxFileSize = longProperty("server.static.cacheMaxFile", config.staticCacheMaxFileSize);
+        config.keepAlive = booleanProperty("server.keepAlive", config.keepAlive);
+        config.keepAliveTimeout = intProperty("server.keepAlive.timeout", config.keepAliveTimeout);
+        config.maxRequestsPerConnection = intProperty("server.keepAlive.maxRequests", config.maxRequestsPerConnection);
+        config.compression = booleanProperty("server.compression", config.compression);
+        config.compressionLevel = intProperty("server.compression.level", config.compressionLevel);
+        config.compressionMinSize = intProperty("server.compression.minSize", config.compressionMinSize);
+        config.compressionCacheBytes = longProperty("server.compression.cacheBytes", config.compressionCacheBytes);
+        config.accessLog = stringProperty("server.accessLog", config.accessLog);
+        config.accessLogFormat = enumProperty("server.accessLog.format", AccessLog.Format.class, config.accessLogFormat);
+        config.accessLogOverflow = enumProperty("server.accessLog.overflow", AccessLog.Overflow.class, config.accessLogOverflow);
+        config.accessLogBuffer = intProperty("server.accessLog.buffer", config.accessLogBuffer);
+        config.accessLogMaxBytes = longProperty("server.accessLog.maxBytes", config.accessLogMaxBytes);
+        config.accessLogMaxFiles = intProperty("server.accessLog.maxFiles", config.accessLogMaxFiles);
+        config.userDataDir = stringProperty("server.users.dataDir", config.userDataDir);
+        config.userLogGroupCommit = intProperty("server.users.groupCommit", config.userLogGroupCommit);
+        config.userLogSnapshotInterval = intProperty("server.users.snapshotInterval", config.userLogSnapshotInterval);
+        config.uploadDir = stringProperty("server.uploads.dir", config.uploadDir);
+        config.uploadMaxBytes = longProperty("server.uploads.maxBytes", config.uploadMaxBytes);
+        config.tlsKeystore = stringProperty("server.tls.keystore", config.tlsKeystore);
+        config.tlsKeystorePassword = stringProperty("server.tls.keystorePassword", config.tlsKeystorePassword);
+        config.tlsKeystoreType = stringProperty("server.tls.keystoreType", config.tlsKeystoreType);
+        config.tlsProtocols = stringProperty("server.tls.protocols", config.tlsProtocols);
+        config.tlsApplicationProtocols = stringProperty("server.tls.alpn", config.tlsApplicationProtocols);
+        config.tlsSessionCacheSize = intProperty("server.tls.sessionCacheSize", config.tlsSessionCacheSize);
+        config.tlsSessionTimeout = intProperty("server.tls.sessionTimeout", config.tlsSessionTimeout);
+        config.tlsSessionTickets = booleanProperty("server.tls.sessionTickets", config.tlsSessionTickets);
+        config.http2 = booleanProperty("server.http2", config.http2);
+        config.http2MaxConcurrentStreams = intProperty("server.http2.maxConcurrentStreams", config.http2MaxConcurrentStreams);
+        config.setHttp2InitialWindowSize(intProperty("server.http2.initialWindowSize", config.http2InitialWindowSize));
+        config.responseCache = booleanProperty("server.responseCache", config.responseCache);
+        config.responseCacheBytes = longProperty("server.responseCache.maxBytes", config.responseCacheBytes);
+        config.responseCacheTtl = intProperty("server.responseCache.ttl", config.responseCacheTtl);
+        config.webSocketMaxMessage = intProperty("server.websocket.maxMessage", config.webSocketMaxMessage);
+        config.webSocketQueueBytes = intProperty("server.websocket.queueBytes", config.webSocketQueueBytes);
+        config.webSocketPingInterval = intProperty("server.websocket.pingInterval", config.webSocketPingInterval);
+        config.proxyRoutes = stringProperty("server.proxy.routes", config.proxyRoutes);
+        config.proxyBalancer = enumProperty("server.proxy.balancer", ProxyBalancer.class, config.proxyBalancer);
+        config.proxyPoolSize = intProperty("server.proxy.poolSize", config.proxyPoolSize);
+        config.proxyIdleTimeout = intProperty("server.proxy.idleTimeout", config.proxyIdleTimeout);
+        config.proxyConnectTimeout = intProperty("server.proxy.connectTimeout", config.proxyConnectTimeout);
+        config.proxyReadTimeout = intProperty("server.proxy.readTimeout", config.proxyReadTimeout);
+        config.proxyMaxFailures = intProperty("server.proxy.maxFailures", config.proxyMaxFailures);
+        config.proxyEjectTime = intProperty("server.proxy.ejectTime", config.proxyEjectTime);
+        config.bufferPool = booleanProperty("server.buffers.pool", config.bufferPool);
+        config.bufferPoolBytes = longProperty("server.buffers.poolBytes", config.bufferPoolBytes);
+        config.bufferLeakDetection = booleanProperty("server.buffers.leakDetection", config.bufferLeakDetection);
+        return config;
+    }
+    
+    static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + name + ": " + value + ". Using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
+    
+    static long longProperty(String name, long defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + name + ": " + value + ". Using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
+    
+    static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            double parsed = Double.parseDouble(value.trim());
+            if (Double.isFinite(parsed)) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        System.err.println("Invalid value for " + name + ": " + value + ". Using default: " + defaultValue);
+        return defaultValue;
+    }
+    
+    static <E extends Enum<E>> E enumProperty(String name, Class<E> type, E defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid value for " + name + ": " + value + ". Using default: "
+                + defaultValue.name().toLowerCase());
+            return defaultValue;
+        }
+    }
+    
+    static boolean booleanProperty(String name, boolean defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+    
+    static String stringProperty(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+    
+    public int getPort() {
+        return port;
+    }
+    
+    public Engine getEngine() {
+        return engine;
+    }
+    
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+    
+    public int getReactorThreads() {
+        return reactorThreads;
+    }
+    
+    public void setReactorThreads(int reactorThreads) {
+        this.reactorThreads = Math.max(1, reactorThreads);
+    }
+    
+    /**
+     * Independent listener and worker groups; more than one binds each
+     * listener with SO_REUSEPORT so the kernel spreads connections over them
+     */
+    public int getShards() {
+        return shards;
+    }
+    
+    public void setShards(int shards) {
+        this.shards = Math.max(1, shards);
+    }
+    
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+    
+    public void setThreadMode(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+    }
+    
+    /**
+     * Maximum requests handled at once; 0 means unlimited
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+    
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+    
+    public int getQueueTimeout() {
+        return queueTimeout;
+    }
+    
+    public void setQueueTimeout(int queueTimeout) {
+        this.queueTimeout = queueTimeout;
+    }
+    
+    /**
+     * Tasks that may wait for a pool thread; beyond that, new work is
+     * answered with 503 at once. 0 leaves the queue unbounded.
+     */
+    public int getWorkQueueCapacity() {
+        return workQueueCapacity;
+    }
+    
+    public void setWorkQueueCapacity(int workQueueCapacity) {
+        this.workQueueCapacity = workQueueCapacity;
+    }
+    
+    /**
+     * Milliseconds work may sit in the queue before it is shed with 503 instead
+     * of being handled for a client that has likely given up; 0 (the default)
+     * disables. With the blocking engine the wait is per connection and keeps
+     * growing while earlier keep-alive connections hold the pool threads, so
+     * set it above the keep-alive timeout to shed only abandoned connections.
+     */
+    public int getWorkQueueDeadline() {
+        return workQueueDeadline;
+    }
+    
+    public void setWorkQueueDeadline(int workQueueDeadline) {
+        this.workQueueDeadline = workQueueDeadline;
+    }
+    
+    /**
+     * Requests one client IP may have in flight; 0 for no limit
+     */
+    public int getClientMaxConcurrency() {
+        return clientMaxConcurrency;
+    }
+    
+    public void setClientMaxConcurrency(int clientMaxConcurrency) {
+        this.clientMaxConcurrency = clientMaxConcurrency;
+    }
+    
+    /**
+     * Sustained requests per second per client IP; 0 for no limit
+     */
+    public double getClientRate() {
+        return clientRate;
+    }
+    
+    public void setClientRate(double clientRate) {
+        this.clientRate = clientRate;
+    }
+    
+    public int getClientBurst() {
+        return clientBurst;
+    }
+    
+    public void setClientBurst(int clientBurst) {
+        this.clientBurst = clientBurst;
+    }
+    
+    public long getStaticCacheBytes() {
+        return staticCacheBytes;
+    }
+    
+    public void setStaticCacheBytes(long staticCacheBytes) {
+        this.staticCacheBytes = staticCacheBytes;
+    }
+    
+    /**
+     * Files larger than this are streamed with transferTo instead of cached
+     */
+    public long getStaticCacheMaxFileSize() {
+        return staticCacheMaxFileSize;
+    }
+    
+    public void setStaticCacheMaxFileSize(long staticCacheMaxFileSize) {
+        this.staticCacheMaxFileSize = staticCacheMaxFileSize;
+    }
+    
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+    
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+    
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+    
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+    
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+    
+    public void setMaxRequestsPerConnection(int maxRequestsPerConnection) {
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+    
+    /**
+     * Whether text-like responses are gzip/deflate encoded for clients that accept it
+     */
+    public boolean isCompression() {
+        return compression;
+    }
+    
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+    
+    /**
+     * zlib level, 1 (fastest) to 9 (smallest)
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+    
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+    
+    /**
+     * Bodies smaller than this many bytes are sent uncompressed
+     */
+    public int getCompressionMinSize() {
+        return compressionMinSize;
+    }
+    
+    public void setCompressionMinSize(int compressionMinSize) {
+        this.compressionMinSize = compressionMinSize;
+    }
+    
+    /**
+     * Memory for compressed variants of static files
+     */
+    public long getCompressionCacheBytes() {
+        return compressionCacheBytes;
+    }
+    
+    public void setCompressionCacheBytes(long compressionCacheBytes) {
+        this.compressionCacheBytes = compressionCacheBytes;
+    }
+    
+    /**
+     * Access log target: "-" for stdout, "off" to disable, otherwise a file path
+     */
+    public String getAccessLog() {
+        return accessLog;
+    }
+    
+    public void setAccessLog(String accessLog) {
+        this.accessLog = accessLog;
+    }
+    
+    public AccessLog.Format getAccessLogFormat() {
+        return accessLogFormat;
+    }
+    
+    public void setAccessLogFormat(AccessLog.Format accessLogFormat) {
+        this.accessLogFormat = accessLogFormat;
+    }
+    
+    /**
+     * What a worker does when the access log ring is full
+     */
+    public AccessLog.Overflow getAccessLogOverflow() {
+        return accessLogOverflow;
+    }
+    
+    public void setAccessLogOverflow(AccessLog.Overflow accessLogOverflow) {
+        this.accessLogOverflow = accessLogOverflow;
+    }
+    
+    /**
+     * Records the access log can hold before the overflow policy applies
+     */
+    public int getAccessLogBuffer() {
+        return accessLogBuffer;
+    }
+    
+    public void setAccessLogBuffer(int accessLogBuffer) {
+        this.accessLogBuffer = accessLogBuffer;
+    }
+    
+    public long getAccessLogMaxBytes() {
+        return accessLogMaxBytes;
+    }
+    
+    public void setAccessLogMaxBytes(long accessLogMaxBytes) {
+        this.accessLogMaxBytes = accessLogMaxBytes;
+    }
+    
+    public int getAccessLogMaxFiles() {
+        return accessLogMaxFiles;
+    }
+    
+    public void setAccessLogMaxFiles(int accessLogMaxFiles) {
+        this.accessLogMaxFiles = accessLogMaxFiles;
+    }
+    
+    /**
+     * Directory for the user log and snapshots; null keeps users in memory only
+     */
+    public String getUserDataDir() {
+        return userDataDir;
+    }
+    
+    public void setUserDataDir(String userDataDir) {
+        this.userDataDir = userDataDir;
+    }
+    
+    /**
+     * Milliseconds the user log waits for more writes before one shared fsync
+     */
+    public int getUserLogGroupCommit() {
+        return userLogGroupCommit;
+    }
+    
+    public void setUserLogGroupCommit(int userLogGroupCommit) {
+        this.userLogGroupCommit = userLogGroupCommit;
+    }
+    
+    /**
+     * Logged users between compacted snapshots; 0 never compacts
+     */
+    public int getUserLogSnapshotInterval() {
+        return userLogSnapshotInterval;
+    }
+    
+    public void setUserLogSnapshotInterval(int userLogSnapshotInterval) {
+        this.userLogSnapshotInterval = userLogSnapshotInterval;
+    }
+    
+    /**
+     * Directory that PUT /api/uploads/{name} streams files into
+     */
+    public String getUploadDir() {
+        return uploadDir;
+    }
+    
+    public void setUploadDir(String uploadDir) {
+        this.uploadDir = uploadDir;
+    }
+    
+    /**
+     * Largest file an upload may grow to
+     */
+    public long getUploadMaxBytes() {
+        return uploadMaxBytes;
+    }
+    
+    public void setUploadMaxBytes(long uploadMaxBytes) {
+        this.uploadMaxBytes = uploadMaxBytes;
+    }
+    
+    /**
+     * Keystore holding the server certificate and key; null serves plaintext HTTP
+     */
+    public String getTlsKeystore() {
+        return tlsKeystore;
+    }
+    
+    public void setTlsKeystore(String tlsKeystore) {
+        this.tlsKeystore = tlsKeystore;
+    }
+    
+    public boolean isTlsEnabled() {
+        return tlsKeystore != null;
+    }
+    
+    public String getTlsKeystorePassword() {
+        return tlsKeystorePassword;
+    }
+    
+    public void setTlsKeystorePassword(String tlsKeystorePassword) {
+        this.tlsKeystorePassword = tlsKeystorePassword;
+    }
+    
+    /**
+     * KeyStore type of the keystore file, e.g. PKCS12 or JKS
+     */
+    public String getTlsKeystoreType() {
+        return tlsKeystoreType;
+    }
+    
+    public void setTlsKeystoreType(String tlsKeystoreType) {
+        this.tlsKeystoreType = tlsKeystoreType;
+    }
+    
+    /**
+     * Comma-separated TLS versions to enable
+     */
+    public String getTlsProtocols() {
+        return tlsProtocols;
+    }
+    
+    public void setTlsProtocols(String tlsProtocols) {
+        this.tlsProtocols = tlsProtocols;
+    }
+    
+    /**
+     * Comma-separated ALPN protocol names, most preferred first
+     */
+    public String getTlsApplicationProtocols() {
+        return tlsApplicationProtocols;
+    }
+    
+    public void setTlsApplicationProtocols(String tlsApplicationProtocols) {
+        this.tlsApplicationProtocols = tlsApplicationProtocols;
+    }
+    
+    /**
+     * TLS sessions the server keeps for resumption; 0 for no limit
+     */
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+    
+    public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+    }
+    
+    /**
+     * Seconds a TLS session (or ticket) can be resumed for
+     */
+    public int getTlsSessionTimeout() {
+        return tlsSessionTimeout;
+    }
+    
+    public void setTlsSessionTimeout(int tlsSessionTimeout) {
+        this.tlsSessionTimeout = tlsSessionTimeout;
+    }
+    
+    /**
+     * Whether to issue stateless session tickets instead of relying on the server-side cache alone
+     */
+    public boolean isTlsSessionTickets() {
+        return tlsSessionTickets;
+    }
+    
+    public void setTlsSessionTickets(boolean tlsSessionTickets) {
+        this.tlsSessionTickets = tlsSessionTickets;
+    }
+    
+    /**
+     * Whether HTTP/2 is offered: h2 through ALPN, h2c with prior knowledge or an Upgrade
+     */
+    public boolean isHttp2() {
+        return http2;
+    }
+    
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+    }
+    
+    /**
+     * Streams a client may have open at once on one HTTP/2 connection
+     */
+    public int getHttp2MaxConcurrentStreams() {
+        return http2MaxConcurrentStreams;
+    }
+    
+    public void setHttp2MaxConcurrentStreams(int http2MaxConcurrentStreams) {
+        this.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+    }
+    
+    /**
+     * Bytes of request body a client may send per stream before the handler reads them
+     */
+    public int getHttp2InitialWindowSize() {
+        return http2InitialWindowSize;
+    }
+    
+    /**
+     * Clamped to [65535, 2^31 - 1]: clients may use the protocol default before they see ours
+     */
+    public void setHttp2InitialWindowSize(int http2InitialWindowSize) {
+        this.http2InitialWindowSize = Math.max(Http2Frames.DEFAULT_WINDOW_SIZE, http2InitialWindowSize);
+    }
+    
+    /**
+     * Whether API routes that opt in have their responses cached; off by default
+     */
+    public boolean isResponseCache() {
+        return responseCache;
+    }
+    
+    public void setResponseCache(boolean responseCache) {
+        this.responseCache = responseCache;
+    }
+    
+    /**
+     * Memory for cached API responses (LRU)
+     */
+    public long getResponseCacheBytes() {
+        return responseCacheBytes;
+    }
+    
+    public void setResponseCacheBytes(long responseCacheBytes) {
+        this.responseCacheBytes = responseCacheBytes;
+    }
+    
+    /**
+     * Milliseconds a cached API response is served before the route runs again
+     */
+    public int getResponseCacheTtl() {
+        return responseCacheTtl;
+    }
+    
+    public void setResponseCacheTtl(int responseCacheTtl) {
+        this.responseCacheTtl = responseCacheTtl;
+    }
+    
+    /**
+     * Largest WebSocket message a client may send, after reassembling fragments
+     */
+    public int getWebSocketMaxMessage() {
+        return webSocketMaxMessage;
+    }
+    
+    public void setWebSocketMaxMessage(int webSocketMaxMessage) {
+        this.webSocketMaxMessage = webSocketMaxMessage;
+    }
+    
+    /**
+     * Bytes queued for one WebSocket client before it is disconnected as too slow
+     */
+    public int getWebSocketQueueBytes() {
+        return webSocketQueueBytes;
+    }
+    
+    public void setWebSocketQueueBytes(int webSocketQueueBytes) {
+        this.webSocketQueueBytes = webSocketQueueBytes;
+    }
+    
+    /**
+     * Milliseconds a WebSocket may be silent before it is pinged; one that
+     * stays silent as long again is closed. 0 disables pings.
+     */
+    public int getWebSocketPingInterval() {
+        return webSocketPingInterval;
+    }
+    
+    public void setWebSocketPingInterval(int webSocketPingInterval) {
+        this.webSocketPingInterval = webSocketPingInterval;
+    }
+    
+    /**
+     * Path prefixes forwarded to upstream servers, or null for none, e.g.
+     * "/shop=10.0.0.5:8080,10.0.0.6:8080*2;/search=10.0.0.7:9200", where *2 doubles a server's weight
+     */
+    public String getProxyRoutes() {
+        return proxyRoutes;
+    }
+    
+    public void setProxyRoutes(String proxyRoutes) {
+        this.proxyRoutes = proxyRoutes;
+    }
+    
+    public ProxyBalancer getProxyBalancer() {
+        return proxyBalancer;
+    }
+    
+    public void setProxyBalancer(ProxyBalancer proxyBalancer) {
+        this.proxyBalancer = proxyBalancer;
+    }
+    
+    /**
+     * Idle keep-alive connections kept per upstream
+     */
+    public int getProxyPoolSize() {
+        return proxyPoolSize;
+    }
+    
+    public void setProxyPoolSize(int proxyPoolSize) {
+        this.proxyPoolSize = proxyPoolSize;
+    }
+    
+    /**
+     * Milliseconds a pooled upstream connection may sit idle before it is
+     * closed; keep it below the upstreams' own keep-alive timeout
+     */
+    public int getProxyIdleTimeout() {
+        return proxyIdleTimeout;
+    }
+    
+    public void setProxyIdleTimeout(int proxyIdleTimeout) {
+        this.proxyIdleTimeout = proxyIdleTimeout;
+    }
+    
+    public int getProxyConnectTimeout() {
+        return proxyConnectTimeout;
+    }
+    
+    public void setProxyConnectTimeout(int proxyConnectTimeout) {
+        this.proxyConnectTimeout = proxyConnectTimeout;
+    }
+    
+    /**
+     * Milliseconds to wait on an upstream read before answering 504
+     */
+    public int getProxyReadTimeout() {
+        return proxyReadTimeout;
+    }
+    
+    public void setProxyReadTimeout(int proxyReadTimeout) {
+        this.proxyReadTimeout = proxyReadTimeout;
+    }
+    
+    /**
+     * Consecutive failures (connect or read errors, 502, 503 or 504) that eject an upstream
+     */
+    public int getProxyMaxFailures() {
+        return proxyMaxFailures;
+    }
+    
+    public void setProxyMaxFailures(int proxyMaxFailures) {
+        this.proxyMaxFailures = proxyMaxFailures;
+    }
+    
+    /**
+     * Milliseconds an ejected upstream is skipped before it gets traffic again
+     */
+    public int getProxyEjectTime() {
+        return proxyEjectTime;
+    }
+    
+    public void setProxyEjectTime(int proxyEjectTime) {
+        this.proxyEjectTime = proxyEjectTime;
+    }
+    
+    /**
+     * Whether I/O buffers are borrowed from the shared pool; off, every
+     * buffer is a new allocation (for comparing allocation rates)
+     */
+    public boolean isBufferPool() {
+        return bufferPool;
+    }
+    
+    public void setBufferPool(boolean bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+    
+    /**
+     * Idle bytes the shared buffer pool keeps, heap and direct together;
+     * buffers returned beyond that are left to the garbage collector
+     */
+    public long getBufferPoolBytes() {
+        return bufferPoolBytes;
+    }
+    
+    public void setBufferPoolBytes(long bufferPoolBytes) {
+        this.bufferPoolBytes = bufferPoolBytes;
+    }
+    
+    /**
+     * Records where each pooled buffer was borrowed and reports those that
+     * are garbage collected without having been returned. Debugging aid: it
+     * captures a stack trace per borrow.
+     */
+    public boolean isBufferLeakDetection() {
+        return bufferLeakDetection;
+    }
+    
+    public void setBufferLeakDetection(boolean bufferLeakDetection) {
+        this.bufferLeakDetection = bufferLeakDetection;
+    }
+}
@@ -0,0 +1,223 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of small static files held in direct buffers
+ * Each lookup costs one stat call; an entry is reused while the file's
+ * size and modification time are unchanged. Files too large for the cache
+ * are only described (size, mtime) so they can be streamed from disk.
+ * Entries also carry the validators (ETag, Last-Modified) computed once
+ * per file version, so a conditional request can be answered from the
+ * metadata without reading the file.
+ */
+public class StaticFileCache {
+    private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final long maxBytes;
+    private final long maxFileSize;
+    
+    public StaticFileCache(long maxBytes, long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, maxBytes);
+    }
+    
+    /**
+     * Metadata of a static file, plus its contents when cached
+     */
+    public static class Entry {
+        final Path path;
+        final long size;
+        final long lastModified;
+        final ByteBuffer content;
+        final String etag;
+        final String lastModifiedHeader;
+        volatile long lastAccess;
+        
+        Entry(Path path, long size, long lastModified, ByteBuffer content) {
+            this(path, size, lastModified, content,
+                "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"",
+                HttpDates.format(lastModified));
+        }
+        
+        private Entry(Path path, long size, long lastModified, ByteBuffer content,
+                      String etag, String lastModifiedHeader) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.content = content;
+            this.etag = etag;
+            this.lastModifiedHeader = lastModifiedHeader;
+        }
+        
+        public Path getPath() {
+            return path;
+        }
+        
+        public long getSize() {
+            return size;
+        }
+        
+        public long getLastModified() {
+            return lastModified;
+        }
+        
+        /**
+         * Strong entity tag built from size and modification time
+         */
+        public String getETag() {
+            return etag;
+        }
+        
+        /**
+         * Modification time as an HTTP date
+         */
+        public String getLastModifiedHeader() {
+            return lastModifiedHeader;
+        }
+        
+        boolean isCurrent(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified;
+        }
+        
+        /**
+         * Read-only view of the cached contents, or null if the file is streamed
+         */
+        public ByteBuffer getContent() {
+            return content != null ? content.duplicate() : null;
+        }
+    }
+    
+    /**
+     * Looks up a regular file and loads it into the cache if small enough
+     * @return the entry, or null if the file does not exist or is a directory
+     */
+    public Entry get(Path path) throws IOException {
+        return get(path, true);
+    }
+    
+    /**
+     * Looks up a regular file
+     * @param load whether to read a small file into the cache; if false the
+     * entry has contents only when they were cached already
+     * @return the entry, or null if the file does not exist or is a directory
+     */
+    public Entry get(Path path, boolean load) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            evict(path);
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Entry entry = entries.get(path);
+        if (entry == null || !entry.isCurrent(size, lastModified)) {
+            // Metadata only; kept so the validators are computed once per version
+            entry = new Entry(path, size, lastModified, null);
+            put(entry);
+        }
+        if (load && entry.content == null && size <= maxFileSize) {
+            entry = load(path, size, lastModified);
+        }
+        entry.lastAccess = clock.incrementAndGet();
+        return entry;
+    }
+    
+    /**
+     * Entry with its contents cached, if the file is small enough
+     * @param entry a result of get(path, false)
+     */
+    public Entry load(Entry entry) throws IOException {
+        if (entry.content != null || entry.size > maxFileSize) {
+            return entry;
+        }
+        Entry current = entries.get(entry.path);
+        if (current != null && current.content != null && current.isCurrent(entry.size, entry.lastModified)) {
+            return current;
+        }
+        return load(entry.path, entry.size, entry.lastModified);
+    }
+    
+    private Entry load(Path path, long size, long lastModified) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (content.hasRemaining() && channel.read(content) != -1) {
+                // Keep reading until full or EOF
+            }
+        }
+        content.flip();
+        
+        Entry entry;
+        Entry metadata = entries.get(path);
+        if (metadata != null && metadata.isCurrent(content.remaining(), lastModified)) {
+            entry = new Entry(path, metadata.size, lastModified, content.asReadOnlyBuffer(),
+                metadata.etag, metadata.lastModifiedHeader);
+        } else {
+            entry = new Entry(path, content.remaining(), lastModified, content.asReadOnlyBuffer());
+        }
+        put(entry);
+        trim();
+        entry.lastAccess = clock.incrementAndGet();
+        return entry;
+    }
+    
+    private void put(Entry entry) {
+        Entry previous = entries.put(entry.path, entry);
+        cachedBytes.addAndGet(weight(entry) - weight(previous));
+    }
+    
+    /**
+     * Bytes an entry holds in the cache; metadata-only entries count as free
+     */
+    private static long weight(Entry entry) {
+        return entry != null && entry.content != null ? entry.size : 0;
+    }
+    
+    private void evict(Path path) {
+        Entry previous = entries.remove(path);
+        cachedBytes.addAndGet(-weight(previous));
+    }
+    
+    /**
+     * Evicts least recently used entries until the cache is within its byte budget
+     */
+    private void trim() {
+        while (cachedBytes.get() > maxBytes) {
+            Entry oldest = null;
+            for (Entry entry : entries.values()) {
+                if (entry.content != null && (oldest == null || entry.lastAccess < oldest.lastAccess)) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            // Drop the contents but keep the metadata and validators
+            Entry metadata = new Entry(oldest.path, oldest.size, oldest.lastModified, null,
+                oldest.etag, oldest.lastModifiedHeader);
+            metadata.lastAccess = oldest.lastAccess;
+            if (entries.replace(oldest.path, oldest, metadata)) {
+                cachedBytes.addAndGet(-oldest.size);
+            }
+        }
+    }
+    
+    public int size() {
+        return entries.size();
+    }
+    
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Response whose body is produced while it is being sent
+ * The handler supplies a writer that is called with the connection's
+ * output once the head has gone out. The body is framed with chunked
+ * transfer-encoding (or ends with the connection for HTTP/1.0 clients), so
+ * its length need not be known up front and it is never held in memory:
+ * writes block while the client is slow to read.
+ */
+public class StreamingResponse extends HTTPResponse {
+    private static final int CHUNK_SIZE = 8 * 1024;
+    
+    /**
+     * Produces the body; the stream must not be closed by the writer
+     */
+    @FunctionalInterface
+    public interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+    
+    private final BodyWriter writer;
+    private boolean chunked = true;
+    private long sent;
+    
+    public StreamingResponse(int statusCode, String statusMessage, BodyWriter writer) {
+        super(statusCode, statusMessage);
+        this.writer = writer;
+        setHeader("Transfer-Encoding", "chunked");
+    }
+    
+    /**
+     * HTTP/1.0 has no chunked coding; unchunked, the body ends when the connection closes
+     */
+    void setChunked(boolean chunked) {
+        this.chunked = chunked;
+        if (chunked) {
+            setHeader("Transfer-Encoding", "chunked");
+        } else {
+            removeHeader("Transfer-Encoding");
+        }
+    }
+    
+    @Override
+    boolean hasFixedLength() {
+        return false;
+    }
+    
+    @Override
+    public void send(OutputStream output) throws IOException {
+        ByteBuffer head = encodeHead(ByteBuffer.allocate(512));
+        try {
+            output.write(head.array(), 0, head.limit());
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+        writeBody(output);
+    }
+    
+    @Override
+    public ByteBuffer send(GatheringByteChannel channel, ByteBuffer headBuffer) throws IOException {
+        headBuffer.clear();
+        ByteBuffer head = encodeHead(headBuffer);
+        try {
+            while (head.hasRemaining()) {
+                channel.write(head);
+            }
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+        writeBody(Channels.newOutputStream(channel));
+        return head;
+    }
+    
+    /**
+     * Called instead of writeBody when the connection fails before the body
+     * starts, for responses whose writer holds a resource; nothing by default
+     */
+    void discard() {
+    }
+    
+    /**
+     * Runs the writer against the raw body output, adding the framing and the last chunk
+     */
+    void writeBody(OutputStream output) throws IOException {
+        ChunkedOutputStream body = new ChunkedOutputStream(output, CHUNK_SIZE, chunked);
+        try {
+            writer.writeTo(body);
+            body.finish();
+        } catch (RuntimeException e) {
+            // The head is out already; all that can be done is to cut the body short
+            throw new IOException("Body writer failed", e);
+        } finally {
+            sent = body.getWritten();
+            body.release();
+        }
+    }
+    
+    /**
+     * Body bytes sent so far; the length is only known once streaming is done
+     */
+    @Override
+    public long getContentLength() {
+        return sent;
+    }
+}
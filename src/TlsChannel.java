@@ -0,0 +1,460 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.*;
+
+/**
+ * TLS over a socket through an SSLEngine, as a plaintext byte channel
+ * Works on blocking and non-blocking sockets alike: on a non-blocking one
+ * read and write return 0 whenever the handshake or a TLS record still
+ * waits on the network, and the caller retries on the next selector event
+ * (hasPendingOutput tells it to wait for OP_WRITE, hasBufferedInput that
+ * bytes already received need no event). Gathering writes wrap all
+ * buffers into shared records, so a response head and its body go out
+ * together as they do in plaintext. After the handshake one thread may
+ * read while another writes; writers are serialized. The buffers are
+ * borrowed from the pool until close, which the reading thread calls; the
+ * ciphertext ones are direct where they meet a socket channel, so the
+ * socket reads and writes them without an intermediate copy.
+ */
+final class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer[] EMPTY = { ByteBuffer.allocate(0) };
+    
+    private final SSLEngine engine;
+    private ReadableByteChannel in;
+    private final WritableByteChannel out;
+    private final Executor taskExecutor;
+    private final Runnable onTasksDone;
+    private final Metrics metrics;
+    private final long handshakeStarted = System.currentTimeMillis();
+    private final BufferPool buffers = BufferPool.shared();
+    // Serializes writers and the handshake; a lock rather than a monitor, so
+    // a virtual thread blocked on the socket in here does not pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    // Ciphertext received but not yet unwrapped (kept ready for filling)
+    private ByteBuffer netIn;
+    // Plaintext unwrapped but not yet read (kept ready for draining)
+    private ByteBuffer appIn;
+    // Ciphertext wrapped but not yet written (kept ready for draining)
+    private ByteBuffer netOut;
+    private volatile boolean tasksRunning;
+    private boolean inboundDone;
+    private volatile boolean handshaken;
+    private boolean resumed;
+    private boolean released;
+    
+    /**
+     * @param taskExecutor runs the engine's delegated tasks (the expensive
+     * handshake crypto) off the calling thread; null runs them inline
+     * @param onTasksDone called from the executor once they are done, to resume the handshake
+     * @param metrics counts handshakes by outcome; may be null
+     */
+    TlsChannel(SSLEngine engine, ReadableByteChannel in, WritableByteChannel out,
+               Executor taskExecutor, Runnable onTasksDone, Metrics metrics) throws SSLException {
+        this.engine = engine;
+        this.in = in;
+        this.out = out;
+        this.taskExecutor = taskExecutor;
+        this.onTasksDone = onTasksDone;
+        this.metrics = metrics;
+        SSLSession session = engine.getSession();
+        this.netIn = in instanceof SocketChannel
+            ? buffers.acquireDirect(session.getPacketBufferSize())
+            : buffers.acquire(session.getPacketBufferSize());
+        this.appIn = buffers.acquire(session.getApplicationBufferSize()).flip();
+        this.netOut = buffers.acquireDirect(session.getPacketBufferSize()).flip();
+        // Until started the engine reports NOT_HANDSHAKING, which would pass for done
+        engine.beginHandshake();
+    }
+    
+    /**
+     * Drives the handshake as far as the socket allows
+     * @return true once it is complete; false if it waits on the network or a delegated task
+     */
+    boolean handshake() throws IOException {
+        lock.lock();
+        try {
+            if (released) {
+                throw new ClosedChannelException();
+            }
+            if (handshaken && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                return flush();
+            }
+            try {
+                if (!progressHandshake()) {
+                    return false;
+                }
+            } catch (IOException e) {
+                if (!handshaken && metrics != null) {
+                    metrics.recordTlsHandshake("failed");
+                }
+                throw e;
+            }
+            if (!handshaken) {
+                handshaken = true;
+                // A resumed session was created by an earlier handshake
+                resumed = engine.getSession().getCreationTime() < handshakeStarted;
+                if (metrics != null) {
+                    metrics.recordTlsHandshake(resumed ? "resumed" : "full");
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private boolean progressHandshake() throws IOException {
+        while (true) {
+            if (!flush()) {
+                return false;
+            }
+            switch (engine.getHandshakeStatus()) {
+                case NOT_HANDSHAKING:
+                case FINISHED:
+                    return true;
+                case NEED_TASK:
+                    if (!runDelegatedTasks()) {
+                        return false;
+                    }
+                    break;
+                case NEED_WRAP:
+                    if (wrap(EMPTY, 0, 1).getStatus() == SSLEngineResult.Status.CLOSED) {
+                        flush();
+                        throw new EOFException("TLS connection closed during handshake");
+                    }
+                    break;
+                default:
+                    // NEED_UNWRAP
+                    SSLEngineResult result = unwrap();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("TLS connection closed during handshake");
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        int read = readNet();
+                        if (read < 0) {
+                            throw new EOFException("Connection closed during TLS handshake");
+                        }
+                        if (read == 0) {
+                            return false;
+                        }
+                    }
+                    break;
+            }
+        }
+    }
+    
+    /**
+     * Reads from another channel from now on, e.g. the socket itself once
+     * a blocking connection is handed to a selector; buffered bytes are kept
+     */
+    void setInput(ReadableByteChannel in) {
+        lock.lock();
+        try {
+            this.in = in;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Whether the initial handshake has completed
+     */
+    boolean isHandshakeComplete() {
+        return handshaken;
+    }
+    
+    /**
+     * Whether the completed handshake resumed an earlier session
+     */
+    boolean isResumed() {
+        return resumed;
+    }
+    
+    /**
+     * Protocol chosen through ALPN, or null if none was negotiated
+     */
+    String getApplicationProtocol() {
+        String protocol = engine.getApplicationProtocol();
+        return protocol == null || protocol.isEmpty() ? null : protocol;
+    }
+    
+    /**
+     * Whether a delegated task is still running; nothing progresses until it calls back
+     */
+    boolean isTaskRunning() {
+        return tasksRunning;
+    }
+    
+    private boolean runDelegatedTasks() {
+        if (taskExecutor == null) {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            return true;
+        }
+        if (tasksRunning) {
+            return false;
+        }
+        tasksRunning = true;
+        Runnable runAll = () -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            tasksRunning = false;
+            onTasksDone.run();
+        };
+        try {
+            taskExecutor.execute(runAll);
+        } catch (RejectedExecutionException e) {
+            // Workers saturated: do the work here rather than stall the handshake
+            tasksRunning = false;
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            return true;
+        }
+        return false;
+    }
+    
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        // Once handshaken, reads leave the write side alone so one thread can
+        // read while another writes (HTTP/2 streams on the blocking engine)
+        if (!handshaken && !handshake()) {
+            return 0;
+        }
+        while (true) {
+            if (appIn.hasRemaining()) {
+                int count = Math.min(appIn.remaining(), dst.remaining());
+                ByteBuffer slice = appIn.duplicate();
+                slice.limit(slice.position() + count);
+                dst.put(slice);
+                appIn.position(appIn.position() + count);
+                return count;
+            }
+            if (inboundDone) {
+                return -1;
+            }
+            SSLEngineResult result = unwrap();
+            switch (result.getStatus()) {
+                case CLOSED:
+                    // close_notify from the peer
+                    inboundDone = true;
+                    break;
+                case BUFFER_UNDERFLOW:
+                    int read = readNet();
+                    if (read < 0) {
+                        inboundDone = true;
+                    } else if (read == 0) {
+                        return 0;
+                    }
+                    break;
+                default:
+                    // Post-handshake messages (key updates, renegotiation) need answering first
+                    SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+                    if (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                            && status != SSLEngineResult.HandshakeStatus.FINISHED
+                            && !handshake() && !appIn.hasRemaining()) {
+                        return 0;
+                    }
+                    break;
+            }
+        }
+    }
+    
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
+    }
+    
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+    
+    /**
+     * Wraps and sends as much as the socket accepts
+     * @return plaintext bytes consumed; some of their records may still be
+     * pending (see hasPendingOutput)
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            if (released) {
+                throw new ClosedChannelException();
+            }
+            if (!handshake() || !flush()) {
+                return 0;
+            }
+            long consumed = 0;
+            while (hasRemaining(srcs, offset, length)) {
+                SSLEngineResult result = wrap(srcs, offset, length);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS connection closed");
+                }
+                consumed += result.bytesConsumed();
+                if (!flush()) {
+                    break;
+                }
+            }
+            return consumed;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Writes wrapped records still waiting for the socket
+     * @return true once none are left
+     */
+    boolean flush() throws IOException {
+        lock.lock();
+        try {
+            while (netOut.hasRemaining()) {
+                if (out.write(netOut) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Whether records are waiting for the socket to accept them
+     */
+    boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+    
+    /**
+     * Whether bytes already taken off the socket may hold more plaintext;
+     * the selector reports no event for them
+     */
+    boolean hasBufferedInput() {
+        return appIn.hasRemaining() || (netIn.position() > 0 && !inboundDone);
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return out.isOpen();
+    }
+    
+    /**
+     * Sends close_notify, as far as the socket takes it, and closes the socket
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            try {
+                engine.closeOutbound();
+                if (flush() && !tasksRunning) {
+                    wrap(EMPTY, 0, 1);
+                    flush();
+                }
+            } catch (IOException e) {
+                // The peer is gone; it will not miss the alert
+            } finally {
+                try {
+                    out.close();
+                } finally {
+                    release();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Hands the buffers back to the pool. Later writes find the engine
+     * closed; a later read sees end of stream.
+     */
+    private void release() {
+        if (!released) {
+            released = true;
+            inboundDone = true;
+            buffers.release(netIn);
+            buffers.release(appIn);
+            buffers.release(netOut);
+            netIn = ByteBuffer.allocate(0);
+            appIn = ByteBuffer.allocate(0);
+            netOut = ByteBuffer.allocate(0);
+        }
+    }
+    
+    private int readNet() throws IOException {
+        if (!netIn.hasRemaining()) {
+            // A record larger than the session's packet size
+            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+        }
+        return in.read(netIn);
+    }
+    
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            appIn.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                appIn.flip();
+                netIn.compact();
+            }
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                return result;
+            }
+            appIn = grow(appIn.compact(), engine.getSession().getApplicationBufferSize()).flip();
+        }
+    }
+    
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        while (true) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(srcs, offset, length, netOut);
+            } finally {
+                netOut.flip();
+            }
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                return result;
+            }
+            netOut = grow(netOut.compact(), engine.getSession().getPacketBufferSize()).flip();
+        }
+    }
+    
+    /**
+     * Copy of a buffer in write mode with room for at least extra more bytes;
+     * the buffer itself goes back to the pool
+     */
+    private ByteBuffer grow(ByteBuffer buffer, int extra) {
+        int capacity = buffer.position() + Math.max(extra, buffer.capacity());
+        ByteBuffer larger = buffer.isDirect() ? buffers.acquireDirect(capacity) : buffers.acquire(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        buffers.release(buffer);
+        return larger;
+    }
+}
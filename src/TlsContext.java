@@ -0,0 +1,121 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.*;
+import javax.net.ssl.*;
+
+/**
+ * Server-side TLS settings shared by every connection
+ * One SSLContext is built from the configured keystore and every engine
+ * comes from it, so all connections share its session cache: a returning
+ * client resumes its session (a TLS 1.2 session ID or ticket, a TLS 1.3
+ * PSK ticket) and skips the key exchange and certificate signature of a
+ * full handshake. With stateless tickets the session state travels with
+ * the client, so resumption works however many clients there are.
+ */
+public class TlsContext {
+    private static final String TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+    
+    private final SSLContext context;
+    private final String[] protocols;
+    private final List<String> applicationProtocols;
+    
+    private TlsContext(SSLContext context, String[] protocols, List<String> applicationProtocols) {
+        this.context = context;
+        this.protocols = protocols;
+        this.applicationProtocols = applicationProtocols;
+    }
+    
+    /**
+     * Loads the keystore named by the configuration
+     * @return null if TLS is not configured
+     */
+    public static TlsContext fromConfig(ServerConfig config) throws IOException, GeneralSecurityException {
+        if (config.getTlsKeystore() == null) {
+            return null;
+        }
+        // Read once when JSSE initializes, so it has to be set before the first SSLContext
+        if (System.getProperty(TICKETS_PROPERTY) == null) {
+            System.setProperty(TICKETS_PROPERTY, String.valueOf(config.isTlsSessionTickets()));
+        }
+        
+        char[] password = config.getTlsKeystorePassword().toCharArray();
+        KeyStore keyStore = KeyStore.getInstance(config.getTlsKeystoreType());
+        try (InputStream in = Files.newInputStream(Paths.get(config.getTlsKeystore()))) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(config.getTlsSessionCacheSize());
+        sessions.setSessionTimeout(config.getTlsSessionTimeout());
+        
+        // Keep only the configured versions this JDK supports
+        Set<String> supported = new HashSet<>(Arrays.asList(context.getSupportedSSLParameters().getProtocols()));
+        List<String> protocols = new ArrayList<>();
+        for (String protocol : split(config.getTlsProtocols())) {
+            if (supported.contains(protocol)) {
+                protocols.add(protocol);
+            }
+        }
+        if (protocols.isEmpty()) {
+            throw new GeneralSecurityException("None of the TLS protocols " + config.getTlsProtocols() + " is supported");
+        }
+        List<String> applicationProtocols = split(config.getTlsApplicationProtocols());
+        if (!config.isHttp2()) {
+            applicationProtocols.remove(Http2Connection.ALPN_PROTOCOL);
+        }
+        return new TlsContext(context, protocols.toArray(new String[0]), applicationProtocols);
+    }
+    
+    private static List<String> split(String list) {
+        List<String> values = new ArrayList<>();
+        for (String value : list.split(",")) {
+            if (!value.trim().isEmpty()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+    
+    /**
+     * Server-mode engine for one connection
+     */
+    SSLEngine newEngine() {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(protocols);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setUseCipherSuitesOrder(true);
+        engine.setSSLParameters(parameters);
+        // ALPN: our first preference the client also offers; without one the
+        // handshake goes ahead with no protocol rather than failing
+        engine.setHandshakeApplicationProtocolSelector((e, offered) -> {
+            for (String protocol : applicationProtocols) {
+                if (offered.contains(protocol)) {
+                    return protocol;
+                }
+            }
+            return null;
+        });
+        return engine;
+    }
+    
+    /**
+     * Protocol names advertised through ALPN, in order of preference
+     */
+    public List<String> getApplicationProtocols() {
+        return Collections.unmodifiableList(applicationProtocols);
+    }
+    
+    /**
+     * TLS versions enabled, newest first
+     */
+    public String[] getProtocols() {
+        return protocols.clone();
+    }
+}
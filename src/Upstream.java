@@ -0,0 +1,237 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One server behind a proxy route: its idle keep-alive connections, the
+ * requests in flight to it and its passive health
+ * Idle connections are reused most recently used first, so under light
+ * load the pool shrinks to what is needed and the rest age out after the
+ * idle timeout. A pooled connection is probed with a non-blocking read
+ * before reuse, which finds the ones the upstream has closed meanwhile.
+ * Health is judged from real traffic only: after maxFailures consecutive
+ * failures the upstream is ejected for ejectTime, then gets traffic again
+ * on probation, where a single failure ejects it once more.
+ */
+final class Upstream {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    
+    private final String host;
+    private final int port;
+    private final int weight;
+    private final String name;
+    private final int poolSize;
+    private final int idleTimeout;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int maxFailures;
+    private final int ejectTime;
+    private final Metrics metrics;
+    
+    // Most recently used first; guarded by itself
+    private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    // Guarded by this; read without the lock on the request path
+    private volatile int failures;
+    private volatile long ejectedUntil;
+    // Smooth weighted round robin state, guarded by the route that owns this upstream
+    long currentWeight;
+    
+    /**
+     * Keep-alive connection to the upstream, used by one request at a time
+     */
+    static final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer probe = ByteBuffer.allocate(1);
+        final InputStream in;
+        final OutputStream out;
+        private boolean reused;
+        private long idleSince;
+        
+        private Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            Socket socket = channel.socket();
+            this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        }
+        
+        /**
+         * Whether the connection served an earlier request, so a failure may
+         * only mean the upstream closed it while it was idle
+         */
+        boolean isReused() {
+            return reused;
+        }
+        
+        /**
+         * Still open with nothing unexpected to read: a read that would block
+         */
+        private boolean isUsable() {
+            try {
+                channel.configureBlocking(false);
+                try {
+                    probe.clear();
+                    return channel.read(probe) == 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing useful to do
+            }
+        }
+    }
+    
+    Upstream(String host, int port, int weight, ServerConfig config, Metrics metrics) {
+        this.host = host;
+        this.port = port;
+        this.weight = weight;
+        this.name = host + ":" + port;
+        this.poolSize = config.getProxyPoolSize();
+        this.idleTimeout = config.getProxyIdleTimeout();
+        this.connectTimeout = config.getProxyConnectTimeout();
+        this.readTimeout = config.getProxyReadTimeout();
+        this.maxFailures = Math.max(1, config.getProxyMaxFailures());
+        this.ejectTime = config.getProxyEjectTime();
+        this.metrics = metrics;
+    }
+    
+    String getName() {
+        return name;
+    }
+    
+    int getWeight() {
+        return weight;
+    }
+    
+    /**
+     * Requests sent to this upstream whose response has not been relayed yet
+     */
+    int getOutstanding() {
+        return outstanding.get();
+    }
+    
+    void begin() {
+        outstanding.incrementAndGet();
+    }
+    
+    void end() {
+        outstanding.decrementAndGet();
+    }
+    
+    /**
+     * A pooled connection that is still open, or a new one
+     */
+    Connection acquire() throws IOException {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Connection connection;
+            synchronized (idle) {
+                connection = idle.pollFirst();
+            }
+            if (connection == null) {
+                return connect();
+            }
+            if (now - connection.idleSince < idleTimeout && connection.isUsable()) {
+                connection.reused = true;
+                return connection;
+            }
+            connection.close();
+        }
+    }
+    
+    /**
+     * Opens a new connection, bypassing the pool
+     */
+    Connection connect() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            Connection connection = new Connection(channel);
+            metrics.recordProxyConnection(name);
+            return connection;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Returns a connection after its response has been read in full, or
+     * closes it if it cannot carry another request or the pool is full
+     */
+    void release(Connection connection, boolean reusable) {
+        if (reusable) {
+            long now = System.currentTimeMillis();
+            connection.idleSince = now;
+            synchronized (idle) {
+                // The oldest are at the tail; drop those past the idle timeout
+                Connection oldest;
+                while ((oldest = idle.peekLast()) != null && now - oldest.idleSince >= idleTimeout) {
+                    idle.pollLast().close();
+                }
+                if (idle.size() < poolSize) {
+                    idle.addFirst(connection);
+                    return;
+                }
+            }
+        }
+        connection.close();
+    }
+    
+    /**
+     * Whether the upstream takes traffic: not ejected, or its ejection has run out
+     */
+    boolean isAvailable(long now) {
+        return ejectedUntil <= now;
+    }
+    
+    void recordSuccess() {
+        if (failures != 0) {
+            synchronized (this) {
+                failures = 0;
+            }
+        }
+    }
+    
+    /**
+     * Connect or read error, or a 502, 503 or 504 from the upstream
+     */
+    synchronized void recordFailure() {
+        long now = System.currentTimeMillis();
+        failures++;
+        if (failures >= maxFailures && ejectedUntil <= now) {
+            ejectedUntil = now + ejectTime;
+            // On probation once the ejection runs out: one more failure ejects it again
+            failures = maxFailures - 1;
+            metrics.recordProxyEjection(name);
+            closeIdle();
+        }
+    }
+    
+    /**
+     * Closes the pooled connections; those in use are closed when released
+     */
+    void closeIdle() {
+        synchronized (idle) {
+            Connection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+}
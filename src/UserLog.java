@@ -0,0 +1,341 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Durable append-only log for the user store
+ * Every created user is appended as a checksummed record. A single writer
+ * thread batches records that arrive within the group-commit window into
+ * one write and one fsync, then completes all their futures, so a burst of
+ * POSTs shares the cost of a sync. Every snapshotInterval records the
+ * writer stores a compacted snapshot of the whole store and starts a new,
+ * empty log. Recovery loads the snapshot and replays the log tail, stopping
+ * at the first torn or corrupt record.
+ *
+ * Record: int payloadLength, int crc32(payload), payload.
+ * Payload: byte type, int id, UTF name, UTF email.
+ */
+public class UserLog implements Closeable {
+    private static final String LOG_FILE = "users.log";
+    private static final String SNAPSHOT_FILE = "users.snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x55534E31; // "USN1"
+    private static final byte TYPE_CREATE = 1;
+    private static final int MAX_PAYLOAD = 1 << 20;
+    
+    private final Path directory;
+    private final long groupCommitNanos;
+    private final int snapshotInterval;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    
+    private UserStore store;
+    private FileChannel log;
+    private int sinceSnapshot;
+    // Logged since the last snapshot; create() publishes a user to the
+    // store only after its record is on disk, so some may not be there yet
+    private final List<UserStore.User> logged = new ArrayList<>();
+    
+    private static final class Pending {
+        final UserStore.User user;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        
+        Pending(UserStore.User user) {
+            this.user = user;
+        }
+    }
+    
+    /**
+     * @param groupCommitMillis how long the writer waits for more records before syncing
+     * @param snapshotInterval records between compacted snapshots
+     */
+    public UserLog(Path directory, long groupCommitMillis, int snapshotInterval) throws IOException {
+        this.directory = directory;
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, groupCommitMillis));
+        this.snapshotInterval = snapshotInterval;
+        Files.createDirectories(directory);
+        this.writer = new Thread(this::writeLoop, "user-log-writer");
+        this.writer.setDaemon(true);
+    }
+    
+    /**
+     * Loads the snapshot and log into the store, then starts accepting appends
+     * @return number of users in the store afterwards
+     */
+    public int recover(UserStore store) throws IOException {
+        this.store = store;
+        loadSnapshot(store);
+        
+        Path logPath = directory.resolve(LOG_FILE);
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validLength = replayLog(store);
+        if (validLength < log.size()) {
+            System.err.println("User log: discarding " + (log.size() - validLength) + " bytes of torn or corrupt tail");
+            log.truncate(validLength);
+        }
+        log.position(validLength);
+        
+        writer.start();
+        return store.size();
+    }
+    
+    /**
+     * Queues a user for the next group commit
+     * @return a future completed once the record is on disk, or
+     * exceptionally if it could not be written or the log is closed
+     */
+    public CompletableFuture<Void> append(UserStore.User user) {
+        Pending pending = new Pending(user);
+        if (!running) {
+            pending.done.completeExceptionally(closed());
+            return pending.done;
+        }
+        queue.add(pending);
+        // close() may have run since the check, and the writer may have
+        // exited without seeing this record; whichever of us removes it fails it
+        if (!running && queue.remove(pending)) {
+            pending.done.completeExceptionally(closed());
+        }
+        return pending.done;
+    }
+    
+    private static IOException closed() {
+        return new IOException("User log is closed");
+    }
+    
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                
+                // Group commit: give concurrent writers the window to join this sync
+                long deadline = System.nanoTime() + groupCommitNanos;
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0) {
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                queue.drainTo(batch);
+                
+                commit(batch, bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Pending pending : batch) {
+                    pending.done.completeExceptionally(new InterruptedIOException("User log writer interrupted"));
+                }
+                break;
+            } catch (IOException e) {
+                System.err.println("User log write failed: " + e.getMessage());
+                for (Pending pending : batch) {
+                    pending.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+    
+    private void commit(List<Pending> batch, ByteArrayOutputStream bytes) throws IOException {
+        bytes.reset();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Iterator<Pending> it = batch.iterator(); it.hasNext(); ) {
+            Pending pending = it.next();
+            try {
+                writeRecord(out, pending.user);
+            } catch (UTFDataFormatException e) {
+                // Field too long to encode; fail this record only
+                pending.done.completeExceptionally(e);
+                it.remove();
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+        log.force(false);
+        
+        for (Pending pending : batch) {
+            if (snapshotInterval > 0) {
+                logged.add(pending.user);
+            }
+            pending.done.complete(null);
+        }
+        
+        sinceSnapshot += batch.size();
+        if (snapshotInterval > 0 && sinceSnapshot >= snapshotInterval) {
+            writeSnapshot();
+        }
+    }
+    
+    private static void writeRecord(DataOutputStream out, UserStore.User user) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeByte(TYPE_CREATE);
+        payload.writeInt(user.id);
+        payload.writeUTF(user.name);
+        payload.writeUTF(user.email);
+        byte[] data = payloadBytes.toByteArray();
+        
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        out.writeInt(data.length);
+        out.writeInt((int) crc.getValue());
+        out.write(data);
+    }
+    
+    /**
+     * Replays log records into the store
+     * @return length of the valid prefix of the log
+     */
+    private long replayLog(UserStore store) throws IOException {
+        long valid = 0;
+        sinceSnapshot = 0;
+        log.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log), 1 << 16));
+        CRC32 crc = new CRC32();
+        while (true) {
+            int length;
+            int checksum;
+            byte[] data;
+            try {
+                length = in.readInt();
+                checksum = in.readInt();
+                if (length <= 0 || length > MAX_PAYLOAD) {
+                    break;
+                }
+                data = new byte[length];
+                in.readFully(data);
+            } catch (EOFException e) {
+                break;
+            }
+            
+            crc.reset();
+            crc.update(data);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            DataInputStream payload = new DataInputStream(new ByteArrayInputStream(data));
+            if (payload.readByte() == TYPE_CREATE) {
+                store.restore(new UserStore.User(payload.readInt(), payload.readUTF(), payload.readUTF()));
+            }
+            valid += 8 + length;
+            sinceSnapshot++;
+        }
+        return valid;
+    }
+    
+    private void loadSnapshot(UserStore store) throws IOException {
+        Path path = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16), crc)) {
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a user snapshot: " + path);
+            }
+            int count = in.readInt();
+            List<UserStore.User> users = new ArrayList<>(Math.min(count, 1 << 20));
+            for (int i = 0; i < count; i++) {
+                users.add(new UserStore.User(in.readInt(), in.readUTF(), in.readUTF()));
+            }
+            int expected = (int) crc.getValue();
+            if (new DataInputStream(checked).readInt() != expected) {
+                throw new IOException("Corrupt user snapshot: " + path);
+            }
+            for (UserStore.User user : users) {
+                store.restore(user);
+            }
+        }
+    }
+    
+    /**
+     * Writes the store to a new snapshot file, atomically replaces the old
+     * one, syncs the directory and truncates the log. Runs on the writer
+     * thread, so no append can interleave. Users logged since the last
+     * snapshot are written as well, since their create() may not have
+     * published them to the store yet; one that is in both is harmless
+     * because replay is idempotent by id.
+     */
+    private void writeSnapshot() throws IOException {
+        List<UserStore.User> users = new ArrayList<>(Arrays.asList(store.snapshot().users));
+        users.addAll(logged);
+        Path tmp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(users.size());
+            for (UserStore.User user : users) {
+                out.writeInt(user.id);
+                out.writeUTF(user.name);
+                out.writeUTF(user.email);
+            }
+            // Checksum covers everything before it
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // Make the rename durable before the log is emptied; otherwise a
+        // crash could keep the truncation but lose the rename, pairing the
+        // old snapshot with an empty log
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        }
+        
+        log.truncate(0);
+        log.position(0);
+        log.force(true);
+        sinceSnapshot = 0;
+        logged.clear();
+    }
+    
+    @Override
+    public void close() {
+        running = false;
+        // The writer finishes what is queued and exits; the channel must
+        // not be closed under a commit in progress
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        // Anything queued after the writer's last look, so no caller waits forever
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pending.done.completeExceptionally(closed());
+        }
+        try {
+            if (log != null) {
+                log.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing user log: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Thread-safe user storage behind /api/users
+ * IDs come from an atomic counter, users are indexed by id in a sorted
+ * concurrent map and by email in a concurrent hash map. Reads of the full
+ * list use an immutable snapshot (array plus serialized JSON bytes) that
+ * is rebuilt lazily after a write.
+ *
+ * With a UserLog attached, create() returns only once the new user is
+ * durable, and no reader sees it before then; the log shares one fsync
+ * between concurrent creates.
+ */
+public class UserStore {
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final ConcurrentSkipListMap<Integer, User> byId = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, User> byEmail = new ConcurrentHashMap<>();
+    
+    // Holds an email in byEmail while its create() waits on the log
+    private static final User PENDING = new User(0, "", "");
+    
+    // Bumped on every write; a snapshot is only valid for the version it was built from
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    
+    private volatile UserLog log;
+    
+    /**
+     * Immutable view of all users in id order
+     */
+    public static final class Snapshot {
+        final long version;
+        final User[] users;
+        private volatile ByteBuffer json;
+        
+        Snapshot(long version, User[] users) {
+            this.version = version;
+            this.users = users;
+        }
+        
+        public int size() {
+            return users.length;
+        }
+        
+        /**
+         * The whole list as a JSON array, serialized once per snapshot;
+         * callers get their own view of the shared bytes
+         */
+        public ByteBuffer toJson() {
+            ByteBuffer result = json;
+            if (result == null) {
+                result = toJson(0, users.length);
+                json = result;
+            }
+            return result.duplicate();
+        }
+        
+        /**
+         * A page of the list as a JSON array
+         */
+        public ByteBuffer toJson(int offset, int limit) {
+            int from = Math.min(Math.max(offset, 0), users.length);
+            int to = (int) Math.min((long) from + Math.max(limit, 0), users.length);
+            JsonWriter out = new JsonWriter(2 + (to - from) * 64).beginArray();
+            for (int i = from; i < to; i++) {
+                users[i].writeJson(out);
+            }
+            return out.endArray().toByteBuffer();
+        }
+    }
+    
+    // Simple User class
+    static class User {
+        final int id;
+        final String name;
+        final String email;
+        
+        User(int id, String name, String email) {
+            this.id = id;
+            this.name = name;
+            this.email = email;
+        }
+        
+        void writeJson(JsonWriter out) {
+            out.beginObject()
+                .name("id").value(id)
+                .name("name").value(name)
+                .name("email").value(email)
+                .endObject();
+        }
+        
+        ByteBuffer toJson() {
+            JsonWriter out = new JsonWriter(64);
+            writeJson(out);
+            return out.toByteBuffer();
+        }
+    }
+    
+    /**
+     * Persists every later create() to the log. Recover from the log before
+     * attaching it, so ids continue after the recovered ones.
+     */
+    public void setLog(UserLog log) {
+        this.log = log;
+    }
+    
+    /**
+     * Creates a user with the next id
+     * @return the new user, or null if the email is already taken
+     * @throws UncheckedIOException if the user could not be made durable
+     */
+    public User create(String name, String email) {
+        // Reserve the email first so a duplicate neither burns an id nor
+        // becomes visible; the user is published only once it is durable
+        String key = normalizeEmail(email);
+        if (byEmail.putIfAbsent(key, PENDING) != null) {
+            return null;
+        }
+        User user = new User(nextId.getAndIncrement(), name, email);
+        
+        UserLog current = log;
+        if (current != null) {
+            try {
+                current.append(user).get();
+            } catch (ExecutionException e) {
+                // Not durable, so not created
+                byEmail.remove(key, PENDING);
+                Throwable cause = e.getCause();
+                throw new UncheckedIOException(cause instanceof IOException
+                    ? (IOException) cause : new IOException(cause));
+            } catch (InterruptedException e) {
+                byEmail.remove(key, PENDING);
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("Interrupted waiting for user log"));
+            }
+        }
+        byId.put(user.id, user);
+        byEmail.replace(key, PENDING, user);
+        version.incrementAndGet();
+        return user;
+    }
+    
+    /**
+     * Puts a recovered user back with its original id. Idempotent, so a
+     * user present in both the snapshot and the log is simply replaced.
+     */
+    void restore(User user) {
+        User previous = byId.put(user.id, user);
+        if (previous != null) {
+            byEmail.remove(normalizeEmail(previous.email), previous);
+        }
+        byEmail.put(normalizeEmail(user.email), user);
+        nextId.accumulateAndGet(user.id + 1, Math::max);
+        version.incrementAndGet();
+    }
+    
+    public User get(int id) {
+        return byId.get(id);
+    }
+    
+    public User findByEmail(String email) {
+        User user = byEmail.get(normalizeEmail(email));
+        return user == PENDING ? null : user;
+    }
+    
+    public int size() {
+        return byId.size();
+    }
+    
+    /**
+     * Current snapshot, rebuilt if a write happened since the last one
+     */
+    public Snapshot snapshot() {
+        Snapshot current = snapshot.get();
+        long currentVersion = version.get();
+        if (current != null && current.version == currentVersion) {
+            return current;
+        }
+        
+        // Built from a version read before iterating, so a concurrent write
+        // leaves it marked stale rather than hiding that write
+        Snapshot rebuilt = new Snapshot(currentVersion, byId.values().toArray(new User[0]));
+        snapshot.compareAndSet(current, rebuilt);
+        return rebuilt;
+    }
+    
+    private static String normalizeEmail(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+}
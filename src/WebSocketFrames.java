@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * WebSocket frame layout (RFC 6455 section 5): opcodes, close codes, the
+ * handshake's accept key, and an encoder that lays out a server frame in
+ * one buffer ready to write. A frame starts with FIN, three reserved bits
+ * and the opcode, then the mask bit and a 7-bit length, extended to 16 or
+ * 64 bits by the values 126 and 127. Client frames carry a 4-byte masking
+ * key after the length; server frames are never masked.
+ */
+final class WebSocketFrames {
+    static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    static final String VERSION = "13";
+    
+    static final int CONTINUATION = 0x0;
+    static final int TEXT = 0x1;
+    static final int BINARY = 0x2;
+    static final int CLOSE = 0x8;
+    static final int PING = 0x9;
+    static final int PONG = 0xa;
+    
+    static final int FIN = 0x80;
+    static final int RSV = 0x70;
+    static final int MASK = 0x80;
+    // Largest payload of a control frame, which must fit the 7-bit length
+    static final int MAX_CONTROL_PAYLOAD = 125;
+    // Longest header: 2 bytes, a 64-bit length and a masking key
+    static final int MAX_HEADER_LENGTH = 14;
+    
+    static final int NORMAL_CLOSURE = 1000;
+    static final int GOING_AWAY = 1001;
+    static final int PROTOCOL_ERROR = 1002;
+    static final int NO_STATUS = 1005;
+    static final int INVALID_DATA = 1007;
+    static final int POLICY_VIOLATION = 1008;
+    static final int MESSAGE_TOO_BIG = 1009;
+    
+    private WebSocketFrames() {
+    }
+    
+    /**
+     * A violation of the protocol, answered with a close frame carrying the code
+     */
+    static class WebSocketException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int closeCode;
+        
+        WebSocketException(int closeCode, String message) {
+            super(message);
+            this.closeCode = closeCode;
+        }
+        
+        int getCloseCode() {
+            return closeCode;
+        }
+    }
+    
+    /**
+     * Sec-WebSocket-Accept for a client's Sec-WebSocket-Key
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Whether a Sec-WebSocket-Key is the base64 of 16 bytes, as the handshake requires
+     */
+    static boolean isValidKey(String key) {
+        if (key == null) {
+            return false;
+        }
+        try {
+            return Base64.getDecoder().decode(key.trim()).length == 16;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * One unfragmented, unmasked frame, flipped for writing
+     */
+    static ByteBuffer frame(int opcode, ByteBuffer payload) {
+        int length = payload.remaining();
+        ByteBuffer frame = ByteBuffer.allocate(headerLength(length) + length);
+        frame.put((byte) (FIN | opcode));
+        if (length <= MAX_CONTROL_PAYLOAD) {
+            frame.put((byte) length);
+        } else if (length <= 0xffff) {
+            frame.put((byte) 126).putShort((short) length);
+        } else {
+            frame.put((byte) 127).putLong(length);
+        }
+        frame.put(payload.duplicate());
+        return frame.flip();
+    }
+    
+    static ByteBuffer text(String text) {
+        return frame(TEXT, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    /**
+     * Close frame with a status code; NO_STATUS sends an empty payload, as the code may not appear on the wire
+     */
+    static ByteBuffer close(int code) {
+        if (code == NO_STATUS) {
+            return frame(CLOSE, ByteBuffer.allocate(0));
+        }
+        return frame(CLOSE, ByteBuffer.allocate(2).putShort(0, (short) code));
+    }
+    
+    private static int headerLength(int length) {
+        return length <= MAX_CONTROL_PAYLOAD ? 2 : length <= 0xffff ? 4 : 10;
+    }
+    
+    /**
+     * Whether a close code received from a client is one it may send
+     */
+    static boolean isValidCloseCode(int code) {
+        return (code >= 1000 && code <= 1003) || (code >= 1007 && code <= 1014) || (code >= 3000 && code <= 4999);
+    }
+}
@@ -0,0 +1,601 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * WebSocket connections (RFC 6455) after their handshake
+ * Every upgraded socket, from either engine, is registered with one
+ * selector on the hub's thread, so an idle WebSocket costs a registration
+ * and no thread; nothing is buffered for it between frames. The thread
+ * reads and unmasks client frames, reassembles fragmented messages,
+ * answers pings and close frames, and pings connections that go quiet.
+ * Messages can be sent to one session or broadcast to all of them from
+ * any thread: a broadcast is encoded once and the same bytes are queued
+ * for every session. Each session's queue is bounded, and a client that
+ * lets it fill up is disconnected rather than allowed to grow the heap.
+ */
+public class WebSocketHub {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final long SELECT_TIMEOUT = 1000;
+    
+    /**
+     * Receives complete messages on the hub's thread, so it must not block
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void onMessage(Session session, int opcode, byte[] payload);
+    }
+    
+    private final int maxMessage;
+    private final int queueLimit;
+    private final long pingInterval;
+    private final Metrics metrics;
+    private final Listener listener;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running = true;
+    
+    public WebSocketHub(ServerConfig config, Metrics metrics, Listener listener) {
+        this.maxMessage = config.getWebSocketMaxMessage();
+        this.queueLimit = config.getWebSocketQueueBytes();
+        this.pingInterval = config.getWebSocketPingInterval();
+        this.metrics = metrics;
+        this.listener = listener;
+    }
+    
+    /**
+     * Takes over an upgraded connection. The selector thread is started
+     * with the first one, so a server no client upgrades on has none.
+     */
+    void adopt(SocketChannel channel, TlsChannel tls, byte[] buffered) throws IOException {
+        synchronized (this) {
+            if (!running) {
+                throw new IOException("Server is stopping");
+            }
+            if (thread == null) {
+                selector = Selector.open();
+                thread = new Thread(this::run, "websocket-hub");
+                thread.start();
+            }
+        }
+        if (tls != null) {
+            // Reads went through the blocking engine's socket stream until now
+            tls.setInput(channel);
+        }
+        channel.configureBlocking(false);
+        execute(() -> {
+            Session session;
+            try {
+                if (!running) {
+                    throw new IOException("Server is stopping");
+                }
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                session = new Session(channel, key, tls);
+                key.attach(session);
+            } catch (IOException e) {
+                metrics.connectionClosed();
+                closeQuietly(tls != null ? tls : channel);
+                return;
+            }
+            sessions.add(session);
+            metrics.webSocketOpened();
+            try {
+                session.receive(ByteBuffer.wrap(buffered));
+                if (tls != null && tls.hasBufferedInput()) {
+                    // Already decrypted, so no selector event will announce it
+                    session.onReadable();
+                }
+            } catch (WebSocketFrames.WebSocketException e) {
+                session.fail(e);
+            } catch (IOException e) {
+                session.disconnect("error");
+            }
+        });
+    }
+    
+    /**
+     * Sends a text message to every open session
+     * @return sessions it was queued for
+     */
+    public int broadcast(String text) {
+        return broadcast(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    /**
+     * Sends a text message, given as UTF-8 bytes, to every open session
+     * @return sessions it was queued for
+     */
+    public int broadcast(ByteBuffer utf8) {
+        ByteBuffer frame = WebSocketFrames.frame(WebSocketFrames.TEXT, utf8);
+        int queued = 0;
+        for (Session session : sessions) {
+            if (session.send(frame.duplicate())) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+    
+    public int getSessionCount() {
+        return sessions.size();
+    }
+    
+    /**
+     * Closes every session with 1001 Going Away and stops the thread
+     */
+    public void close() {
+        Thread started;
+        synchronized (this) {
+            running = false;
+            started = thread;
+        }
+        if (started != null) {
+            selector.wakeup();
+            try {
+                started.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+    
+    private void run() {
+        long lastSweep = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+                
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Session session = (Session) key.attachment();
+                    if (session == null || !key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            session.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                    } catch (WebSocketFrames.WebSocketException e) {
+                        session.fail(e);
+                    } catch (IOException | CancelledKeyException e) {
+                        session.disconnect("error");
+                    } catch (RuntimeException e) {
+                        System.err.println("Error in WebSocket listener: " + e);
+                        session.disconnect("error");
+                    }
+                }
+                
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SELECT_TIMEOUT) {
+                    sweep(now);
+                    lastSweep = now;
+                }
+            } catch (IOException e) {
+                System.err.println("WebSocket hub error: " + e.getMessage());
+            }
+        }
+        
+        for (Session session : sessions) {
+            session.closeReason = "shutdown";
+            session.send(WebSocketFrames.close(WebSocketFrames.GOING_AWAY));
+            session.flushQuietly();
+            session.disconnect("shutdown");
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        closeQuietly(selector);
+    }
+    
+    /**
+     * Pings sessions that have been silent for the interval and closes
+     * those still silent after another one
+     */
+    private void sweep(long now) {
+        if (pingInterval <= 0) {
+            return;
+        }
+        for (Session session : sessions) {
+            long silent = now - session.lastActivity;
+            if (silent > 2 * pingInterval) {
+                session.disconnect("idle");
+            } else if (silent > pingInterval && !session.pinged) {
+                session.pinged = true;
+                session.send(WebSocketFrames.frame(WebSocketFrames.PING, ByteBuffer.allocate(0)));
+            }
+        }
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing useful to do
+        }
+    }
+    
+    /**
+     * One WebSocket connection. Reading, parsing and closing happen on the
+     * hub's thread only; send may be called from any thread.
+     */
+    public final class Session {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final TlsChannel tls;
+        private final ByteChannel io;
+        
+        // Bytes of a frame that has not fully arrived; null between frames
+        private ByteBuffer partial;
+        // Fragments of a message in progress, and its opcode (-1 when none)
+        private byte[] message;
+        private int messageLength;
+        private int messageOpcode = -1;
+        private long lastActivity = System.currentTimeMillis();
+        private boolean pinged;
+        // Set once a close frame is queued: nothing else is sent, and the socket closes after it
+        private boolean closing;
+        private boolean closed;
+        // Recorded when the close frame has gone out; "closed" when the client started it
+        private String closeReason = "closed";
+        
+        // Guarded by this, as workers queue frames while the hub thread writes them
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private final ByteBuffer[] batch = new ByteBuffer[64];
+        private long queued;
+        private boolean scheduled;
+        private boolean overflowed;
+        
+        private Session(SocketChannel channel, SelectionKey key, TlsChannel tls) {
+            this.channel = channel;
+            this.key = key;
+            this.tls = tls;
+            this.io = tls != null ? tls : channel;
+        }
+        
+        /**
+         * Queues a text message
+         * @return false if the session is closing or was just disconnected as too slow
+         */
+        public boolean send(String text) {
+            return send(WebSocketFrames.text(text));
+        }
+        
+        /**
+         * Queues one message as a single frame
+         */
+        public boolean send(int opcode, byte[] payload) {
+            return send(WebSocketFrames.frame(opcode, ByteBuffer.wrap(payload)));
+        }
+        
+        boolean send(ByteBuffer frame) {
+            boolean schedule;
+            boolean overflow = false;
+            synchronized (this) {
+                if (closing || overflowed) {
+                    return false;
+                }
+                if (queued + frame.remaining() > queueLimit) {
+                    // The client is not keeping up; drop it instead of buffering more
+                    overflowed = true;
+                    overflow = true;
+                    schedule = false;
+                } else {
+                    outbound.add(frame);
+                    queued += frame.remaining();
+                    if ((frame.get(frame.position()) & 0x0f) == WebSocketFrames.CLOSE) {
+                        closing = true;
+                    }
+                    schedule = !scheduled;
+                    scheduled = true;
+                }
+            }
+            if (overflow) {
+                execute(() -> disconnect("slow_consumer"));
+                return false;
+            }
+            if (schedule) {
+                execute(this::flushQuietly);
+            }
+            return true;
+        }
+        
+        private void flushQuietly() {
+            if (closed) {
+                return;
+            }
+            try {
+                flush();
+            } catch (IOException | CancelledKeyException e) {
+                disconnect("error");
+            }
+        }
+        
+        /**
+         * Writes queued frames as far as the socket takes them, closing the
+         * connection once a close frame has gone out
+         */
+        private void flush() throws IOException {
+            boolean drained;
+            synchronized (this) {
+                scheduled = false;
+                while (!outbound.isEmpty()) {
+                    int count = 0;
+                    for (ByteBuffer frame : outbound) {
+                        batch[count++] = frame;
+                        if (count == batch.length) {
+                            break;
+                        }
+                    }
+                    long written = channel.isOpen() ? writeBatch(count) : 0;
+                    Arrays.fill(batch, 0, count, null);
+                    queued -= written;
+                    while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining()) {
+                        outbound.pollFirst();
+                    }
+                    if (written == 0) {
+                        break;
+                    }
+                }
+                drained = outbound.isEmpty() && (tls == null || tls.flush());
+            }
+            if (drained && closing) {
+                disconnect(closeReason);
+                return;
+            }
+            int ops = key.interestOps();
+            key.interestOps(drained ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE);
+        }
+        
+        private long writeBatch(int count) throws IOException {
+            return tls != null ? tls.write(batch, 0, count) : channel.write(batch, 0, count);
+        }
+        
+        private void onReadable() throws IOException {
+            do {
+                readBuffer.clear();
+                int read = io.read(readBuffer);
+                if (read < 0) {
+                    disconnect(closing ? closeReason : "abnormal");
+                    return;
+                }
+                if (read == 0) {
+                    return;
+                }
+                readBuffer.flip();
+                receive(readBuffer);
+            } while (!closed && tls != null && tls.hasBufferedInput());
+        }
+        
+        /**
+         * Parses every complete frame in the input and keeps the rest for the next read
+         */
+        private void receive(ByteBuffer input) throws IOException {
+            if (!input.hasRemaining()) {
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            pinged = false;
+            if (partial != null) {
+                if (partial.remaining() < input.remaining()) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(partial.position() + input.remaining(),
+                        partial.capacity() * 2));
+                    partial.flip();
+                    partial = grown.put(partial);
+                }
+                partial.put(input);
+                partial.flip();
+                input = partial;
+            }
+            while (!closed && !closing && parseFrame(input)) {
+                // One frame per call
+            }
+            if (closed || closing || !input.hasRemaining()) {
+                partial = null;
+            } else if (input == partial) {
+                partial.compact();
+            } else {
+                partial = ByteBuffer.allocate(Math.max(input.remaining(), 256)).put(input);
+            }
+        }
+        
+        /**
+         * Handles one frame if it has fully arrived
+         * @return false if more bytes are needed
+         */
+        private boolean parseFrame(ByteBuffer input) throws IOException {
+            int start = input.position();
+            if (input.remaining() < 2) {
+                return false;
+            }
+            int first = input.get(start) & 0xff;
+            int second = input.get(start + 1) & 0xff;
+            int opcode = first & 0x0f;
+            boolean fin = (first & WebSocketFrames.FIN) != 0;
+            if ((first & WebSocketFrames.RSV) != 0) {
+                throw new WebSocketFrames.WebSocketException(WebSocketFrames.PROTOCOL_ERROR, "Reserved bits set");
+            }
+            if ((second & WebSocketFrames.MASK) == 0) {
+                throw new WebSocketFrames.WebSocketException(WebSocketFrames.PROTOCOL_ERROR, "Client frame not masked");
+            }
+            boolean control = opcode >= WebSocketFrames.CLOSE;
+            int headerLength = 6;
+            long length = second & 0x7f;
+            if (length == 126) {
+                headerLength = 8;
+            } else if (length == 127) {
+                headerLength = WebSocketFrames.MAX_HEADER_LENGTH;
+            }
+            if (control && (!fin || length > WebSocketFrames.MAX_CONTROL_PAYLOAD)) {
+                throw new WebSocketFrames.WebSocketException(WebSocketFrames.PROTOCOL_ERROR, "Invalid control frame");
+            }
+            if (input.remaining() < headerLength) {
+                return false;
+            }
+            if (length == 126) {
+                length = input.getShort(start + 2) & 0xffff;
+            } else if (length == 127) {
+                length = input.getLong(start + 2);
+            }
+            if (length < 0 || length > maxMessage - (control ? 0 : messageLength)) {
+                throw new WebSocketFrames.WebSocketException(WebSocketFrames.MESSAGE_TOO_BIG, "Message too big");
+            }
+            if (input.remaining() < headerLength + length) {
+                return false;
+            }
+            
+            byte[] payload = new byte[(int) length];
+            int maskOffset = start + headerLength - 4;
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) (input.get(start + headerLength + i) ^ input.get(maskOffset + (i & 3)));
+            }
+            input.position(start + headerLength + payload.length);
+            
+            switch (opcode) {
+                case WebSocketFrames.TEXT:
+                case WebSocketFrames.BINARY:
+                    if (messageOpcode >= 0) {
+                        throw new WebSocketFrames.WebSocketException(WebSocketFrames.PROTOCOL_ERROR,
+                            "New message before the last one finished");
+                    }
+                    if (fin) {
+                        deliver(opcode, payload);
+                    } else {
+                        messageOpcode = opcode;
+                        append(payload);
+                    }
+                    break;
+                case WebSocketFrames.CONTINUATION:
+                    if (messageOpcode < 0) {
+                        throw new WebSocketFrames.WebSocketException(WebSocketFrames.PROTOCOL_ERROR,
+                            "Continuation without a message");
+                    }
+                    append(payload);
+                    if (fin) {
+                        byte[] whole = Arrays.copyOf(message, messageLength);
+                        int wholeOpcode = messageOpcode;
+                        message = null;
+                        messageLength = 0;
+                        messageOpcode = -1;
+                        deliver(wholeOpcode, whole);
+                    }
+                    break;
+                case WebSocketFrames.PING:
+                    send(WebSocketFrames.frame(WebSocketFrames.PONG, ByteBuffer.wrap(payload)));
+                    break;
+                case WebSocketFrames.PONG:
+                    break;
+                case WebSocketFrames.CLOSE:
+                    onClose(payload);
+                    break;
+                default:
+                    throw new WebSocketFrames.WebSocketException(WebSocketFrames.PROTOCOL_ERROR, "Unknown opcode");
+            }
+            return true;
+        }
+        
+        private void append(byte[] payload) {
+            if (message == null) {
+                message = new byte[Math.max(payload.length * 2, 1024)];
+            } else if (message.length - messageLength < payload.length) {
+                message = Arrays.copyOf(message, Math.max(message.length * 2, messageLength + payload.length));
+            }
+            System.arraycopy(payload, 0, message, messageLength, payload.length);
+            messageLength += payload.length;
+        }
+        
+        private void deliver(int opcode, byte[] payload) throws IOException {
+            if (opcode == WebSocketFrames.TEXT && !isUtf8(payload)) {
+                throw new WebSocketFrames.WebSocketException(WebSocketFrames.INVALID_DATA, "Text is not UTF-8");
+            }
+            listener.onMessage(this, opcode, payload);
+        }
+        
+        /**
+         * Answers the client's close frame with the same code, then closes once it has gone out
+         */
+        private void onClose(byte[] payload) throws IOException {
+            int code = WebSocketFrames.NO_STATUS;
+            if (payload.length == 1) {
+                throw new WebSocketFrames.WebSocketException(WebSocketFrames.PROTOCOL_ERROR, "Truncated close code");
+            }
+            if (payload.length >= 2) {
+                code = (payload[0] & 0xff) << 8 | (payload[1] & 0xff);
+                if (!WebSocketFrames.isValidCloseCode(code)
+                        || !isUtf8(Arrays.copyOfRange(payload, 2, payload.length))) {
+                    throw new WebSocketFrames.WebSocketException(WebSocketFrames.PROTOCOL_ERROR, "Invalid close frame");
+                }
+            }
+            if (!send(WebSocketFrames.close(code))) {
+                disconnect("closed");
+            }
+        }
+        
+        /**
+         * Closes with the error's code after a protocol violation; the
+         * socket closes once the frame is out, without waiting for the answer
+         */
+        private void fail(WebSocketFrames.WebSocketException e) {
+            closeReason = "protocol_error";
+            if (!send(WebSocketFrames.close(e.getCloseCode()))) {
+                disconnect(closeReason);
+            }
+        }
+        
+        /**
+         * Closes the socket without a closing handshake
+         */
+        private void disconnect(String reason) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            sessions.remove(this);
+            synchronized (this) {
+                closing = true;
+                outbound.clear();
+                queued = 0;
+            }
+            key.cancel();
+            closeQuietly(io);
+            metrics.webSocketClosed(reason);
+            metrics.connectionClosed();
+        }
+    }
+    
+    private static boolean isUtf8(byte[] bytes) {
+        try {
+            StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(bytes));
+            return true;
+        } catch (CharacterCodingException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 101 Switching Protocols answering a valid WebSocket handshake
+ * The engine sends it like any other response, then, instead of reading
+ * the next request, hands the socket to the WebSocket hub with whatever
+ * bytes it read past the handshake. From then on the connection costs a
+ * selector registration on the hub's thread and no worker thread.
+ */
+public class WebSocketUpgrade extends HTTPResponse {
+    private final WebSocketHub hub;
+    
+    WebSocketUpgrade(WebSocketHub hub, String acceptKey) {
+        super(101, "Switching Protocols");
+        this.hub = hub;
+        setHeader("Upgrade", "websocket");
+        setHeader("Connection", "Upgrade");
+        setHeader("Sec-WebSocket-Accept", acceptKey);
+    }
+    
+    /**
+     * Hands over the connection once this response has been written
+     * @param tls the connection's TLS channel, or null for plaintext
+     * @param buffered bytes read after the handshake request
+     */
+    void adopt(SocketChannel channel, TlsChannel tls, byte[] buffered) throws IOException {
+        hub.adopt(channel, tls, buffered);
+    }
+}